@@ -28,6 +28,7 @@ import java.util.Map;
 
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.io.hfile.Compression;
+import org.apache.hadoop.hbase.io.hfile.DataBlockEncoding;
 import org.apache.hadoop.hbase.io.hfile.HFile;
 import org.apache.hadoop.hbase.regionserver.StoreFile;
 import org.apache.hadoop.hbase.regionserver.StoreFile.BloomType;
@@ -77,6 +78,8 @@ public class HColumnDescriptor implements WritableComparable<HColumnDescriptor>
   public static final String LENGTH = "LENGTH";
   public static final String TTL = "TTL";
   public static final String BLOOMFILTER = "BLOOMFILTER";
+  public static final String DATA_BLOCK_ENCODING = "DATA_BLOCK_ENCODING";
+  public static final String IN_MEMORY_COMPACTION = "IN_MEMORY_COMPACTION";
   public static final String FOREVER = "FOREVER";
   public static final String REPLICATION_SCOPE = "REPLICATION_SCOPE";
 
@@ -118,6 +121,17 @@ public class HColumnDescriptor implements WritableComparable<HColumnDescriptor>
    */
   public static final String DEFAULT_BLOOMFILTER = StoreFile.BloomType.NONE.toString();
 
+  /**
+   * Default encoding of data blocks.
+   */
+  public static final String DEFAULT_DATA_BLOCK_ENCODING =
+    DataBlockEncoding.NONE.toString();
+
+  /**
+   * Default setting for whether to compact the memstore in memory.
+   */
+  public static final boolean DEFAULT_IN_MEMORY_COMPACTION = false;
+
   /**
    * Default time to live of cell contents.
    */
@@ -485,6 +499,47 @@ public class HColumnDescriptor implements WritableComparable<HColumnDescriptor>
     setValue(BLOOMFILTER, bt.toString());
   }
 
+  /**
+   * @return encoding of the data blocks of new StoreFiles in ColumnFamily
+   */
+  public DataBlockEncoding getDataBlockEncoding() {
+    String n = getValue(DATA_BLOCK_ENCODING);
+    if (n == null) {
+      n = DEFAULT_DATA_BLOCK_ENCODING;
+    }
+    return DataBlockEncoding.valueOf(n.toUpperCase());
+  }
+
+  /**
+   * Prefix and diff encodings shrink data blocks of keys that share long
+   * prefixes, as keys of tall tables do, so more key/values fit a cached
+   * block.
+   * @param encoding encoding of the data blocks
+   */
+  public void setDataBlockEncoding(final DataBlockEncoding encoding) {
+    setValue(DATA_BLOCK_ENCODING, encoding.toString());
+  }
+
+  /**
+   * @return True if the memstore is compacted in memory as it grows.
+   */
+  public boolean isInMemoryCompaction() {
+    String value = getValue(IN_MEMORY_COMPACTION);
+    if (value != null)
+      return Boolean.valueOf(value).booleanValue();
+    return DEFAULT_IN_MEMORY_COMPACTION;
+  }
+
+  /**
+   * Families whose cells are overwritten many times between flushes, like
+   * counters, can drop the versions past the maximum and the deleted cells
+   * from the memstore as they come in, and flush less often.
+   * @param inMemoryCompaction True to compact the memstore in memory.
+   */
+  public void setInMemoryCompaction(boolean inMemoryCompaction) {
+    setValue(IN_MEMORY_COMPACTION, Boolean.toString(inMemoryCompaction));
+  }
+
    /**
     * @return the scope tag
     */
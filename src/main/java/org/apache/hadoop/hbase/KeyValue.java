@@ -1562,6 +1562,24 @@ public class KeyValue implements Writable, HeapSize {
     return new KeyValue(row, f, q, ts, Type.Maximum);
   }
 
+  /**
+   * @param kv - key/value to take row and column from
+   * @param ts - timestamp
+   * @return First possible key on the row and column of <code>kv</code>
+   * with the passed timestamp
+   */
+  public static KeyValue createFirstOnRowColTS(final KeyValue kv,
+      final long ts) {
+    int foffset = kv.getFamilyOffset();
+    int flength = kv.getFamilyLength(foffset);
+    short rlength = kv.getRowLength();
+    int qoffset = kv.getQualifierOffset(foffset);
+    return new KeyValue(kv.getBuffer(), kv.getRowOffset(), rlength,
+      kv.getBuffer(), foffset, flength,
+      kv.getBuffer(), qoffset, kv.getQualifierLength(rlength, flength),
+      ts, Type.Maximum, null, 0, 0);
+  }
+
   /**
    * @param b
    * @return A KeyValue made of a byte array that holds the key-only part.
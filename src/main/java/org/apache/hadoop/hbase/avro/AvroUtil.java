@@ -208,13 +208,18 @@ public class AvroUtil {
   static public AFamilyDescriptor hcdToAFD(HColumnDescriptor hcd) throws IOException {
     AFamilyDescriptor afamily = new AFamilyDescriptor();
     afamily.name = ByteBuffer.wrap(hcd.getName());
-    String compressionAlgorithm = hcd.getCompressionType().getName();
-    if (compressionAlgorithm == "LZO") {
+    Compression.Algorithm compressionAlgorithm = hcd.getCompressionType();
+    if (compressionAlgorithm == Compression.Algorithm.LZO) {
       afamily.compression = ACompressionAlgorithm.LZO;
-    } else if (compressionAlgorithm == "GZ") {
+    } else if (compressionAlgorithm == Compression.Algorithm.GZ) {
       afamily.compression = ACompressionAlgorithm.GZ;
-    } else {
+    } else if (compressionAlgorithm == Compression.Algorithm.LZ4) {
+      afamily.compression = ACompressionAlgorithm.LZ4;
+    } else if (compressionAlgorithm == Compression.Algorithm.NONE) {
       afamily.compression = ACompressionAlgorithm.NONE;
+    } else {
+      throw new IOException("Unsupported compression algorithm " +
+        compressionAlgorithm.getName());
     }
     afamily.maxVersions = hcd.getMaxVersions();
     afamily.blocksize = hcd.getBlocksize();
@@ -232,6 +237,8 @@ public class AvroUtil {
       hcd.setCompressionType(Compression.Algorithm.LZO);
     } else if (compressionAlgorithm == ACompressionAlgorithm.GZ) {
       hcd.setCompressionType(Compression.Algorithm.GZ);
+    } else if (compressionAlgorithm == ACompressionAlgorithm.LZ4) {
+      hcd.setCompressionType(Compression.Algorithm.LZ4);
     } else {
       hcd.setCompressionType(Compression.Algorithm.NONE);
     }
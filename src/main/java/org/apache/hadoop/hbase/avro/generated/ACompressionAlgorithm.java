@@ -2,5 +2,5 @@ package org.apache.hadoop.hbase.avro.generated;
 
 @SuppressWarnings("all")
 public enum ACompressionAlgorithm { 
-  LZO, GZ, NONE
+  LZO, GZ, NONE, LZ4
 }
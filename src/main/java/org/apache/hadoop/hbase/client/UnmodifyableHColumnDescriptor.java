@@ -22,6 +22,7 @@ package org.apache.hadoop.hbase.client;
 
 import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.io.hfile.Compression;
+import org.apache.hadoop.hbase.io.hfile.DataBlockEncoding;
 
 /**
  * Immutable HColumnDescriptor
@@ -90,4 +91,20 @@ public class UnmodifyableHColumnDescriptor extends HColumnDescriptor {
   public void setCompressionType(Compression.Algorithm type) {
     throw new UnsupportedOperationException("HColumnDescriptor is read-only");
   }
+
+  /**
+   * @see org.apache.hadoop.hbase.HColumnDescriptor#setDataBlockEncoding(org.apache.hadoop.hbase.io.hfile.DataBlockEncoding)
+   */
+  @Override
+  public void setDataBlockEncoding(DataBlockEncoding encoding) {
+    throw new UnsupportedOperationException("HColumnDescriptor is read-only");
+  }
+
+  /**
+   * @see org.apache.hadoop.hbase.HColumnDescriptor#setInMemoryCompaction(boolean)
+   */
+  @Override
+  public void setInMemoryCompaction(boolean inMemoryCompaction) {
+    throw new UnsupportedOperationException("HColumnDescriptor is read-only");
+  }
 }
\ No newline at end of file
@@ -81,8 +81,9 @@ public class HalfStoreFileReader extends StoreFile.Reader {
   }
 
   @Override
-  public HFileScanner getScanner(final boolean cacheBlocks, final boolean pread) {
-    final HFileScanner s = super.getScanner(cacheBlocks, pread);
+  public HFileScanner getScanner(final boolean cacheBlocks, final boolean pread,
+      final boolean readAhead) {
+    final HFileScanner s = super.getScanner(cacheBlocks, pread, readAhead);
     return new HFileScanner() {
       final HFileScanner delegate = s;
       public boolean atEnd = false;
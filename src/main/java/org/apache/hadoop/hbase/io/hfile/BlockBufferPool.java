@@ -0,0 +1,130 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of byte arrays to read HFile blocks into.
+ * <p>
+ * Arrays are pooled by size class: each class holds arrays of a power of two
+ * length, so an array taken for a block may be longer than the block.  The
+ * pool holds no more than <code>maxSize</code> bytes of free arrays; arrays
+ * given back past that are left to the garbage collector.  An array must not
+ * be given back while anything still refers to it.
+ */
+public class BlockBufferPool {
+  /** Length of the smallest size class. */
+  static final int MIN_CLASS_SIZE = 1024;
+  // Size classes up to 2^30.
+  private static final int CLASSES = 21;
+
+  private final long maxSize;
+  private final AtomicLong size = new AtomicLong(0);
+  private final Queue<byte []> [] classes;
+
+  /**
+   * @param maxSize Most bytes of free arrays to hold.
+   */
+  @SuppressWarnings("unchecked")
+  public BlockBufferPool(final long maxSize) {
+    this.maxSize = maxSize;
+    this.classes = new Queue[CLASSES];
+    for (int i = 0; i < CLASSES; i++) {
+      this.classes[i] = new ConcurrentLinkedQueue<byte []>();
+    }
+  }
+
+  /*
+   * @return Index of the smallest size class holding <code>length</code>
+   * bytes, or CLASSES if no class is big enough.
+   */
+  static int sizeClass(final int length) {
+    int c = 0;
+    int classSize = MIN_CLASS_SIZE;
+    while (classSize < length && c < CLASSES) {
+      classSize <<= 1;
+      c++;
+    }
+    return c;
+  }
+
+  /**
+   * @param length Least length of the array.
+   * @return A free array of at least <code>length</code> bytes, or null if
+   * the pool has none; allocate one of {@link #getArrayLength(int)} bytes to
+   * give back later.
+   */
+  public byte [] take(final int length) {
+    int c = sizeClass(length);
+    if (c >= CLASSES) {
+      return null;
+    }
+    byte [] b = this.classes[c].poll();
+    if (b != null) {
+      this.size.addAndGet(-b.length);
+    }
+    return b;
+  }
+
+  /**
+   * @param length Least length of the array.
+   * @return Length of the arrays of the size class of <code>length</code>.
+   */
+  public static int getArrayLength(final int length) {
+    int c = sizeClass(length);
+    return c >= CLASSES? length: MIN_CLASS_SIZE << c;
+  }
+
+  /**
+   * Give back an array once nothing refers to it any more.
+   * @param b An array of a size class length.
+   * @return True if the array was pooled, false if left to the garbage
+   * collector.
+   */
+  public boolean give(final byte [] b) {
+    int c = sizeClass(b.length);
+    if (c >= CLASSES || (MIN_CLASS_SIZE << c) != b.length) {
+      return false;
+    }
+    if (this.size.addAndGet(b.length) > this.maxSize) {
+      this.size.addAndGet(-b.length);
+      return false;
+    }
+    this.classes[c].offer(b);
+    return true;
+  }
+
+  /**
+   * @return Bytes of free arrays held.
+   */
+  public long getSize() {
+    return this.size.get();
+  }
+
+  /**
+   * @return Most bytes of free arrays held.
+   */
+  public long getMaxSize() {
+    return this.maxSize;
+  }
+}
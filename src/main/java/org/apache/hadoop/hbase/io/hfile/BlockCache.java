@@ -22,31 +22,31 @@ package org.apache.hadoop.hbase.io.hfile;
 import java.nio.ByteBuffer;
 
 /**
- * Block cache interface.
- * TODO: Add filename or hash of filename to block cache key.
+ * Block cache interface.  Blocks are keyed by {@link BlockCacheKey}.
  */
 public interface BlockCache {
   /**
    * Add block to cache.
-   * @param blockName Zero-based file block number.
+   * @param cacheKey File and offset of the block.
    * @param buf The block contents wrapped in a ByteBuffer.
    * @param inMemory Whether block should be treated as in-memory
    */
-  public void cacheBlock(String blockName, ByteBuffer buf, boolean inMemory);
+  public void cacheBlock(BlockCacheKey cacheKey, ByteBuffer buf,
+    boolean inMemory);
 
   /**
    * Add block to cache (defaults to not in-memory).
-   * @param blockName Zero-based file block number.
+   * @param cacheKey File and offset of the block.
    * @param buf The block contents wrapped in a ByteBuffer.
    */
-  public void cacheBlock(String blockName, ByteBuffer buf);
+  public void cacheBlock(BlockCacheKey cacheKey, ByteBuffer buf);
 
   /**
    * Fetch block from cache.
-   * @param blockName Block number to fetch.
+   * @param cacheKey File and offset of the block to fetch.
    * @return Block or null if block is not in the cache.
    */
-  public ByteBuffer getBlock(String blockName);
+  public ByteBuffer getBlock(BlockCacheKey cacheKey);
 
   /**
    * Shutdown the cache.
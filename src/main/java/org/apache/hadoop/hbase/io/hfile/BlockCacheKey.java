@@ -0,0 +1,97 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import org.apache.hadoop.hbase.io.HeapSize;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
+
+/**
+ * Key of a block in a {@link BlockCache}: the name of the file the block is
+ * in, and the offset of the block in the file.
+ * <p>
+ * The file name is shared by all keys of a reader, so a key costs a small
+ * fixed object rather than a new string per lookup.  The hash code is
+ * worked out once, on construction.
+ */
+public final class BlockCacheKey implements HeapSize {
+  public final static long FIXED_OVERHEAD = ClassSize.align(ClassSize.OBJECT +
+    ClassSize.REFERENCE + Bytes.SIZEOF_LONG + Bytes.SIZEOF_INT);
+
+  private final String hfileName;
+  private final long offset;
+  private final int hash;
+
+  /**
+   * @param hfileName Name of the file the block is in.
+   * @param offset Offset of the block in the file.
+   */
+  public BlockCacheKey(final String hfileName, final long offset) {
+    this.hfileName = hfileName;
+    this.offset = offset;
+    this.hash = hfileName.hashCode() * 127 + (int)(offset ^ (offset >>> 32));
+  }
+
+  /**
+   * @return Name of the file the block is in.
+   */
+  public String getHfileName() {
+    return this.hfileName;
+  }
+
+  /**
+   * @return Offset of the block in the file.
+   */
+  public long getOffset() {
+    return this.offset;
+  }
+
+  @Override
+  public int hashCode() {
+    return this.hash;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof BlockCacheKey)) {
+      return false;
+    }
+    BlockCacheKey other = (BlockCacheKey)o;
+    return this.offset == other.offset && this.hash == other.hash &&
+      (this.hfileName == other.hfileName ||
+        this.hfileName.equals(other.hfileName));
+  }
+
+  /**
+   * The file name is shared by the keys of all blocks of a file so is not
+   * counted.
+   */
+  public long heapSize() {
+    return FIXED_OVERHEAD;
+  }
+
+  @Override
+  public String toString() {
+    return this.hfileName + "@" + this.offset;
+  }
+}
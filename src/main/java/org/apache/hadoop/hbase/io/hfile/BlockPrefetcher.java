@@ -0,0 +1,133 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Threads that read HFile blocks ahead of sequential scanners, shared by
+ * all readers of a server.
+ * <p>
+ * A scanner that reads ahead keeps up to {@link #getBlocksAhead()} blocks
+ * following its current one being read here, so it finds the next block
+ * read by the time it gets to it rather than wait on the file system for
+ * every block.  The bytes of blocks waiting to be read or being read are
+ * bounded by the budget; scanners read no further ahead while it is used
+ * up.  Blocks read ahead and not yet taken by their scanner are not counted,
+ * as they are bounded by the blocks ahead of every scanner.
+ */
+public class BlockPrefetcher {
+  private final ThreadPoolExecutor pool;
+  private final int blocksAhead;
+  private final long maxSize;
+  private final AtomicLong size = new AtomicLong(0);
+
+  /**
+   * @param threads Threads to read blocks with.
+   * @param blocksAhead Blocks each scanner reads ahead.
+   * @param maxSize Budget, in bytes, of blocks read at once.
+   */
+  public BlockPrefetcher(final int threads, final int blocksAhead,
+      final long maxSize) {
+    if (threads <= 0 || blocksAhead <= 0 || maxSize <= 0) {
+      throw new IllegalArgumentException("Bad read-ahead settings: threads=" +
+        threads + ", blocksAhead=" + blocksAhead + ", maxSize=" + maxSize);
+    }
+    this.blocksAhead = blocksAhead;
+    this.maxSize = maxSize;
+    this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "BlockPrefetcher-" +
+            count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    this.pool.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Take bytes of the budget for a block to be read.
+   * @param bytes Size of the block.
+   * @return False if the budget does not have room for the block.
+   */
+  boolean reserve(final long bytes) {
+    while (true) {
+      long current = this.size.get();
+      if (current + bytes > this.maxSize) {
+        return false;
+      }
+      if (this.size.compareAndSet(current, current + bytes)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Give back bytes taken by {@link #reserve(long)}.
+   */
+  void release(final long bytes) {
+    this.size.addAndGet(-bytes);
+  }
+
+  /**
+   * Read a block on one of the threads.
+   */
+  <T> Future<T> submit(final Callable<T> read) {
+    return this.pool.submit(read);
+  }
+
+  /**
+   * @return Blocks each scanner reads ahead.
+   */
+  public int getBlocksAhead() {
+    return this.blocksAhead;
+  }
+
+  /**
+   * @return Bytes of blocks waiting to be read or being read.
+   */
+  public long getSize() {
+    return this.size.get();
+  }
+
+  /**
+   * @return Budget of blocks read at once, in bytes.
+   */
+  public long getMaxSize() {
+    return this.maxSize;
+  }
+
+  /**
+   * Stop the threads.  Blocks waiting to be read are not read.
+   */
+  public void shutdown() {
+    this.pool.shutdownNow();
+  }
+}
@@ -37,7 +37,8 @@ public class CachedBlock implements HeapSize, Comparable<CachedBlock> {
 
   public final static long PER_BLOCK_OVERHEAD = ClassSize.align(
     ClassSize.OBJECT + (3 * ClassSize.REFERENCE) + (2 * Bytes.SIZEOF_LONG) +
-    ClassSize.STRING + ClassSize.BYTE_BUFFER);
+    (2 * Bytes.SIZEOF_BOOLEAN) + BlockCacheKey.FIXED_OVERHEAD +
+    ClassSize.BYTE_BUFFER);
 
   static enum BlockPriority {
     /**
@@ -54,23 +55,27 @@ public class CachedBlock implements HeapSize, Comparable<CachedBlock> {
     MEMORY
   };
 
-  private final String blockName;
+  private final BlockCacheKey blockName;
   private final ByteBuffer buf;
   private volatile long accessTime;
   private long size;
-  private BlockPriority priority;
+  private volatile BlockPriority priority;
+  // Reference bit for CLOCK eviction; set on access, cleared by the sweep.
+  private volatile boolean referenced = false;
+  // Set, under this block's monitor, once a CLOCK sweep claims the block.
+  private boolean evicted = false;
 
-  public CachedBlock(String blockName, ByteBuffer buf, long accessTime) {
+  public CachedBlock(BlockCacheKey blockName, ByteBuffer buf,
+      long accessTime) {
     this(blockName, buf, accessTime, false);
   }
 
-  public CachedBlock(String blockName, ByteBuffer buf, long accessTime,
-      boolean inMemory) {
+  public CachedBlock(BlockCacheKey blockName, ByteBuffer buf,
+      long accessTime, boolean inMemory) {
     this.blockName = blockName;
     this.buf = buf;
     this.accessTime = accessTime;
-    this.size = ClassSize.align(blockName.length()) +
-    ClassSize.align(buf.capacity()) + PER_BLOCK_OVERHEAD;
+    this.size = ClassSize.align(buf.capacity()) + PER_BLOCK_OVERHEAD;
     if(inMemory) {
       this.priority = BlockPriority.MEMORY;
     } else {
@@ -80,12 +85,34 @@ public class CachedBlock implements HeapSize, Comparable<CachedBlock> {
 
   /**
    * Block has been accessed.  Update its local access time.
+   * @return true if this access moved the block from single to multiple
+   * access priority
    */
-  public void access(long accessTime) {
+  public boolean access(long accessTime) {
     this.accessTime = accessTime;
+    this.referenced = true;
     if(this.priority == BlockPriority.SINGLE) {
-      this.priority = BlockPriority.MULTI;
+      // Only taken once per block, so hits stay lock free.
+      synchronized(this) {
+        if(this.priority == BlockPriority.SINGLE && !this.evicted) {
+          this.priority = BlockPriority.MULTI;
+          return true;
+        }
+      }
     }
+    return false;
+  }
+
+  /**
+   * Claim a single access block for eviction, unless it got promoted.
+   * @return true if the block is still single access and may be evicted
+   */
+  synchronized boolean evictIfSingle() {
+    if(this.priority != BlockPriority.SINGLE) {
+      return false;
+    }
+    this.evicted = true;
+    return true;
   }
 
   public long heapSize() {
@@ -101,12 +128,26 @@ public class CachedBlock implements HeapSize, Comparable<CachedBlock> {
     return this.buf;
   }
 
-  public String getName() {
+  public BlockCacheKey getName() {
     return this.blockName;
   }
 
   public BlockPriority getPriority() {
     return this.priority;
   }
+
+  /**
+   * @return true if accessed since the reference bit was last cleared
+   */
+  boolean isReferenced() {
+    return this.referenced;
+  }
+
+  /**
+   * Clear the reference bit, giving the block a second chance at eviction.
+   */
+  void clearReferenced() {
+    this.referenced = false;
+  }
 }
 
@@ -141,6 +141,45 @@ public final class Compression {
 
         return downStream;
       }
+    },
+
+    // Pure Java; see Lz4BlockCodec.  Keep new algorithms at the end, as old
+    // versions of HColumnDescriptor wrote the ordinal.
+    LZ4("lz4") {
+      @Override
+      CompressionCodec getCodec() {
+        return null;
+      }
+
+      @Override
+      public InputStream createDecompressionStream(
+          InputStream downStream, Decompressor decompressor,
+          int downStreamBufferSize) throws IOException {
+        InputStream in = downStream;
+        if (downStreamBufferSize > 0) {
+          in = new BufferedInputStream(downStream, downStreamBufferSize);
+        }
+        return new Lz4BlockCodec.BlockInputStream(in);
+      }
+
+      @Override
+      public OutputStream createCompressionStream(
+          OutputStream downStream, Compressor compressor,
+          int downStreamBufferSize) throws IOException {
+        OutputStream out = downStream;
+        if (downStreamBufferSize > 0) {
+          out = new BufferedOutputStream(downStream, downStreamBufferSize);
+        }
+        return new Lz4BlockCodec.BlockOutputStream(out);
+      }
+
+      @Override
+      public boolean decompress(byte [] src, int srcOffset, int srcLength,
+          byte [] dest, int destOffset, int destLength) throws IOException {
+        Lz4BlockCodec.decompressChunks(src, srcOffset, srcLength, dest,
+          destOffset, destLength);
+        return true;
+      }
     };
 
     private final String compressName;
@@ -192,6 +231,19 @@ public final class Compression {
       return bos2;
     }
 
+    /**
+     * Decompress a block held in an array straight into an array, skipping
+     * the streams.
+     * @param destLength Length of the block, decompressed.
+     * @return False if this algorithm can only decompress through
+     * {@link #createDecompressionStream(InputStream, Decompressor, int)}.
+     * @throws IOException
+     */
+    public boolean decompress(byte [] src, int srcOffset, int srcLength,
+        byte [] dest, int destOffset, int destLength) throws IOException {
+      return false;
+    }
+
     public Compressor getCompressor() {
       CompressionCodec codec = getCodec();
       if (codec != null) {
@@ -0,0 +1,334 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.RawComparator;
+
+/**
+ * Encodes the key/values of HFile data blocks, and makes {@link Seeker}s to
+ * step through encoded blocks.
+ * <p>
+ * Key/values are encoded one at a time relative to the previous one in the
+ * same block, so a block can be read from its start without decoding it as
+ * a whole.  Values are always stored as is.  An encoder is stateful; use one
+ * per writer.
+ */
+public abstract class DataBlockEncoder {
+  // Key of the previous key/value of the block.
+  protected byte [] prevKey = new byte[64];
+  protected int prevKeyLength = 0;
+  protected int prevValueLength = 0;
+
+  /**
+   * Called at the start of every data block.  Forgets the previous key/value.
+   */
+  public void newBlock() {
+    this.prevKeyLength = 0;
+    this.prevValueLength = 0;
+  }
+
+  /**
+   * Write out a key/value.
+   * @param out Stream of the data block.
+   * @throws IOException
+   */
+  public void encode(final DataOutputStream out, final byte [] key,
+      final int koffset, final int klength, final byte [] value,
+      final int voffset, final int vlength)
+  throws IOException {
+    encodeNext(out, key, koffset, klength, value, voffset, vlength);
+    if (this.prevKey.length < klength) {
+      this.prevKey = new byte[Math.max(klength, this.prevKey.length * 2)];
+    }
+    System.arraycopy(key, koffset, this.prevKey, 0, klength);
+    this.prevKeyLength = klength;
+    this.prevValueLength = vlength;
+  }
+
+  /**
+   * Write out a key/value given the previous one, held by this encoder.
+   * @throws IOException
+   */
+  protected abstract void encodeNext(DataOutputStream out, byte [] key,
+      int koffset, int klength, byte [] value, int voffset, int vlength)
+  throws IOException;
+
+  /**
+   * @param comparator Comparator of the keys of the file.
+   * @return A seeker for blocks written by this encoding.
+   */
+  public abstract Seeker newSeeker(RawComparator<byte []> comparator);
+
+  /**
+   * @return Length of the prefix the two ranges have in common.
+   */
+  static int commonPrefix(final byte [] left, final int loffset,
+      final int llength, final byte [] right, final int roffset,
+      final int rlength) {
+    int max = Math.min(llength, rlength);
+    int i = 0;
+    while (i < max && left[loffset + i] == right[roffset + i]) {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * Write a non-negative int, seven bits per byte, least significant first.
+   * @throws IOException
+   */
+  static void writeCompressedInt(final DataOutputStream out, final int i)
+  throws IOException {
+    writeCompressedLong(out, i);
+  }
+
+  /**
+   * Write a long, seven bits per byte, least significant first.
+   * @throws IOException
+   */
+  static void writeCompressedLong(final DataOutputStream out, final long l)
+  throws IOException {
+    long rest = l;
+    while ((rest & ~0x7FL) != 0) {
+      out.writeByte((int)((rest & 0x7F) | 0x80));
+      rest >>>= 7;
+    }
+    out.writeByte((int)rest);
+  }
+
+  /**
+   * @return Int written by {@link #writeCompressedInt(DataOutputStream, int)}
+   * read at the position of the buffer.
+   */
+  static int readCompressedInt(final ByteBuffer buf) {
+    return (int)readCompressedLong(buf);
+  }
+
+  /**
+   * @return Long written by
+   * {@link #writeCompressedLong(DataOutputStream, long)} read at the position
+   * of the buffer.
+   */
+  static long readCompressedLong(final ByteBuffer buf) {
+    long result = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = buf.get();
+      result |= (long)(b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+    return result;
+  }
+
+  /**
+   * Steps through the key/values of an encoded block.  The current key is
+   * rebuilt in place from the previous one; only the bytes that differ are
+   * copied.  Values are read from the block itself.
+   */
+  public static abstract class Seeker {
+    private final RawComparator<byte []> comparator;
+    protected ByteBuffer block;
+
+    // Current key/value.  Positions are indexes into the block.
+    protected byte [] key = new byte[64];
+    protected int keyLength = 0;
+    protected int valueOffset = 0;
+    protected int valueLength = 0;
+    private int nextPosition = 0;
+
+    // Key/value before the current one, kept while seeking to be able to go
+    // back one.
+    private boolean hasPrevious = false;
+    private byte [] prevKey = new byte[64];
+    private int prevKeyLength;
+    private int prevValueOffset;
+    private int prevValueLength;
+    private int prevNextPosition;
+
+    protected Seeker(final RawComparator<byte []> comparator) {
+      this.comparator = comparator;
+    }
+
+    /**
+     * Read the key/value at the position of the block, given the previous
+     * one: <code>key</code>, <code>keyLength</code> and
+     * <code>valueLength</code>, or nothing at the start of the block.  Sets
+     * them, and <code>valueOffset</code>, to those of the key/value read.
+     */
+    protected abstract void decodeNext();
+
+    /**
+     * Make room for a key of the given length, keeping the current key.
+     */
+    protected void ensureKeyCapacity(final int length) {
+      if (this.key.length < length) {
+        byte [] newKey = new byte[Math.max(length, this.key.length * 2)];
+        System.arraycopy(this.key, 0, newKey, 0, this.keyLength);
+        this.key = newKey;
+      }
+    }
+
+    /**
+     * Position on the first key/value of a block.
+     * @param block Encoded block, past its magic.  Not empty.
+     */
+    public void setBlock(final ByteBuffer block) {
+      this.block = block;
+      rewind();
+    }
+
+    /**
+     * Go back to the first key/value of the block.
+     */
+    public void rewind() {
+      this.keyLength = 0;
+      this.valueLength = 0;
+      this.nextPosition = 0;
+      this.hasPrevious = false;
+      decode();
+    }
+
+    /**
+     * Move to the next key/value of the block.
+     * @return False if the current key/value is the last of the block.
+     */
+    public boolean next() {
+      if (this.nextPosition >= this.block.limit()) {
+        return false;
+      }
+      decode();
+      return true;
+    }
+
+    private void decode() {
+      this.block.position(this.nextPosition);
+      decodeNext();
+      this.nextPosition = this.valueOffset + this.valueLength;
+    }
+
+    /**
+     * Seek in the block, from its start, as the scanner of a not encoded
+     * block does.
+     * @param seekBefore Find the key before an exact match.
+     * @return 0 if on <code>key</code>, 1 if on the last key before it.
+     */
+    public int seekToKeyInBlock(final byte [] k, final int offset,
+        final int length, final boolean seekBefore) {
+      rewind();
+      while (true) {
+        int comp = this.comparator.compare(k, offset, length,
+          this.key, 0, this.keyLength);
+        if (comp == 0 && !seekBefore) {
+          return 0;
+        }
+        if (comp <= 0) {
+          if (this.hasPrevious) {
+            restorePrevious();
+          }
+          return 1;
+        }
+        if (this.nextPosition >= this.block.limit()) {
+          return 1;
+        }
+        savePrevious();
+        decode();
+      }
+    }
+
+    private void savePrevious() {
+      if (this.prevKey.length < this.keyLength) {
+        this.prevKey = new byte[this.key.length];
+      }
+      System.arraycopy(this.key, 0, this.prevKey, 0, this.keyLength);
+      this.prevKeyLength = this.keyLength;
+      this.prevValueOffset = this.valueOffset;
+      this.prevValueLength = this.valueLength;
+      this.prevNextPosition = this.nextPosition;
+      this.hasPrevious = true;
+    }
+
+    private void restorePrevious() {
+      byte [] tmp = this.key;
+      this.key = this.prevKey;
+      this.prevKey = tmp;
+      this.keyLength = this.prevKeyLength;
+      this.valueOffset = this.prevValueOffset;
+      this.valueLength = this.prevValueLength;
+      this.nextPosition = this.prevNextPosition;
+      this.hasPrevious = false;
+    }
+
+    /**
+     * @return Copy of the current key.
+     */
+    public ByteBuffer getKey() {
+      byte [] k = new byte[this.keyLength];
+      System.arraycopy(this.key, 0, k, 0, this.keyLength);
+      return ByteBuffer.wrap(k);
+    }
+
+    /**
+     * @return The current value, backed by the block.
+     */
+    public ByteBuffer getValue() {
+      ByteBuffer valueBuff = this.block.duplicate();
+      valueBuff.limit(this.valueOffset + this.valueLength);
+      valueBuff.position(this.valueOffset);
+      return valueBuff.slice();
+    }
+
+    /**
+     * @return The current key/value, copied into a new KeyValue.
+     */
+    public KeyValue getKeyValue() {
+      byte [] kv = new byte[2 * Bytes.SIZEOF_INT + this.keyLength +
+        this.valueLength];
+      int pos = Bytes.putInt(kv, 0, this.keyLength);
+      pos = Bytes.putInt(kv, pos, this.valueLength);
+      System.arraycopy(this.key, 0, kv, pos, this.keyLength);
+      System.arraycopy(this.block.array(),
+        this.block.arrayOffset() + this.valueOffset, kv,
+        pos + this.keyLength, this.valueLength);
+      return new KeyValue(kv, 0);
+    }
+
+    /**
+     * @return The current key, as a printable string.
+     */
+    public String getKeyString() {
+      return Bytes.toStringBinary(this.key, 0, this.keyLength);
+    }
+
+    /**
+     * @return The current value, as a string.
+     */
+    public String getValueString() {
+      return Bytes.toString(this.block.array(),
+        this.block.arrayOffset() + this.valueOffset, this.valueLength);
+    }
+  }
+}
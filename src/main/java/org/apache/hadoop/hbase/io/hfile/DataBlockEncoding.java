@@ -0,0 +1,80 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.io.IOException;
+
+/**
+ * Encodings of the key/values in HFile data blocks.  Set per column family.
+ * <p>
+ * Encoded blocks are encoded on disk and stay encoded in the block cache;
+ * scanners decode keys one at a time as they step through a block.  The
+ * id of an encoding is written to the file so do not reorder or reuse ids.
+ */
+public enum DataBlockEncoding {
+  /** Keys and values as is. */
+  NONE(0),
+  /** Each key stored as the length of its prefix in common with the
+   * previous key and the rest of the key. */
+  PREFIX(1),
+  /** Like PREFIX, and also leaves out key and value lengths and key types
+   * that are the same as those of the previous key/value, and stores the
+   * timestamp as a difference to the previous one. */
+  DIFF(2);
+
+  private final byte id;
+
+  private DataBlockEncoding(final int id) {
+    this.id = (byte)id;
+  }
+
+  /**
+   * @return Id of this encoding, as written to files.
+   */
+  public byte getId() {
+    return this.id;
+  }
+
+  /**
+   * @return A new encoder for this encoding, or null for {@link #NONE}.
+   */
+  public DataBlockEncoder newEncoder() {
+    switch (this) {
+      case PREFIX: return new PrefixKeyDeltaEncoder();
+      case DIFF: return new DiffKeyDeltaEncoder();
+      default: return null;
+    }
+  }
+
+  /**
+   * @param id Id of an encoding, as written to files.
+   * @return The encoding with the given id.
+   * @throws IOException the id is not that of a known encoding.
+   */
+  public static DataBlockEncoding getEncodingById(final byte id)
+  throws IOException {
+    for (DataBlockEncoding encoding: values()) {
+      if (encoding.id == id) {
+        return encoding;
+      }
+    }
+    throw new IOException("Unknown data block encoding id " + id);
+  }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.RawComparator;
+
+/**
+ * {@link DataBlockEncoding#DIFF} encoding.  Keys of at least
+ * {@link KeyValue#TIMESTAMP_TYPE_SIZE} bytes are taken to end in a KeyValue
+ * timestamp and type.  A key/value is written as
+ * <pre>
+ * byte of flags
+ * compressed int key length, unless same as the previous
+ * compressed int value length, unless same as the previous
+ * compressed int length of the prefix in common with the previous key,
+ *   timestamp and type left out
+ * rest of the key, timestamp and type left out
+ * compressed long timestamp minus the previous one, zigzag encoded
+ * type byte, unless same as the previous
+ * value
+ * </pre>
+ * Timestamp and type are there only for keys long enough to hold them.
+ */
+class DiffKeyDeltaEncoder extends DataBlockEncoder {
+  static final int FLAG_SAME_KEY_LENGTH = 1;
+  static final int FLAG_SAME_VALUE_LENGTH = 1 << 1;
+  static final int FLAG_SAME_TYPE = 1 << 2;
+
+  private static final int TAIL = KeyValue.TIMESTAMP_TYPE_SIZE;
+
+  /*
+   * @return Length of a key of the given length, less timestamp and type.
+   */
+  private static int headLength(final int keyLength) {
+    return keyLength >= TAIL? keyLength - TAIL: keyLength;
+  }
+
+  /*
+   * @return Timestamp of the given key, or 0 if it is too short for one.
+   */
+  private static long timestamp(final byte [] key, final int offset,
+      final int length) {
+    return length >= TAIL? Bytes.toLong(key, offset + length - TAIL): 0;
+  }
+
+  /*
+   * @return Type of the given key, or 0 if it is too short for one.
+   */
+  private static byte type(final byte [] key, final int offset,
+      final int length) {
+    return length >= TAIL? key[offset + length - 1]: 0;
+  }
+
+  @Override
+  protected void encodeNext(final DataOutputStream out, final byte [] key,
+      final int koffset, final int klength, final byte [] value,
+      final int voffset, final int vlength)
+  throws IOException {
+    int headLength = headLength(klength);
+    int common = commonPrefix(this.prevKey, 0,
+      headLength(this.prevKeyLength), key, koffset, headLength);
+    int flags = 0;
+    if (klength == this.prevKeyLength) {
+      flags |= FLAG_SAME_KEY_LENGTH;
+    }
+    if (vlength == this.prevValueLength) {
+      flags |= FLAG_SAME_VALUE_LENGTH;
+    }
+    byte type = type(key, koffset, klength);
+    if (type == type(this.prevKey, 0, this.prevKeyLength)) {
+      flags |= FLAG_SAME_TYPE;
+    }
+    out.writeByte(flags);
+    if ((flags & FLAG_SAME_KEY_LENGTH) == 0) {
+      writeCompressedInt(out, klength);
+    }
+    if ((flags & FLAG_SAME_VALUE_LENGTH) == 0) {
+      writeCompressedInt(out, vlength);
+    }
+    writeCompressedInt(out, common);
+    out.write(key, koffset + common, headLength - common);
+    if (klength >= TAIL) {
+      long diff = timestamp(key, koffset, klength) -
+        timestamp(this.prevKey, 0, this.prevKeyLength);
+      writeCompressedLong(out, (diff << 1) ^ (diff >> 63));
+      if ((flags & FLAG_SAME_TYPE) == 0) {
+        out.writeByte(type);
+      }
+    }
+    out.write(value, voffset, vlength);
+  }
+
+  @Override
+  public Seeker newSeeker(final RawComparator<byte []> comparator) {
+    return new Seeker(comparator) {
+      @Override
+      protected void decodeNext() {
+        // Take what is needed of the previous key before overwriting it.
+        long prevTimestamp = timestamp(this.key, 0, this.keyLength);
+        byte prevType = type(this.key, 0, this.keyLength);
+        int flags = this.block.get();
+        int klength = (flags & FLAG_SAME_KEY_LENGTH) != 0?
+          this.keyLength: readCompressedInt(this.block);
+        int vlength = (flags & FLAG_SAME_VALUE_LENGTH) != 0?
+          this.valueLength: readCompressedInt(this.block);
+        int common = readCompressedInt(this.block);
+        int headLength = headLength(klength);
+        ensureKeyCapacity(klength);
+        this.block.get(this.key, common, headLength - common);
+        if (klength >= TAIL) {
+          long zigzag = readCompressedLong(this.block);
+          long diff = (zigzag >>> 1) ^ -(zigzag & 1);
+          Bytes.putLong(this.key, headLength, prevTimestamp + diff);
+          this.key[klength - 1] = (flags & FLAG_SAME_TYPE) != 0?
+            prevType: this.block.get();
+        }
+        this.keyLength = klength;
+        this.valueLength = vlength;
+        this.valueOffset = this.block.position();
+      }
+    };
+  }
+}
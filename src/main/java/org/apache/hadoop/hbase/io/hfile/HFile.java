@@ -19,18 +19,32 @@
  */
 package org.apache.hadoop.hbase.io.hfile;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -40,6 +54,7 @@ import org.apache.commons.cli.PosixParser;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumFileSystem;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
@@ -60,6 +75,7 @@ import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.compress.Compressor;
 import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.util.ReflectionUtils;
 
 /**
  * File format for hbase.
@@ -103,7 +119,8 @@ import org.apache.hadoop.io.compress.Decompressor;
  * compressable, I mean a compression ratio at least 2:1). Generally, use "lzo"
  * as the starting point for experimenting. "gz" overs slightly better
  * compression ratio over "lzo" but requires 4x CPU to compress and 2x CPU to
- * decompress, comparing to "lzo".
+ * decompress, comparing to "lzo".  "lz4" compresses about as well as "lzo"
+ * and needs no native libraries.
  * </ul>
  *
  * For more on the background behind HFile, see <a
@@ -119,6 +136,31 @@ import org.apache.hadoop.io.compress.Decompressor;
  * <pre>&lt;fileinfo>&lt;trailer></pre>.  That is, there are not data nor meta
  * blocks present.
  * <p>
+ * Data, meta and leaf index blocks may each be followed by a CRC32 of the
+ * block as stored, see {@link Writer#setChecksums(boolean)}.  Readers then
+ * verify blocks themselves and read the file with HDFS checksum
+ * verification off, saving HDFS a read of its checksum file per block read.
+ * Where a block does not match its checksum, it is read again with HDFS
+ * verifying.  Readers that do not know of the checksums read past them.
+ * Such files on local disk may instead be memory mapped and read from the
+ * mapping, see {@link #LOCAL_READ_KEY}.
+ * <p>
+ * Data blocks may be encoded, see {@link DataBlockEncoding}.  Encoded data
+ * blocks have their own magic.
+ * <p>
+ * Version 2 files have a two-level data block index.  A leaf index block is
+ * written among the data blocks every time a set number of data blocks has
+ * been written, and the data index at the end of the file only points at the
+ * leaf index blocks.  Readers keep only this root level in memory and read
+ * leaf index blocks through the block cache.  See
+ * {@link Writer#setIndexLeafEntries(int)}.  Files with fewer data blocks
+ * than fit a leaf are written as version 1.
+ * <p>
+ * Readers of compressed files can also keep blocks as stored, compressed, in
+ * a second cache; see {@link Reader#setCompressedBlockCache(BlockCache)}.
+ * The same memory holds several times more blocks compressed, and a block
+ * found there costs a decompression rather than a read.
+ * <p>
  * TODO: Do scanners need to be able to take a start and end row?
  * TODO: Should BlockIndex know the name of its file?  Should it have a Path
  * that points at its file say for the case where an index lives apart from
@@ -132,12 +174,21 @@ public class HFile {
    */
   final static byte [] DATABLOCKMAGIC =
     {'D', 'A', 'T', 'A', 'B', 'L', 'K', 42 };
+  final static byte [] ENCODEDDATABLOCKMAGIC =
+    {'D', 'A', 'T', 'A', 'E', 'N', 'C', 42 };
   final static byte [] INDEXBLOCKMAGIC =
     { 'I', 'D', 'X', 'B', 'L', 'K', 41, 43 };
   final static byte [] METABLOCKMAGIC =
     { 'M', 'E', 'T', 'A', 'B', 'L', 'K', 99 };
   final static byte [] TRAILERBLOCKMAGIC =
     { 'T', 'R', 'A', 'B', 'L', 'K', 34, 36 };
+  final static byte [] LEAFINDEXBLOCKMAGIC =
+    { 'I', 'D', 'X', 'L', 'E', 'A', 'F', 44 };
+
+  /** File format version with a single level data block index. */
+  public final static int VERSION_SINGLE_LEVEL_INDEX = 1;
+  /** File format version with a two level data block index. */
+  public final static int VERSION_MULTI_LEVEL_INDEX = 2;
 
   /**
    * Maximum length of key in HFile.
@@ -149,6 +200,32 @@ public class HFile {
    */
   public final static int DEFAULT_BLOCKSIZE = 64 * 1024;
 
+  /**
+   * Default number of data blocks per leaf index block: 0, for files with a
+   * single level index only.
+   */
+  public final static int DEFAULT_INDEX_LEAF_ENTRIES = 0;
+
+  /**
+   * Configuration key: if true, readers of files with block checksums verify
+   * them and read without HDFS checksums.
+   */
+  public final static String CHECKSUM_VERIFY_KEY =
+    "hbase.regionserver.checksum.verify";
+
+  /**
+   * Configuration key: if true, readers of files with block checksums that
+   * are on local disk memory map them and read blocks from the mapping.
+   * Only applies to the local file system, see {@link MappedFile#isLocal}.
+   */
+  public final static String LOCAL_READ_KEY = "hbase.regionserver.local.read";
+
+  // Set once it is logged that local reads are on but can not apply.
+  private static volatile boolean localReadWarned = false;
+
+  /** Size of the checksum following a block. */
+  final static int CHECKSUM_SIZE = Bytes.SIZEOF_INT;
+
   /**
    * Default compression: none.
    */
@@ -176,6 +253,111 @@ public class HFile {
     return ret;
   }
 
+  private static final AtomicLong checksumFailures = new AtomicLong(0);
+
+  /**
+   * @return Blocks that did not match their checksum since the last call.
+   */
+  public static final long getChecksumFailures() {
+    return checksumFailures.getAndSet(0);
+  }
+
+  private static final AtomicLong blockBufferAllocations = new AtomicLong(0);
+  private static final AtomicLong blockBufferPoolHits = new AtomicLong(0);
+
+  /**
+   * @return Arrays allocated to read blocks into since the last call.
+   */
+  public static final long getBlockBufferAllocations() {
+    return blockBufferAllocations.getAndSet(0);
+  }
+
+  /**
+   * @return Arrays to read blocks into taken from a {@link BlockBufferPool}
+   * since the last call.
+   */
+  public static final long getBlockBufferPoolHits() {
+    return blockBufferPoolHits.getAndSet(0);
+  }
+
+  private static final AtomicLong mappedReads = new AtomicLong(0);
+  private static final AtomicLong readAheadBlocks = new AtomicLong(0);
+
+  /**
+   * @return Blocks scanners found read ahead since the last call.
+   */
+  public static final long getReadAheadBlocks() {
+    return readAheadBlocks.getAndSet(0);
+  }
+
+  /**
+   * @return Blocks read from memory mapped local files since the last call.
+   */
+  public static final long getMappedReads() {
+    return mappedReads.getAndSet(0);
+  }
+
+  // File systems that do not verify checksums, by the file system they
+  // stand in for.
+  private static final ConcurrentMap<FileSystem, FileSystem>
+    noChecksumFileSystems = new ConcurrentHashMap<FileSystem, FileSystem>();
+
+  /*
+   * @param fs A file system.
+   * @return File system reading the same files as <code>fs</code> but
+   * without verifying checksums.
+   * @throws IOException
+   */
+  static FileSystem getNoChecksumFileSystem(final FileSystem fs)
+  throws IOException {
+    FileSystem noChecksumFs = noChecksumFileSystems.get(fs);
+    if (noChecksumFs != null) {
+      return noChecksumFs;
+    }
+    if (fs instanceof ChecksumFileSystem) {
+      noChecksumFs = ((ChecksumFileSystem)fs).getRawFileSystem();
+      FileSystem existing = noChecksumFileSystems.putIfAbsent(fs, noChecksumFs);
+      return existing != null? existing: noChecksumFs;
+    }
+    // Checksum verification is a setting of the whole file system, so
+    // make one of our own rather than share the cached one.
+    noChecksumFs = ReflectionUtils.newInstance(fs.getClass(), fs.getConf());
+    noChecksumFs.initialize(fs.getUri(), fs.getConf());
+    noChecksumFs.setVerifyChecksum(false);
+    FileSystem existing = noChecksumFileSystems.putIfAbsent(fs, noChecksumFs);
+    if (existing != null) {
+      // Another reader made one first.
+      noChecksumFs.close();
+      return existing;
+    }
+    return noChecksumFs;
+  }
+
+  /*
+   * Use the given file system to read files of <code>fs</code> without
+   * checksums.  For tests.
+   */
+  static void setNoChecksumFileSystem(final FileSystem fs,
+      final FileSystem noChecksumFs) {
+    noChecksumFileSystems.put(fs, noChecksumFs);
+  }
+
+  /**
+   * Close the file system made to read files of <code>fs</code> without
+   * verifying checksums, if there is one.  Call once no reader of files of
+   * <code>fs</code> is open, on shutdown.
+   * @param fs A file system.
+   * @throws IOException
+   */
+  public static void closeNoChecksumFileSystem(final FileSystem fs)
+  throws IOException {
+    FileSystem noChecksumFs = noChecksumFileSystems.remove(fs);
+    // The raw file system of a checksummed one is not ours to close.
+    if (noChecksumFs != null && !(fs instanceof ChecksumFileSystem)) {
+      noChecksumFs.close();
+    }
+  }
+
   public static final long getWriteOps() {
     long ret = writeOps;
     writeOps = 0;
@@ -239,6 +421,25 @@ public class HFile {
     ArrayList<Long> blockOffsets = new ArrayList<Long>();
     // Raw (decompressed) data size.
     ArrayList<Integer> blockDataSizes = new ArrayList<Integer>();
+    // On disk size, used by leaf index blocks only.
+    private ArrayList<Integer> blockOnDiskSizes = new ArrayList<Integer>();
+
+    // Data blocks per leaf index block; 0 to write a single level index.
+    // Once a leaf is written, above lists hold the entries of the next leaf
+    // only and below is the root level of the index.
+    private int indexLeafEntries = DEFAULT_INDEX_LEAF_ENTRIES;
+    private ArrayList<byte[]> leafKeys = new ArrayList<byte[]>();
+    private ArrayList<Long> leafOffsets = new ArrayList<Long>();
+    private ArrayList<Integer> leafSizes = new ArrayList<Integer>();
+    // Data blocks covered by the leaves written so far.
+    private int leafBlockCount = 0;
+
+    // Encoding of data blocks; encoder is null if not encoded.
+    private DataBlockEncoding encoding = DataBlockEncoding.NONE;
+    private DataBlockEncoder encoder = null;
+
+    // Checksum of the block being written; null if not writing checksums.
+    private CRC32 blockChecksum = null;
 
     // Meta block system.
     private ArrayList<byte []> metaNames = new ArrayList<byte []>();
@@ -247,6 +448,8 @@ public class HFile {
     // Used compression.  Used even if no compression -- 'none'.
     private final Compression.Algorithm compressAlgo;
     private Compressor compressor;
+    // LZ4 stream, kept with its buffers from block to block.
+    private Lz4BlockCodec.BlockOutputStream lz4Stream = null;
 
     // Special datastructure to hold fileinfo.
     private FileInfo fileinfo = new FileInfo();
@@ -338,6 +541,46 @@ public class HFile {
         DEFAULT_COMPRESSION_ALGORITHM: compress;
     }
 
+    /**
+     * Sets how many data blocks each leaf block of the data index covers.
+     * A file with more data blocks than that gets a two-level index whose
+     * leaf blocks are read on demand, so readers do not hold an index entry
+     * for every data block.  Set to 0, the default, to always write a single
+     * level index.  Call before appending.
+     * @param entries data blocks per leaf index block
+     */
+    public void setIndexLeafEntries(final int entries) {
+      if (this.entryCount > 0) {
+        throw new IllegalStateException("Set before appending");
+      }
+      this.indexLeafEntries = entries;
+    }
+
+    /**
+     * Sets whether to follow each block with a CRC32 of the block as stored,
+     * so readers can verify blocks without HDFS checksums.  Call before
+     * appending.
+     * @param checksums True to write block checksums.
+     */
+    public void setChecksums(final boolean checksums) {
+      if (this.entryCount > 0) {
+        throw new IllegalStateException("Set before appending");
+      }
+      this.blockChecksum = checksums? new CRC32(): null;
+    }
+
+    /**
+     * Sets the encoding of the data blocks.  Call before appending.
+     * @param encoding Encoding of the data blocks.
+     */
+    public void setDataBlockEncoding(final DataBlockEncoding encoding) {
+      if (this.entryCount > 0) {
+        throw new IllegalStateException("Set before appending");
+      }
+      this.encoding = encoding;
+      this.encoder = encoding.newEncoder();
+    }
+
     /*
      * If at block boundary, opens new block.
      * @throws IOException
@@ -358,15 +601,67 @@ public class HFile {
 
       int size = releaseCompressingStream(this.out);
       this.out = null;
+      writeChecksum();
       blockKeys.add(firstKey);
       blockOffsets.add(Long.valueOf(blockBegin));
       blockDataSizes.add(Integer.valueOf(size));
+      blockOnDiskSizes.add(Integer.valueOf(
+        (int)(outputStream.getPos() - blockBegin)));
       this.totalBytes += size;
+      if (this.indexLeafEntries > 0 &&
+          this.blockKeys.size() >= this.indexLeafEntries) {
+        writeIndexLeaf();
+      }
 
       writeTime += System.currentTimeMillis() - now;
       writeOps++;
     }
 
+    /*
+     * Write the index entries of the data blocks written since the last leaf
+     * as a leaf index block, and add the leaf to the root index.  Must jibe
+     * with what MultiLevelBlockIndex expects: a count, the offset of each
+     * entry past the offsets, then the entries.
+     * @throws IOException
+     */
+    private void writeIndexLeaf() throws IOException {
+      int count = this.blockKeys.size();
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      DataOutputStream dos = new DataOutputStream(baos);
+      dos.write(LEAFINDEXBLOCKMAGIC);
+      dos.writeInt(count);
+      int entryOffset = 0;
+      for (int i = 0; i < count; i++) {
+        dos.writeInt(entryOffset);
+        entryOffset += MultiLevelBlockIndex.ENTRY_OVERHEAD +
+          this.blockKeys.get(i).length;
+      }
+      for (int i = 0; i < count; i++) {
+        byte [] key = this.blockKeys.get(i);
+        dos.writeLong(this.blockOffsets.get(i).longValue());
+        dos.writeInt(this.blockOnDiskSizes.get(i).intValue());
+        dos.writeInt(this.blockDataSizes.get(i).intValue());
+        dos.writeInt(key.length);
+        dos.write(key);
+      }
+      dos.flush();
+      if (this.blockChecksum != null) {
+        this.blockChecksum.reset();
+        this.blockChecksum.update(baos.toByteArray(), 0, baos.size());
+        dos.writeInt((int)this.blockChecksum.getValue());
+        dos.flush();
+      }
+      this.leafKeys.add(this.blockKeys.get(0));
+      this.leafOffsets.add(Long.valueOf(this.outputStream.getPos()));
+      this.leafSizes.add(Integer.valueOf(baos.size()));
+      baos.writeTo(this.outputStream);
+      this.leafBlockCount += count;
+      this.blockKeys.clear();
+      this.blockOffsets.clear();
+      this.blockDataSizes.clear();
+      this.blockOnDiskSizes.clear();
+    }
+
     /*
      * Ready a new block for writing.
      * @throws IOException
@@ -375,7 +670,12 @@ public class HFile {
       // This is where the next block begins.
       blockBegin = outputStream.getPos();
       this.out = getCompressingStream();
-      this.out.write(DATABLOCKMAGIC);
+      if (this.encoder != null) {
+        this.out.write(ENCODEDDATABLOCKMAGIC);
+        this.encoder.newBlock();
+      } else {
+        this.out.write(DATABLOCKMAGIC);
+      }
       firstKey = null;
     }
 
@@ -397,12 +697,37 @@ public class HFile {
       // compressed downstream should be only when done.  I was going to but
       // looks like when we call flush in here, its legitimate flush that
       // should go through to the compressor.
+      OutputStream target = this.outputStream;
+      if (this.blockChecksum != null) {
+        // Checksum the block as stored, after compression.
+        this.blockChecksum.reset();
+        target = new CheckedOutputStream(target, this.blockChecksum);
+      }
+      if (this.compressAlgo == Compression.Algorithm.LZ4) {
+        if (this.lz4Stream == null) {
+          this.lz4Stream = new Lz4BlockCodec.BlockOutputStream(target);
+        } else {
+          this.lz4Stream.reset(target);
+        }
+        return new DataOutputStream(this.lz4Stream);
+      }
       OutputStream os =
-        this.compressAlgo.createCompressionStream(this.outputStream,
+        this.compressAlgo.createCompressionStream(target,
         this.compressor, 0);
       return new DataOutputStream(os);
     }
 
+    /*
+     * Follow the block just released with its checksum, if writing
+     * checksums.
+     * @throws IOException
+     */
+    private void writeChecksum() throws IOException {
+      if (this.blockChecksum != null) {
+        this.outputStream.writeInt((int)this.blockChecksum.getValue());
+      }
+    }
+
     /*
      * Let go of block compressor and compressing stream gotten in call
      * {@link #getCompressingStream}.
@@ -529,13 +854,18 @@ public class HFile {
       if (!dupKey) {
         checkBlockBoundary();
       }
-      // Write length of key and value and then actual key and value bytes.
-      this.out.writeInt(klength);
+      if (this.encoder != null) {
+        this.encoder.encode(this.out, key, koffset, klength,
+          value, voffset, vlength);
+      } else {
+        // Write length of key and value and then actual key and value bytes.
+        this.out.writeInt(klength);
+        this.out.writeInt(vlength);
+        this.out.write(key, koffset, klength);
+        this.out.write(value, voffset, vlength);
+      }
       this.keylength += klength;
-      this.out.writeInt(vlength);
       this.valuelength += vlength;
-      this.out.write(key, koffset, klength);
-      this.out.write(value, voffset, vlength);
       // Are we the first key in this block?
       if (this.firstKey == null) {
         // Copy the key.
@@ -601,6 +931,28 @@ public class HFile {
 
       FixedFileTrailer trailer = new FixedFileTrailer();
 
+      // If a leaf index block went out, the rest of the index does too and
+      // the data index written below is the root level.
+      boolean multiLevelIndex = !this.leafKeys.isEmpty();
+      if (multiLevelIndex) {
+        if (!this.blockKeys.isEmpty()) {
+          writeIndexLeaf();
+        }
+        appendFileInfo(this.fileinfo, FileInfo.DATA_BLOCK_COUNT,
+          Bytes.toBytes(this.leafBlockCount), false);
+        appendFileInfo(this.fileinfo, FileInfo.INDEX_LEAF_ENTRIES,
+          Bytes.toBytes(this.indexLeafEntries), false);
+        trailer.version = VERSION_MULTI_LEVEL_INDEX;
+      }
+      if (this.encoder != null) {
+        appendFileInfo(this.fileinfo, FileInfo.DATA_BLOCK_ENCODING,
+          new byte [] {this.encoding.getId()}, false);
+      }
+      if (this.blockChecksum != null) {
+        appendFileInfo(this.fileinfo, FileInfo.BLOCK_CHECKSUMS,
+          Bytes.toBytes(true), false);
+      }
+
       // Write out the metadata blocks if any.
       ArrayList<Long> metaOffsets = null;
       ArrayList<Integer> metaDataSizes = null;
@@ -616,6 +968,7 @@ public class HFile {
           dos.write(METABLOCKMAGIC);
           metaData.get(i).write(dos);
           int size = releaseCompressingStream(dos);
+          writeChecksum();
           // store the metadata size
           metaDataSizes.add(size);
         }
@@ -625,8 +978,13 @@ public class HFile {
       trailer.fileinfoOffset = writeFileInfo(this.outputStream);
 
       // Write the data block index.
-      trailer.dataIndexOffset = BlockIndex.writeIndex(this.outputStream,
-        this.blockKeys, this.blockOffsets, this.blockDataSizes);
+      if (multiLevelIndex) {
+        trailer.dataIndexOffset = BlockIndex.writeIndex(this.outputStream,
+          this.leafKeys, this.leafOffsets, this.leafSizes);
+      } else {
+        trailer.dataIndexOffset = BlockIndex.writeIndex(this.outputStream,
+          this.blockKeys, this.blockOffsets, this.blockDataSizes);
+      }
 
       // Meta block index.
       if (metaNames.size() > 0) {
@@ -635,7 +993,8 @@ public class HFile {
       }
 
       // Now finish off the trailer.
-      trailer.dataIndexCount = blockKeys.size();
+      trailer.dataIndexCount = multiLevelIndex? leafKeys.size():
+        blockKeys.size();
       trailer.metaIndexCount = metaNames.size();
 
       trailer.totalUncompressedBytes = totalBytes;
@@ -692,6 +1051,17 @@ public class HFile {
     // True if we should close istream when done.  We don't close it if we
     // didn't open it.
     private boolean closeIStream;
+    // Where we opened the file, if we did.
+    private FileSystem fs = null;
+    private Path path = null;
+    // If istream does not verify checksums, a stream that does, to read
+    // blocks that do not match their checksums again.
+    private FSDataInputStream checksummedIStream = null;
+    // True if blocks are followed by checksums.
+    private boolean checksums = false;
+    // The file memory mapped, if it is on local disk and local reads are on.
+    // Dropped on the first failed read.
+    private volatile MappedFile mappedFile = null;
 
     // These are read in when the file info is loaded.
     HFile.BlockIndex blockIndex;
@@ -711,12 +1081,22 @@ public class HFile {
     // Used to ensure we seek correctly.
     RawComparator<byte []> comparator;
 
+    // Encoding of the data blocks.  Filled in when we read in the file info.
+    private DataBlockEncoding encoding = DataBlockEncoding.NONE;
+
     // Size of this file.
     private final long fileSize;
 
     // Block cache to use.
     private final BlockCache cache;
+    // Pool of arrays to read blocks into, if any.
+    private BlockBufferPool blockBufferPool = null;
+    // Cache of compressed blocks as stored, if any.
+    private BlockCache compressedCache = null;
+    // Threads to read blocks ahead of scanners with, if any.
+    private BlockPrefetcher prefetcher = null;
     public int cacheHits = 0;
+    public int compressedCacheHits = 0;
     public int blockLoads = 0;
     public int metaLoads = 0;
 
@@ -742,6 +1122,8 @@ public class HFile {
       this(fs.open(path), fs.getFileStatus(path).getLen(), cache, inMemory);
       this.closeIStream = true;
       this.name = path.toString();
+      this.fs = fs;
+      this.path = path;
     }
 
     /**
@@ -813,10 +1195,32 @@ public class HFile {
       this.avgValueLen = Bytes.toInt(fi.get(FileInfo.AVG_VALUE_LEN));
       String clazzName = Bytes.toString(fi.get(FileInfo.COMPARATOR));
       this.comparator = getComparator(clazzName);
+      byte [] encodingId = fi.get(FileInfo.DATA_BLOCK_ENCODING);
+      this.encoding = encodingId == null? DataBlockEncoding.NONE:
+        DataBlockEncoding.getEncodingById(encodingId[0]);
+      byte [] checksumsFlag = fi.get(FileInfo.BLOCK_CHECKSUMS);
+      this.checksums = checksumsFlag != null && Bytes.toBoolean(checksumsFlag);
+      if (this.checksums && this.fs != null &&
+          this.checksummedIStream == null &&
+          (this.fs.getConf() == null ||
+            this.fs.getConf().getBoolean(CHECKSUM_VERIFY_KEY, true))) {
+        // Blocks are verified here; read them without HDFS checksums.  The
+        // trailer and indices above were read with.
+        this.checksummedIStream = this.istream;
+        this.istream = getNoChecksumFileSystem(this.fs).open(this.path);
+        if (isLocalReadEnabled(this.fs)) {
+          mapLocalFile();
+        }
+      }
 
-      // Read in the data index.
+      // Read in the data index, or its root level.
       this.blockIndex = BlockIndex.readIndex(this.comparator, this.istream,
         this.trailer.dataIndexOffset, this.trailer.dataIndexCount);
+      if (this.trailer.version == VERSION_MULTI_LEVEL_INDEX) {
+        this.blockIndex = new MultiLevelBlockIndex(this, this.blockIndex,
+          Bytes.toInt(fi.get(FileInfo.DATA_BLOCK_COUNT)),
+          Bytes.toInt(fi.get(FileInfo.INDEX_LEAF_ENTRIES)));
+      }
 
       // Read in the metadata index.
       if (trailer.metaIndexCount > 0) {
@@ -875,7 +1279,129 @@ public class HFile {
      * @return Scanner on this file.
      */
     public HFileScanner getScanner(boolean cacheBlocks, final boolean pread) {
-      return new Scanner(this, cacheBlocks, pread);
+      return getScanner(cacheBlocks, pread, false);
+    }
+
+    /**
+     * Create a Scanner on this file, as {@link #getScanner(boolean, boolean)}
+     * does, that may read blocks ahead.
+     * @param readAhead Read the blocks following the current one ahead of the
+     * scanner, if the reader has a block prefetcher and pread is false.  For
+     * scanners that go through many blocks in order.
+     * @return Scanner on this file.
+     */
+    public HFileScanner getScanner(boolean cacheBlocks, final boolean pread,
+        final boolean readAhead) {
+      if (this.encoding != DataBlockEncoding.NONE) {
+        return new EncodedScanner(this, cacheBlocks, pread, readAhead);
+      }
+      return new Scanner(this, cacheBlocks, pread, readAhead);
+    }
+
+    /**
+     * @return Encoding of the data blocks of this file.  Call after
+     * {@link #loadFileInfo()}.
+     */
+    public DataBlockEncoding getDataBlockEncoding() {
+      return this.encoding;
+    }
+
+    /**
+     * Read blocks into arrays taken from the given pool.  Compressed blocks
+     * are staged in pooled arrays, and scanners that do not cache blocks read
+     * blocks into pooled arrays and give them back once past them.
+     * @param pool Pool of arrays, or null to allocate an array per block.
+     */
+    public void setBlockBufferPool(final BlockBufferPool pool) {
+      this.blockBufferPool = pool;
+    }
+
+    /**
+     * Keep compressed blocks as stored in the given cache, under the same
+     * keys as in the block cache.  A block that misses the block cache but is
+     * in this one is decompressed from it instead of read from the
+     * filesystem.  So as not to hold blocks twice, a block read to be cached
+     * is only added to it if there is no block cache, or if the block cache
+     * is an {@link LruBlockCache} that evicted the block lately; see
+     * {@link LruBlockCache#setEvictedKeysKept(int)}.  Not used if the file is
+     * not compressed.
+     * @param cache Cache of compressed blocks, or null for none.
+     */
+    public void setCompressedBlockCache(final BlockCache cache) {
+      this.compressedCache = cache;
+    }
+
+    /**
+     * Read blocks ahead of scanners that ask for it on the threads of the
+     * given prefetcher.
+     * @param prefetcher Block prefetcher, or null to read no blocks ahead.
+     */
+    public void setBlockPrefetcher(final BlockPrefetcher prefetcher) {
+      this.prefetcher = prefetcher;
+    }
+
+    /*
+     * @return Read-ahead for a scanner, or null if blocks are not to be read
+     * ahead.
+     */
+    private ReadAhead newReadAhead(final boolean cacheBlocks,
+        final boolean pread, final boolean readAhead) {
+      if (!readAhead || pread || this.prefetcher == null) {
+        return null;
+      }
+      return new ReadAhead(cacheBlocks);
+    }
+
+    /*
+     * @return True if local reads are on and apply to files of
+     * <code>fs</code>.  Logs a warning, once, if they are on for a file
+     * system that does not keep its files on local disk.
+     */
+    private static boolean isLocalReadEnabled(final FileSystem fs) {
+      if (fs.getConf() == null ||
+          !fs.getConf().getBoolean(LOCAL_READ_KEY, false)) {
+        return false;
+      }
+      if (MappedFile.isLocal(fs)) {
+        return true;
+      }
+      if (!localReadWarned) {
+        localReadWarned = true;
+        LOG.warn(LOCAL_READ_KEY + " is on but " + fs.getUri() +
+          " does not keep its files on local disk; local reads only work " +
+          "on the local file system, not on local HDFS replicas, so are off");
+      }
+      return false;
+    }
+
+    /*
+     * Memory map the file if it is on local disk.  Only done for files with
+     * block checksums, as the mapping is read without file system checksums.
+     */
+    private void mapLocalFile() {
+      File file = MappedFile.getLocalFile(this.fs, this.path);
+      if (file == null) {
+        return;
+      }
+      try {
+        MappedFile mapped = new MappedFile(file);
+        if (mapped.getLength() != this.fileSize) {
+          LOG.warn("Not mapping " + file + ": " + mapped.getLength() +
+            " bytes, expected " + this.fileSize);
+          return;
+        }
+        this.mappedFile = mapped;
+      } catch (IOException e) {
+        LOG.warn("Failed to map " + file + "; reading " + this.name +
+          " through the file system", e);
+      }
+    }
+
+    /**
+     * @return True if blocks are read from a memory mapping of the file.
+     */
+    public boolean isMapped() {
+      return this.mappedFile != null;
     }
 
     /**
@@ -883,7 +1409,8 @@ public class HFile {
      * @return Block number of the block containing the key or -1 if not in this
      * file.
      */
-    protected int blockContainingKey(final byte [] key, int offset, int length) {
+    protected int blockContainingKey(final byte [] key, int offset, int length)
+    throws IOException {
       if (blockIndex == null) {
         throw new RuntimeException("Block index not loaded");
       }
@@ -917,23 +1444,30 @@ public class HFile {
 
       long now = System.currentTimeMillis();
 
+      metaLoads++;
+      BlockCacheKey cacheKey = null;
+      if (cache != null) {
+        cacheKey = new BlockCacheKey(name, metaIndex.blockOffsets[block]);
+        ByteBuffer cachedBuf = getCachedBlock(cacheKey);
+        if (cachedBuf != null) {
+          return cachedBuf;
+        }
+      }
+
       // Per meta key from any given file, synchronize reads for said block
       synchronized (metaIndex.blockKeys[block]) {
-        metaLoads++;
-        // Check cache for block.  If found return.
+        // Another thread may have loaded the block while we waited.
         if (cache != null) {
-          ByteBuffer cachedBuf = cache.getBlock(name + "meta" + block);
+          ByteBuffer cachedBuf = getCachedBlock(cacheKey);
           if (cachedBuf != null) {
-            // Return a distinct 'shallow copy' of the block,
-            // so pos doesnt get messed by the scanner
-            cacheHits++;
-            return cachedBuf.duplicate();
+            return cachedBuf;
           }
           // Cache Miss, please load.
         }
 
         ByteBuffer buf = decompress(metaIndex.blockOffsets[block],
-          longToInt(blockSize), metaIndex.blockDataSizes[block], true);
+          longToInt(blockSize), metaIndex.blockDataSizes[block], true, false,
+          cacheBlock);
         byte [] magic = new byte[METABLOCKMAGIC.length];
         buf.get(magic, 0, magic.length);
 
@@ -949,7 +1483,7 @@ public class HFile {
 
         // Cache the block
         if(cacheBlock && cache != null) {
-          cache.cacheBlock(name + "meta" + block, buf.duplicate(), inMemory);
+          cache.cacheBlock(cacheKey, buf.duplicate(), inMemory);
         }
 
         return buf;
@@ -973,58 +1507,45 @@ public class HFile {
         throw new IOException("Requested block is out of range: " + block +
           ", max: " + blockIndex.count);
       }
-      // For any given block from any given file, synchronize reads for said
+      blockLoads++;
+      long offset = blockIndex.blockOffset(block);
+      // Check cache for block.  If found return.  Hits take no lock.
+      BlockCacheKey cacheKey = null;
+      if (cache != null) {
+        cacheKey = new BlockCacheKey(name, offset);
+        ByteBuffer cachedBuf = getCachedBlock(cacheKey);
+        if (cachedBuf != null) {
+          return cachedBuf;
+        }
+      }
+      // The end of the last data block is the first meta block if there
+      // is one or if there isn't, the fileinfo offset.
+      long onDiskBlockSize = blockIndex.blockOnDiskSize(block,
+        this.metaIndex != null?
+          this.metaIndex.blockOffsets[0]: this.trailer.fileinfoOffset);
+      int dataSize = blockIndex.blockDataSize(block);
+
+      // For any given block from any given file, synchronize loads of said
       // block.
       // Without a cache, this synchronizing is needless overhead, but really
       // the other choice is to duplicate work (which the cache would prevent you from doing).
-      synchronized (blockIndex.blockKeys[block]) {
-        blockLoads++;
-        // Check cache for block.  If found return.
+      synchronized (blockIndex.blockLock(block)) {
+        // Another thread may have loaded the block while we waited.
         if (cache != null) {
-          ByteBuffer cachedBuf = cache.getBlock(name + block);
+          ByteBuffer cachedBuf = getCachedBlock(cacheKey);
           if (cachedBuf != null) {
-            // Return a distinct 'shallow copy' of the block,
-            // so pos doesnt get messed by the scanner
-            cacheHits++;
-            return cachedBuf.duplicate();
+            return cachedBuf;
           }
           // Carry on, please load.
         }
 
         // Load block from filesystem.
-        long now = System.currentTimeMillis();
-        long onDiskBlockSize;
-        if (block == blockIndex.count - 1) {
-          // last block!  The end of data block is first meta block if there is
-          // one or if there isn't, the fileinfo offset.
-          long offset = this.metaIndex != null?
-            this.metaIndex.blockOffsets[0]: this.trailer.fileinfoOffset;
-          onDiskBlockSize = offset - blockIndex.blockOffsets[block];
-        } else {
-          onDiskBlockSize = blockIndex.blockOffsets[block+1] -
-          blockIndex.blockOffsets[block];
-        }
-        ByteBuffer buf = decompress(blockIndex.blockOffsets[block],
-          longToInt(onDiskBlockSize), this.blockIndex.blockDataSizes[block],
-          pread);
-
-        byte [] magic = new byte[DATABLOCKMAGIC.length];
-        buf.get(magic, 0, magic.length);
-        if (!Arrays.equals(magic, DATABLOCKMAGIC)) {
-          throw new IOException("Data magic is bad in block " + block);
-        }
-
-        // 'shallow copy' to hide the header
-        // NOTE: you WILL GET BIT if you call buf.array() but don't start
-        //       reading at buf.arrayOffset()
-        buf = buf.slice();
-
-        readTime += System.currentTimeMillis() - now;
-        readOps++;
+        ByteBuffer buf = loadDataBlock(block, offset, onDiskBlockSize,
+          dataSize, pread, false, cacheBlock);
 
         // Cache the block
         if(cacheBlock && cache != null) {
-          cache.cacheBlock(name + block, buf.duplicate(), inMemory);
+          cache.cacheBlock(cacheKey, buf.duplicate(), inMemory);
         }
 
         return buf;
@@ -1032,87 +1553,420 @@ public class HFile {
     }
 
     /*
-     * Decompress <code>compressedSize</code> bytes off the backing
-     * FSDataInputStream.
-     * @param offset
-     * @param compressedSize
-     * @param decompressedSize
-     *
-     * @return
+     * @param block Index of a data block.
+     * @return The block if it is in the cache, else null.
      * @throws IOException
      */
-    private ByteBuffer decompress(final long offset, final int compressedSize,
-      final int decompressedSize, final boolean pread)
+    private ByteBuffer getCachedBlock(final int block) throws IOException {
+      if (cache == null) {
+        return null;
+      }
+      return getCachedBlock(new BlockCacheKey(name,
+        blockIndex.blockOffset(block)));
+    }
+
+    /*
+     * Read in a data block that is not to be cached, bypassing the cache,
+     * into an array from the block buffer pool.  Give the array back with
+     * {@link #releaseBlock(ByteBuffer)} once nothing refers to the block.
+     * @param block Index of block to read.
+     * @return Block wrapped in a ByteBuffer backed by a pooled array.
+     * @throws IOException
+     */
+    private ByteBuffer readPooledBlock(final int block, final boolean pread)
     throws IOException {
-      Decompressor decompressor = null;
-      ByteBuffer buf = null;
-      try {
-        decompressor = this.compressAlgo.getDecompressor();
-        // My guess is that the bounded range fis is needed to stop the
-        // decompressor reading into next block -- IIRC, it just grabs a
-        // bunch of data w/o regard to whether decompressor is coming to end of a
-        // decompression.
-        InputStream is = this.compressAlgo.createDecompressionStream(
-          new BoundedRangeFileInputStream(this.istream, offset, compressedSize,
-            pread),
-          decompressor, 0);
-        buf = ByteBuffer.allocate(decompressedSize);
-        IOUtils.readFully(is, buf.array(), 0, buf.capacity());
-        is.close();
-      } finally {
-        if (null != decompressor) {
-          this.compressAlgo.returnDecompressor(decompressor);
+      blockLoads++;
+      long onDiskBlockSize = blockIndex.blockOnDiskSize(block,
+        this.metaIndex != null?
+          this.metaIndex.blockOffsets[0]: this.trailer.fileinfoOffset);
+      return loadDataBlock(block, blockIndex.blockOffset(block),
+        onDiskBlockSize, blockIndex.blockDataSize(block), pread, true, false);
+    }
+
+    /*
+     * Give back the array of a block read by readPooledBlock.
+     */
+    private void releaseBlock(final ByteBuffer block) {
+      giveBuffer(block.array());
+    }
+
+    /*
+     * Read a data block from the filesystem and check its magic.
+     * @param pooled Read the block into an array from the block buffer pool.
+     * @param cacheBlock Add the block as stored to any compressed block cache.
+     * @return The block, past its magic.
+     * @throws IOException
+     */
+    private ByteBuffer loadDataBlock(final int block, final long offset,
+        final long onDiskBlockSize, final int dataSize, final boolean pread,
+        final boolean pooled, final boolean cacheBlock)
+    throws IOException {
+      long now = System.currentTimeMillis();
+      ByteBuffer buf = decompress(offset, longToInt(onDiskBlockSize),
+        dataSize, pread, pooled, cacheBlock);
+
+      byte [] magic = new byte[DATABLOCKMAGIC.length];
+      buf.get(magic, 0, magic.length);
+      if (!Arrays.equals(magic, this.encoding == DataBlockEncoding.NONE?
+          DATABLOCKMAGIC: ENCODEDDATABLOCKMAGIC)) {
+        if (pooled) {
+          giveBuffer(buf.array());
         }
+        throw new IOException("Data magic is bad in block " + block);
       }
+
+      // 'shallow copy' to hide the header
+      // NOTE: you WILL GET BIT if you call buf.array() but don't start
+      //       reading at buf.arrayOffset()
+      buf = buf.slice();
+
+      readTime += System.currentTimeMillis() - now;
+      readOps++;
       return buf;
     }
 
-    /**
-     * @return First key in the file.  May be null if file has no entries.
-     * Note that this is not the first rowkey, but rather the byte form of
-     * the first KeyValue.
+    /*
+     * Read in a leaf block of a multi-level data index, through the block
+     * cache.  Leaf index blocks are not compressed.
+     * @param leaf Index of the leaf in the root level.
+     * @param offset Offset of the leaf in the file.
+     * @param size Size of the leaf in the file.
+     * @param loadLock Lock to hold while loading the leaf.
+     * @return Leaf entries, past the magic, wrapped in a ByteBuffer.
+     * @throws IOException
      */
-    public byte [] getFirstKey() {
-      if (blockIndex == null) {
-        throw new RuntimeException("Block index not loaded");
+    ByteBuffer readIndexLeaf(final int leaf, final long offset,
+        final int size, final Object loadLock)
+    throws IOException {
+      BlockCacheKey cacheKey = null;
+      if (cache != null) {
+        cacheKey = new BlockCacheKey(name, offset);
+        ByteBuffer cachedBuf = getCachedBlock(cacheKey);
+        if (cachedBuf != null) {
+          return cachedBuf;
+        }
+      }
+      synchronized (loadLock) {
+        if (cache != null) {
+          ByteBuffer cachedBuf = getCachedBlock(cacheKey);
+          if (cachedBuf != null) {
+            return cachedBuf;
+          }
+        }
+        return loadIndexLeaf(leaf, offset, size, cacheKey);
       }
-      return this.blockIndex.isEmpty()? null: this.blockIndex.blockKeys[0];
     }
-    
-    /**
-     * @return the first row key, or null if the file is empty.
-     * TODO move this to StoreFile after Ryan's patch goes in
-     * to eliminate KeyValue here
-     */
-    public byte[] getFirstRowKey() {
-      byte[] firstKey = getFirstKey();
-      if (firstKey == null) return null;
-      return KeyValue.createKeyValueFromKey(firstKey).getRow();
+
+    private ByteBuffer loadIndexLeaf(final int leaf, final long offset,
+        final int size, final BlockCacheKey cacheKey)
+    throws IOException {
+      long now = System.currentTimeMillis();
+      byte [] b = new byte[size];
+      readBlockBytes(offset, b, size, true);
+      int length = this.checksums? size - CHECKSUM_SIZE: size;
+      if (Bytes.compareTo(b, 0, LEAFINDEXBLOCKMAGIC.length,
+          LEAFINDEXBLOCKMAGIC, 0, LEAFINDEXBLOCKMAGIC.length) != 0) {
+        throw new IOException("Leaf index magic is bad in leaf " + leaf);
+      }
+      ByteBuffer buf = ByteBuffer.wrap(b, LEAFINDEXBLOCKMAGIC.length,
+        length - LEAFINDEXBLOCKMAGIC.length).slice();
+      readTime += System.currentTimeMillis() - now;
+      readOps++;
+      // Index blocks are small and hot; keep them like in-memory blocks.
+      if (cache != null) {
+        cache.cacheBlock(cacheKey, buf.duplicate(), true);
+      }
+      return buf;
     }
 
-    /**
-     * @return number of KV entries in this HFile
+    /*
+     * @return A distinct 'shallow copy' of the cached block, so pos doesnt
+     * get messed by the scanner, or null if not cached.
      */
-    public int getEntries() {
-      if (!this.isFileInfoLoaded()) {
-        throw new RuntimeException("File info not loaded");
+    private ByteBuffer getCachedBlock(final BlockCacheKey cacheKey) {
+      ByteBuffer cachedBuf = cache.getBlock(cacheKey);
+      if (cachedBuf == null) {
+        return null;
       }
-      return this.trailer.entryCount;
+      cacheHits++;
+      return cachedBuf.duplicate();
     }
 
-    /**
-     * @return Last key in the file.  May be null if file has no entries.
-     * Note that this is not the last rowkey, but rather the byte form of
-     * the last KeyValue.
+    /*
+     * Read in a block as stored.  If blocks have checksums, check the one
+     * following the block, reading the block again through HDFS checksums if
+     * it does not match.
+     * @param offset Offset of the block in the file.
+     * @param b Array to read the block, as stored with any checksum, into.
+     * @param size Size of the block in the file, with any checksum.
+     * @param pread Use positional read.
+     * @throws IOException
      */
-    public byte [] getLastKey() {
-      if (!isFileInfoLoaded()) {
-        throw new RuntimeException("Load file info first");
+    private void readBlockBytes(final long offset, final byte [] b,
+        final int size, final boolean pread)
+    throws IOException {
+      if (!readMapped(offset, b, size)) {
+        readFully(this.istream, offset, b, size, pread);
+      }
+      if (!this.checksums || checksumMatches(b, size)) {
+        return;
+      }
+      checksumFailures.incrementAndGet();
+      if (this.checksummedIStream == null) {
+        throw new IOException("Checksum mismatch in block at " + offset +
+          " of " + this.name);
+      }
+      LOG.warn("Checksum mismatch in block at " + offset + " of " +
+        this.name + "; reading it again with HDFS checksums");
+      readFully(this.checksummedIStream, offset, b, size, true);
+      if (!checksumMatches(b, size)) {
+        throw new IOException("Checksum mismatch in block at " + offset +
+          " of " + this.name + " read with HDFS checksums");
       }
-      return this.blockIndex.isEmpty()? null: this.lastkey;
     }
 
-    /**
+    /*
+     * Read in a block from the memory mapping of the file, if there is one.
+     * On failure the mapping is dropped and the stream is read from then on.
+     * @return False if the block was not read.
+     */
+    private boolean readMapped(final long offset, final byte [] b,
+        final int size) {
+      MappedFile mapped = this.mappedFile;
+      if (mapped == null) {
+        return false;
+      }
+      try {
+        mapped.read(offset, b, 0, size);
+        mappedReads.incrementAndGet();
+        return true;
+      } catch (IOException e) {
+        unmap(mapped, e);
+      } catch (InternalError e) {
+        // The JVM turns the SIGBUS of a read past the end of a mapped file
+        // that was truncated into an InternalError.
+        unmap(mapped, e);
+      }
+      return false;
+    }
+
+    private void unmap(final MappedFile mapped, final Throwable t) {
+      LOG.warn("Failed read of " + mapped + "; reading " + this.name +
+        " through the file system from now on", t);
+      this.mappedFile = null;
+    }
+
+    private static void readFully(final FSDataInputStream in,
+        final long offset, final byte [] b, final int size,
+        final boolean pread)
+    throws IOException {
+      if (pread) {
+        in.readFully(offset, b, 0, size);
+      } else {
+        synchronized (in) {
+          in.seek(offset);
+          in.readFully(b, 0, size);
+        }
+      }
+    }
+
+    /*
+     * @param b A block followed by its checksum.
+     * @param size Size of the block with its checksum.
+     * @return True if the checksum is that of the block.
+     */
+    private static boolean checksumMatches(final byte [] b, final int size) {
+      if (size < CHECKSUM_SIZE) {
+        return false;
+      }
+      CRC32 crc = new CRC32();
+      crc.update(b, 0, size - CHECKSUM_SIZE);
+      return (int)crc.getValue() == Bytes.toInt(b, size - CHECKSUM_SIZE);
+    }
+
+    /*
+     * @return An array of at least <code>length</code> bytes, from the block
+     * buffer pool if there is one.
+     */
+    private byte [] takeBuffer(final int length) {
+      if (this.blockBufferPool == null) {
+        return newBuffer(length);
+      }
+      byte [] b = this.blockBufferPool.take(length);
+      if (b != null) {
+        blockBufferPoolHits.incrementAndGet();
+        return b;
+      }
+      return newBuffer(BlockBufferPool.getArrayLength(length));
+    }
+
+    private static byte [] newBuffer(final int length) {
+      blockBufferAllocations.incrementAndGet();
+      return new byte[length];
+    }
+
+    /*
+     * Give an array from takeBuffer back to the pool.
+     */
+    private void giveBuffer(final byte [] b) {
+      if (this.blockBufferPool != null) {
+        this.blockBufferPool.give(b);
+      }
+    }
+
+    /*
+     * Decompress <code>compressedSize</code> bytes off the backing
+     * FSDataInputStream.  The stored bytes are read in one go, into an array
+     * from the block buffer pool if the block is compressed, and straight into
+     * the returned block if it is not.  A compressed block found in the
+     * compressed block cache is decompressed from there instead.
+     * @param offset
+     * @param compressedSize Size of the block in the file, with any checksum.
+     * @param decompressedSize
+     * @param pooled Decompress into an array from the block buffer pool.
+     * @param cacheBlock Add the block as stored to any compressed block cache,
+     * if it is not kept by the block cache.
+     * @return The block.  Its array may be longer than the block.
+     * @throws IOException
+     */
+    private ByteBuffer decompress(final long offset, final int compressedSize,
+      final int decompressedSize, final boolean pread, final boolean pooled,
+      final boolean cacheBlock)
+    throws IOException {
+      int storedSize = this.checksums?
+        compressedSize - CHECKSUM_SIZE: compressedSize;
+      if (this.compressAlgo == Compression.Algorithm.NONE) {
+        if (storedSize != decompressedSize) {
+          throw new IOException("Block at " + offset + " of " + this.name +
+            " is " + storedSize + " bytes, expected " + decompressedSize);
+        }
+        byte [] b = pooled? takeBuffer(compressedSize):
+          newBuffer(compressedSize);
+        try {
+          readBlockBytes(offset, b, compressedSize, pread);
+        } catch (IOException e) {
+          if (pooled) {
+            giveBuffer(b);
+          }
+          throw e;
+        }
+        return ByteBuffer.wrap(b, 0, decompressedSize);
+      }
+      BlockCacheKey cacheKey = null;
+      byte [] stored = null;
+      int storedOffset = 0;
+      if (this.compressedCache != null) {
+        cacheKey = new BlockCacheKey(this.name, offset);
+        ByteBuffer cachedBuf = this.compressedCache.getBlock(cacheKey);
+        if (cachedBuf != null) {
+          compressedCacheHits++;
+          stored = cachedBuf.array();
+          storedOffset = cachedBuf.arrayOffset();
+        }
+      }
+      boolean fromCache = stored != null;
+      byte [] b = null;
+      Decompressor decompressor = null;
+      try {
+        if (!fromCache) {
+          stored = takeBuffer(compressedSize);
+          // Verify any checksum of the block as stored before decompressing
+          // or caching it.
+          readBlockBytes(offset, stored, compressedSize, pread);
+          if (cacheBlock && this.compressedCache != null &&
+              !isKeptDecompressed(cacheKey)) {
+            byte [] copy = new byte[storedSize];
+            System.arraycopy(stored, 0, copy, 0, storedSize);
+            this.compressedCache.cacheBlock(cacheKey, ByteBuffer.wrap(copy),
+              this.inMemory);
+          }
+        }
+        b = pooled? takeBuffer(decompressedSize): newBuffer(decompressedSize);
+        if (!this.compressAlgo.decompress(stored, storedOffset, storedSize, b,
+            0, decompressedSize)) {
+          decompressor = this.compressAlgo.getDecompressor();
+          InputStream is = this.compressAlgo.createDecompressionStream(
+            new ByteArrayInputStream(stored, storedOffset, storedSize),
+            decompressor, 0);
+          IOUtils.readFully(is, b, 0, decompressedSize);
+          is.close();
+        }
+      } catch (IOException e) {
+        if (pooled && b != null) {
+          giveBuffer(b);
+        }
+        throw e;
+      } finally {
+        if (null != decompressor) {
+          this.compressAlgo.returnDecompressor(decompressor);
+        }
+        if (!fromCache && stored != null) {
+          giveBuffer(stored);
+        }
+      }
+      return ByteBuffer.wrap(b, 0, decompressedSize);
+    }
+
+    /*
+     * @param cacheKey Key of a block that missed the block cache and is read
+     * to be cached.
+     * @return True if the block cache keeps the block, and has not had to
+     * evict it before.
+     */
+    private boolean isKeptDecompressed(final BlockCacheKey cacheKey) {
+      if (this.cache == null) {
+        return false;
+      }
+      return !(this.cache instanceof LruBlockCache) ||
+        !((LruBlockCache)this.cache).wasEvicted(cacheKey);
+    }
+
+    /**
+     * @return First key in the file.  May be null if file has no entries.
+     * Note that this is not the first rowkey, but rather the byte form of
+     * the first KeyValue.
+     */
+    public byte [] getFirstKey() {
+      if (blockIndex == null) {
+        throw new RuntimeException("Block index not loaded");
+      }
+      return this.blockIndex.isEmpty()? null: this.blockIndex.firstKey();
+    }
+    
+    /**
+     * @return the first row key, or null if the file is empty.
+     * TODO move this to StoreFile after Ryan's patch goes in
+     * to eliminate KeyValue here
+     */
+    public byte[] getFirstRowKey() {
+      byte[] firstKey = getFirstKey();
+      if (firstKey == null) return null;
+      return KeyValue.createKeyValueFromKey(firstKey).getRow();
+    }
+
+    /**
+     * @return number of KV entries in this HFile
+     */
+    public int getEntries() {
+      if (!this.isFileInfoLoaded()) {
+        throw new RuntimeException("File info not loaded");
+      }
+      return this.trailer.entryCount;
+    }
+
+    /**
+     * @return Last key in the file.  May be null if file has no entries.
+     * Note that this is not the last rowkey, but rather the byte form of
+     * the last KeyValue.
+     */
+    public byte [] getLastKey() {
+      if (!isFileInfoLoaded()) {
+        throw new RuntimeException("Load file info first");
+      }
+      return this.blockIndex.isEmpty()? null: this.lastkey;
+    }
+
+    /**
      * @return the last row key, or null if the file is empty.
      * TODO move this to StoreFile after Ryan's patch goes in
      * to eliminate KeyValue here
@@ -1162,6 +2016,173 @@ public class HFile {
         this.istream.close();
         this.istream = null;
       }
+      if (this.checksummedIStream != null) {
+        this.checksummedIStream.close();
+        this.checksummedIStream = null;
+      }
+      this.mappedFile = null;
+    }
+
+    /*
+     * Blocks being read ahead of a scanner by the block prefetcher, in block
+     * order, following the current block of the scanner.  Used by its
+     * scanner only.
+     */
+    private class ReadAhead {
+      private final boolean cacheBlocks;
+      private final LinkedList<Prefetch> queue = new LinkedList<Prefetch>();
+
+      ReadAhead(final boolean cacheBlocks) {
+        this.cacheBlocks = cacheBlocks;
+      }
+
+      /*
+       * Take a block off the read-ahead, waiting for its read if need be.
+       * Blocks before it are dropped, and all blocks if it is not the next
+       * one read ahead.
+       * @return The block read ahead, or null if it was not, or its read had
+       * not started or failed; the scanner then reads it itself.
+       */
+      Prefetch take(final int bloc) {
+        while (!this.queue.isEmpty()) {
+          Prefetch p = this.queue.removeFirst();
+          if (p.bloc == bloc) {
+            return p.get()? p: null;
+          }
+          p.discard();
+          if (p.bloc > bloc) {
+            clear();
+            return null;
+          }
+        }
+        return null;
+      }
+
+      /*
+       * Read ahead the blocks after the given one, as far as the budget of
+       * the prefetcher allows.
+       */
+      void readAfter(final int bloc) {
+        int next = this.queue.isEmpty()? bloc + 1:
+          this.queue.getLast().bloc + 1;
+        while (this.queue.size() < prefetcher.getBlocksAhead() &&
+            next < blockIndex.count) {
+          Prefetch p = new Prefetch(next, this.cacheBlocks);
+          if (!prefetcher.reserve(p.size)) {
+            break;
+          }
+          try {
+            p.future = prefetcher.submit(p);
+          } catch (RejectedExecutionException e) {
+            // Shut down.
+            prefetcher.release(p.size);
+            break;
+          }
+          this.queue.addLast(p);
+          next++;
+        }
+      }
+
+      /*
+       * Drop all blocks read ahead.
+       */
+      void clear() {
+        for (Prefetch p: this.queue) {
+          p.discard();
+        }
+        this.queue.clear();
+      }
+    }
+
+    /*
+     * The read of a block ahead of a scanner.  Whichever of the read and the
+     * scanner gets to the block first claims it: a read that finds the block
+     * claimed does nothing, and a scanner that claims the block before its
+     * read starts reads the block itself.  Either way the budget taken for
+     * the block is given back once.
+     */
+    private class Prefetch implements Callable<ByteBuffer> {
+      final int bloc;
+      final int size;
+      private final boolean cacheBlocks;
+      private final AtomicBoolean claimed = new AtomicBoolean(false);
+      private Future<ByteBuffer> future;
+      // Filled in by get().
+      ByteBuffer block;
+      volatile boolean pooled = false;
+
+      Prefetch(final int bloc, final boolean cacheBlocks) {
+        this.bloc = bloc;
+        this.size = blockIndex.blockDataSize(bloc);
+        this.cacheBlocks = cacheBlocks;
+      }
+
+      public ByteBuffer call() throws IOException {
+        if (!this.claimed.compareAndSet(false, true)) {
+          return null;
+        }
+        try {
+          if (!this.cacheBlocks && blockBufferPool != null) {
+            ByteBuffer b = getCachedBlock(this.bloc);
+            if (b == null) {
+              b = readPooledBlock(this.bloc, true);
+              this.pooled = true;
+            }
+            return b;
+          }
+          return readBlock(this.bloc, this.cacheBlocks, true);
+        } finally {
+          prefetcher.release(this.size);
+        }
+      }
+
+      /*
+       * Wait for the read of the block.
+       * @return False if the block was not read.
+       */
+      boolean get() {
+        if (this.claimed.compareAndSet(false, true)) {
+          prefetcher.release(this.size);
+          return false;
+        }
+        try {
+          this.block = this.future.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+          LOG.debug("Failed read ahead of block " + this.bloc + " of " +
+            name, e.getCause());
+        }
+        if (this.block == null) {
+          return false;
+        }
+        readAheadBlocks.incrementAndGet();
+        return true;
+      }
+
+      /*
+       * Let go of the block, giving back its array if it was read into a
+       * pooled one.  A read still going on is left to finish.
+       */
+      void discard() {
+        if (this.claimed.compareAndSet(false, true)) {
+          prefetcher.release(this.size);
+          return;
+        }
+        if (!this.future.isDone()) {
+          return;
+        }
+        try {
+          ByteBuffer b = this.future.get();
+          if (b != null && this.pooled) {
+            releaseBlock(b);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+          // Nothing to give back.
+        }
+      }
     }
 
     /*
@@ -1171,9 +2192,13 @@ public class HFile {
       private final Reader reader;
       private ByteBuffer block;
       private int currBlock;
+      // True if the block is backed by an array of the block buffer pool.
+      private boolean blockPooled = false;
 
       private final boolean cacheBlocks;
       private final boolean pread;
+      // Blocks read ahead of this scanner, if it reads ahead.
+      private final ReadAhead readAhead;
 
       private int currKeyLen = 0;
       private int currValueLen = 0;
@@ -1181,15 +2206,31 @@ public class HFile {
       public int blockFetches = 0;
 
       public Scanner(Reader r, boolean cacheBlocks, final boolean pread) {
+        this(r, cacheBlocks, pread, false);
+      }
+
+      public Scanner(Reader r, boolean cacheBlocks, final boolean pread,
+          final boolean readAhead) {
         this.reader = r;
         this.cacheBlocks = cacheBlocks;
         this.pread = pread;
+        this.readAhead = r.newReadAhead(cacheBlocks, pread, readAhead);
       }
 
       public KeyValue getKeyValue() {
         if(this.block == null) {
           return null;
         }
+        if (this.blockPooled) {
+          // The array goes back to the pool once we are past the block, so
+          // hand out a copy.
+          int length = 8 + this.currKeyLen + this.currValueLen;
+          byte [] kv = new byte[length];
+          System.arraycopy(this.block.array(),
+            this.block.arrayOffset() + this.block.position() - 8, kv, 0,
+            length);
+          return new KeyValue(kv, 0, length);
+        }
         return new KeyValue(this.block.array(),
             this.block.arrayOffset() + this.block.position() - 8);
       }
@@ -1231,10 +2272,10 @@ public class HFile {
           if (currBlock >= reader.blockIndex.count) {
             // damn we are at the end
             currBlock = 0;
-            block = null;
+            releaseBlock();
             return false;
           }
-          block = reader.readBlock(this.currBlock, this.cacheBlocks, this.pread);
+          readBlock(this.currBlock);
           currKeyLen = block.getInt();
           currValueLen = block.getInt();
           blockFetches++;
@@ -1326,8 +2367,8 @@ public class HFile {
           return false; // key is before the start of the file.
 
         // Question: does this block begin with 'key'?
-        if (this.reader.comparator.compare(reader.blockIndex.blockKeys[b],
-            0, reader.blockIndex.blockKeys[b].length,
+        byte [] firstKey = reader.blockIndex.blockFirstKey(b);
+        if (this.reader.comparator.compare(firstKey, 0, firstKey.length,
             key, offset, length) == 0) {
           // Ok the key we're interested in is the first of the block, so go back one.
           if (b == 0) {
@@ -1371,21 +2412,61 @@ public class HFile {
           return true;
         }
         currBlock = 0;
-        block = reader.readBlock(this.currBlock, this.cacheBlocks, this.pread);
+        readBlock(this.currBlock);
         currKeyLen = block.getInt();
         currValueLen = block.getInt();
         blockFetches++;
         return true;
       }
 
+      /*
+       * Read in a block in place of the current one.  If blocks are not to
+       * be cached and the reader has a block buffer pool, a block not in the
+       * cache is read into a pooled array.  If the scanner reads ahead, the
+       * block is taken from the read-ahead if there, and the blocks after it
+       * are read ahead.
+       */
+      private void readBlock(final int bloc) throws IOException {
+        releaseBlock();
+        Prefetch p = this.readAhead == null? null: this.readAhead.take(bloc);
+        if (p != null) {
+          this.block = p.block;
+          this.blockPooled = p.pooled;
+        } else if (!this.cacheBlocks && this.reader.blockBufferPool != null) {
+          this.block = this.reader.getCachedBlock(bloc);
+          if (this.block == null) {
+            this.block = this.reader.readPooledBlock(bloc, this.pread);
+            this.blockPooled = true;
+          }
+        } else {
+          this.block = this.reader.readBlock(bloc, this.cacheBlocks,
+            this.pread);
+        }
+        if (this.readAhead != null) {
+          this.readAhead.readAfter(bloc);
+        }
+      }
+
+      /*
+       * Let go of the current block, giving its array back to the pool if it
+       * is pooled.
+       */
+      private void releaseBlock() {
+        if (this.blockPooled) {
+          this.reader.releaseBlock(this.block);
+          this.blockPooled = false;
+        }
+        this.block = null;
+      }
+
       private void loadBlock(int bloc) throws IOException {
         if (block == null) {
-          block = reader.readBlock(bloc, this.cacheBlocks, this.pread);
+          readBlock(bloc);
           currBlock = bloc;
           blockFetches++;
         } else {
           if (bloc != currBlock) {
-            block = reader.readBlock(bloc, this.cacheBlocks, this.pread);
+            readBlock(bloc);
             currBlock = bloc;
             blockFetches++;
           } else {
@@ -1401,6 +2482,197 @@ public class HFile {
       }
     }
 
+    /**
+     * Scanner of a file with encoded data blocks.  Steps through a block with
+     * the {@link DataBlockEncoder.Seeker} of the encoding, so blocks are never
+     * decoded as a whole and stay encoded in the block cache.
+     */
+    protected static class EncodedScanner implements HFileScanner {
+      private final Reader reader;
+      private final DataBlockEncoder.Seeker seeker;
+      private ByteBuffer block;
+      private int currBlock;
+      // True if the block is backed by an array of the block buffer pool.
+      private boolean blockPooled = false;
+
+      private final boolean cacheBlocks;
+      private final boolean pread;
+      // Blocks read ahead of this scanner, if it reads ahead.
+      private final ReadAhead readAhead;
+
+      public int blockFetches = 0;
+
+      public EncodedScanner(Reader r, boolean cacheBlocks,
+          final boolean pread) {
+        this(r, cacheBlocks, pread, false);
+      }
+
+      public EncodedScanner(Reader r, boolean cacheBlocks,
+          final boolean pread, final boolean readAhead) {
+        this.reader = r;
+        this.cacheBlocks = cacheBlocks;
+        this.pread = pread;
+        this.readAhead = r.newReadAhead(cacheBlocks, pread, readAhead);
+        this.seeker = r.encoding.newEncoder().newSeeker(r.comparator);
+      }
+
+      private void checkSeeked() {
+        if (this.block == null) {
+          throw new RuntimeException("you need to seekTo() before calling " +
+            "getKey() or getValue()");
+        }
+      }
+
+      public KeyValue getKeyValue() {
+        if (this.block == null) {
+          return null;
+        }
+        return this.seeker.getKeyValue();
+      }
+
+      public ByteBuffer getKey() {
+        checkSeeked();
+        return this.seeker.getKey();
+      }
+
+      public ByteBuffer getValue() {
+        checkSeeked();
+        return this.seeker.getValue();
+      }
+
+      public boolean next() throws IOException {
+        if (this.block == null) {
+          throw new IOException("Next called on non-seeked scanner");
+        }
+        if (this.seeker.next()) {
+          return true;
+        }
+        this.currBlock++;
+        if (this.currBlock >= this.reader.blockIndex.count) {
+          this.currBlock = 0;
+          releaseBlock();
+          return false;
+        }
+        readBlock(this.currBlock);
+        return true;
+      }
+
+      public boolean shouldSeek(final byte[] row,
+          final SortedSet<byte[]> columns) {
+        return true;
+      }
+
+      public int seekTo(byte [] key) throws IOException {
+        return seekTo(key, 0, key.length);
+      }
+
+      public int seekTo(byte[] key, int offset, int length)
+      throws IOException {
+        int b = this.reader.blockContainingKey(key, offset, length);
+        if (b < 0) return -1;
+        loadBlock(b);
+        return this.seeker.seekToKeyInBlock(key, offset, length, false);
+      }
+
+      public boolean seekBefore(byte [] key) throws IOException {
+        return seekBefore(key, 0, key.length);
+      }
+
+      public boolean seekBefore(byte[] key, int offset, int length)
+      throws IOException {
+        int b = this.reader.blockContainingKey(key, offset, length);
+        if (b < 0) return false;
+        byte [] firstKey = this.reader.blockIndex.blockFirstKey(b);
+        if (this.reader.comparator.compare(firstKey, 0, firstKey.length,
+            key, offset, length) == 0) {
+          // The key is the first of the block, so go back one.
+          if (b == 0) {
+            return false;
+          }
+          b--;
+        }
+        loadBlock(b);
+        this.seeker.seekToKeyInBlock(key, offset, length, true);
+        return true;
+      }
+
+      public String getKeyString() {
+        return this.seeker.getKeyString();
+      }
+
+      public String getValueString() {
+        return this.seeker.getValueString();
+      }
+
+      public Reader getReader() {
+        return this.reader;
+      }
+
+      public boolean isSeeked() {
+        return this.block != null;
+      }
+
+      public boolean seekTo() throws IOException {
+        if (this.reader.blockIndex.isEmpty()) {
+          return false;
+        }
+        loadBlock(0);
+        return true;
+      }
+
+      /*
+       * Read in a block in place of the current one.  As in Scanner, blocks
+       * not to be cached are read into pooled arrays; the seeker hands out
+       * copies of keys and key/values.  Blocks may be read ahead.
+       */
+      private void readBlock(int bloc) throws IOException {
+        releaseBlock();
+        Prefetch p = this.readAhead == null? null: this.readAhead.take(bloc);
+        if (p != null) {
+          this.block = p.block;
+          this.blockPooled = p.pooled;
+        } else if (!this.cacheBlocks && this.reader.blockBufferPool != null) {
+          this.block = this.reader.getCachedBlock(bloc);
+          if (this.block == null) {
+            this.block = this.reader.readPooledBlock(bloc, this.pread);
+            this.blockPooled = true;
+          }
+        } else {
+          this.block = this.reader.readBlock(bloc, this.cacheBlocks,
+            this.pread);
+        }
+        if (this.readAhead != null) {
+          this.readAhead.readAfter(bloc);
+        }
+        this.currBlock = bloc;
+        this.blockFetches++;
+        this.seeker.setBlock(this.block);
+      }
+
+      private void releaseBlock() {
+        if (this.blockPooled) {
+          this.reader.releaseBlock(this.block);
+          this.blockPooled = false;
+        }
+        this.block = null;
+      }
+
+      private void loadBlock(int bloc) throws IOException {
+        if (this.block != null && bloc == this.currBlock) {
+          // Already in the block; seeks start over from its first key.
+          this.seeker.rewind();
+        } else {
+          readBlock(bloc);
+        }
+      }
+
+      @Override
+      public String toString() {
+        return "HFileScanner for reader " + String.valueOf(reader) +
+          ", encoding=" + this.reader.encoding;
+      }
+    }
+
     public String getTrailerInfo() {
       return trailer.toString();
     }
@@ -1424,7 +2696,7 @@ public class HFile {
     long totalUncompressedBytes;
     int entryCount;
     int compressionCodec;
-    int version = 1;
+    int version = VERSION_SINGLE_LEVEL_INDEX;
 
     FixedFileTrailer() {
       super();
@@ -1470,7 +2742,8 @@ public class HFile {
       compressionCodec       = inputStream.readInt();
       version                = inputStream.readInt();
 
-      if (version != 1) {
+      if (version != VERSION_SINGLE_LEVEL_INDEX &&
+          version != VERSION_MULTI_LEVEL_INDEX) {
         throw new IOException("Wrong version: " + version);
       }
     }
@@ -1548,8 +2821,10 @@ public class HFile {
      * @param key Key to find
      * @return Offset of block containing <code>key</code> or -1 if this file
      * does not contain the request.
+     * @throws IOException
      */
-    int blockContainingKey(final byte[] key, int offset, int length) {
+    int blockContainingKey(final byte[] key, int offset, int length)
+    throws IOException {
       int pos = Bytes.binarySearch(blockKeys, key, offset, length, this.comparator);
       if (pos < 0) {
         pos ++;
@@ -1569,6 +2844,53 @@ public class HFile {
       return pos;
     }
 
+    /*
+     * @return First key of the first block.
+     */
+    byte [] firstKey() {
+      return this.blockKeys[0];
+    }
+
+    /*
+     * @return First key of the given block.
+     */
+    byte [] blockFirstKey(final int block) throws IOException {
+      return this.blockKeys[block];
+    }
+
+    /*
+     * @return File offset of the given block.
+     */
+    long blockOffset(final int block) throws IOException {
+      return this.blockOffsets[block];
+    }
+
+    /*
+     * @return Uncompressed size of the given block.
+     */
+    int blockDataSize(final int block) throws IOException {
+      return this.blockDataSizes[block];
+    }
+
+    /*
+     * @param endOfBlocks Offset where the last block ends.
+     * @return Size on disk of the given block.
+     */
+    long blockOnDiskSize(final int block, final long endOfBlocks)
+    throws IOException {
+      if (block == this.count - 1) {
+        return endOfBlocks - this.blockOffsets[block];
+      }
+      return this.blockOffsets[block + 1] - this.blockOffsets[block];
+    }
+
+    /*
+     * @return Object to synchronize reads of the given block on.
+     */
+    Object blockLock(final int block) {
+      return this.blockKeys[block];
+    }
+
     /*
      * @return File midkey.  Inexact.  Operates on block boundaries.  Does
      * not go into blocks.
@@ -1685,6 +3007,183 @@ public class HFile {
 
   }
 
+  /*
+   * Two level data block index of a version 2 file.  Only the root level,
+   * one entry per leaf index block, is held in memory; leaf index blocks
+   * are read through the reader, and so the block cache, as needed.  Data
+   * blocks keep their numbering from the start of the file: block b has
+   * entry b % leafEntries of leaf b / leafEntries.
+   */
+  static class MultiLevelBlockIndex extends BlockIndex {
+    // Bytes in a leaf entry besides the key: offset, on disk size, data
+    // size and key length.
+    static final int ENTRY_OVERHEAD = Bytes.SIZEOF_LONG + 3 * Bytes.SIZEOF_INT;
+    // Stripes of locks to synchronize block reads on.
+    private static final int LOCK_STRIPES = 64;
+
+    private final Reader reader;
+    private final BlockIndex root;
+    private final int leafEntries;
+    private final Object [] locks = new Object[LOCK_STRIPES];
+    // Separate from the above as data blocks are loaded holding those.
+    private final Object [] leafLocks = new Object[LOCK_STRIPES];
+    // Leaf used last, saving a cache lookup when reading along a leaf.
+    private volatile Leaf lastLeaf = null;
+
+    private static class Leaf {
+      final int number;
+      final ByteBuffer buf;
+
+      Leaf(final int number, final ByteBuffer buf) {
+        this.number = number;
+        this.buf = buf;
+      }
+    }
+
+    /**
+     * @param r reader to read leaf index blocks with
+     * @param root the root level: first key, offset and size of each leaf
+     * @param blockCount number of data blocks
+     * @param leafEntries data blocks per leaf
+     */
+    MultiLevelBlockIndex(final Reader r, final BlockIndex root,
+        final int blockCount, final int leafEntries) {
+      super(r.comparator);
+      this.reader = r;
+      this.root = root;
+      this.count = blockCount;
+      this.leafEntries = leafEntries;
+      for (int i = 0; i < this.locks.length; i++) {
+        this.locks[i] = new Object();
+        this.leafLocks[i] = new Object();
+      }
+    }
+
+    private ByteBuffer leaf(final int leaf) throws IOException {
+      Leaf l = this.lastLeaf;
+      if (l != null && l.number == leaf) {
+        return l.buf;
+      }
+      ByteBuffer buf = this.reader.readIndexLeaf(leaf,
+        this.root.blockOffsets[leaf], this.root.blockDataSizes[leaf],
+        this.leafLocks[leaf % this.leafLocks.length]);
+      this.lastLeaf = new Leaf(leaf, buf);
+      return buf;
+    }
+
+    /*
+     * @return Position in the leaf of the given entry.
+     */
+    private static int entryPosition(final ByteBuffer leaf, final int entry) {
+      int entries = leaf.getInt(0);
+      return Bytes.SIZEOF_INT * (1 + entries) +
+        leaf.getInt(Bytes.SIZEOF_INT * (1 + entry));
+    }
+
+    /*
+     * @return Position in the leaf of the entry of the given block.
+     */
+    private int blockEntry(final ByteBuffer leaf, final int block) {
+      return entryPosition(leaf, block % this.leafEntries);
+    }
+
+    @Override
+    boolean isEmpty() {
+      return this.count <= 0;
+    }
+
+    @Override
+    int blockContainingKey(final byte[] key, int offset, int length)
+    throws IOException {
+      int l = this.root.blockContainingKey(key, offset, length);
+      if (l < 0) {
+        return -1;
+      }
+      ByteBuffer leaf = leaf(l);
+      // Find the last entry with a key not past the one asked for.  The
+      // first is the first key of the leaf, which is not.
+      int low = 0;
+      int high = leaf.getInt(0) - 1;
+      int found = 0;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int pos = entryPosition(leaf, mid);
+        int keyLength = leaf.getInt(pos + ENTRY_OVERHEAD - Bytes.SIZEOF_INT);
+        int comp = this.comparator.compare(leaf.array(),
+          leaf.arrayOffset() + pos + ENTRY_OVERHEAD, keyLength,
+          key, offset, length);
+        if (comp <= 0) {
+          found = mid;
+          low = mid + 1;
+        } else {
+          high = mid - 1;
+        }
+      }
+      return l * this.leafEntries + found;
+    }
+
+    @Override
+    byte [] firstKey() {
+      return this.root.firstKey();
+    }
+
+    @Override
+    byte [] blockFirstKey(final int block) throws IOException {
+      ByteBuffer leaf = leaf(block / this.leafEntries);
+      int pos = blockEntry(leaf, block);
+      byte [] key =
+        new byte[leaf.getInt(pos + ENTRY_OVERHEAD - Bytes.SIZEOF_INT)];
+      System.arraycopy(leaf.array(), leaf.arrayOffset() + pos + ENTRY_OVERHEAD,
+        key, 0, key.length);
+      return key;
+    }
+
+    @Override
+    long blockOffset(final int block) throws IOException {
+      ByteBuffer leaf = leaf(block / this.leafEntries);
+      return leaf.getLong(blockEntry(leaf, block));
+    }
+
+    @Override
+    long blockOnDiskSize(final int block, final long endOfBlocks)
+    throws IOException {
+      ByteBuffer leaf = leaf(block / this.leafEntries);
+      return leaf.getInt(blockEntry(leaf, block) + Bytes.SIZEOF_LONG);
+    }
+
+    @Override
+    int blockDataSize(final int block) throws IOException {
+      ByteBuffer leaf = leaf(block / this.leafEntries);
+      return leaf.getInt(blockEntry(leaf, block) + Bytes.SIZEOF_LONG +
+        Bytes.SIZEOF_INT);
+    }
+
+    @Override
+    Object blockLock(final int block) {
+      return this.locks[block % this.locks.length];
+    }
+
+    @Override
+    byte [] midkey() throws IOException {
+      return this.root.midkey();
+    }
+
+    @Override
+    public String toString() {
+      return "size=" + this.count + ", leafEntries=" + this.leafEntries +
+        ", root=(" + this.root + ")";
+    }
+
+    @Override
+    public long heapSize() {
+      return ClassSize.align(ClassSize.OBJECT +
+          2 * Bytes.SIZEOF_INT + 9 * ClassSize.REFERENCE +
+          2 * ClassSize.align(ClassSize.ARRAY +
+            LOCK_STRIPES * (ClassSize.REFERENCE + ClassSize.OBJECT))) +
+        this.root.heapSize();
+    }
+  }
+
   /*
    * Metadata for this file.  Conjured by the writer.  Read in by the reader.
    */
@@ -1698,6 +3197,14 @@ public class HFile {
       Bytes.toBytes(RESERVED_PREFIX + "AVG_VALUE_LEN");
     static final byte [] COMPARATOR =
       Bytes.toBytes(RESERVED_PREFIX + "COMPARATOR");
+    static final byte [] DATA_BLOCK_COUNT =
+      Bytes.toBytes(RESERVED_PREFIX + "DATA_BLOCK_COUNT");
+    static final byte [] INDEX_LEAF_ENTRIES =
+      Bytes.toBytes(RESERVED_PREFIX + "INDEX_LEAF_ENTRIES");
+    static final byte [] DATA_BLOCK_ENCODING =
+      Bytes.toBytes(RESERVED_PREFIX + "DATA_BLOCK_ENCODING");
+    static final byte [] BLOCK_CHECKSUMS =
+      Bytes.toBytes(RESERVED_PREFIX + "BLOCK_CHECKSUMS");
 
     /*
      * Constructor.
@@ -1726,6 +3233,7 @@ public class HFile {
    *         <ul>
    *         <li>"none" - No compression.
    *         <li>"gz" - GZIP compression.
+   *         <li>"lz4" - LZ4 compression, in pure Java.
    *         </ul>
    */
   public static String[] getSupportedCompressionAlgorithms() {
@@ -93,7 +93,8 @@ public interface HFileScanner {
    * Gets a buffer view to the current key. You must call
    * {@link #seekTo(byte[])} before this method.
    * @return byte buffer for the key. The limit is set to the key size, and the
-   * position is 0, the start of the buffer view.
+   * position is 0, the start of the buffer view.  As for {@link #getValue()},
+   * the view may only be good until the scanner moves to another block.
    */
   public ByteBuffer getKey();
   /**
@@ -101,7 +102,9 @@ public interface HFileScanner {
    * {@link #seekTo(byte[])} before this method.
    *
    * @return byte buffer for the value. The limit is set to the value size, and
-   * the position is 0, the start of the buffer view.
+   * the position is 0, the start of the buffer view.  If the scanner does not
+   * cache blocks, the view may only be good until the scanner moves to
+   * another block.
    */
   public ByteBuffer getValue();
   /**
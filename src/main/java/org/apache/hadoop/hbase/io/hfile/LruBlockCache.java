@@ -21,7 +21,10 @@ package org.apache.hadoop.hbase.io.hfile;
 
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.ConcurrentHashMap;
@@ -71,7 +74,24 @@ import org.apache.hadoop.hbase.util.ClassSize;
  * size, and then while scanning determines the fewest least-recently-used
  * blocks necessary from each of the three priorities (would be 3 times bytes
  * to free).  It then uses the priority chunk sizes to evict fairly according
- * to the relative sizes and usage.
+ * to the relative sizes and usage.<p>
+ *
+ * Alternatively, eviction can run as a CLOCK per priority.  Blocks are then
+ * also kept in one insertion ordered ring per priority.  A sweep takes blocks
+ * off the head of a ring, evicting those not accessed since the last sweep
+ * and putting the others back on the tail, with their reference bit cleared.
+ * Single access blocks that got accessed again move to the multiple access
+ * ring.  Eviction work is then proportional to the blocks visited rather
+ * than to the size of the cache, and there is no full scan of the map.  The
+ * same priority sizes and heap accounting apply.<p>
+ *
+ * A victim cache, typically an {@link OffHeapBlockCache}, may be set.  Evicted
+ * blocks are then handed to it, and blocks not found here are looked for
+ * there.  Blocks found in the victim cache are not brought back.<p>
+ *
+ * The keys of the blocks evicted last may be kept, see
+ * {@link #setEvictedKeysKept(int)}, for a cache of compressed blocks to tell
+ * blocks that did not stay in this one from those that did.
  */
 public class LruBlockCache implements BlockCache, HeapSize {
 
@@ -96,7 +116,7 @@ public class LruBlockCache implements BlockCache, HeapSize {
   static final int statThreadPeriod = 60;
 
   /** Concurrent map (the cache) */
-  private final ConcurrentHashMap<String,CachedBlock> map;
+  private final ConcurrentHashMap<BlockCacheKey,CachedBlock> map;
 
   /** Eviction lock (locked when eviction in process) */
   private final ReentrantLock evictionLock = new ReentrantLock(true);
@@ -147,6 +167,15 @@ public class LruBlockCache implements BlockCache, HeapSize {
   /** Overhead of the structure itself */
   private long overhead;
 
+  /** CLOCK eviction state; null when evicting by scanning the map */
+  private final ClockRings clock;
+
+  /** Second level cache evicted blocks go to, if any */
+  private volatile BlockCache victimCache = null;
+
+  /** Keys of the blocks evicted last, oldest first, if kept */
+  private volatile Map<BlockCacheKey, Boolean> evictedKeys = null;
+
   /**
    * Default constructor.  Specify maximum size and expected average block
    * size (approximation is fine).
@@ -164,12 +193,24 @@ public class LruBlockCache implements BlockCache, HeapSize {
    * Constructor used for testing.  Allows disabling of the eviction thread.
    */
   public LruBlockCache(long maxSize, long blockSize, boolean evictionThread) {
+    this(maxSize, blockSize, evictionThread, false);
+  }
+
+  /**
+   * Constructor with default factors.
+   * @param maxSize maximum size of cache, in bytes
+   * @param blockSize approximate size of each block, in bytes
+   * @param evictionThread whether to run evictions in a bg thread or not
+   * @param clockEviction whether to evict by CLOCK rather than by scanning
+   */
+  public LruBlockCache(long maxSize, long blockSize, boolean evictionThread,
+      boolean clockEviction) {
     this(maxSize, blockSize, evictionThread,
         (int)Math.ceil(1.2*maxSize/blockSize),
         DEFAULT_LOAD_FACTOR, DEFAULT_CONCURRENCY_LEVEL,
         DEFAULT_MIN_FACTOR, DEFAULT_ACCEPTABLE_FACTOR,
         DEFAULT_SINGLE_FACTOR, DEFAULT_MULTI_FACTOR,
-        DEFAULT_MEMORY_FACTOR);
+        DEFAULT_MEMORY_FACTOR, clockEviction);
   }
 
   /**
@@ -190,6 +231,31 @@ public class LruBlockCache implements BlockCache, HeapSize {
       int mapInitialSize, float mapLoadFactor, int mapConcurrencyLevel,
       float minFactor, float acceptableFactor,
       float singleFactor, float multiFactor, float memoryFactor) {
+    this(maxSize, blockSize, evictionThread, mapInitialSize, mapLoadFactor,
+        mapConcurrencyLevel, minFactor, acceptableFactor, singleFactor,
+        multiFactor, memoryFactor, false);
+  }
+
+  /**
+   * Configurable constructor, choosing the eviction algorithm.
+   * @param maxSize maximum size of this cache, in bytes
+   * @param blockSize expected average size of blocks, in bytes
+   * @param evictionThread whether to run evictions in a bg thread or not
+   * @param mapInitialSize initial size of backing ConcurrentHashMap
+   * @param mapLoadFactor initial load factor of backing ConcurrentHashMap
+   * @param mapConcurrencyLevel initial concurrency factor for backing CHM
+   * @param minFactor percentage of total size that eviction will evict until
+   * @param acceptableFactor percentage of total size that triggers eviction
+   * @param singleFactor percentage of total size for single-access blocks
+   * @param multiFactor percentage of total size for multiple-access blocks
+   * @param memoryFactor percentage of total size for in-memory blocks
+   * @param clockEviction whether to evict by CLOCK rather than by scanning
+   */
+  public LruBlockCache(long maxSize, long blockSize, boolean evictionThread,
+      int mapInitialSize, float mapLoadFactor, int mapConcurrencyLevel,
+      float minFactor, float acceptableFactor,
+      float singleFactor, float multiFactor, float memoryFactor,
+      boolean clockEviction) {
     if(singleFactor + multiFactor + memoryFactor != 1) {
       throw new IllegalArgumentException("Single, multi, and memory factors " +
           " should total 1.0");
@@ -202,7 +268,7 @@ public class LruBlockCache implements BlockCache, HeapSize {
     }
     this.maxSize = maxSize;
     this.blockSize = blockSize;
-    map = new ConcurrentHashMap<String,CachedBlock>(mapInitialSize,
+    map = new ConcurrentHashMap<BlockCacheKey,CachedBlock>(mapInitialSize,
         mapLoadFactor, mapConcurrencyLevel);
     this.minFactor = minFactor;
     this.acceptableFactor = acceptableFactor;
@@ -213,7 +279,11 @@ public class LruBlockCache implements BlockCache, HeapSize {
     this.count = new AtomicLong(0);
     this.elements = new AtomicLong(0);
     this.overhead = calculateOverhead(maxSize, blockSize, mapConcurrencyLevel);
+    if(clockEviction) {
+      this.overhead += CLOCK_FIXED_OVERHEAD;
+    }
     this.size = new AtomicLong(this.overhead);
+    this.clock = clockEviction? new ClockRings(): null;
     if(evictionThread) {
       this.evictionThread = new EvictionThread(this);
       this.evictionThread.start(); // FindBugs SC_START_IN_CTOR
@@ -231,6 +301,72 @@ public class LruBlockCache implements BlockCache, HeapSize {
     }
   }
 
+  /**
+   * Set a cache to hand evicted blocks to, and to look in for blocks not
+   * found in this one.
+   * @param victimCache second level cache, or null for none
+   */
+  public void setVictimCache(BlockCache victimCache) {
+    this.victimCache = victimCache;
+  }
+
+  /**
+   * @return The victim cache, or null if none
+   */
+  public BlockCache getVictimCache() {
+    return this.victimCache;
+  }
+
+  /**
+   * Keep the keys of up to <code>count</code> of the blocks evicted last,
+   * for {@link #wasEvicted(BlockCacheKey)}.  The keys count towards the size
+   * of the cache.
+   * @param count Keys to keep, or zero to keep none
+   */
+  public void setEvictedKeysKept(final int count) {
+    Map<BlockCacheKey, Boolean> old = this.evictedKeys;
+    if (old != null) {
+      synchronized (old) {
+        size.addAndGet(-old.size() * EVICTED_KEY_OVERHEAD);
+        old.clear();
+      }
+    }
+    this.evictedKeys = count <= 0? null:
+      new LinkedHashMap<BlockCacheKey, Boolean>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+            final Map.Entry<BlockCacheKey, Boolean> eldest) {
+          if (size() <= count) {
+            return false;
+          }
+          LruBlockCache.this.size.addAndGet(-EVICTED_KEY_OVERHEAD);
+          return true;
+        }
+      };
+  }
+
+  /**
+   * Whether the block was evicted lately, and not asked about since.  Always
+   * false unless evicted keys are kept.
+   * @param blockName block name
+   * @return True if the block is among the blocks evicted last
+   */
+  public boolean wasEvicted(final BlockCacheKey blockName) {
+    Map<BlockCacheKey, Boolean> evicted = this.evictedKeys;
+    if (evicted == null) {
+      return false;
+    }
+    synchronized (evicted) {
+      if (evicted.remove(blockName) == null) {
+        return false;
+      }
+    }
+    size.addAndGet(-EVICTED_KEY_OVERHEAD);
+    return true;
+  }
+
   // BlockCache implementation
 
   /**
@@ -244,7 +380,8 @@ public class LruBlockCache implements BlockCache, HeapSize {
    * @param buf block buffer
    * @param inMemory if block is in-memory
    */
-  public void cacheBlock(String blockName, ByteBuffer buf, boolean inMemory) {
+  public void cacheBlock(BlockCacheKey blockName, ByteBuffer buf,
+      boolean inMemory) {
     CachedBlock cb = map.get(blockName);
     if(cb != null) {
       throw new RuntimeException("Cached an already cached block");
@@ -252,6 +389,9 @@ public class LruBlockCache implements BlockCache, HeapSize {
     cb = new CachedBlock(blockName, buf, count.incrementAndGet(), inMemory);
     long newSize = size.addAndGet(cb.heapSize());
     map.put(blockName, cb);
+    if(clock != null) {
+      clock.add(cb);
+    }
     elements.incrementAndGet();
     if(newSize > acceptableSize() && !evictionInProgress) {
       runEviction();
@@ -268,7 +408,7 @@ public class LruBlockCache implements BlockCache, HeapSize {
    * @param blockName block name
    * @param buf block buffer
    */
-  public void cacheBlock(String blockName, ByteBuffer buf) {
+  public void cacheBlock(BlockCacheKey blockName, ByteBuffer buf) {
     cacheBlock(blockName, buf, false);
   }
 
@@ -277,19 +417,35 @@ public class LruBlockCache implements BlockCache, HeapSize {
    * @param blockName block name
    * @return buffer of specified block name, or null if not in cache
    */
-  public ByteBuffer getBlock(String blockName) {
+  public ByteBuffer getBlock(BlockCacheKey blockName) {
     CachedBlock cb = map.get(blockName);
     if(cb == null) {
       stats.miss();
-      return null;
+      BlockCache victim = this.victimCache;
+      return victim == null? null: victim.getBlock(blockName);
     }
     stats.hit();
-    cb.access(count.incrementAndGet());
+    if(cb.access(count.incrementAndGet()) && clock != null) {
+      clock.promoted(cb);
+    }
     return cb.getBuffer();
   }
 
   protected long evictBlock(CachedBlock block) {
     map.remove(block.getName());
+    BlockCache victim = this.victimCache;
+    if (victim != null) {
+      victim.cacheBlock(block.getName(), block.getBuffer(),
+        block.getPriority() == CachedBlock.BlockPriority.MEMORY);
+    }
+    Map<BlockCacheKey, Boolean> evicted = this.evictedKeys;
+    if (evicted != null) {
+      synchronized (evicted) {
+        if (evicted.put(block.getName(), Boolean.TRUE) == null) {
+          size.addAndGet(EVICTED_KEY_OVERHEAD);
+        }
+      }
+    }
     size.addAndGet(-1 * block.heapSize());
     elements.decrementAndGet();
     stats.evicted();
@@ -325,6 +481,17 @@ public class LruBlockCache implements BlockCache, HeapSize {
 
       if(bytesToFree <= 0) return;
 
+      if(clock != null) {
+        long bytesFreed = clock.evict(bytesToFree);
+        LOG.debug("Block cache CLOCK eviction completed. " +
+            "Freed " + bytesFreed + " bytes.  " +
+            "Priority Sizes: " +
+            "Single=" + clock.single.size.get() + ", " +
+            "Multi=" + clock.multi.size.get() + ", " +
+            "Memory=" + clock.memory.size.get());
+        return;
+      }
+
       // Instantiate priority buckets
       BlockBucket bucketSingle = new BlockBucket(bytesToFree, blockSize,
           singleSize());
@@ -439,6 +606,143 @@ public class LruBlockCache implements BlockCache, HeapSize {
     }
   }
 
+  /**
+   * The CLOCK rings of the three priorities.  Only the eviction process, which
+   * runs one at a time, takes blocks off the rings; adds are concurrent.
+   * A block promoted to multiple access is added to the multi ring straight
+   * away; its entry left in the single ring is dropped when a sweep comes
+   * across it.  Every entry, stale or not, counts towards the cache size.
+   */
+  private class ClockRings {
+    final Ring single = new Ring();
+    final Ring multi = new Ring();
+    final Ring memory = new Ring();
+
+    void add(CachedBlock block) {
+      Ring ring = ringFor(block);
+      ring.added(block);
+      offer(ring, block);
+    }
+
+    void promoted(CachedBlock block) {
+      single.removed(block);
+      multi.added(block);
+      offer(multi, block);
+    }
+
+    private void offer(Ring ring, CachedBlock block) {
+      size.addAndGet(CLOCK_NODE_OVERHEAD);
+      ring.blocks.add(block);
+    }
+
+    private CachedBlock poll(Ring ring) {
+      CachedBlock block = ring.blocks.poll();
+      if(block != null) {
+        size.addAndGet(-CLOCK_NODE_OVERHEAD);
+      }
+      return block;
+    }
+
+    private Ring ringFor(CachedBlock block) {
+      switch(block.getPriority()) {
+        case MEMORY: return memory;
+        case MULTI: return multi;
+        default: return single;
+      }
+    }
+
+    /**
+     * Free bytesToFree, sharing the work among the priorities over their
+     * sizes as the scanning eviction does.
+     */
+    long evict(long bytesToFree) {
+      Ring [] rings = new Ring[] { single, multi, memory };
+      long [] overflows = new long[] {
+          single.size.get() - singleSize(),
+          multi.size.get() - multiSize(),
+          memory.size.get() - memorySize() };
+      // Smallest overflow first, so what it leaves is spread over the others.
+      for(int i = 1; i < rings.length; i++) {
+        for(int j = i; j > 0 && overflows[j] < overflows[j - 1]; j--) {
+          long o = overflows[j]; overflows[j] = overflows[j - 1]; overflows[j - 1] = o;
+          Ring r = rings[j]; rings[j] = rings[j - 1]; rings[j - 1] = r;
+        }
+      }
+      long bytesFreed = 0;
+      int remainingRings = rings.length;
+      for(int i = 0; i < rings.length; i++) {
+        if(overflows[i] > 0) {
+          long ringBytesToFree = Math.min(overflows[i],
+            (bytesToFree - bytesFreed) / remainingRings);
+          bytesFreed += sweep(rings[i], ringBytesToFree);
+        }
+        remainingRings--;
+      }
+      return bytesFreed;
+    }
+
+    /**
+     * Sweep a ring until toFree bytes are freed or about every block in it
+     * has been visited twice.
+     */
+    private long sweep(Ring ring, long toFree) {
+      long freed = 0;
+      long visits = 2 * (ring.count.get() + 1);
+      CachedBlock block;
+      while(freed < toFree && visits > 0 &&
+          (block = poll(ring)) != null) {
+        if(ring == single &&
+            block.getPriority() != CachedBlock.BlockPriority.SINGLE) {
+          // Promoted; it lives in the multi ring now.
+          continue;
+        }
+        visits--;
+        if(map.get(block.getName()) != block) {
+          // Replaced while racing to cache the same block.
+          ring.removed(block);
+          continue;
+        }
+        if(ring == single) {
+          // Lost a race with promotion if this fails; drop as above.
+          if(block.evictIfSingle()) {
+            single.removed(block);
+            freed += evictBlock(block) + CLOCK_NODE_OVERHEAD;
+          }
+          continue;
+        }
+        if(block.isReferenced()) {
+          block.clearReferenced();
+          offer(ring, block);
+          continue;
+        }
+        ring.removed(block);
+        freed += evictBlock(block) + CLOCK_NODE_OVERHEAD;
+      }
+      return freed;
+    }
+  }
+
+  /**
+   * Blocks of one priority in insertion order, with their count and size.
+   * The size is that of the blocks only, not of the queue nodes.
+   */
+  private static class Ring {
+    final ConcurrentLinkedQueue<CachedBlock> blocks =
+      new ConcurrentLinkedQueue<CachedBlock>();
+    final AtomicLong count = new AtomicLong(0);
+    final AtomicLong size = new AtomicLong(0);
+
+    void added(CachedBlock block) {
+      count.incrementAndGet();
+      size.addAndGet(block.heapSize());
+    }
+
+    void removed(CachedBlock block) {
+      count.decrementAndGet();
+      size.addAndGet(-block.heapSize());
+    }
+  }
+
   /**
    * Get the maximum size of this cache.
    * @return max size in bytes
@@ -631,10 +935,30 @@ public class LruBlockCache implements BlockCache, HeapSize {
   }
 
   public final static long CACHE_FIXED_OVERHEAD = ClassSize.align(
-      (3 * Bytes.SIZEOF_LONG) + (8 * ClassSize.REFERENCE) +
+      (3 * Bytes.SIZEOF_LONG) + (11 * ClassSize.REFERENCE) +
       (5 * Bytes.SIZEOF_FLOAT) + Bytes.SIZEOF_BOOLEAN
       + ClassSize.OBJECT);
 
+  /** Heap used by a kept evicted key: the key and its linked map entry */
+  static final long EVICTED_KEY_OVERHEAD = BlockCacheKey.FIXED_OVERHEAD +
+      ClassSize.align(ClassSize.MAP_ENTRY + 2 * ClassSize.REFERENCE) +
+      ClassSize.REFERENCE;
+
+  /** Heap used by a CLOCK ring entry, the queue node holding the block */
+  static final long CLOCK_NODE_OVERHEAD =
+      ClassSize.CONCURRENT_LINKED_QUEUE_NODE;
+
+  /** Heap used by an empty CLOCK ring: its queue, head node and counters */
+  static final long CLOCK_RING_OVERHEAD = ClassSize.align(
+      ClassSize.OBJECT + (3 * ClassSize.REFERENCE)) +
+      ClassSize.CONCURRENT_LINKED_QUEUE + CLOCK_NODE_OVERHEAD +
+      (2 * ClassSize.ATOMIC_LONG);
+
+  /** Heap used by the CLOCK rings of the three priorities, when empty */
+  public final static long CLOCK_FIXED_OVERHEAD = ClassSize.align(
+      ClassSize.OBJECT + (4 * ClassSize.REFERENCE)) +
+      (3 * CLOCK_RING_OVERHEAD);
+
   // HeapSize implementation
   public long heapSize() {
     return getCurrentSize();
@@ -668,5 +992,9 @@ public class LruBlockCache implements BlockCache, HeapSize {
 
   public void shutdown() {
     this.scheduleThreadPool.shutdown();
+    BlockCache victim = this.victimCache;
+    if (victim != null) {
+      victim.shutdown();
+    }
   }
 }
@@ -0,0 +1,518 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A pure Java compressor in the LZ4 block format, for
+ * {@link Compression.Algorithm#LZ4}.  Needs no native libraries.
+ * <p>
+ * Data is cut into chunks of at most {@link #CHUNK_SIZE} bytes, each written
+ * as the length of the chunk, the length of the compressed chunk, then the
+ * compressed chunk, as Hadoop's block compressor streams frame them.  A chunk
+ * is compressed greedily with a single hash table of four byte sequences, so
+ * compression is fast and decompression is mostly array copies.
+ */
+public final class Lz4BlockCodec {
+  /** Most bytes compressed as one chunk. */
+  public static final int CHUNK_SIZE = 64 * 1024;
+
+  private static final int MIN_MATCH = 4;
+  // The last match must start at least this many bytes before the end.
+  private static final int MF_LIMIT = 12;
+  // The last bytes are always literals.
+  private static final int LAST_LITERALS = 5;
+  private static final int MAX_DISTANCE = 65535;
+  private static final int HASH_LOG = 14;
+  private static final int ML_MASK = 0x0F;
+  private static final int RUN_MASK = 0x0F;
+  // Misses before the search starts skipping ahead faster.
+  private static final int SKIP_STRENGTH = 6;
+
+  private Lz4BlockCodec() {
+    // Static methods and streams only.
+  }
+
+  /**
+   * @param length Bytes to compress.
+   * @return Most bytes <code>length</code> bytes compress to.
+   */
+  public static int maxCompressedLength(final int length) {
+    return length + length / 255 + 16;
+  }
+
+  /**
+   * @return A hash table to pass to
+   * {@link #compress(byte[], int, int, byte[], int, int[])}.
+   */
+  public static int [] newHashTable() {
+    return new int[1 << HASH_LOG];
+  }
+
+  private static int readInt(final byte [] b, final int i) {
+    return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 |
+      (b[i + 3] & 0xFF) << 24;
+  }
+
+  private static int hash(final int i) {
+    return (i * -1640531535) >>> (32 - HASH_LOG);
+  }
+
+  /**
+   * Compress a range of bytes.
+   * @param dest Array to write to; must have room for
+   * {@link #maxCompressedLength(int)} bytes.
+   * @param table Scratch hash table, from {@link #newHashTable()}.
+   * @return Length of the compressed bytes.
+   */
+  public static int compress(final byte [] src, final int srcOffset,
+      final int srcLength, final byte [] dest, final int destOffset,
+      final int [] table) {
+    final int srcEnd = srcOffset + srcLength;
+    int d = destOffset;
+    int anchor = srcOffset;
+    if (srcLength > MF_LIMIT) {
+      Arrays.fill(table, -1);
+      final int mfLimit = srcEnd - MF_LIMIT;
+      final int matchLimit = srcEnd - LAST_LITERALS;
+      int s = srcOffset;
+      while (s < mfLimit) {
+        int sequence = readInt(src, s);
+        int h = hash(sequence);
+        int ref = table[h];
+        table[h] = s;
+        if (ref < 0 || s - ref > MAX_DISTANCE ||
+            readInt(src, ref) != sequence) {
+          s += 1 + ((s - anchor) >>> SKIP_STRENGTH);
+          continue;
+        }
+        // Extend the match backwards over the pending literals.
+        while (s > anchor && ref > srcOffset && src[s - 1] == src[ref - 1]) {
+          s--;
+          ref--;
+        }
+        int matchLength = MIN_MATCH;
+        while (s + matchLength < matchLimit &&
+            src[s + matchLength] == src[ref + matchLength]) {
+          matchLength++;
+        }
+        d = writeSequence(src, anchor, s - anchor, s - ref, matchLength, dest,
+          d);
+        s += matchLength;
+        anchor = s;
+        if (s < mfLimit) {
+          table[hash(readInt(src, s - 2))] = s - 2;
+        }
+      }
+    }
+    // The rest are literals.
+    int literals = srcEnd - anchor;
+    int token = d++;
+    if (literals >= RUN_MASK) {
+      dest[token] = (byte)(RUN_MASK << 4);
+      d = writeLength(literals - RUN_MASK, dest, d);
+    } else {
+      dest[token] = (byte)(literals << 4);
+    }
+    System.arraycopy(src, anchor, dest, d, literals);
+    return d + literals - destOffset;
+  }
+
+  private static int writeSequence(final byte [] src, final int literalOffset,
+      final int literals, final int distance, final int matchLength,
+      final byte [] dest, final int destOffset) {
+    int d = destOffset;
+    int token = d++;
+    int t;
+    if (literals >= RUN_MASK) {
+      t = RUN_MASK << 4;
+      d = writeLength(literals - RUN_MASK, dest, d);
+    } else {
+      t = literals << 4;
+    }
+    System.arraycopy(src, literalOffset, dest, d, literals);
+    d += literals;
+    dest[d++] = (byte)distance;
+    dest[d++] = (byte)(distance >>> 8);
+    int ml = matchLength - MIN_MATCH;
+    if (ml >= ML_MASK) {
+      t |= ML_MASK;
+      d = writeLength(ml - ML_MASK, dest, d);
+    } else {
+      t |= ml;
+    }
+    dest[token] = (byte)t;
+    return d;
+  }
+
+  private static int writeLength(final int length, final byte [] dest,
+      final int destOffset) {
+    int d = destOffset;
+    int rest = length;
+    while (rest >= 255) {
+      dest[d++] = (byte)255;
+      rest -= 255;
+    }
+    dest[d++] = (byte)rest;
+    return d;
+  }
+
+  /**
+   * Decompress a compressed chunk.
+   * @param destLength Length of the chunk, decompressed.
+   * @throws IOException The compressed bytes are corrupt or do not
+   * decompress to <code>destLength</code> bytes.
+   */
+  public static void decompress(final byte [] src, final int srcOffset,
+      final int srcLength, final byte [] dest, final int destOffset,
+      final int destLength)
+  throws IOException {
+    final int srcEnd = srcOffset + srcLength;
+    final int destEnd = destOffset + destLength;
+    int s = srcOffset;
+    int d = destOffset;
+    while (true) {
+      if (s >= srcEnd) {
+        throw new IOException("Corrupt LZ4 chunk: truncated");
+      }
+      int token = src[s++] & 0xFF;
+      int literals = token >>> 4;
+      if (literals == RUN_MASK) {
+        int b;
+        do {
+          if (s >= srcEnd) {
+            throw new IOException("Corrupt LZ4 chunk: truncated length");
+          }
+          b = src[s++] & 0xFF;
+          literals += b;
+        } while (b == 255);
+      }
+      if (literals > srcEnd - s || literals > destEnd - d) {
+        throw new IOException("Corrupt LZ4 chunk: literals overrun");
+      }
+      System.arraycopy(src, s, dest, d, literals);
+      s += literals;
+      d += literals;
+      if (s == srcEnd) {
+        break;
+      }
+      if (srcEnd - s < 2) {
+        throw new IOException("Corrupt LZ4 chunk: truncated offset");
+      }
+      int distance = (src[s] & 0xFF) | (src[s + 1] & 0xFF) << 8;
+      s += 2;
+      int ref = d - distance;
+      if (distance == 0 || ref < destOffset) {
+        throw new IOException("Corrupt LZ4 chunk: bad offset " + distance);
+      }
+      int matchLength = token & ML_MASK;
+      if (matchLength == ML_MASK) {
+        int b;
+        do {
+          if (s >= srcEnd) {
+            throw new IOException("Corrupt LZ4 chunk: truncated length");
+          }
+          b = src[s++] & 0xFF;
+          matchLength += b;
+        } while (b == 255);
+      }
+      matchLength += MIN_MATCH;
+      if (matchLength > destEnd - d) {
+        throw new IOException("Corrupt LZ4 chunk: match overrun");
+      }
+      // Copy in runs no longer than the distance so source and destination
+      // never overlap; each run doubles what can be copied next.
+      int matchEnd = d + matchLength;
+      while (d < matchEnd) {
+        int n = Math.min(matchEnd - d, d - ref);
+        System.arraycopy(dest, ref, dest, d, n);
+        d += n;
+      }
+    }
+    if (d != destEnd) {
+      throw new IOException("Corrupt LZ4 chunk: decompressed to " +
+        (d - destOffset) + " bytes, expected " + destLength);
+    }
+  }
+
+  /**
+   * Decompress the chunks written by a {@link BlockOutputStream}, held in an
+   * array, into an array.
+   * @param destLength Length of the data, decompressed.
+   * @throws IOException The chunks are corrupt or do not decompress to
+   * <code>destLength</code> bytes.
+   */
+  public static void decompressChunks(final byte [] src, final int srcOffset,
+      final int srcLength, final byte [] dest, final int destOffset,
+      final int destLength)
+  throws IOException {
+    final int srcEnd = srcOffset + srcLength;
+    int s = srcOffset;
+    int d = destOffset;
+    while (s < srcEnd) {
+      if (srcEnd - s < 8) {
+        throw new IOException("Corrupt LZ4 chunk header");
+      }
+      int length = readBigEndianInt(src, s);
+      int compressedLength = readBigEndianInt(src, s + 4);
+      s += 8;
+      if (length < 0 || length > destOffset + destLength - d ||
+          compressedLength < 0 || compressedLength > srcEnd - s) {
+        throw new IOException("Corrupt LZ4 chunk header");
+      }
+      decompress(src, s, compressedLength, dest, d, length);
+      s += compressedLength;
+      d += length;
+    }
+    if (d != destOffset + destLength) {
+      throw new IOException("LZ4 chunks decompressed to " + (d - destOffset) +
+        " bytes, expected " + destLength);
+    }
+  }
+
+  private static int readBigEndianInt(final byte [] b, final int i) {
+    return (b[i] & 0xFF) << 24 | (b[i + 1] & 0xFF) << 16 |
+      (b[i + 2] & 0xFF) << 8 | (b[i + 3] & 0xFF);
+  }
+
+  private static void writeBigEndianInt(final OutputStream out, final int i)
+  throws IOException {
+    out.write(i >>> 24);
+    out.write(i >>> 16);
+    out.write(i >>> 8);
+    out.write(i);
+  }
+
+  /**
+   * Compresses what is written to it, a chunk at a time.  A flush writes out
+   * the pending chunk, however small, so HFile blocks end on a chunk.  Once
+   * flushed, the stream can be pointed at another stream with
+   * {@link #reset(OutputStream)}, keeping its buffers.
+   */
+  public static class BlockOutputStream extends OutputStream {
+    private OutputStream out;
+    private final byte [] buffer = new byte[CHUNK_SIZE];
+    private int count = 0;
+    private byte [] compressed = null;
+    private int [] table = null;
+
+    public BlockOutputStream(final OutputStream out) {
+      this.out = out;
+    }
+
+    /**
+     * Compress to <code>out</code> from now on.  Anything written and not
+     * flushed is dropped.
+     * @param out Stream to write compressed chunks to.
+     */
+    public void reset(final OutputStream out) {
+      this.out = out;
+      this.count = 0;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      if (this.count == this.buffer.length) {
+        writeChunk();
+      }
+      this.buffer[this.count++] = (byte)b;
+    }
+
+    @Override
+    public void write(final byte [] b, final int off, final int len)
+    throws IOException {
+      int offset = off;
+      int rest = len;
+      while (rest > 0) {
+        if (this.count == this.buffer.length) {
+          writeChunk();
+        }
+        int n = Math.min(rest, this.buffer.length - this.count);
+        System.arraycopy(b, offset, this.buffer, this.count, n);
+        this.count += n;
+        offset += n;
+        rest -= n;
+      }
+    }
+
+    private void writeChunk() throws IOException {
+      if (this.count == 0) {
+        return;
+      }
+      if (this.compressed == null) {
+        this.compressed = new byte[maxCompressedLength(CHUNK_SIZE)];
+        this.table = newHashTable();
+      }
+      int length = compress(this.buffer, 0, this.count, this.compressed, 0,
+        this.table);
+      writeBigEndianInt(this.out, this.count);
+      writeBigEndianInt(this.out, length);
+      this.out.write(this.compressed, 0, length);
+      this.count = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      writeChunk();
+      this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+      this.out.close();
+    }
+  }
+
+  /**
+   * Decompresses what a {@link BlockOutputStream} wrote.  Reads of at least a
+   * whole chunk decompress straight into the array read into.
+   */
+  public static class BlockInputStream extends InputStream {
+    private final InputStream in;
+    private byte [] buffer = null;
+    private int position = 0;
+    private int limit = 0;
+    private byte [] compressed = null;
+
+    public BlockInputStream(final InputStream in) {
+      this.in = in;
+    }
+
+    /*
+     * Read the header of the next chunk.
+     * @return Length of the chunk, or -1 at the end of the stream.
+     */
+    private int readChunkLength() throws IOException {
+      int first = this.in.read();
+      if (first < 0) {
+        return -1;
+      }
+      int length = first << 24 | readByte() << 16 | readByte() << 8 |
+        readByte();
+      if (length < 0) {
+        throw new IOException("Corrupt LZ4 chunk header");
+      }
+      return length;
+    }
+
+    private int readByte() throws IOException {
+      int b = this.in.read();
+      if (b < 0) {
+        throw new EOFException("Truncated LZ4 chunk header");
+      }
+      return b;
+    }
+
+    /*
+     * Read the compressed bytes of the chunk whose length was just read, and
+     * decompress them into the given array.
+     */
+    private void readChunk(final int length, final byte [] dest,
+        final int destOffset)
+    throws IOException {
+      int compressedLength = readChunkLength();
+      if (compressedLength < 0) {
+        throw new EOFException("Truncated LZ4 chunk header");
+      }
+      if (this.compressed == null || this.compressed.length < compressedLength) {
+        this.compressed = new byte[compressedLength];
+      }
+      int n = 0;
+      while (n < compressedLength) {
+        int r = this.in.read(this.compressed, n, compressedLength - n);
+        if (r < 0) {
+          throw new EOFException("Truncated LZ4 chunk");
+        }
+        n += r;
+      }
+      decompress(this.compressed, 0, compressedLength, dest, destOffset,
+        length);
+    }
+
+    /*
+     * @return False at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+      int length = readChunkLength();
+      if (length < 0) {
+        return false;
+      }
+      if (this.buffer == null || this.buffer.length < length) {
+        this.buffer = new byte[Math.max(length, CHUNK_SIZE)];
+      }
+      readChunk(length, this.buffer, 0);
+      this.position = 0;
+      this.limit = length;
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (this.position == this.limit && !fill()) {
+        return -1;
+      }
+      return this.buffer[this.position++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte [] b, final int off, final int len)
+    throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (this.position == this.limit) {
+        int length = readChunkLength();
+        if (length < 0) {
+          return -1;
+        }
+        if (length <= len) {
+          readChunk(length, b, off);
+          return length;
+        }
+        if (this.buffer == null || this.buffer.length < length) {
+          this.buffer = new byte[Math.max(length, CHUNK_SIZE)];
+        }
+        readChunk(length, this.buffer, 0);
+        this.position = 0;
+        this.limit = length;
+      }
+      int n = Math.min(len, this.limit - this.position);
+      System.arraycopy(this.buffer, this.position, b, off, n);
+      this.position += n;
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return this.limit - this.position;
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.in.close();
+    }
+  }
+}
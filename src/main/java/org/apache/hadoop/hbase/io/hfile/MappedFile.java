@@ -0,0 +1,157 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.hadoop.fs.ChecksumFileSystem;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+
+/**
+ * A file on local disk, memory mapped read-only.  Reads copy straight out of
+ * the page cache, with no stream, socket or file system checksum in between.
+ * Only files of the local file system can be mapped; see {@link #isLocal}.
+ * <p>
+ * Files are mapped in segments of at most {@link #SEGMENT_SIZE} bytes, as a
+ * single mapping is limited to 2GB.  Reads may span segments.  The mapping
+ * is released when the instance is garbage collected; there is no way to
+ * unmap it sooner.
+ */
+public class MappedFile {
+  /** Largest segment mapped */
+  static final int SEGMENT_SIZE = 1024 * 1024 * 1024;
+
+  private final File file;
+  private final long length;
+  private final int segmentSize;
+  private final MappedByteBuffer [] segments;
+
+  /**
+   * Map the whole of a local file.
+   * @param file File to map.
+   * @throws IOException
+   */
+  public MappedFile(final File file) throws IOException {
+    this(file, SEGMENT_SIZE);
+  }
+
+  /**
+   * Map the whole of a local file in segments of the given size.
+   * @throws IOException
+   */
+  MappedFile(final File file, final int segmentSize) throws IOException {
+    this.file = file;
+    this.segmentSize = segmentSize;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      this.length = channel.size();
+      int count = (int)((this.length + segmentSize - 1) / segmentSize);
+      this.segments = new MappedByteBuffer[count];
+      for (int i = 0; i < count; i++) {
+        long position = (long)i * segmentSize;
+        this.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+          position, Math.min(segmentSize, this.length - position));
+      }
+    } finally {
+      // The mapping outlives the channel.
+      raf.close();
+    }
+  }
+
+  /**
+   * @param fs File system of the file.
+   * @param path Path of the file.
+   * @return The file on local disk that <code>path</code> names, or null if
+   * the file system does not keep its files on local disk.
+   */
+  public static File getLocalFile(final FileSystem fs, final Path path) {
+    if (isLocal(fs)) {
+      return ((RawLocalFileSystem)getRawFileSystem(fs)).pathToFile(path);
+    }
+    return null;
+  }
+
+  /**
+   * Only a file system of local files qualifies.  Hadoop 0.20's DFS client
+   * gives no way to find the block file of a local HDFS replica.
+   * @param fs File system.
+   * @return True if the files of <code>fs</code> are on local disk.
+   */
+  public static boolean isLocal(final FileSystem fs) {
+    return getRawFileSystem(fs) instanceof RawLocalFileSystem;
+  }
+
+  private static FileSystem getRawFileSystem(final FileSystem fs) {
+    return fs instanceof ChecksumFileSystem?
+      ((ChecksumFileSystem)fs).getRawFileSystem(): fs;
+  }
+
+  /**
+   * Copy bytes of the file.
+   * @param position Offset in the file to read from.
+   * @param b Array to read into.
+   * @param offset Offset in <code>b</code> to read into.
+   * @param len Bytes to read.
+   * @throws IOException The range is not all in the file.
+   * @throws InternalError The file was truncated since it was mapped and the
+   * range is past its end now.
+   */
+  public void read(final long position, final byte [] b, final int offset,
+      final int len)
+  throws IOException {
+    if (position < 0 || len < 0 || position + len > this.length) {
+      throw new IOException("Read of " + len + " bytes at " + position +
+        " is past the end of " + this.file + ", " + this.length + " bytes");
+    }
+    long pos = position;
+    int off = offset;
+    int remaining = len;
+    while (remaining > 0) {
+      ByteBuffer segment =
+        this.segments[(int)(pos / this.segmentSize)].duplicate();
+      segment.position((int)(pos % this.segmentSize));
+      int n = Math.min(remaining, segment.remaining());
+      segment.get(b, off, n);
+      pos += n;
+      off += n;
+      remaining -= n;
+    }
+  }
+
+  /**
+   * @return Length of the file when mapped.
+   */
+  public long getLength() {
+    return this.length;
+  }
+
+  @Override
+  public String toString() {
+    return "mapped=" + this.file + ", length=" + this.length;
+  }
+}
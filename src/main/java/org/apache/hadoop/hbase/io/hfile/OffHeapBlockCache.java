@@ -0,0 +1,416 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.nio.ByteBuffer;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.io.HeapSize;
+import org.apache.hadoop.hbase.io.hfile.LruBlockCache.CacheStats;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
+
+/**
+ * A block cache that keeps its blocks outside of the Java heap, in direct
+ * memory.  Meant as a second level cache behind {@link LruBlockCache}, which
+ * hands it the blocks it evicts; see {@link LruBlockCache#setVictimCache}.
+ * Its size is bounded by <code>-XX:MaxDirectMemorySize</code> rather than by
+ * the heap, so it can be made much larger than the on-heap cache without
+ * adding to garbage collection work.<p>
+ *
+ * All memory is allocated up front as a few large direct buffers, the slabs,
+ * cut into equally sized slots.  A slot holds one block, so the slot size
+ * should be a little over the HFile block size; blocks that do not fit are
+ * not cached.  Free slots are kept in a queue; caching a block takes a free
+ * slot and copies the block in.  Reads copy the block back out onto the heap,
+ * as HFile readers work on the backing array of a block.<p>
+ *
+ * When no slot is free, the least recently used tenth of the blocks is
+ * evicted in one pass over the map, in the calling thread; a block that finds
+ * eviction already in progress is dropped rather than wait, as this is a
+ * cache of blocks that were already evicted once.<p>
+ *
+ * A read pins the block it copies out: each block counts its references, one
+ * for the map and one for each read under way, and its slot is handed out
+ * again only once eviction has dropped the map's reference and no read holds
+ * it.  A read that finds the block already dropped counts as a miss.
+ */
+public class OffHeapBlockCache implements BlockCache, HeapSize {
+  static final Log LOG = LogFactory.getLog(OffHeapBlockCache.class);
+
+  /** Default slot size; the default HFile block size plus room for overrun */
+  public static final int DEFAULT_SLOT_SIZE = 80 * 1024;
+
+  /** Largest slab allocated */
+  static final int MAX_SLAB_SIZE = 1024 * 1024 * 1024;
+
+  /** Fraction of the slots freed by an eviction run */
+  static final float EVICTION_FACTOR = 0.1f;
+
+  public final static long CACHE_FIXED_OVERHEAD = ClassSize.align(
+      ClassSize.OBJECT + (6 * ClassSize.REFERENCE) + (2 * Bytes.SIZEOF_INT) +
+      Bytes.SIZEOF_LONG);
+
+  public final static long PER_BLOCK_OVERHEAD = ClassSize.align(
+      ClassSize.OBJECT + (3 * ClassSize.REFERENCE) + Bytes.SIZEOF_INT +
+      Bytes.SIZEOF_LONG + ClassSize.ATOMIC_INTEGER +
+      BlockCacheKey.FIXED_OVERHEAD + ClassSize.CONCURRENT_HASHMAP_ENTRY);
+
+  /** Cached blocks by name */
+  private final ConcurrentHashMap<BlockCacheKey, SlotEntry> map;
+
+  /** Slots not holding a block */
+  private final ConcurrentLinkedQueue<ByteBuffer> freeSlots =
+    new ConcurrentLinkedQueue<ByteBuffer>();
+
+  /** Held while evicting */
+  private final ReentrantLock evictionLock = new ReentrantLock();
+
+  /** Cache access count (sequential ID) */
+  private final AtomicLong count = new AtomicLong(0);
+
+  /** Bytes of block data cached */
+  private final AtomicLong size = new AtomicLong(0);
+
+  /** Cache statistics */
+  private final CacheStats stats = new CacheStats();
+
+  /** Blocks offered that were too big for a slot */
+  private final AtomicLong rejected = new AtomicLong(0);
+
+  private final int slotSize;
+  private final int totalSlots;
+
+  /**
+   * Allocates all the direct memory of the cache.
+   * @param maxSize total direct memory to use, in bytes
+   * @param slotSize largest block cached, in bytes
+   */
+  public OffHeapBlockCache(long maxSize, int slotSize) {
+    if (slotSize <= 0 || slotSize > MAX_SLAB_SIZE) {
+      throw new IllegalArgumentException("Bad slot size " + slotSize);
+    }
+    if (maxSize / slotSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many slots; raise slot size");
+    }
+    this.slotSize = slotSize;
+    this.totalSlots = (int)(maxSize / slotSize);
+    this.map = new ConcurrentHashMap<BlockCacheKey, SlotEntry>(
+      (int)Math.ceil(this.totalSlots / LruBlockCache.DEFAULT_LOAD_FACTOR) + 1,
+      LruBlockCache.DEFAULT_LOAD_FACTOR,
+      LruBlockCache.DEFAULT_CONCURRENCY_LEVEL);
+    int slotsPerSlab = MAX_SLAB_SIZE / slotSize;
+    int slabs = 0;
+    for (int remaining = this.totalSlots; remaining > 0;
+        remaining -= slotsPerSlab) {
+      int slots = Math.min(remaining, slotsPerSlab);
+      ByteBuffer slab = ByteBuffer.allocateDirect(slots * slotSize);
+      for (int i = 0; i < slots; i++) {
+        slab.limit((i + 1) * slotSize);
+        slab.position(i * slotSize);
+        this.freeSlots.add(slab.slice());
+      }
+      slabs++;
+    }
+    LOG.info("Allocated " + slabs + " slab(s) holding " + this.totalSlots +
+      " slots of " + slotSize + " bytes");
+  }
+
+  // BlockCache implementation
+
+  /**
+   * Copy a block into the cache.  Blocks larger than a slot are not cached,
+   * nor are blocks offered while the cache is full and being evicted from.
+   * The in-memory flag is ignored.
+   * @param blockName block name
+   * @param buf block buffer; the block runs from position 0 to the limit
+   * @param inMemory unused
+   */
+  public void cacheBlock(BlockCacheKey blockName, ByteBuffer buf,
+      boolean inMemory) {
+    ByteBuffer src = buf.duplicate();
+    src.rewind();
+    int length = src.remaining();
+    if (length > this.slotSize) {
+      this.rejected.incrementAndGet();
+      return;
+    }
+    if (this.map.containsKey(blockName)) {
+      return;
+    }
+    ByteBuffer slot = this.freeSlots.poll();
+    if (slot == null) {
+      evict();
+      slot = this.freeSlots.poll();
+      if (slot == null) {
+        return;
+      }
+    }
+    slot.clear();
+    slot.put(src);
+    SlotEntry entry = new SlotEntry(blockName, slot, length,
+      this.count.incrementAndGet());
+    if (this.map.putIfAbsent(blockName, entry) != null) {
+      // Lost a race to cache the same block; the slot was never seen.
+      this.freeSlots.add(slot);
+      return;
+    }
+    this.size.addAndGet(length);
+  }
+
+  /**
+   * Copy a block into the cache.
+   * @param blockName block name
+   * @param buf block buffer
+   */
+  public void cacheBlock(BlockCacheKey blockName, ByteBuffer buf) {
+    cacheBlock(blockName, buf, false);
+  }
+
+  /**
+   * Get a heap copy of the block with the specified name.
+   * @param blockName block name
+   * @return copy of the block, or null if not in cache
+   */
+  public ByteBuffer getBlock(BlockCacheKey blockName) {
+    SlotEntry entry = this.map.get(blockName);
+    if (entry == null || !entry.pin()) {
+      // Not cached, or evicted since looked up.
+      this.stats.miss();
+      return null;
+    }
+    ByteBuffer copy = ByteBuffer.allocate(entry.length);
+    try {
+      ByteBuffer src = entry.slot.duplicate();
+      src.clear();
+      src.limit(entry.length);
+      copy.put(src);
+    } finally {
+      unpin(entry);
+    }
+    copy.rewind();
+    entry.accessTime = this.count.incrementAndGet();
+    this.stats.hit();
+    return copy;
+  }
+
+  /**
+   * Evict the least recently used blocks, if no one else is evicting.
+   */
+  void evict() {
+    if (!this.evictionLock.tryLock()) {
+      return;
+    }
+    try {
+      int toFree = Math.max(1, (int)(this.totalSlots * EVICTION_FACTOR));
+      // Keep the oldest toFree entries; the head is the youngest of them.
+      PriorityQueue<SlotEntry> oldest =
+        new PriorityQueue<SlotEntry>(toFree + 1);
+      for (SlotEntry entry : this.map.values()) {
+        if (oldest.size() < toFree) {
+          oldest.add(entry);
+        } else if (entry.accessTime < oldest.peek().accessTime) {
+          oldest.poll();
+          oldest.add(entry);
+        }
+      }
+      long freed = 0;
+      for (SlotEntry entry : oldest) {
+        if (this.map.remove(entry.name, entry)) {
+          freeSlot(entry);
+          freed++;
+        }
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Off-heap block cache evicted " + freed + " blocks");
+      }
+    } finally {
+      this.stats.evict();
+      this.evictionLock.unlock();
+    }
+  }
+
+  /*
+   * Drop the reference of the map to an entry just removed from it.  Its slot
+   * is handed out again once no read holds it either.
+   */
+  private void freeSlot(final SlotEntry entry) {
+    this.size.addAndGet(-entry.length);
+    this.stats.evicted();
+    unpin(entry);
+  }
+
+  /*
+   * Drop a reference to the entry; the last one frees its slot.
+   */
+  private void unpin(final SlotEntry entry) {
+    if (entry.refs.decrementAndGet() == 0) {
+      this.freeSlots.add(entry.slot);
+    }
+  }
+
+  /**
+   * Get the maximum size of this cache.
+   * @return max size in bytes
+   */
+  public long getMaxSize() {
+    return (long)this.totalSlots * this.slotSize;
+  }
+
+  /**
+   * Get the bytes of block data currently cached.
+   * @return current size in bytes
+   */
+  public long getCurrentSize() {
+    return this.size.get();
+  }
+
+  /**
+   * Get the bytes not holding a block.  Includes the unused tail of each
+   * occupied slot.
+   * @return free size in bytes
+   */
+  public long getFreeSize() {
+    return getMaxSize() - getCurrentSize();
+  }
+
+  /**
+   * Get the number of cached blocks
+   * @return number of cached blocks
+   */
+  public long size() {
+    return this.map.size();
+  }
+
+  /**
+   * @return Slot size, the largest block this cache holds
+   */
+  public int getSlotSize() {
+    return this.slotSize;
+  }
+
+  /**
+   * @return Count of blocks not cached because they were larger than a slot
+   */
+  public long getRejectedCount() {
+    return this.rejected.get();
+  }
+
+  /**
+   * Get the number of blocks that have been evicted during the lifetime
+   * of this cache.
+   */
+  public long getEvictedCount() {
+    return this.stats.getEvictedCount();
+  }
+
+  /**
+   * Get counter statistics for this cache.
+   */
+  public CacheStats getStats() {
+    return this.stats;
+  }
+
+  /**
+   * @return Heap used by the cache to track its blocks.  The blocks
+   * themselves are off-heap.
+   */
+  public long heapSize() {
+    return CACHE_FIXED_OVERHEAD + ClassSize.CONCURRENT_HASHMAP +
+      (this.map.size() * PER_BLOCK_OVERHEAD) +
+      (this.totalSlots * (long)ClassSize.align(ClassSize.BYTE_BUFFER +
+        ClassSize.REFERENCE));
+  }
+
+  public void logStats() {
+    LOG.debug("Off-heap Cache Stats: " +
+        "Size=" + getCurrentSize() + ", " +
+        "Free=" + getFreeSize() + ", " +
+        "Max=" + getMaxSize() + ", " +
+        "Blocks=" + size() + ", " +
+        "Access=" + this.stats.getRequestCount() + ", " +
+        "Hit=" + this.stats.getHitCount() + ", " +
+        "Miss=" + this.stats.getMissCount() + ", " +
+        "Evictions=" + this.stats.getEvictionCount() + ", " +
+        "Evicted=" + this.stats.getEvictedCount() + ", " +
+        "Rejected=" + getRejectedCount());
+  }
+
+  /**
+   * Drops all blocks.  The direct memory is released once the cache is no
+   * longer referenced.
+   */
+  public void shutdown() {
+    for (SlotEntry entry : this.map.values()) {
+      if (this.map.remove(entry.name, entry)) {
+        freeSlot(entry);
+      }
+    }
+  }
+
+  /*
+   * A cached block: the slot it is in, how much of the slot it uses, and the
+   * references holding the slot.  Ordered so that the most recently used
+   * entry comes first.
+   */
+  private static class SlotEntry implements Comparable<SlotEntry> {
+    final BlockCacheKey name;
+    final ByteBuffer slot;
+    final int length;
+    volatile long accessTime;
+    // One for the map, one for each read copying the block out.
+    final AtomicInteger refs = new AtomicInteger(1);
+
+    SlotEntry(final BlockCacheKey name, final ByteBuffer slot,
+        final int length, final long accessTime) {
+      this.name = name;
+      this.slot = slot;
+      this.length = length;
+      this.accessTime = accessTime;
+    }
+
+    /*
+     * @return True if pinned; false if the slot is already let go
+     */
+    boolean pin() {
+      while (true) {
+        int r = this.refs.get();
+        if (r <= 0) {
+          return false;
+        }
+        if (this.refs.compareAndSet(r, r + 1)) {
+          return true;
+        }
+      }
+    }
+
+    public int compareTo(SlotEntry that) {
+      if (this.accessTime == that.accessTime) return 0;
+      return this.accessTime < that.accessTime ? 1 : -1;
+    }
+  }
+}
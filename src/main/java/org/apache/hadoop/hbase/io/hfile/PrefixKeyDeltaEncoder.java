@@ -0,0 +1,68 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.io.RawComparator;
+
+/**
+ * {@link DataBlockEncoding#PREFIX} encoding.  A key/value is written as
+ * <pre>
+ * compressed int key length
+ * compressed int value length
+ * compressed int length of the prefix in common with the previous key
+ * rest of the key
+ * value
+ * </pre>
+ */
+class PrefixKeyDeltaEncoder extends DataBlockEncoder {
+  @Override
+  protected void encodeNext(final DataOutputStream out, final byte [] key,
+      final int koffset, final int klength, final byte [] value,
+      final int voffset, final int vlength)
+  throws IOException {
+    int common = commonPrefix(this.prevKey, 0, this.prevKeyLength,
+      key, koffset, klength);
+    writeCompressedInt(out, klength);
+    writeCompressedInt(out, vlength);
+    writeCompressedInt(out, common);
+    out.write(key, koffset + common, klength - common);
+    out.write(value, voffset, vlength);
+  }
+
+  @Override
+  public Seeker newSeeker(final RawComparator<byte []> comparator) {
+    return new Seeker(comparator) {
+      @Override
+      protected void decodeNext() {
+        int klength = readCompressedInt(this.block);
+        int vlength = readCompressedInt(this.block);
+        int common = readCompressedInt(this.block);
+        ensureKeyCapacity(klength);
+        this.block.get(this.key, common, klength - common);
+        this.keyLength = klength;
+        this.valueLength = vlength;
+        this.valueOffset = this.block.position();
+      }
+    };
+  }
+}
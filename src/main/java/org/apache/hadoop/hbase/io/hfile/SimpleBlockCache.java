@@ -31,14 +31,14 @@ import java.util.Map;
  */
 public class SimpleBlockCache implements BlockCache {
   private static class Ref extends SoftReference<ByteBuffer> {
-    public String blockId;
-    public Ref(String blockId, ByteBuffer buf, ReferenceQueue q) {
+    public BlockCacheKey blockId;
+    public Ref(BlockCacheKey blockId, ByteBuffer buf, ReferenceQueue q) {
       super(buf, q);
       this.blockId = blockId;
     }
   }
-  private Map<String,Ref> cache =
-    new HashMap<String,Ref>();
+  private Map<BlockCacheKey,Ref> cache =
+    new HashMap<BlockCacheKey,Ref>();
 
   private ReferenceQueue q = new ReferenceQueue();
   public int dumps = 0;
@@ -66,7 +66,7 @@ public class SimpleBlockCache implements BlockCache {
     return cache.size();
   }
 
-  public synchronized ByteBuffer getBlock(String blockName) {
+  public synchronized ByteBuffer getBlock(BlockCacheKey blockName) {
     processQueue(); // clear out some crap.
     Ref ref = cache.get(blockName);
     if (ref == null)
@@ -74,12 +74,13 @@ public class SimpleBlockCache implements BlockCache {
     return ref.get();
   }
 
-  public synchronized void cacheBlock(String blockName, ByteBuffer buf) {
+  public synchronized void cacheBlock(BlockCacheKey blockName,
+      ByteBuffer buf) {
     cache.put(blockName, new Ref(blockName, buf, q));
   }
 
-  public synchronized void cacheBlock(String blockName, ByteBuffer buf,
-      boolean inMemory) {
+  public synchronized void cacheBlock(BlockCacheKey blockName,
+      ByteBuffer buf, boolean inMemory) {
     cache.put(blockName, new Ref(blockName, buf, q));
   }
 
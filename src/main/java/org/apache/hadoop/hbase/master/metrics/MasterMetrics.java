@@ -20,12 +20,15 @@ package org.apache.hadoop.hbase.master.metrics;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hbase.metrics.MetricsRate;
+import org.apache.hadoop.hbase.regionserver.wal.HLogSplitter;
 import org.apache.hadoop.metrics.MetricsContext;
 import org.apache.hadoop.metrics.MetricsRecord;
 import org.apache.hadoop.metrics.MetricsUtil;
 import org.apache.hadoop.metrics.Updater;
 import org.apache.hadoop.metrics.jvm.JvmMetrics;
+import org.apache.hadoop.metrics.util.MetricsLongValue;
 import org.apache.hadoop.metrics.util.MetricsRegistry;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
 
 
 /**
@@ -46,6 +49,19 @@ public class MasterMetrics implements Updater {
   private final MetricsRate cluster_requests =
     new MetricsRate("cluster_requests", registry);
 
+  /**
+   * Time taken to split the hlogs of a dead region server; its regions can
+   * not be reassigned before this is done.
+   */
+  public final MetricsTimeVaryingRate splitTime =
+    new MetricsTimeVaryingRate("splitTime", registry);
+
+  /**
+   * Hlog bytes split per second of split time, over the last interval.
+   */
+  public final MetricsLongValue splitThroughput =
+    new MetricsLongValue("splitThroughput", registry);
+
   public MasterMetrics(final String name) {
     MetricsContext context = MetricsUtil.getContext("hbase");
     metricsRecord = MetricsUtil.createRecord(context, "master");
@@ -72,12 +88,21 @@ public class MasterMetrics implements Updater {
   public void doUpdates(MetricsContext unused) {
     synchronized (this) {
       this.cluster_requests.pushMetric(metricsRecord);
+      int ops = (int)HLogSplitter.getSplitOps();
+      long time = HLogSplitter.getSplitTime();
+      long bytes = HLogSplitter.getSplitBytes();
+      if (ops != 0) {
+        this.splitTime.inc(ops, time);
+        this.splitThroughput.set(time > 0? (bytes * 1000) / time: bytes);
+      }
+      this.splitTime.pushMetric(metricsRecord);
+      this.splitThroughput.pushMetric(metricsRecord);
     }
     this.metricsRecord.update();
   }
 
   public void resetAllMinMax() {
-    // Nothing to do
+    this.splitTime.resetMinMax();
   }
 
   /**
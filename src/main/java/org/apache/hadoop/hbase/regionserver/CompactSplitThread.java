@@ -24,6 +24,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.RemoteExceptionHandler;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Put;
@@ -31,117 +32,289 @@ import org.apache.hadoop.hbase.util.Writables;
 import org.apache.hadoop.util.StringUtils;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Compact region on request and then run split if appropriate
+ * Compact stores on request and then run split if appropriate.
+ * <p>
+ * Requests are kept per store.  Compactions that would read more than
+ * the throttle size go to the threads for large compactions, the rest to
+ * the threads for small compactions, so a big major compaction does not hold
+ * up the small ones that keep store file counts under the blocking limit.
+ * Large compaction threads take small compactions when there is no large
+ * one to do.  Each thread takes the store with the most store files relative
+ * to the blocking limit first.
  */
 class CompactSplitThread extends Thread implements HConstants {
   static final Log LOG = LogFactory.getLog(CompactSplitThread.class);
 
+  /**
+   * Configuration key: number of threads doing large compactions.
+   */
+  static final String LARGE_THREADS_KEY =
+    "hbase.regionserver.thread.compaction.large";
+  /**
+   * Configuration key: number of threads doing small compactions.
+   */
+  static final String SMALL_THREADS_KEY =
+    "hbase.regionserver.thread.compaction.small";
+  /**
+   * Configuration key: compactions reading more bytes than this are large.
+   */
+  static final String THROTTLE_KEY =
+    "hbase.regionserver.thread.compaction.throttle";
+
   private HTable root = null;
   private HTable meta = null;
   private final long frequency;
   private final ReentrantLock lock = new ReentrantLock();
+  // Splits are done one at a time.
+  private final Object splitLock = new Object();
 
   private final HRegionServer server;
   private final Configuration conf;
 
-  private final BlockingQueue<HRegion> compactionQueue =
-    new LinkedBlockingQueue<HRegion>();
+  private final int largeThreads;
+  private final int smallThreads;
+  private final long throttleSize;
+  private final int blockingStoreFiles;
 
-  private final HashSet<HRegion> regionsInQueue = new HashSet<HRegion>();
+  // Stores waiting for a compaction.  Handlers wait on it for work.
+  private final Map<Store, CompactionRequest> storesInQueue =
+    new HashMap<Store, CompactionRequest>();
+  // Stores being compacted.  Guarded by storesInQueue.
+  private final Set<Store> storesCompacting = new HashSet<Store>();
+  private final List<CompactionHandler> handlers =
+    new ArrayList<CompactionHandler>();
+  // Orders requests of the same priority.
+  private long requestCount = 0;
 
   /** @param server */
   public CompactSplitThread(HRegionServer server) {
+    this(server.conf, server);
+  }
+
+  /*
+   * @param conf
+   * @param server Server whose regions are compacted; only null in tests
+   * that take requests without running the compaction threads
+   */
+  CompactSplitThread(final Configuration conf, final HRegionServer server) {
     super();
     this.server = server;
-    this.conf = server.conf;
+    this.conf = conf;
     this.frequency =
       conf.getLong("hbase.regionserver.thread.splitcompactcheckfrequency",
       20 * 1000);
+    this.largeThreads = Math.max(1, conf.getInt(LARGE_THREADS_KEY, 1));
+    this.smallThreads = Math.max(1, conf.getInt(SMALL_THREADS_KEY, 1));
+    this.throttleSize = conf.getLong(THROTTLE_KEY,
+      2 * conf.getInt("hbase.hstore.compaction.max", 10) *
+      conf.getLong("hbase.hregion.memstore.flush.size",
+        HTableDescriptor.DEFAULT_MEMSTORE_FLUSH_SIZE));
+    int blocking = conf.getInt("hbase.hstore.blockingStoreFiles", -1);
+    if (blocking == -1) {
+      blocking = 1 + conf.getInt("hbase.hstore.compactionThreshold", 3);
+    }
+    this.blockingStoreFiles = blocking;
+    LOG.info("largeThreads=" + this.largeThreads + ", smallThreads=" +
+      this.smallThreads + ", throttleSize=" +
+      StringUtils.humanReadableInt(this.throttleSize));
   }
 
   @Override
   public void run() {
-    int count = 0;
-    while (!this.server.isStopRequested()) {
-      HRegion r = null;
+    for (int i = 1; i < this.largeThreads + this.smallThreads; i++) {
+      CompactionHandler handler = new CompactionHandler(i < this.largeThreads);
+      handler.setName(getName() + (handler.large? ".large.": ".small.") + i);
+      handler.setDaemon(true);
+      handler.setUncaughtExceptionHandler(getUncaughtExceptionHandler());
+      this.handlers.add(handler);
+      handler.start();
+    }
+    compactLoop(true, this.lock);
+    synchronized (this.storesInQueue) {
+      this.storesInQueue.clear();
+      this.storesCompacting.clear();
+    }
+    LOG.info(getName() + " exiting");
+  }
+
+  /*
+   * Compacts stores until the server stops.
+   * @param large True if this thread does large compactions
+   * @param handlerLock Held while compacting
+   */
+  private void compactLoop(final boolean large,
+      final ReentrantLock handlerLock) {
+    while (!isStopRequested()) {
+      CompactionRequest cr = null;
       try {
-        r = compactionQueue.poll(this.frequency, TimeUnit.MILLISECONDS);
-        if (r != null && !this.server.isStopRequested()) {
-          synchronized (regionsInQueue) {
-            regionsInQueue.remove(r);
-          }
-          lock.lock();
-          try {
-            // Don't interrupt us while we are working
-            byte [] midKey = r.compactStores();
-            if (midKey != null && !this.server.isStopRequested()) {
-              split(r, midKey);
+        cr = takeRequest(large);
+        if (cr == null || isStopRequested()) {
+          continue;
+        }
+        handlerLock.lock();
+        try {
+          // Don't interrupt us while we are working
+          byte [] midKey = cr.region.compactStore(cr.store, cr.force);
+          if (midKey != null && !isStopRequested()) {
+            synchronized (this.splitLock) {
+              split(cr.region, midKey);
             }
-          } finally {
-            lock.unlock();
           }
+        } finally {
+          handlerLock.unlock();
         }
       } catch (InterruptedException ex) {
         continue;
       } catch (IOException ex) {
         LOG.error("Compaction/Split failed for region " +
-            r.getRegionNameAsString(),
+            cr.region.getRegionNameAsString(),
           RemoteExceptionHandler.checkIOException(ex));
         if (!server.checkFileSystem()) {
           break;
         }
       } catch (Exception ex) {
         LOG.error("Compaction failed" +
-            (r != null ? (" for region " + r.getRegionNameAsString()) : ""),
+            (cr != null ? (" for region " + cr.region.getRegionNameAsString()) : ""),
             ex);
         if (!server.checkFileSystem()) {
           break;
         }
+      } finally {
+        if (cr != null) {
+          doneCompacting(cr.store);
+        }
       }
     }
-    regionsInQueue.clear();
-    compactionQueue.clear();
-    LOG.info(getName() + " exiting");
   }
 
   /**
    * @param r HRegion store belongs to
    * @param why Why compaction requested -- used in debug messages
    */
-  public synchronized void compactionRequested(final HRegion r,
+  public void compactionRequested(final HRegion r,
       final String why) {
     compactionRequested(r, false, why);
   }
 
   /**
+   * Queue a compaction of every store of the region.  A store already queued
+   * is queued once only.
    * @param r HRegion store belongs to
    * @param force Whether next compaction should be major
    * @param why Why compaction requested -- used in debug messages
    */
-  public synchronized void compactionRequested(final HRegion r,
+  public void compactionRequested(final HRegion r,
       final boolean force, final String why) {
-    if (this.server.stopRequested.get()) {
+    if (isStopRequested()) {
       return;
     }
-    r.setForceMajorCompaction(force);
     if (LOG.isDebugEnabled()) {
       LOG.debug("Compaction " + (force? "(major) ": "") +
         "requested for region " + r.getRegionNameAsString() +
         "/" + r.getRegionInfo().getEncodedName() +
         (why != null && !why.isEmpty()? " because: " + why: ""));
     }
-    synchronized (regionsInQueue) {
-      if (!regionsInQueue.contains(r)) {
-        compactionQueue.add(r);
-        regionsInQueue.add(r);
+    List<Store> stores;
+    synchronized (r.stores) {
+      stores = new ArrayList<Store>(r.stores.values());
+    }
+    for (Store store: stores) {
+      queue(r, store, force);
+    }
+  }
+
+  /*
+   * Queue a compaction of the store, or update the one queued for it.
+   */
+  private void queue(final HRegion r, final Store store, final boolean force) {
+    synchronized (this.storesInQueue) {
+      CompactionRequest cr = this.storesInQueue.get(store);
+      if (cr != null && (cr.force || !force)) {
+        return;
+      }
+    }
+    // Looks at the file system, so do it outside the lock.  A store that
+    // would not be compacted sizes at zero; it is still queued, as a small
+    // request, since compacting it checks whether the region should split.
+    long size;
+    try {
+      size = store.getCompactionSize(force);
+    } catch (IOException e) {
+      LOG.warn("Failed estimating compaction size of " + store, e);
+      size = store.getSize();
+    }
+    synchronized (this.storesInQueue) {
+      CompactionRequest cr = this.storesInQueue.get(store);
+      if (cr == null) {
+        cr = new CompactionRequest(r, store, this.requestCount++);
+        this.storesInQueue.put(store, cr);
+      }
+      cr.force |= force;
+      cr.large = size > this.throttleSize;
+      this.storesInQueue.notifyAll();
+    }
+  }
+
+  /*
+   * @param large True if the calling thread does large compactions
+   * @return The most urgent compaction request the thread can do, taken off
+   * the queue, or null if none came in while waiting
+   * @throws InterruptedException
+   */
+  CompactionRequest takeRequest(final boolean large)
+  throws InterruptedException {
+    synchronized (this.storesInQueue) {
+      CompactionRequest cr = pickRequest(large);
+      if (cr == null) {
+        this.storesInQueue.wait(this.frequency);
+        cr = pickRequest(large);
+        if (cr == null) {
+          return null;
+        }
       }
+      this.storesInQueue.remove(cr.store);
+      this.storesCompacting.add(cr.store);
+      return cr;
+    }
+  }
+
+  /*
+   * Call holding the storesInQueue lock.
+   * @param large True if the calling thread does large compactions
+   * @return Most urgent request whose store is not being compacted, large
+   * ones first for large compaction threads, or null if none
+   */
+  CompactionRequest pickRequest(final boolean large) {
+    CompactionRequest best = null;
+    for (CompactionRequest cr: this.storesInQueue.values()) {
+      if ((cr.large && !large) || this.storesCompacting.contains(cr.store)) {
+        continue;
+      }
+      if (best == null ||
+          (cr.large != best.large? cr.large: cr.compareTo(best) < 0)) {
+        best = cr;
+      }
+    }
+    return best;
+  }
+
+  /*
+   * Take the store off the stores being compacted, so a request for it that
+   * came in meanwhile can be picked.
+   */
+  void doneCompacting(final Store store) {
+    synchronized (this.storesInQueue) {
+      this.storesCompacting.remove(store);
+      this.storesInQueue.notifyAll();
     }
   }
 
@@ -218,6 +391,13 @@ class CompactSplitThread extends Thread implements HConstants {
       StringUtils.formatTimeDiff(System.currentTimeMillis(), startTime));
   }
 
+  /*
+   * @return True once the server is asked to stop
+   */
+  boolean isStopRequested() {
+    return this.server.isStopRequested();
+  }
+
   /**
    * Only interrupt once it's done with a run through the work loop.
    */
@@ -225,15 +405,114 @@ class CompactSplitThread extends Thread implements HConstants {
     if (lock.tryLock()) {
       this.interrupt();
     }
+    for (CompactionHandler handler: this.handlers) {
+      handler.interruptIfNecessary();
+    }
   }
 
   /**
-   * Returns the current size of the queue containing regions that are
-   * processed.
+   * Returns the current size of the queue containing stores that are
+   * waiting for a compaction.
    *
-   * @return The current size of the regions queue.
+   * @return The current size of the stores queue.
    */
   public int getCompactionQueueSize() {
-    return compactionQueue.size();
+    synchronized (this.storesInQueue) {
+      return this.storesInQueue.size();
+    }
+  }
+
+  /**
+   * @return Count of stores waiting for a large compaction.
+   */
+  public int getLargeCompactionQueueSize() {
+    return getCompactionQueueSize(true);
+  }
+
+  /**
+   * @return Count of stores waiting for a small compaction.
+   */
+  public int getSmallCompactionQueueSize() {
+    return getCompactionQueueSize(false);
+  }
+
+  private int getCompactionQueueSize(final boolean large) {
+    int count = 0;
+    synchronized (this.storesInQueue) {
+      for (CompactionRequest cr: this.storesInQueue.values()) {
+        if (cr.large == large) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  /*
+   * A store waiting for a compaction.  Ordered most urgent first.
+   */
+  class CompactionRequest implements Comparable<CompactionRequest> {
+    final HRegion region;
+    final Store store;
+    final long seqNum;
+    // Make the compaction major.
+    boolean force = false;
+    // Reads more than the throttle size.
+    boolean large = false;
+
+    CompactionRequest(final HRegion region, final Store store,
+        final long seqNum) {
+      this.region = region;
+      this.store = store;
+      this.seqNum = seqNum;
+    }
+
+    /*
+     * @return Store files to go before the store blocks flushes; zero or
+     * less once it does
+     */
+    private int getPriority() {
+      return blockingStoreFiles - this.store.getStorefilesCount();
+    }
+
+    public int compareTo(final CompactionRequest other) {
+      int diff = getPriority() - other.getPriority();
+      if (diff != 0) {
+        return diff;
+      }
+      return this.seqNum < other.seqNum? -1:
+        this.seqNum == other.seqNum? 0: 1;
+    }
+  }
+
+  /*
+   * More compaction threads, past this one.
+   */
+  private class CompactionHandler extends Thread {
+    private final boolean large;
+    private final ReentrantLock handlerLock = new ReentrantLock();
+
+    CompactionHandler(final boolean large) {
+      this.large = large;
+    }
+
+    @Override
+    public void run() {
+      compactLoop(this.large, this.handlerLock);
+      LOG.info(getName() + " exiting");
+    }
+
+    /*
+     * Only interrupt once it's done with a compaction.
+     */
+    void interruptIfNecessary() {
+      if (this.handlerLock.tryLock()) {
+        try {
+          interrupt();
+        } finally {
+          this.handlerLock.unlock();
+        }
+      }
+    }
   }
 }
\ No newline at end of file
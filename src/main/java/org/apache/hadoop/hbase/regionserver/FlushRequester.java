@@ -33,4 +33,20 @@ public interface FlushRequester {
    * @param region the HRegion requesting the cache flush
    */
   void request(HRegion region);
+
+  /**
+   * Tell the listener all stores of the region need to be flushed so the
+   * logs holding its oldest edits can be let go.
+   *
+   * @param region the HRegion holding edits of logs to let go
+   */
+  void requestLogFlush(HRegion region);
+
+  /**
+   * Tell the listener stores of the region want their memstores compacted
+   * in memory.
+   *
+   * @param region the HRegion whose memstores to compact
+   */
+  void requestMemStoreCompaction(HRegion region);
 }
\ No newline at end of file
@@ -53,6 +53,7 @@ import org.apache.hadoop.hbase.regionserver.wal.WALEdit;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.util.ClassSize;
 import org.apache.hadoop.hbase.util.FSUtils;
+import org.apache.hadoop.hbase.util.Pair;
 import org.apache.hadoop.hbase.util.Writables;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.util.Progressable;
@@ -64,12 +65,11 @@ import java.lang.reflect.Constructor;
 import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
-import java.util.Random;
-import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
@@ -118,6 +118,17 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
   public static final Log LOG = LogFactory.getLog(HRegion.class);
   static final String SPLITDIR = "splits";
   static final String MERGEDIR = "merges";
+
+  /**
+   * Configuration key: if true, a region flushed because its memstore is
+   * full flushes only the stores whose memstore is over
+   * {@link #FAMILY_FLUSH_LOWER_BOUND_KEY}.
+   */
+  static final String PER_FAMILY_FLUSH_KEY =
+    "hbase.hregion.memstore.flush.perfamily";
+  static final String FAMILY_FLUSH_LOWER_BOUND_KEY =
+    "hbase.hregion.memstore.flush.family.lowerbound";
+  static final long DEFAULT_FAMILY_FLUSH_LOWER_BOUND = 16 * 1024 * 1024;
   final AtomicBoolean closed = new AtomicBoolean(false);
   /* Closing can take some time; use the closing flag if there is stuff we don't
    * want to do while in closing state; e.g. like offer this region up to the
@@ -130,12 +141,7 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
   // Members
   //////////////////////////////////////////////////////////////////////////////
 
-  private final Set<byte[]> lockedRows =
-    new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
-  private final Map<Integer, byte []> lockIds =
-    new HashMap<Integer, byte []>();
-  private int lockIdGenerator = 1;
-  static private Random rand = new Random();
+  private final RowLockManager rowLocks;
 
   protected final Map<byte [], Store> stores =
     new ConcurrentSkipListMap<byte [], Store>(Bytes.BYTES_RAWCOMPARATOR);
@@ -147,6 +153,9 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
   // private byte [] name = null;
 
   final AtomicLong memstoreSize = new AtomicLong(0);
+  // Set while an in memory compaction of the memstores is queued.
+  private final AtomicBoolean memstoreCompactionRequested =
+    new AtomicBoolean(false);
 
   // This is the table subdirectory.
   final Path basedir;
@@ -158,12 +167,6 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
   private final Path regionCompactionDir;
   KeyValue.KVComparator comparator;
 
-  /*
-   * Set this when scheduling compaction if want the next compaction to be a
-   * major compaction.  Cleared each time through compaction code.
-   */
-  private volatile boolean forceMajorCompaction = false;
-
   /*
    * Data structure of write state flags used coordinating flushes,
    * compactions and closes.
@@ -173,8 +176,8 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
     volatile boolean flushing = false;
     // Set when a flush has been requested.
     volatile boolean flushRequested = false;
-    // Set while a compaction is running.
-    volatile boolean compacting = false;
+    // Count of store compactions running.
+    volatile int compactions = 0;
     // Gets set in close. If set, cannot compact or flush again.
     volatile boolean writesEnabled = true;
     // Set if region is read-only
@@ -202,6 +205,9 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
   private final WriteState writestate = new WriteState();
 
   final long memstoreFlushSize;
+  // Memstore size over which a store is flushed on its own, or
+  // Long.MAX_VALUE if all stores are flushed together.
+  private final long familyFlushLowerBound;
   private volatile long lastFlushTime;
   final FlushRequester flushListener;
   private final long blockingMemStoreSize;
@@ -237,11 +243,14 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
     this.flushListener = null;
     this.fs = null;
     this.memstoreFlushSize = 0L;
+    this.familyFlushLowerBound = Long.MAX_VALUE;
     this.log = null;
     this.regionCompactionDir = null;
     this.regiondir = null;
     this.regionInfo = null;
     this.threadWakeFrequency = 0L;
+    this.rowLocks =
+      new RowLockManager(RowLockManager.DEFAULT_ROWLOCK_WAIT_DURATION);
   }
 
   /**
@@ -280,6 +289,9 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
     this.regionInfo = regionInfo;
     this.flushListener = flushListener;
     this.threadWakeFrequency = conf.getLong(THREAD_WAKE_FREQUENCY, 10 * 1000);
+    this.rowLocks = new RowLockManager(conf.getLong(
+      "hbase.rowlock.wait.duration",
+      RowLockManager.DEFAULT_ROWLOCK_WAIT_DURATION));
     String encodedNameStr = this.regionInfo.getEncodedName();
     this.regiondir = new Path(basedir, encodedNameStr);
     if (LOG.isDebugEnabled()) {
@@ -294,6 +306,10 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
                       HTableDescriptor.DEFAULT_MEMSTORE_FLUSH_SIZE);
     }
     this.memstoreFlushSize = flushSize;
+    this.familyFlushLowerBound = conf.getBoolean(PER_FAMILY_FLUSH_KEY, false)?
+      conf.getLong(FAMILY_FLUSH_LOWER_BOUND_KEY,
+        DEFAULT_FAMILY_FLUSH_LOWER_BOUND):
+      Long.MAX_VALUE;
     this.blockingMemStoreSize = this.memstoreFlushSize *
       conf.getLong("hbase.hregion.memstore.block.multiplier", 2);
   }
@@ -357,7 +373,7 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
     }
 
     // HRegion is ready to go!
-    this.writestate.compacting = false;
+    this.writestate.compactions = 0;
     this.lastFlushTime = System.currentTimeMillis();
     LOG.info("region " + this +
              " available; sequence id is " + this.minSequenceId);
@@ -489,11 +505,11 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
         writestate.writesEnabled = false;
         wasFlushing = writestate.flushing;
         LOG.debug("Closing " + this + ": disabling compactions & flushes");
-        while (writestate.compacting || writestate.flushing) {
+        while (writestate.compactions > 0 || writestate.flushing) {
           LOG.debug("waiting for" +
-              (writestate.compacting ? " compaction" : "") +
+              (writestate.compactions > 0 ? " compaction" : "") +
               (writestate.flushing ?
-                  (writestate.compacting ? "," : "") + " cache flush" :
+                  (writestate.compactions > 0 ? "," : "") + " cache flush" :
                     "") + " to complete for region " + this);
           try {
             writestate.wait();
@@ -747,7 +763,8 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
 
   /*
    * Do preparation for pending compaction.
-   * Clean out any vestiges of previous failed compactions.
+   * Clean out any vestiges of previous failed compactions.  Only call when
+   * no other compaction of this region is running; they share the directory.
    * @throws IOException
    */
   private void doRegionCompactionPrep() throws IOException {
@@ -762,14 +779,6 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
     FSUtils.deleteDirectory(this.fs, this.regionCompactionDir);
   }
 
-  void setForceMajorCompaction(final boolean b) {
-    this.forceMajorCompaction = b;
-  }
-
-  boolean getForceMajorCompaction() {
-    return this.forceMajorCompaction;
-  }
-
   /**
    * Called by compaction thread and after region is opened to compact the
    * HStores if necessary.
@@ -785,9 +794,7 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
    * @throws IOException e
    */
   public byte [] compactStores() throws IOException {
-    boolean majorCompaction = this.forceMajorCompaction;
-    this.forceMajorCompaction = false;
-    return compactStores(majorCompaction);
+    return compactStores(false);
   }
 
   /*
@@ -806,6 +813,27 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
    * @throws IOException e
    */
   byte [] compactStores(final boolean majorCompaction)
+  throws IOException {
+    return compactStores(this.stores.values(), majorCompaction);
+  }
+
+  /**
+   * Compact one store of this region.  Called by the compaction threads of
+   * the region server; other stores of the region may be compacting at the
+   * same time.  A split waits on all of them.
+   *
+   * @param store Store to compact
+   * @param majorCompaction True to force a major compaction regardless of thresholds
+   * @return split row if split is needed
+   * @throws IOException e
+   */
+  byte [] compactStore(final Store store, final boolean majorCompaction)
+  throws IOException {
+    return compactStores(Collections.singletonList(store), majorCompaction);
+  }
+
+  private byte [] compactStores(final Collection<Store> toCompact,
+      final boolean majorCompaction)
   throws IOException {
     if (this.closing.get() || this.closed.get()) {
       LOG.debug("Skipping compaction on " + this + " because closing/closed");
@@ -819,34 +847,40 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
       }
       try {
         synchronized (writestate) {
-          if (!writestate.compacting && writestate.writesEnabled) {
-            writestate.compacting = true;
+          if (writestate.writesEnabled) {
+            if (writestate.compactions == 0) {
+              doRegionCompactionPrep();
+            }
+            writestate.compactions++;
           } else {
             LOG.info("NOT compacting region " + this +
-                ": compacting=" + writestate.compacting + ", writesEnabled=" +
-                writestate.writesEnabled);
+                ": writesEnabled=" + writestate.writesEnabled);
               return splitRow;
           }
         }
         LOG.info("Starting" + (majorCompaction? " major " : " ") +
-            "compaction on region " + this);
+            "compaction on region " + this +
+            (toCompact.size() == 1? ", store " + toCompact.iterator().next(): ""));
         long startTime = System.currentTimeMillis();
-        doRegionCompactionPrep();
         long maxSize = -1;
-        for (Store store: stores.values()) {
+        for (Store store: toCompact) {
           final Store.StoreSize ss = store.compact(majorCompaction);
           if (ss != null && ss.getSize() > maxSize) {
             maxSize = ss.getSize();
             splitRow = ss.getSplitRow();
           }
         }
-        doRegionCompactionCleanup();
+        synchronized (writestate) {
+          if (writestate.compactions == 1) {
+            doRegionCompactionCleanup();
+          }
+        }
         String timeTaken = StringUtils.formatTimeDiff(System.currentTimeMillis(),
             startTime);
         LOG.info("compaction completed on region " + this + " in " + timeTaken);
       } finally {
         synchronized (writestate) {
-          writestate.compacting = false;
+          writestate.compactions--;
           writestate.notifyAll();
         }
       }
@@ -877,6 +911,25 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
    * because a Snapshot was not properly persisted.
    */
   public boolean flushcache() throws IOException {
+    return flushcache(true);
+  }
+
+  /**
+   * Flush the cache, or only the stores whose memstore is over
+   * <code>hbase.hregion.memstore.flush.family.lowerbound</code> if
+   * <code>allStores</code> is false and
+   * <code>hbase.hregion.memstore.flush.perfamily</code> is on.  All stores
+   * are flushed if none is over the bound.  Flushing only the big stores
+   * saves writing small files for the small ones.
+   *
+   * @param allStores False to flush only the big stores
+   * @return true if cache was flushed
+   * @throws IOException general io exceptions
+   * @throws DroppedSnapshotException Thrown when replay of hlog is required
+   * because a Snapshot was not properly persisted.
+   * @see #flushcache()
+   */
+  public boolean flushcache(final boolean allStores) throws IOException {
     if (this.closed.get()) {
       return false;
     }
@@ -897,7 +950,8 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
       // Prevent splits and closes
       splitsAndClosesLock.readLock().lock();
       try {
-        return internalFlushcache();
+        return allStores? internalFlushcache():
+          internalFlushcache(getStoresToFlush());
       } finally {
         splitsAndClosesLock.readLock().unlock();
       }
@@ -943,7 +997,37 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
    * because a Snapshot was not properly persisted.
    */
   protected boolean internalFlushcache() throws IOException {
+    return internalFlushcache(this.stores.values());
+  }
+
+  /*
+   * @return Stores whose memstore is over the family flush lower bound, or
+   * all stores if none is
+   */
+  private Collection<Store> getStoresToFlush() {
+    List<Store> big = new ArrayList<Store>();
+    for (Store s: this.stores.values()) {
+      if (s.getMemStoreSize() > this.familyFlushLowerBound) {
+        big.add(s);
+      }
+    }
+    return big.isEmpty()? this.stores.values(): big;
+  }
+
+  /*
+   * Flush the memstores of the passed stores; see {@link #internalFlushcache()}.
+   * If not all stores are flushed, the flush is not recorded in the log: the
+   * log keeps the region's edits until all its stores are flushed.  Each
+   * store file records the sequence id it holds edits up to, so a replay of
+   * the log only redoes what the store has not flushed.
+   * @param storesToFlush Stores to flush
+   * @return true if the region needs compacting
+   * @throws IOException
+   */
+  private boolean internalFlushcache(final Collection<Store> storesToFlush)
+  throws IOException {
     final long startTime = System.currentTimeMillis();
+    final boolean partial = storesToFlush.size() < this.stores.size();
     // Clear flush flag.
     // Record latest flush time
     this.lastFlushTime = startTime;
@@ -971,13 +1055,22 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
     // end up in both snapshot and memstore (makes it difficult to do atomic
     // rows then)
     this.updatesLock.writeLock().lock();
-    final long currentMemStoreSize = this.memstoreSize.get();
-    List<StoreFlusher> storeFlushers = new ArrayList<StoreFlusher>(stores.size());
+    long flushedSize = 0;
+    if (partial) {
+      for (Store s : storesToFlush) {
+        flushedSize += s.getMemStoreSize();
+      }
+    } else {
+      flushedSize = this.memstoreSize.get();
+    }
+    final long currentMemStoreSize = flushedSize;
+    List<StoreFlusher> storeFlushers =
+      new ArrayList<StoreFlusher>(storesToFlush.size());
     try {
       sequenceId = log.startCacheFlush();
       completeSequenceId = this.getCompleteCacheFlushSequenceId(sequenceId);
 
-      for (Store s : stores.values()) {
+      for (Store s : storesToFlush) {
         storeFlushers.add(s.getStoreFlusher(completeSequenceId));
       }
 
@@ -992,6 +1085,9 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
       for (StoreFlusher flusher : storeFlushers) {
         flusher.prepare();
       }
+      // The flusher may not queue a compaction of memstores being flushed;
+      // let the next update ask again.
+      this.memstoreCompactionRequested.set(false);
     } finally {
       this.updatesLock.writeLock().unlock();
     }
@@ -1071,9 +1167,13 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
     //     This tells future readers that the HStores were emitted correctly,
     //     and that all updates to the log for this regionName that have lower
     //     log-sequence-ids can be safely ignored.
-    this.log.completeCacheFlush(getRegionName(),
-        regionInfo.getTableDesc().getName(), completeSequenceId,
-        this.getRegionInfo().isMetaRegion());
+    if (partial) {
+      this.log.completePartialCacheFlush();
+    } else {
+      this.log.completeCacheFlush(getRegionName(),
+          regionInfo.getTableDesc().getName(), completeSequenceId,
+          this.getRegionInfo().isMetaRegion());
+    }
 
     // C. Finally notify anyone waiting on memstore to clear:
     // e.g. checkResources().
@@ -1085,7 +1185,9 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
       long now = System.currentTimeMillis();
       LOG.debug("Finished memstore flush of ~" +
         StringUtils.humanReadableInt(currentMemStoreSize) + " for region " +
-        this + " in " + (now - startTime) + "ms, sequence id=" + sequenceId +
+        this + (partial? " (" + storesToFlush.size() + " of " +
+          this.stores.size() + " stores)": "") +
+        " in " + (now - startTime) + "ms, sequence id=" + sequenceId +
         ", compaction requested=" + compactionRequested);
     }
     return compactionRequested;
@@ -1271,6 +1373,7 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
     long now = System.currentTimeMillis();
     byte [] byteNow = Bytes.toBytes(now);
     boolean flush = false;
+    boolean compact = false;
 
     updatesLock.readLock().lock();
     ReadWriteConsistencyControl.WriteEntry w = null;
@@ -1362,6 +1465,7 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
           kv.setMemstoreTS(w.getWriteNumber());
           size = this.memstoreSize.addAndGet(store.delete(kv));
         }
+        compact |= store.needsMemStoreCompaction();
       }
       flush = isFlushSize(size);
     } finally {
@@ -1373,6 +1477,8 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
     if (flush) {
       // Request a cache flush.  Do it outside update lock.
       requestFlush();
+    } else if (compact) {
+      requestMemStoreCompaction();
     }
   }
 
@@ -1442,6 +1548,162 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
   }
 
 
+  /**
+   * Apply a batch of puts to this region.
+   * <p>
+   * Row locks are taken for as many of the puts as can be had without
+   * blocking (the first one may block).  All edits of the locked puts then go
+   * to the WAL as a single edit with a single sync and into the memstores
+   * under a single RWCC write entry, after which the locks are released and
+   * the next run of puts is processed.  Processing stops at the first put
+   * whose row is not in this region.
+   * @param putsAndLocks the puts, each paired with the id of an already held
+   * row lock or null to have one taken
+   * @return the number of puts applied, counting from the front of the
+   * array; when less than the length of the array, the put at that index and
+   * all following it were not applied.
+   * @throws IOException
+   */
+  public int put(final Pair<Put, Integer> [] putsAndLocks)
+  throws IOException {
+    checkReadOnly();
+    checkResources();
+    int applied = 0;
+    splitsAndClosesLock.readLock().lock();
+    try {
+      while (applied < putsAndLocks.length) {
+        int next = applyMiniBatch(putsAndLocks, applied);
+        if (next == applied) {
+          break;
+        }
+        applied = next;
+      }
+    } finally {
+      splitsAndClosesLock.readLock().unlock();
+    }
+    return applied;
+  }
+
+  /*
+   * Lock as many of the puts starting at <code>start</code> as we can, apply
+   * them as one batch, then release the locks we took.
+   * @return index of the first put not applied
+   */
+  private int applyMiniBatch(final Pair<Put, Integer> [] putsAndLocks,
+      final int start)
+  throws IOException {
+    Integer [] acquiredLocks = new Integer[putsAndLocks.length - start];
+    int end = start;
+    IOException failure = null;
+    try {
+      for (; end < putsAndLocks.length; end++) {
+        Put put = putsAndLocks[end].getFirst();
+        Integer providedLock = putsAndLocks[end].getSecond();
+        try {
+          for (byte [] family : put.getFamilyMap().keySet()) {
+            checkFamily(family);
+          }
+          if (providedLock != null) {
+            if (!isRowLocked(providedLock)) {
+              throw new IOException("Invalid row lock");
+            }
+            continue;
+          }
+          // Only block on the first lock of a run; blocking while holding
+          // other row locks could deadlock with another batch.
+          Integer lid = internalObtainRowLock(put.getRow(), end == start);
+          if (lid == null) {
+            break;
+          }
+          acquiredLocks[end - start] = lid;
+        } catch (WrongRegionException e) {
+          LOG.debug("Batch put stopped at index " + end + ": " +
+            e.getMessage());
+          break;
+        } catch (NotServingRegionException e) {
+          break;
+        } catch (IOException e) {
+          failure = e;
+          break;
+        }
+      }
+      if (end > start) {
+        applyPuts(putsAndLocks, start, end);
+      }
+    } finally {
+      for (Integer lid : acquiredLocks) {
+        if (lid != null) releaseRowLock(lid);
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    return end;
+  }
+
+  /*
+   * Apply the puts in <code>[start, end)</code>, whose rows the caller has
+   * locked, with one WAL append and one sync for the lot.
+   */
+  private void applyPuts(final Pair<Put, Integer> [] putsAndLocks,
+      final int start, final int end)
+  throws IOException {
+    long now = System.currentTimeMillis();
+    byte[] byteNow = Bytes.toBytes(now);
+    boolean flush = false;
+    boolean compact = false;
+    this.updatesLock.readLock().lock();
+    ReadWriteConsistencyControl.WriteEntry w = null;
+    try {
+      // Update timestamps and bunch up the edits of all puts that want to
+      // go to the WAL into a single WALEdit.
+      WALEdit walEdit = new WALEdit();
+      for (int i = start; i < end; i++) {
+        Put put = putsAndLocks[i].getFirst();
+        boolean writeToWAL = put.getWriteToWAL();
+        for (List<KeyValue> edits : put.getFamilyMap().values()) {
+          if (updateKeys(edits, byteNow) && writeToWAL) {
+            for (KeyValue kv : edits) {
+              walEdit.add(kv);
+            }
+          }
+        }
+      }
+
+      // write/sync to WAL should happen before we touch memstore.
+      if (!walEdit.isEmpty()) {
+        this.log.append(regionInfo, regionInfo.getTableDesc().getName(),
+           walEdit, now);
+      }
+
+      long size = 0;
+      w = rwcc.beginMemstoreInsert();
+      for (int i = start; i < end; i++) {
+        Put put = putsAndLocks[i].getFirst();
+        for (Map.Entry<byte[], List<KeyValue>> e :
+            put.getFamilyMap().entrySet()) {
+          Store store = getStore(e.getKey());
+          for (KeyValue kv: e.getValue()) {
+            kv.setMemstoreTS(w.getWriteNumber());
+            size = this.memstoreSize.addAndGet(store.add(kv));
+          }
+          compact |= store.needsMemStoreCompaction();
+        }
+      }
+      flush = isFlushSize(size);
+    } finally {
+      if (w != null) rwcc.completeMemstoreInsert(w);
+
+      this.updatesLock.readLock().unlock();
+    }
+    if (flush) {
+      // Request a cache flush.  Do it outside update lock.
+      requestFlush();
+    } else if (compact) {
+      requestMemStoreCompaction();
+    }
+  }
+
   //TODO, Think that gets/puts and deletes should be refactored a bit so that
   //the getting of the lock happens before, so that you would just pass it into
   //the methods. So in the case of checkAndMutate you could just do lockRow,
@@ -1630,6 +1892,7 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
     long now = System.currentTimeMillis();
     byte[] byteNow = Bytes.toBytes(now);
     boolean flush = false;
+    boolean compact = false;
     this.updatesLock.readLock().lock();
     ReadWriteConsistencyControl.WriteEntry w = null;
     try {
@@ -1685,6 +1948,7 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
           kv.setMemstoreTS(w.getWriteNumber());
           size = this.memstoreSize.addAndGet(store.add(kv));
         }
+        compact |= store.needsMemStoreCompaction();
       }
       flush = isFlushSize(size);
     } finally {
@@ -1695,6 +1959,38 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
     if (flush) {
       // Request a cache flush.  Do it outside update lock.
       requestFlush();
+    } else if (compact) {
+      requestMemStoreCompaction();
+    }
+  }
+
+  /*
+   * Have a flush handler compact the memstores in memory; the compaction
+   * copies them, which is not to be done on the write path.
+   */
+  private void requestMemStoreCompaction() {
+    if (this.flushListener == null ||
+        !this.memstoreCompactionRequested.compareAndSet(false, true)) {
+      return;
+    }
+    this.flushListener.requestMemStoreCompaction(this);
+  }
+
+  /**
+   * Compacts in memory the memstores of the stores that need it, see
+   * {@link Store#compactMemStore()}, and takes the heap freed off the
+   * memstore size of the region.
+   */
+  void compactMemStores() {
+    this.memstoreCompactionRequested.set(false);
+    if (this.closing.get() || this.closed.get()) {
+      return;
+    }
+    for (Store store: this.stores.values()) {
+      long freed = store.compactMemStore();
+      if (freed != 0) {
+        this.memstoreSize.addAndGet(-freed);
+      }
     }
   }
 
@@ -1715,6 +2011,13 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
     }
   }
 
+  /**
+   * @return True if updates are blocked until the memstore is flushed.
+   */
+  boolean isUpdatesBlocked() {
+    return this.memstoreSize.get() > this.blockingMemStoreSize;
+  }
+
   /*
    * @param size
    * @return True if size is over the flush threshold
@@ -1765,7 +2068,8 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
   }
 
   /**
-   * Obtain a lock on the given row.  Blocks until success.
+   * Obtain a lock on the given row.  Blocks until success or until
+   * <code>hbase.rowlock.wait.duration</code> has elapsed.
    *
    * I know it's strange to have two mappings:
    * <pre>
@@ -1786,43 +2090,27 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
    * @param row Name of row to lock.
    * @throws IOException
    * @return The id of the held lock.
+   * @see RowLockManager
    */
   public Integer obtainRowLock(final byte [] row) throws IOException {
+    return internalObtainRowLock(row, true);
+  }
+
+  /*
+   * @param waitForLock if false, return null rather than block when the row
+   * is locked by someone else
+   * @return The id of the held lock, or null
+   */
+  private Integer internalObtainRowLock(final byte [] row,
+      final boolean waitForLock)
+  throws IOException {
     checkRow(row);
     splitsAndClosesLock.readLock().lock();
     try {
       if (this.closed.get()) {
         throw new NotServingRegionException(this + " is closed");
       }
-      synchronized (lockedRows) {
-        while (lockedRows.contains(row)) {
-          try {
-            lockedRows.wait();
-          } catch (InterruptedException ie) {
-            // Empty
-          }
-        }
-        // generate a new lockid. Attempt to insert the new [lockid, row].
-        // if this lockid already exists in the map then revert and retry
-        // We could have first done a lockIds.get, and if it does not exist only
-        // then do a lockIds.put, but the hope is that the lockIds.put will
-        // mostly return null the first time itself because there won't be
-        // too many lockId collisions.
-        byte [] prev = null;
-        Integer lockId = null;
-        do {
-          lockId = new Integer(lockIdGenerator++);
-          prev = lockIds.put(lockId, row);
-          if (prev != null) {
-            lockIds.put(lockId, prev);    // revert old value
-            lockIdGenerator = rand.nextInt(); // generate new start point
-          }
-        } while (prev != null);
-
-        lockedRows.add(row);
-        lockedRows.notifyAll();
-        return lockId;
-      }
+      return this.rowLocks.lockRow(row, waitForLock);
     } finally {
       splitsAndClosesLock.readLock().unlock();
     }
@@ -1834,9 +2122,7 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
    * @return Row that goes with <code>lockid</code>
    */
   byte [] getRowFromLock(final Integer lockid) {
-    synchronized (lockedRows) {
-      return lockIds.get(lockid);
-    }
+    return this.rowLocks.getRow(lockid);
   }
 
   /**
@@ -1844,11 +2130,7 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
    * @param lockid  The lock ID to release.
    */
   void releaseRowLock(final Integer lockid) {
-    synchronized (lockedRows) {
-      byte[] row = lockIds.remove(lockid);
-      lockedRows.remove(row);
-      lockedRows.notifyAll();
-    }
+    this.rowLocks.unlockRow(lockid);
   }
 
   /**
@@ -1857,12 +2139,7 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
    * @return boolean
    */
   private boolean isRowLocked(final Integer lockid) {
-    synchronized (lockedRows) {
-      if (lockIds.get(lockid) != null) {
-        return true;
-      }
-      return false;
-    }
+    return this.rowLocks.isLocked(lockid);
   }
 
   /**
@@ -1886,20 +2163,33 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
   }
 
   private void waitOnRowLocks() {
-    synchronized (lockedRows) {
-      while (!this.lockedRows.isEmpty()) {
-        if (LOG.isDebugEnabled()) {
-          LOG.debug("Waiting on " + this.lockedRows.size() + " row locks");
-        }
-        try {
-          this.lockedRows.wait();
-        } catch (InterruptedException e) {
-          // Catch. Let while test determine loop-end.
-        }
-      }
-    }
+    this.rowLocks.waitOnRowLocks();
+  }
+
+  /**
+   * @return Count of row locks obtained across all regions since last call;
+   * resets the count.
+   */
+  public static long getRowLockOps() {
+    return RowLockManager.getLockOps();
+  }
+
+  /**
+   * @return Count of row lock acquisitions that had to wait since last call;
+   * resets the count.
+   */
+  public static long getContendedRowLockOps() {
+    return RowLockManager.getContendedLockOps();
   }
-  
+
+  /**
+   * @return Total ms spent waiting on contended row locks since last call;
+   * resets the time.
+   */
+  public static long getRowLockWaitTime() {
+    return RowLockManager.getLockWaitTime();
+  }
+
   public void bulkLoadHFile(String hfilePath, byte[] familyName)
   throws IOException {
     splitsAndClosesLock.readLock().lock();
@@ -2738,18 +3028,12 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
   }
 
   public static final long FIXED_OVERHEAD = ClassSize.align(
-      (5 * Bytes.SIZEOF_LONG) + Bytes.SIZEOF_BOOLEAN +
-      (21 * ClassSize.REFERENCE) + ClassSize.OBJECT + Bytes.SIZEOF_INT);
+      (6 * Bytes.SIZEOF_LONG) + Bytes.SIZEOF_BOOLEAN +
+      (21 * ClassSize.REFERENCE) + ClassSize.OBJECT);
 
   public static final long DEEP_OVERHEAD = ClassSize.align(FIXED_OVERHEAD +
-      ClassSize.OBJECT + (2 * ClassSize.ATOMIC_BOOLEAN) +
-      ClassSize.ATOMIC_LONG + ClassSize.ATOMIC_INTEGER +
-
-      // Using TreeMap for TreeSet
-      ClassSize.TREEMAP +
-
-      // Using TreeMap for HashMap
-      ClassSize.TREEMAP +
+      ClassSize.OBJECT + (3 * ClassSize.ATOMIC_BOOLEAN) +
+      ClassSize.ATOMIC_LONG + RowLockManager.DEEP_OVERHEAD +
 
       ClassSize.CONCURRENT_SKIPLISTMAP + ClassSize.CONCURRENT_SKIPLISTMAP_ENTRY +
       ClassSize.align(ClassSize.OBJECT +
@@ -2842,6 +3126,14 @@ public class HRegion implements HConstants, HeapSize { // , Writable{
     return old;
   }
 
+  /**
+   * @return True if a split was asked for ahead of the file size limit.
+   * Unlike {@link #shouldSplit(boolean)}, leaves the request in place.
+   */
+  boolean isSplitRequested() {
+    return this.splitRequest;
+  }
+
   /**
    * Checks every store to see if one has too many
    * store files
@@ -53,7 +53,10 @@ import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.client.ServerConnection;
 import org.apache.hadoop.hbase.client.ServerConnectionManager;
+import org.apache.hadoop.hbase.io.hfile.BlockPrefetcher;
+import org.apache.hadoop.hbase.io.hfile.HFile;
 import org.apache.hadoop.hbase.io.hfile.LruBlockCache;
+import org.apache.hadoop.hbase.io.hfile.OffHeapBlockCache;
 import org.apache.hadoop.hbase.ipc.HBaseRPC;
 import org.apache.hadoop.hbase.ipc.HBaseRPCErrorHandler;
 import org.apache.hadoop.hbase.ipc.HBaseRPCProtocolVersion;
@@ -65,6 +68,7 @@ import org.apache.hadoop.hbase.regionserver.wal.HLog;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.util.FSUtils;
 import org.apache.hadoop.hbase.util.InfoServer;
+import org.apache.hadoop.hbase.util.Pair;
 import org.apache.hadoop.hbase.util.Sleeper;
 import org.apache.hadoop.hbase.util.Threads;
 import org.apache.hadoop.hbase.zookeeper.ZooKeeperWrapper;
@@ -205,9 +209,11 @@ public class HRegionServer implements HConstants, HRegionInterface,
    */
   Chore majorCompactionChecker;
 
-  // HLog and HLog roller.  log is protected rather than private to avoid
-  // eclipse warning when accessed by inner classes
-  protected volatile HLog hlog;
+  // HLogs and HLog roller.  logs are protected rather than private to avoid
+  // eclipse warning when accessed by inner classes.  Regions are spread over
+  // the hbase.regionserver.hlog.count HLogs; see #getLog(HRegionInfo).
+  protected volatile HLog [] hlogs;
+  final int numHLogs;
   LogRoller hlogRoller;
 
   // flag set after we're done setting up server threads (used for testing)
@@ -261,6 +267,7 @@ public class HRegionServer implements HConstants, HRegionInterface,
     // Config'ed params
     this.numRetries =  conf.getInt("hbase.client.retries.number", 2);
     this.threadWakeFrequency = conf.getInt(THREAD_WAKE_FREQUENCY, 10 * 1000);
+    this.numHLogs = Math.max(1, conf.getInt("hbase.regionserver.hlog.count", 1));
     this.msgInterval = conf.getInt("hbase.regionserver.msginterval", 1 * 1000);
 
     sleeper = new Sleeper(this.msgInterval, this.stopRequested);
@@ -571,6 +578,10 @@ public class HRegionServer implements HConstants, HRegionInterface,
     // Send cache a shutdown.
     LruBlockCache c = (LruBlockCache)StoreFile.getBlockCache(this.conf);
     if (c != null) c.shutdown();
+    c = (LruBlockCache)StoreFile.getCompressedBlockCache(this.conf);
+    if (c != null) c.shutdown();
+    BlockPrefetcher prefetcher = StoreFile.getBlockPrefetcher(this.conf);
+    if (prefetcher != null) prefetcher.shutdown();
 
     // Send interrupts to wake up threads if sleeping so they notice shutdown.
     // TODO: Should we check they are alive?  If OOME could have exited already
@@ -584,14 +595,16 @@ public class HRegionServer implements HConstants, HRegionInterface,
     } else if (abortRequested) {
       if (this.fsOk) {
         // Only try to clean up if the file system is available
-        try {
-          if (this.hlog != null) {
-            this.hlog.close();
-            LOG.info("On abort, closed hlog");
+        if (this.hlogs != null) {
+          for (HLog hlog : this.hlogs) {
+            try {
+              hlog.close();
+              LOG.info("On abort, closed hlog");
+            } catch (Throwable e) {
+              LOG.error("Unable to close log in abort",
+                RemoteExceptionHandler.checkThrowable(e));
+            }
           }
-        } catch (Throwable e) {
-          LOG.error("Unable to close log in abort",
-            RemoteExceptionHandler.checkThrowable(e));
         }
         closeAllRegions(); // Don't leave any open file handles
       }
@@ -599,9 +612,7 @@ public class HRegionServer implements HConstants, HRegionInterface,
     } else {
       ArrayList<HRegion> closedRegions = closeAllRegions();
       try {
-        if (this.hlog != null) {
-          hlog.closeAndDelete();
-        }
+        closeAndDeleteHLogs();
       } catch (Throwable e) {
         LOG.error("Close and delete failed",
           RemoteExceptionHandler.checkThrowable(e));
@@ -626,6 +637,15 @@ public class HRegionServer implements HConstants, HRegionInterface,
       LOG.info("stopping server at: " + this.serverInfo.getServerName());
     }
 
+    // Store files are closed; so can be what read them without checksums.
+    if (!killed && this.fs != null) {
+      try {
+        HFile.closeNoChecksumFileSystem(this.fs);
+      } catch (IOException e) {
+        LOG.warn("Failed closing file system read without checksums", e);
+      }
+    }
+
     // Make sure the proxy is down.
     if (this.hbaseMaster != null) {
       HBaseRPC.stopProxy(this.hbaseMaster);
@@ -714,7 +734,7 @@ public class HRegionServer implements HConstants, HRegionInterface,
       this.conf.setBoolean("fs.automatic.close", false);
       this.fs = FileSystem.get(this.conf);
       this.rootDir = new Path(this.conf.get(HConstants.HBASE_DIR));
-      this.hlog = setupHLog();
+      this.hlogs = setupHLogs();
       // Init in here rather than in constructor after thread name has been set
       this.metrics = new RegionServerMetrics();
       startServiceThreads();
@@ -890,28 +910,64 @@ public class HRegionServer implements HConstants, HRegionInterface,
     return isOnline;
   }
 
-  private HLog setupHLog() throws IOException {
+  /*
+   * With a single HLog, it writes straight into the server's log directory.
+   * With more than one, each gets its own subdirectory of the server's log
+   * directory so that they roll independently; HLog#splitLog splits them all.
+   */
+  private HLog [] setupHLogs() throws IOException {
     Path oldLogDir = new Path(rootDir, HREGION_OLDLOGDIR_NAME);
     Path logdir = new Path(rootDir, HLog.getHLogDirectoryName(this.serverInfo));
     if (LOG.isDebugEnabled()) {
-      LOG.debug("Log dir " + logdir);
+      LOG.debug("Log dir " + logdir + ", hlogs=" + this.numHLogs);
     }
     if (fs.exists(logdir)) {
       throw new RegionServerRunningException("region server already " +
         "running at " + this.serverInfo.getServerName() +
         " because logdir " + logdir.toString() + " exists");
     }
-    HLog newlog = instantiateHLog(logdir, oldLogDir);
-    return newlog;
+    HLog [] newlogs = new HLog[this.numHLogs];
+    if (this.numHLogs == 1) {
+      newlogs[0] = instantiateHLog(logdir, oldLogDir, 0);
+    } else {
+      for (int i = 0; i < this.numHLogs; i++) {
+        newlogs[i] = instantiateHLog(HLog.getHLogSubdirectory(logdir, i),
+          oldLogDir, i);
+      }
+    }
+    return newlogs;
   }
 
   // instantiate
-  protected HLog instantiateHLog(Path logdir, Path oldLogDir) throws IOException {
-    HLog newlog = new HLog(fs, logdir, oldLogDir, conf, hlogRoller, null,
-        serverInfo.getServerAddress().toString());
+  protected HLog instantiateHLog(Path logdir, Path oldLogDir, int index)
+  throws IOException {
+    String prefix = serverInfo.getServerAddress().toString();
+    if (this.numHLogs > 1) {
+      // Keep file names unique once archived to the shared old log dir.
+      prefix = prefix + "." + index;
+    }
+    HLog newlog = new HLog(fs, logdir, oldLogDir, conf,
+        hlogRoller.getLogRollListener(index), null, prefix);
     return newlog;
   }
 
+  /*
+   * Close and delete all HLogs, and the server's log directory.
+   */
+  private void closeAndDeleteHLogs() throws IOException {
+    if (this.hlogs == null) {
+      return;
+    }
+    for (HLog hlog : this.hlogs) {
+      hlog.closeAndDelete();
+    }
+    if (this.numHLogs > 1) {
+      // The HLogs deleted their subdirectories; remove the now empty parent.
+      fs.delete(new Path(rootDir,
+        HLog.getHLogDirectoryName(this.serverInfo)), false);
+    }
+  }
+
 
   protected LogRoller getLogRoller() {
     return hlogRoller;
@@ -938,6 +994,7 @@ public class HRegionServer implements HConstants, HRegionInterface,
     int storefiles = 0;
     long memstoreSize = 0;
     long storefileIndexSize = 0;
+    Map<String, long []> blooms = new TreeMap<String, long []>();
     synchronized (this.onlineRegions) {
       for (Map.Entry<Integer, HRegion> e: this.onlineRegions.entrySet()) {
         HRegion r = e.getValue();
@@ -948,6 +1005,15 @@ public class HRegionServer implements HConstants, HRegionInterface,
             Store store = ee.getValue();
             storefiles += store.getStorefilesCount();
             storefileIndexSize += store.getStorefilesIndexSize();
+            String family = store.getFamily().getNameAsString();
+            long [] bloom = blooms.get(family);
+            if (bloom == null) {
+              bloom = new long[3];
+              blooms.put(family, bloom);
+            }
+            bloom[0] += store.getBloomChecks();
+            bloom[1] += store.getBloomFilesSkipped();
+            bloom[2] += store.getBloomFalsePositives();
           }
         }
       }
@@ -958,6 +1024,18 @@ public class HRegionServer implements HConstants, HRegionInterface,
     this.metrics.storefileIndexSizeMB.set((int)(storefileIndexSize/(1024*1024)));
     this.metrics.compactionQueueSize.set(compactSplitThread.
       getCompactionQueueSize());
+    this.metrics.largeCompactionQueueSize.set(compactSplitThread.
+      getLargeCompactionQueueSize());
+    this.metrics.smallCompactionQueueSize.set(compactSplitThread.
+      getSmallCompactionQueueSize());
+    for (Map.Entry<String, long []> e: blooms.entrySet()) {
+      long [] bloom = e.getValue();
+      this.metrics.incrementBloomMetrics(e.getKey(), bloom[0], bloom[1],
+        bloom[2]);
+    }
+    this.metrics.bloomCacheSize.set(StoreFile.getBloomCacheSize());
+    this.metrics.memstoreChunks.set(MemStoreLAB.getChunkCount());
+    this.metrics.memstoreWastedBytes.set(MemStoreLAB.getTotalWastedBytes());
 
     LruBlockCache lruBlockCache = (LruBlockCache)StoreFile.getBlockCache(conf);
     if (lruBlockCache != null) {
@@ -967,6 +1045,26 @@ public class HRegionServer implements HConstants, HRegionInterface,
       double ratio = lruBlockCache.getStats().getHitRatio();
       int percent = (int) (ratio * 100);
       this.metrics.blockCacheHitRatio.set(percent);
+      if (lruBlockCache.getVictimCache() instanceof OffHeapBlockCache) {
+        OffHeapBlockCache offHeap =
+          (OffHeapBlockCache)lruBlockCache.getVictimCache();
+        this.metrics.offHeapCacheCount.set(offHeap.size());
+        this.metrics.offHeapCacheFree.set(offHeap.getFreeSize());
+        this.metrics.offHeapCacheSize.set(offHeap.getCurrentSize());
+        this.metrics.offHeapCacheAccessCount.set(
+          offHeap.getStats().getRequestCount());
+        this.metrics.offHeapCacheEvictedCount.set(offHeap.getEvictedCount());
+        ratio = offHeap.getStats().getHitRatio();
+        this.metrics.offHeapCacheHitRatio.set((int) (ratio * 100));
+      }
+    }
+    LruBlockCache compressedCache =
+      (LruBlockCache)StoreFile.getCompressedBlockCache(conf);
+    if (compressedCache != null) {
+      this.metrics.compressedCacheCount.set(compressedCache.size());
+      this.metrics.compressedCacheSize.set(compressedCache.getCurrentSize());
+      double ratio = compressedCache.getStats().getHitRatio();
+      this.metrics.compressedCacheHitRatio.set((int) (ratio * 100));
     }
   }
 
@@ -1095,9 +1193,32 @@ public class HRegionServer implements HConstants, HRegionInterface,
     }
   }
 
-  /** @return the HLog */
+  /** @return the first HLog; the one catalog regions write to */
   public HLog getLog() {
-    return this.hlog;
+    return this.hlogs == null? null: this.hlogs[0];
+  }
+
+  /**
+   * @param regionInfo
+   * @return the HLog that <code>regionInfo</code> writes to.  Catalog regions
+   * go to the first HLog; user regions are spread over all of them by hash
+   * of their encoded name.
+   */
+  public HLog getLog(final HRegionInfo regionInfo) {
+    HLog [] logs = this.hlogs;
+    if (logs == null) {
+      return null;
+    }
+    if (logs.length == 1 || regionInfo.isMetaRegion()) {
+      return logs[0];
+    }
+    int hash = regionInfo.getEncodedName().hashCode() & Integer.MAX_VALUE;
+    return logs[hash % logs.length];
+  }
+
+  /** @return all HLogs of this server */
+  public HLog [] getLogs() {
+    return this.hlogs;
   }
 
   /**
@@ -1428,7 +1549,7 @@ public class HRegionServer implements HConstants, HRegionInterface,
       }
       this.lock.writeLock().lock();
       try {
-        this.hlog.setSequenceNumber(region.getMinSequenceId());
+        getLog(regionInfo).setSequenceNumber(region.getMinSequenceId());
         this.onlineRegions.put(mapKey, region);
       } finally {
         this.lock.writeLock().unlock();
@@ -1440,7 +1561,7 @@ public class HRegionServer implements HConstants, HRegionInterface,
   protected HRegion instantiateRegion(final HRegionInfo regionInfo)
       throws IOException {
     HRegion r = HRegion.newHRegion(HTableDescriptor.getTableDir(rootDir, regionInfo
-        .getTableDesc().getName()), this.hlog, this.fs, conf, regionInfo,
+        .getTableDesc().getName()), getLog(regionInfo), this.fs, conf, regionInfo,
         this.cacheFlusher);
     r.initialize(null,  new Progressable() {
       public void progress() {
@@ -1652,19 +1773,24 @@ public class HRegionServer implements HConstants, HRegionInterface,
     int i = 0;
     checkOpen();
     HRegion region = null;
-    boolean writeToWAL = true;
     try {
       region = getRegion(regionName);
       if (!region.getRegionInfo().isMetaTable()) {
         this.cacheFlusher.reclaimMemStoreMemory();
       }
-      for (i = 0; i < puts.length; i++) {
+      @SuppressWarnings("unchecked")
+      Pair<Put, Integer> [] putsAndLocks = new Pair[puts.length];
+      for (int j = 0; j < puts.length; j++) {
         this.requestCount.incrementAndGet();
-        Integer lock = getLockFromId(puts[i].getLockId());
-        writeToWAL &= puts[i].getWriteToWAL();
-        region.put(puts[i], lock);
+        Integer lock = getLockFromId(puts[j].getLockId());
+        putsAndLocks[j] = new Pair<Put, Integer>(puts[j], lock);
+      }
+      // Apply as one batch: a single WAL sync per run of locked rows.
+      i = region.put(putsAndLocks);
+      if (i < puts.length) {
+        LOG.debug("Batch puts stopped at index=" + i + " of " + puts.length);
+        return i;
       }
-
     } catch (WrongRegionException ex) {
       LOG.debug("Batch puts: " + i, ex);
       return i;
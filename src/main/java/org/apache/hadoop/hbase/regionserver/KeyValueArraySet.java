@@ -0,0 +1,314 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import org.apache.hadoop.hbase.KeyValue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * An immutable {@link java.util.Set} of {@link KeyValue}s kept in a sorted
+ * array.  Used for MemStore snapshots: once made a snapshot does not change,
+ * so it has no need for the nodes of a
+ * {@link java.util.concurrent.ConcurrentSkipListMap}, about a hundred bytes
+ * a KeyValue, and it is read in order by the flush, which here goes down an
+ * array instead of chasing pointers.  Lookups are binary searches.
+ * <p>
+ * Head, tail and sub sets are views sharing the array.  Their iterators do
+ * not support remove; nothing else changing the set is supported either.
+ * The descending set is a copy.
+ */
+class KeyValueArraySet implements NavigableSet<KeyValue> {
+  private final KeyValue.KVComparator comparator;
+  private final KeyValue [] kvs;
+  // Range of the array in this set, from inclusive, to exclusive
+  private final int from;
+  private final int to;
+
+  /**
+   * @param c Comparator the KeyValues are sorted by
+   * @param set KeyValues to copy, sorted by <code>c</code>
+   */
+  KeyValueArraySet(final KeyValue.KVComparator c,
+      final Collection<KeyValue> set) {
+    // Iterated rather than sized up front, as the set may be concurrent.
+    List<KeyValue> list = new ArrayList<KeyValue>();
+    for (KeyValue kv: set) {
+      list.add(kv);
+    }
+    this.comparator = c;
+    this.kvs = list.toArray(new KeyValue[list.size()]);
+    this.from = 0;
+    this.to = this.kvs.length;
+  }
+
+  private KeyValueArraySet(final KeyValueArraySet set, final int from,
+      final int to) {
+    this.comparator = set.comparator;
+    this.kvs = set.kvs;
+    this.from = from;
+    this.to = Math.max(from, to);
+  }
+
+  /*
+   * @return Index of the first KeyValue in this set at or after
+   * <code>kv</code>, or <code>to</code> if none
+   */
+  private int ceilingIndex(final KeyValue kv) {
+    int low = this.from;
+    int high = this.to;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (this.comparator.compare(this.kvs[mid], kv) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /*
+   * @return Index of the first KeyValue in this set after <code>kv</code>,
+   * or <code>to</code> if none
+   */
+  private int higherIndex(final KeyValue kv) {
+    int low = this.from;
+    int high = this.to;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (this.comparator.compare(this.kvs[mid], kv) <= 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private KeyValue at(final int index) {
+    return index >= this.from && index < this.to? this.kvs[index]: null;
+  }
+
+  public KeyValue ceiling(KeyValue e) {
+    return at(ceilingIndex(e));
+  }
+
+  public KeyValue higher(KeyValue e) {
+    return at(higherIndex(e));
+  }
+
+  public KeyValue floor(KeyValue e) {
+    return at(higherIndex(e) - 1);
+  }
+
+  public KeyValue lower(KeyValue e) {
+    return at(ceilingIndex(e) - 1);
+  }
+
+  public Iterator<KeyValue> iterator() {
+    return new Iterator<KeyValue>() {
+      private int next = from;
+
+      public boolean hasNext() {
+        return this.next < to;
+      }
+
+      public KeyValue next() {
+        if (this.next >= to) {
+          throw new NoSuchElementException();
+        }
+        return kvs[this.next++];
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException("Immutable");
+      }
+    };
+  }
+
+  public Iterator<KeyValue> descendingIterator() {
+    return new Iterator<KeyValue>() {
+      private int next = to - 1;
+
+      public boolean hasNext() {
+        return this.next >= from;
+      }
+
+      public KeyValue next() {
+        if (this.next < from) {
+          throw new NoSuchElementException();
+        }
+        return kvs[this.next--];
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException("Immutable");
+      }
+    };
+  }
+
+  /**
+   * @return A copy of this set in reverse order; unlike the other views it
+   * does not share the array, and changing it does not change this set
+   */
+  public NavigableSet<KeyValue> descendingSet() {
+    NavigableSet<KeyValue> set =
+      new TreeSet<KeyValue>(Collections.reverseOrder(this.comparator));
+    for (int i = this.from; i < this.to; i++) {
+      set.add(this.kvs[i]);
+    }
+    return set;
+  }
+
+  public SortedSet<KeyValue> headSet(final KeyValue toElement) {
+    return headSet(toElement, false);
+  }
+
+  public NavigableSet<KeyValue> headSet(final KeyValue toElement,
+      boolean inclusive) {
+    return new KeyValueArraySet(this, this.from,
+      inclusive? higherIndex(toElement): ceilingIndex(toElement));
+  }
+
+  public SortedSet<KeyValue> subSet(KeyValue fromElement, KeyValue toElement) {
+    return subSet(fromElement, true, toElement, false);
+  }
+
+  public NavigableSet<KeyValue> subSet(KeyValue fromElement,
+      boolean fromInclusive, KeyValue toElement, boolean toInclusive) {
+    return new KeyValueArraySet(this,
+      fromInclusive? ceilingIndex(fromElement): higherIndex(fromElement),
+      toInclusive? higherIndex(toElement): ceilingIndex(toElement));
+  }
+
+  public SortedSet<KeyValue> tailSet(KeyValue fromElement) {
+    return tailSet(fromElement, true);
+  }
+
+  public NavigableSet<KeyValue> tailSet(KeyValue fromElement, boolean inclusive) {
+    return new KeyValueArraySet(this,
+      inclusive? ceilingIndex(fromElement): higherIndex(fromElement), this.to);
+  }
+
+  public Comparator<? super KeyValue> comparator() {
+    return this.comparator;
+  }
+
+  public KeyValue first() {
+    if (isEmpty()) {
+      throw new NoSuchElementException();
+    }
+    return this.kvs[this.from];
+  }
+
+  public KeyValue last() {
+    if (isEmpty()) {
+      throw new NoSuchElementException();
+    }
+    return this.kvs[this.to - 1];
+  }
+
+  public boolean contains(Object o) {
+    if (!(o instanceof KeyValue)) {
+      return false;
+    }
+    KeyValue kv = (KeyValue)o;
+    int index = ceilingIndex(kv);
+    return index < this.to && this.comparator.compare(this.kvs[index], kv) == 0;
+  }
+
+  public boolean containsAll(Collection<?> c) {
+    for (Object o: c) {
+      if (!contains(o)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public boolean isEmpty() {
+    return this.from >= this.to;
+  }
+
+  public int size() {
+    return this.to - this.from;
+  }
+
+  public Object[] toArray() {
+    return Arrays.copyOfRange(this.kvs, this.from, this.to, Object[].class);
+  }
+
+  @SuppressWarnings("unchecked")
+  public <T> T[] toArray(T[] a) {
+    int size = size();
+    if (a.length < size) {
+      return (T[])Arrays.copyOfRange(this.kvs, this.from, this.to,
+        a.getClass());
+    }
+    System.arraycopy(this.kvs, this.from, a, 0, size);
+    if (a.length > size) {
+      a[size] = null;
+    }
+    return a;
+  }
+
+  public KeyValue pollFirst() {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public KeyValue pollLast() {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public boolean add(KeyValue e) {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public boolean addAll(Collection<? extends KeyValue> c) {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public void clear() {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public boolean remove(Object o) {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public boolean removeAll(Collection<?> c) {
+    throw new UnsupportedOperationException("Immutable");
+  }
+
+  public boolean retainAll(Collection<?> c) {
+    throw new UnsupportedOperationException("Immutable");
+  }
+}
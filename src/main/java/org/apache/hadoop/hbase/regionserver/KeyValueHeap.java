@@ -50,8 +50,10 @@ public class KeyValueHeap implements KeyValueScanner, InternalScanner {
    * KeyValueScanners.
    * @param scanners
    * @param comparator
+   * @throws IOException
    */
-  public KeyValueHeap(List<? extends KeyValueScanner> scanners, KVComparator comparator) {
+  public KeyValueHeap(List<? extends KeyValueScanner> scanners, KVComparator comparator)
+  throws IOException {
     this.comparator = new KVScannerComparator(comparator);
     this.heap = new PriorityQueue<KeyValueScanner>(scanners.size(),
         this.comparator);
@@ -62,7 +64,7 @@ public class KeyValueHeap implements KeyValueScanner, InternalScanner {
         scanner.close();
       }
     }
-    this.current = heap.poll();
+    this.current = pollRealKV();
   }
 
   public KeyValue peek() {
@@ -80,13 +82,13 @@ public class KeyValueHeap implements KeyValueScanner, InternalScanner {
     KeyValue kvNext = this.current.peek();
     if(kvNext == null) {
       this.current.close();
-      this.current = this.heap.poll();
+      this.current = pollRealKV();
     } else {
       KeyValueScanner topScanner = this.heap.peek();
       if(topScanner == null ||
           this.comparator.compare(kvNext, topScanner.peek()) > 0) {
         this.heap.add(this.current);
-        this.current = this.heap.poll();
+        this.current = pollRealKV();
       }
     }
     return kvReturn;
@@ -112,7 +114,7 @@ public class KeyValueHeap implements KeyValueScanner, InternalScanner {
     } else {
       this.heap.add(this.current);
     }
-    this.current = this.heap.poll();
+    this.current = pollRealKV();
     return (this.current != null);
   }
 
@@ -159,9 +161,26 @@ public class KeyValueHeap implements KeyValueScanner, InternalScanner {
     }
   }
 
+  public boolean requestSeek(KeyValue key) throws IOException {
+    return seek(key);
+  }
+
+  /**
+   * Always true; the heap enforces the seeks of its own scanners once they
+   * reach its top.
+   */
+  public boolean isRealSeekDone() {
+    return true;
+  }
+
+  public void enforceSeek() throws IOException {
+    // Never put off.
+  }
+
   public void close() {
     if(this.current != null) {
       this.current.close();
+      this.current = null;
     }
     KeyValueScanner scanner;
     while((scanner = this.heap.poll()) != null) {
@@ -191,11 +210,13 @@ public class KeyValueHeap implements KeyValueScanner, InternalScanner {
     while((scanner = this.heap.poll()) != null) {
       KeyValue topKey = scanner.peek();
       if(comparator.getComparator().compare(seekKey, topKey) <= 0) { // Correct?
-        // Top KeyValue is at-or-after Seek KeyValue
-        this.current = scanner;
-        return true;
+        // Top KeyValue is at-or-after Seek KeyValue.  It may be the fake key
+        // of a scanner that has yet to seek.
+        this.heap.add(scanner);
+        this.current = pollRealKV();
+        return this.current != null;
       }
-      if(!scanner.seek(seekKey)) {
+      if(!scanner.requestSeek(seekKey)) {
         scanner.close();
       } else {
         this.heap.add(scanner);
@@ -205,6 +226,34 @@ public class KeyValueHeap implements KeyValueScanner, InternalScanner {
     return false;
   }
 
+  /**
+   * Polls the heap for the scanner on the smallest key.  Scanners whose seek
+   * was put off, see {@link KeyValueScanner#requestSeek(KeyValue)}, are on a
+   * fake key; they seek once they reach the top, and go back in the
+   * heap if their real key is not the smallest any more.
+   * @return The scanner on the smallest real key, or null if none is left
+   * @throws IOException
+   */
+  private KeyValueScanner pollRealKV() throws IOException {
+    KeyValueScanner scanner = this.heap.poll();
+    while (scanner != null && !scanner.isRealSeekDone()) {
+      scanner.enforceSeek();
+      KeyValue kv = scanner.peek();
+      if (kv == null) {
+        scanner.close();
+      } else {
+        KeyValueScanner topScanner = this.heap.peek();
+        if (topScanner == null ||
+            this.comparator.compare(kv, topScanner.peek()) <= 0) {
+          return scanner;
+        }
+        this.heap.add(scanner);
+      }
+      scanner = this.heap.poll();
+    }
+    return scanner;
+  }
+
   /**
    * @return the current Heap
    */
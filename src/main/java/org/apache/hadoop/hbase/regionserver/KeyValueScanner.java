@@ -46,6 +46,29 @@ public interface KeyValueScanner {
    */
   public boolean seek(KeyValue key) throws IOException;
 
+  /**
+   * Seek the scanner at or after the specified KeyValue, possibly putting
+   * the seek off until {@link #enforceSeek()}.  Until then the scanner may
+   * be on a fake key that sorts before anything it has at or after
+   * <code>key</code>.  Scanners with nothing to gain just seek.
+   * @param key seek value
+   * @return false if the scanner is known to be done
+   * @throws IOException
+   */
+  public boolean requestSeek(KeyValue key) throws IOException;
+
+  /**
+   * @return False if the scanner is on a fake key, its seek put off by
+   * {@link #requestSeek(KeyValue)}
+   */
+  public boolean isRealSeekDone();
+
+  /**
+   * Does the seek put off by {@link #requestSeek(KeyValue)}, if any.
+   * @throws IOException
+   */
+  public void enforceSeek() throws IOException;
+
   /**
    * Close the KeyValue scanner.
    */
@@ -23,15 +23,20 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hbase.RemoteExceptionHandler;
 import org.apache.hadoop.hbase.regionserver.wal.FailedLogCloseException;
+import org.apache.hadoop.hbase.regionserver.wal.HLog;
 import org.apache.hadoop.hbase.regionserver.wal.LogRollListener;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import java.io.IOException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Runs periodically to determine if the HLog should be rolled.
+ * Runs periodically to determine if the HLogs should be rolled.  Each HLog
+ * of the region server is handed its own {@link LogRollListener} so that a
+ * roll requested by one HLog only rolls that HLog; the periodic roll rolls
+ * them all.
  *
  * NOTE: This class extends Thread rather than Chore because the sleep time
  * can be interrupted when there is something to do, rather than the Chore
@@ -41,6 +46,8 @@ class LogRoller extends Thread implements LogRollListener {
   static final Log LOG = LogFactory.getLog(LogRoller.class);
   private final ReentrantLock rollLock = new ReentrantLock();
   private final AtomicBoolean rollLog = new AtomicBoolean(false);
+  // Per HLog roll request flags, indexed as HRegionServer#getLogs.
+  private final AtomicIntegerArray rollRequested;
   private final HRegionServer server;
   private volatile long lastrolltime = System.currentTimeMillis();
   // Period to roll log.
@@ -52,6 +59,20 @@ class LogRoller extends Thread implements LogRollListener {
     this.server = server;
     this.rollperiod =
       this.server.conf.getLong("hbase.regionserver.logroll.period", 3600000);
+    this.rollRequested = new AtomicIntegerArray(server.numHLogs);
+  }
+
+  /**
+   * @param index Index of the HLog in {@link HRegionServer#getLogs()}
+   * @return Listener for the HLog at <code>index</code>; it asks for a roll of
+   * that HLog only.
+   */
+  LogRollListener getLogRollListener(final int index) {
+    return new LogRollListener() {
+      public void logRollRequested() {
+        requestRoll(index);
+      }
+    };
   }
 
   @Override
@@ -78,10 +99,21 @@ class LogRoller extends Thread implements LogRollListener {
       }
       rollLock.lock(); // FindBugs UL_UNRELEASED_LOCK_EXCEPTION_PATH
       try {
-        this.lastrolltime = now;
-        byte [][] regionsToFlush = server.getLog().rollWriter();
-        if (regionsToFlush != null) {
-          for (byte [] r: regionsToFlush) scheduleFlush(r);
+        if (periodic) {
+          this.lastrolltime = now;
+        }
+        // Clear the flag before rolling so a request that comes in while we
+        // roll is not lost.
+        rollLog.set(false);
+        HLog [] logs = server.getLogs();
+        for (int i = 0; i < logs.length; i++) {
+          if (rollRequested.getAndSet(i, 0) == 0 && !periodic) {
+            continue;
+          }
+          byte [][] regionsToFlush = logs[i].rollWriter();
+          if (regionsToFlush != null) {
+            for (byte [] r: regionsToFlush) scheduleFlush(r);
+          }
         }
       } catch (FailedLogCloseException e) {
         LOG.fatal("Forcing server shutdown", e);
@@ -101,7 +133,6 @@ class LogRoller extends Thread implements LogRollListener {
         LOG.error("Log rolling failed", ex);
         server.checkFileSystem();
       } finally {
-        rollLog.set(false);
         rollLock.unlock();
       }
     }
@@ -115,7 +146,7 @@ class LogRoller extends Thread implements LogRollListener {
     if (r != null) {
       requester = this.server.getFlushRequester();
       if (requester != null) {
-        requester.request(r);
+        requester.requestLogFlush(r);
         scheduled = true;
       }
     }
@@ -125,7 +156,22 @@ class LogRoller extends Thread implements LogRollListener {
     }
   }
 
+  /**
+   * Request a roll of every HLog.
+   */
   public void logRollRequested() {
+    for (int i = 0; i < rollRequested.length(); i++) {
+      rollRequested.set(i, 1);
+    }
+    wakeUp();
+  }
+
+  private void requestRoll(final int index) {
+    rollRequested.set(index, 1);
+    wakeUp();
+  }
+
+  private void wakeUp() {
     synchronized (rollLog) {
       rollLog.set(true);
       rollLog.notifyAll();
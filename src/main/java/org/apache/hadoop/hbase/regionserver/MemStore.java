@@ -37,6 +37,8 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.io.HeapSize;
@@ -49,7 +51,8 @@ import org.apache.hadoop.hbase.util.ClassSize;
  * are {@link KeyValue}s.  When asked to flush, current memstore is moved
  * to snapshot and is cleared.  We continue to serve edits out of new memstore
  * and backing snapshot until flusher reports in that the flush succeeded. At
- * this point we let the snapshot go.
+ * this point we let the snapshot go.  The memstore of a family with in-memory
+ * compaction on is also compacted as it grows, see {@link #compact(int, long)}.
  * TODO: Adjust size of the memstore when we remove items because they have
  * been deleted.
  * TODO: With new KVSLS, need to make sure we update HeapSize with difference
@@ -58,6 +61,23 @@ import org.apache.hadoop.hbase.util.ClassSize;
 public class MemStore implements HeapSize {
   private static final Log LOG = LogFactory.getLog(MemStore.class);
 
+  /**
+   * Configuration key: copy the KeyValues taken in into chunks of a
+   * {@link MemStoreLAB} owned by the MemStore.
+   */
+  static final String USEMSLAB_KEY = "hbase.hregion.memstore.mslab.enabled";
+  static final boolean USEMSLAB_DEFAULT = false;
+
+  /**
+   * Configuration key: heap size the memstore of a family with in-memory
+   * compaction grows by before it is compacted again.
+   */
+  static final String COMPACTION_SIZE_KEY =
+    "hbase.hregion.memstore.inmemory.compaction.size";
+  static final long COMPACTION_SIZE_DEFAULT = 16 * 1024 * 1024;
+
+  private final Configuration conf;
+
   // MemStore.  Use a KeyValueSkipListSet rather than SkipListSet because of the
   // better semantics.  The Map will overwrite if passed a key it already had
   // whereas the Set will not add new KV if key is same though value might be
@@ -65,8 +85,9 @@ public class MemStore implements HeapSize {
   // reference passed.
   volatile KeyValueSkipListSet kvset;
 
-  // Snapshot of memstore.  Made for flusher.
-  volatile KeyValueSkipListSet snapshot;
+  // Snapshot of memstore.  Made for flusher.  Flattened into a
+  // KeyValueArraySet by the flusher, see flattenSnapshot.
+  volatile NavigableSet<KeyValue> snapshot;
 
   final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
@@ -81,6 +102,22 @@ public class MemStore implements HeapSize {
   // Used to track own heapSize
   final AtomicLong size;
 
+  // Allocators of the chunks the KeyValues of the memstore and of the
+  // snapshot are in, if enabled.
+  volatile MemStoreLAB allocator;
+  volatile MemStoreLAB snapshotAllocator;
+
+  // Updates taken in while the memstore is compacted, to add to the
+  // compacted memstore.  Null if no compaction is under way.
+  volatile KeyValueSkipListSet compactionUpdates = null;
+
+  // Configuration of memstores made without one.
+  private static Configuration defaultConf = null;
+
+  // Heap size of the memstore after it was last compacted or snapshotted.
+  private volatile long sizeAtCompaction;
+  private final long compactionSize;
+
   /**
    * Default constructor. Used for tests.
    */
@@ -89,17 +126,52 @@ public class MemStore implements HeapSize {
   }
 
   /**
-   * Constructor.
+   * Constructor, with the default configuration.
    * @param c Comparator
    */
   public MemStore(final KeyValue.KVComparator c) {
+    this(getDefaultConf(), c);
+  }
+
+  /**
+   * Constructor.
+   * @param conf Configuration
+   * @param c Comparator
+   */
+  public MemStore(final Configuration conf, final KeyValue.KVComparator c) {
+    this.conf = conf;
     this.comparator = c;
     this.comparatorIgnoreTimestamp =
       this.comparator.getComparatorIgnoringTimestamps();
     this.comparatorIgnoreType = this.comparator.getComparatorIgnoringType();
     this.kvset = new KeyValueSkipListSet(c);
-    this.snapshot = new KeyValueSkipListSet(c);
+    this.snapshot = emptySnapshot();
     this.size = new AtomicLong(DEEP_OVERHEAD);
+    this.allocator = newAllocator();
+    this.sizeAtCompaction = DEEP_OVERHEAD;
+    this.compactionSize = conf.getLong(COMPACTION_SIZE_KEY,
+      COMPACTION_SIZE_DEFAULT);
+  }
+
+  /*
+   * @return Configuration shared by the memstores made without one.  Only
+   * read, so made once rather than per memstore.
+   */
+  private static synchronized Configuration getDefaultConf() {
+    if (defaultConf == null) {
+      defaultConf = HBaseConfiguration.create();
+    }
+    return defaultConf;
+  }
+
+  private NavigableSet<KeyValue> emptySnapshot() {
+    return new KeyValueArraySet(this.comparator,
+      Collections.<KeyValue>emptyList());
+  }
+
+  private MemStoreLAB newAllocator() {
+    return this.conf.getBoolean(USEMSLAB_KEY, USEMSLAB_DEFAULT)?
+      new MemStoreLAB(this.conf): null;
   }
 
   void dump() {
@@ -128,8 +200,13 @@ public class MemStore implements HeapSize {
         if (!this.kvset.isEmpty()) {
           this.snapshot = this.kvset;
           this.kvset = new KeyValueSkipListSet(this.comparator);
+          this.snapshotAllocator = this.allocator;
+          this.allocator = newAllocator();
+          // A compaction under way is dropped.
+          this.compactionUpdates = null;
           // Reset heap to not include any keys
           this.size.set(DEEP_OVERHEAD);
+          this.sizeAtCompaction = DEEP_OVERHEAD;
         }
       }
     } finally {
@@ -137,6 +214,34 @@ public class MemStore implements HeapSize {
     }
   }
 
+  /**
+   * Copy the snapshot out of its skip list into a sorted array.  Nothing is
+   * added to a snapshot once taken.  The copy is linear in the size of the
+   * snapshot, so the flusher makes it after the region lets updates go on
+   * again, not in {@link #snapshot()}.  Scanners opened on the skip list keep
+   * reading it.
+   * @param ss The snapshot, as got from {@link #getSnapshot()}
+   * @return The snapshot to flush and then pass to
+   * {@link #clearSnapshot(SortedSet)}: the array, or <code>ss</code> if it
+   * is not the current snapshot anymore or needs no flattening.
+   */
+  NavigableSet<KeyValue> flattenSnapshot(final NavigableSet<KeyValue> ss) {
+    if (ss.isEmpty() || ss instanceof KeyValueArraySet) {
+      return ss;
+    }
+    NavigableSet<KeyValue> flat = new KeyValueArraySet(this.comparator, ss);
+    this.lock.writeLock().lock();
+    try {
+      if (this.snapshot != ss) {
+        return ss;
+      }
+      this.snapshot = flat;
+      return flat;
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+  }
+
   /**
    * Return the current snapshot.
    * Called by flusher to get current snapshot made by a previous
@@ -145,7 +250,7 @@ public class MemStore implements HeapSize {
    * @see {@link #snapshot()}
    * @see {@link #clearSnapshot(SortedSet<KeyValue>)}
    */
-  KeyValueSkipListSet getSnapshot() {
+  NavigableSet<KeyValue> getSnapshot() {
     return this.snapshot;
   }
 
@@ -166,7 +271,12 @@ public class MemStore implements HeapSize {
       // OK. Passed in snapshot is same as current snapshot.  If not-empty,
       // create a new snapshot and let the old one go.
       if (!ss.isEmpty()) {
-        this.snapshot = new KeyValueSkipListSet(this.comparator);
+        this.snapshot = emptySnapshot();
+      }
+      // Its chunks go with it.
+      if (this.snapshotAllocator != null) {
+        this.snapshotAllocator.close();
+        this.snapshotAllocator = null;
       }
     } finally {
       this.lock.writeLock().unlock();
@@ -182,7 +292,9 @@ public class MemStore implements HeapSize {
     long s = -1;
     this.lock.readLock().lock();
     try {
-      s = heapSizeChange(kv, this.kvset.add(kv));
+      KeyValue toAdd = copyToAllocator(kv);
+      s = heapSizeChange(toAdd, this.kvset.add(toAdd));
+      addToCompactionUpdates(toAdd);
       this.size.addAndGet(s);
     } finally {
       this.lock.readLock().unlock();
@@ -200,14 +312,185 @@ public class MemStore implements HeapSize {
     this.lock.readLock().lock();
 
     try {
-      s += heapSizeChange(delete, this.kvset.add(delete));
+      KeyValue toAdd = copyToAllocator(delete);
+      s += heapSizeChange(toAdd, this.kvset.add(toAdd));
+      addToCompactionUpdates(toAdd);
+      this.size.addAndGet(s);
     } finally {
       this.lock.readLock().unlock();
     }
-    this.size.addAndGet(s);
     return s;
   }
 
+  /*
+   * Call holding the read lock.
+   * @param kv KeyValue just added to the memstore
+   */
+  private void addToCompactionUpdates(final KeyValue kv) {
+    KeyValueSkipListSet updates = this.compactionUpdates;
+    if (updates != null) {
+      updates.add(kv);
+    }
+  }
+
+  /**
+   * @return True if the memstore has grown by
+   * {@link #COMPACTION_SIZE_KEY} since it was last compacted, and is not
+   * being compacted.
+   */
+  boolean needsCompaction() {
+    return this.compactionUpdates == null &&
+      heapSize() - this.sizeAtCompaction >= this.compactionSize;
+  }
+
+  /**
+   * Compacts the memstore in memory.  Copies it, leaving out puts masked by
+   * delete markers and versions of a column past <code>maxVersions</code>,
+   * and makes the copy the memstore.  Delete markers are kept; they may mask
+   * cells of store files.  Only KeyValues visible at <code>readPoint</code>
+   * mask others, so no scanner opened after the compaction misses a cell it
+   * could see before.  Scanners already open keep reading the memstore they
+   * were opened on.
+   * <p>
+   * Updates go on while the copy is made; they are added to the copy before
+   * it replaces the memstore.  If a snapshot is taken meanwhile, the
+   * compaction is dropped.
+   * <p>
+   * With MSLAB on, the KeyValues kept are copied into the chunks of a new
+   * allocator, which replaces the old one; cells dropped would otherwise hold
+   * on to their chunks until the flush, and the heap freed would not be.
+   * @param maxVersions Versions of a column to keep
+   * @param readPoint Read point of the region
+   * @return Heap size freed
+   */
+  long compact(final int maxVersions, final long readPoint) {
+    KeyValueSkipListSet active = null;
+    KeyValueSkipListSet updates = null;
+    this.lock.writeLock().lock();
+    try {
+      if (this.compactionUpdates != null || this.kvset.isEmpty()) {
+        return 0;
+      }
+      active = this.kvset;
+      updates = new KeyValueSkipListSet(this.comparator);
+      this.compactionUpdates = updates;
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+    KeyValueSkipListSet compacted = new KeyValueSkipListSet(this.comparator);
+    MemStoreLAB compactedAllocator =
+      this.allocator == null? null: newAllocator();
+    long newSize = DEEP_OVERHEAD + copyCompacted(active, compacted,
+      compactedAllocator, maxVersions, readPoint);
+    boolean installed = false;
+    this.lock.writeLock().lock();
+    try {
+      // A snapshot drops this compaction, and another may have started on
+      // the new memstore since; its updates are not ours to take.
+      if (this.compactionUpdates == updates) {
+        this.compactionUpdates = null;
+      }
+      if (this.kvset != active) {
+        // Snapshotted meanwhile.
+        return 0;
+      }
+      for (KeyValue kv: updates) {
+        if (compactedAllocator != null) {
+          kv = compactedAllocator.copy(kv);
+        }
+        newSize += heapSizeChange(kv, compacted.add(kv));
+      }
+      this.kvset = compacted;
+      if (compactedAllocator != null) {
+        // Scanners still open keep the old chunks they read from.
+        this.allocator.close();
+        this.allocator = compactedAllocator;
+      }
+      installed = true;
+      long freed = this.size.get() - newSize;
+      this.size.set(newSize);
+      this.sizeAtCompaction = newSize;
+      return freed;
+    } finally {
+      this.lock.writeLock().unlock();
+      if (!installed && compactedAllocator != null) {
+        compactedAllocator.close();
+      }
+    }
+  }
+
+  /*
+   * Copies what a compaction keeps.  Runs without the lock; the memstore
+   * may be snapshotted meanwhile.
+   * @param from Memstore being compacted
+   * @param to Set to copy the KeyValues kept into
+   * @param a Allocator to copy the KeyValues kept into, or null to keep them
+   * where they are
+   * @param maxVersions Versions of a column to keep
+   * @param readPoint Read point of the region
+   * @return Heap size of the KeyValues copied
+   */
+  long copyCompacted(final NavigableSet<KeyValue> from,
+      final KeyValueSkipListSet to, final MemStoreLAB a,
+      final int maxVersions, final long readPoint) {
+    long size = 0;
+    KeyValue row = null;
+    KeyValue column = null;
+    long familyDeleteTs = Long.MIN_VALUE;
+    long columnDeleteTs = Long.MIN_VALUE;
+    long versionDeleteTs = Long.MIN_VALUE;
+    int versions = 0;
+    for (KeyValue kv: from) {
+      if (row == null || !this.comparator.matchingRows(row, kv)) {
+        row = kv;
+        column = null;
+        familyDeleteTs = Long.MIN_VALUE;
+      }
+      if (column == null || !this.comparator.matchingRowColumn(column, kv)) {
+        column = kv;
+        columnDeleteTs = Long.MIN_VALUE;
+        versionDeleteTs = Long.MIN_VALUE;
+        versions = 0;
+      }
+      long ts = kv.getTimestamp();
+      boolean visible = kv.getMemstoreTS() <= readPoint;
+      if (kv.isDelete()) {
+        // Delete markers sort ahead of the puts they mask.
+        if (visible) {
+          byte type = kv.getType();
+          if (type == KeyValue.Type.DeleteFamily.getCode()) {
+            familyDeleteTs = Math.max(familyDeleteTs, ts);
+          } else if (type == KeyValue.Type.DeleteColumn.getCode()) {
+            columnDeleteTs = Math.max(columnDeleteTs, ts);
+          } else {
+            versionDeleteTs = ts;
+          }
+        }
+      } else {
+        if (ts <= familyDeleteTs || ts <= columnDeleteTs ||
+            ts == versionDeleteTs || versions >= maxVersions) {
+          continue;
+        }
+        if (visible) {
+          versions++;
+        }
+      }
+      to.add(a == null? kv: a.copy(kv));
+      size += heapSizeChange(kv, true);
+    }
+    return size;
+  }
+
+  /*
+   * @param kv KeyValue taken in
+   * @return Copy of <code>kv</code> in a chunk of the allocator, or
+   * <code>kv</code> if there is no allocator
+   */
+  private KeyValue copyToAllocator(final KeyValue kv) {
+    MemStoreLAB a = this.allocator;
+    return a == null? kv: a.copy(kv);
+  }
+
   /**
    * @param kv Find the row that comes after this one.  If null, we return the
    * first.
@@ -307,7 +590,7 @@ public class MemStore implements HeapSize {
       // Did we go beyond the target row? If so break.
       if (state.isTooFar(kv, firstOnRow)) break;
       if (state.isExpired(kv)) {
-        i.remove();
+        removeExpired(set, i);
         continue;
       }
       // If we added something, this row is a contender. break.
@@ -319,6 +602,19 @@ public class MemStore implements HeapSize {
     return foundCandidate;
   }
 
+  /*
+   * Drops an expired KeyValue from the memstore.  Left in a snapshot, which
+   * can not be changed; the flush drops it.
+   * @param set Set iterated
+   * @param i Iterator on the expired KeyValue
+   */
+  private void removeExpired(final SortedSet<KeyValue> set,
+      final Iterator<KeyValue> i) {
+    if (!(set instanceof KeyValueArraySet)) {
+      i.remove();
+    }
+  }
+
   /*
    * Walk backwards through the passed set a row at a time until we run out of
    * set or until we get a candidate.
@@ -369,7 +665,7 @@ public class MemStore implements HeapSize {
     for (Iterator<KeyValue> i = head.descendingIterator(); i.hasNext();) {
       KeyValue found = i.next();
       if (state.isExpired(found)) {
-        i.remove();
+        removeExpired(head, i);
         continue;
       }
       return new Member(head, found);
@@ -620,6 +916,18 @@ public class MemStore implements HeapSize {
       return (first != null ? first : second);
     }
 
+    public synchronized boolean requestSeek(KeyValue key) {
+      return seek(key);
+    }
+
+    public synchronized boolean isRealSeekDone() {
+      return true;
+    }
+
+    public synchronized void enforceSeek() {
+      // Never put off.
+    }
+
     public synchronized void close() {
       this.kvsetNextRow = null;
       this.snapshotNextRow = null;
@@ -630,7 +938,8 @@ public class MemStore implements HeapSize {
   }
 
   public final static long FIXED_OVERHEAD = ClassSize.align(
-      ClassSize.OBJECT + (7 * ClassSize.REFERENCE));
+      ClassSize.OBJECT + (11 * ClassSize.REFERENCE) +
+      (2 * Bytes.SIZEOF_LONG));
   
   public final static long DEEP_OVERHEAD = ClassSize.align(FIXED_OVERHEAD +
       ClassSize.REENTRANT_LOCK + ClassSize.ATOMIC_LONG +
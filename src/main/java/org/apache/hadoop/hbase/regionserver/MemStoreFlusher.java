@@ -32,11 +32,12 @@ import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -45,19 +46,49 @@ import java.util.concurrent.locks.ReentrantLock;
  * NOTE: This class extends Thread rather than Chore because the sleep time
  * can be interrupted when there is something to do, rather than the Chore
  * sleep time which is invariant.
+ * <p>
+ * Flushes are run by this thread and by
+ * <code>hbase.regionserver.flusher.count - 1</code> more handler threads it
+ * starts.  Each picks the most urgent region waiting: first regions blocking
+ * updates, then regions to flush to let go of old logs or to relieve global
+ * memstore pressure, then the region with the biggest memstore.  Regions
+ * flushed because they filled their memstore may flush only their biggest
+ * stores, see {@link HRegion#flushcache(boolean)}.
+ * <p>
+ * Handlers also compact in memory the memstores of families that ask for
+ * it, see {@link HRegion#compactMemStores()}, once no flush is waiting.
  *
  * @see FlushRequester
  */
 class MemStoreFlusher extends Thread implements FlushRequester {
   static final Log LOG = LogFactory.getLog(MemStoreFlusher.class);
-  private final BlockingQueue<HRegion> flushQueue =
-    new LinkedBlockingQueue<HRegion>();
 
-  private final HashSet<HRegion> regionsInQueue = new HashSet<HRegion>();
+  /**
+   * Configuration key: number of threads flushing memstores.
+   */
+  static final String HANDLER_COUNT_KEY = "hbase.regionserver.flusher.count";
+  static final int DEFAULT_HANDLER_COUNT = 2;
+
+  // How long to put off the flush of a region with too many store files
+  // before looking at it again.
+  private static final long TOO_MANY_FILES_DELAY = 1000;
+
+  // Regions waiting for a flush.  Handlers wait on it for work.
+  private final Map<HRegion, FlushRequest> regionsInQueue =
+    new HashMap<HRegion, FlushRequest>();
+  // Regions being flushed.  Guarded by regionsInQueue.
+  private final Set<HRegion> regionsFlushing = new HashSet<HRegion>();
+
+  // Writers blocked on the global memstore limit wait on this.
+  private final Object blockSignal = new Object();
 
   private final long threadWakeFrequency;
   private final HRegionServer server;
   private final ReentrantLock lock = new ReentrantLock();
+  private final int handlerCount;
+  private final List<FlushHandler> handlers = new ArrayList<FlushHandler>();
+  // Set when a handler gave up; all handlers then exit.
+  private volatile boolean failed = false;
 
   protected final long globalMemStoreLimit;
   protected final long globalMemStoreLimitLowMark;
@@ -99,11 +130,14 @@ class MemStoreFlusher extends Thread implements FlushRequester {
     }
     this.blockingWaitTime = conf.getInt("hbase.hstore.blockingWaitTime",
       90000); // default of 180 seconds
+    this.handlerCount = Math.max(1,
+      conf.getInt(HANDLER_COUNT_KEY, DEFAULT_HANDLER_COUNT));
     LOG.info("globalMemStoreLimit=" +
       StringUtils.humanReadableInt(this.globalMemStoreLimit) +
       ", globalMemStoreLimitLowMark=" +
       StringUtils.humanReadableInt(this.globalMemStoreLimitLowMark) +
-      ", maxHeap=" + StringUtils.humanReadableInt(max));
+      ", maxHeap=" + StringUtils.humanReadableInt(max) +
+      ", handlers=" + this.handlerCount);
   }
 
   /**
@@ -132,14 +166,36 @@ class MemStoreFlusher extends Thread implements FlushRequester {
 
   @Override
   public void run() {
-    while (!this.server.isStopRequested()) {
-      HRegion r = null;
+    for (int i = 1; i < this.handlerCount; i++) {
+      FlushHandler handler = new FlushHandler();
+      handler.setName(getName() + "." + i);
+      handler.setDaemon(true);
+      handler.setUncaughtExceptionHandler(getUncaughtExceptionHandler());
+      this.handlers.add(handler);
+      handler.start();
+    }
+    flushLoop(this.lock);
+    synchronized (this.regionsInQueue) {
+      this.regionsInQueue.clear();
+      this.regionsFlushing.clear();
+    }
+    LOG.info(getName() + " exiting");
+  }
+
+  /*
+   * Flushes regions until the server stops.
+   * @param handlerLock Held while flushing
+   */
+  private void flushLoop(final ReentrantLock handlerLock) {
+    while (!isStopRequested() && !this.failed) {
+      FlushRequest fr = null;
       try {
-        r = this.flushQueue.poll(this.threadWakeFrequency, TimeUnit.MILLISECONDS);
-        if (r == null) {
+        fr = takeRequest();
+        if (fr == null) {
           continue;
         }
-        if (!flushRegion(r, false)) {
+        if (!flushRegion(fr, handlerLock)) {
+          this.failed = true;
           break;
         }
       } catch (InterruptedException ex) {
@@ -148,23 +204,133 @@ class MemStoreFlusher extends Thread implements FlushRequester {
         continue;
       } catch (Exception ex) {
         LOG.error("Cache flush failed" +
-          (r != null ? (" for region " + Bytes.toString(r.getRegionName())) : ""),
+          (fr != null ? (" for region " +
+            Bytes.toString(fr.region.getRegionName())) : ""),
           ex);
         if (!server.checkFileSystem()) {
+          this.failed = true;
           break;
         }
+      } finally {
+        if (fr != null) {
+          doneFlushing(fr.region);
+        }
       }
     }
-    this.regionsInQueue.clear();
-    this.flushQueue.clear();
-    LOG.info(getName() + " exiting");
   }
 
   public void request(HRegion r) {
-    synchronized (regionsInQueue) {
-      if (!regionsInQueue.contains(r)) {
-        regionsInQueue.add(r);
-        flushQueue.add(r);
+    queue(r, false, false);
+  }
+
+  public void requestLogFlush(HRegion r) {
+    queue(r, true, false);
+  }
+
+  public void requestMemStoreCompaction(HRegion r) {
+    synchronized (this.regionsInQueue) {
+      // A flush queued empties the memstore anyway.
+      if (this.regionsInQueue.containsKey(r)) {
+        return;
+      }
+      FlushRequest fr = new FlushRequest(r);
+      fr.compactOnly = true;
+      this.regionsInQueue.put(r, fr);
+      this.regionsInQueue.notify();
+    }
+  }
+
+  /*
+   * Queue a flush of the region, or mark the flush queued for it with the
+   * reasons passed.
+   * @param forLogs Flush to let go of old logs
+   * @param forMemory Flush to relieve global memstore pressure
+   * @return True if the region was not queued yet
+   */
+  private boolean queue(final HRegion r, final boolean forLogs,
+      final boolean forMemory) {
+    synchronized (this.regionsInQueue) {
+      FlushRequest fr = this.regionsInQueue.get(r);
+      boolean added = fr == null;
+      if (added) {
+        fr = new FlushRequest(r);
+        this.regionsInQueue.put(r, fr);
+      }
+      fr.compactOnly = false;
+      fr.forLogs |= forLogs;
+      fr.forMemory |= forMemory;
+      this.regionsInQueue.notify();
+      return added;
+    }
+  }
+
+  /*
+   * @return The most urgent flush request, taken off the queue, or null if
+   * none came in while waiting
+   * @throws InterruptedException
+   */
+  FlushRequest takeRequest() throws InterruptedException {
+    synchronized (this.regionsInQueue) {
+      FlushRequest fr = pickRequest();
+      if (fr == null) {
+        this.regionsInQueue.wait(this.regionsInQueue.isEmpty()?
+          this.threadWakeFrequency:
+          Math.min(this.threadWakeFrequency, TOO_MANY_FILES_DELAY));
+        fr = pickRequest();
+        if (fr == null) {
+          return null;
+        }
+      }
+      this.regionsInQueue.remove(fr.region);
+      this.regionsFlushing.add(fr.region);
+      return fr;
+    }
+  }
+
+  /*
+   * Call holding the regionsInQueue lock.
+   * @return Most urgent request whose region is not being flushed and that
+   * is not put off, or null if none
+   */
+  FlushRequest pickRequest() {
+    long now = System.currentTimeMillis();
+    FlushRequest best = null;
+    for (FlushRequest fr: this.regionsInQueue.values()) {
+      if (fr.delayUntil > now || this.regionsFlushing.contains(fr.region)) {
+        continue;
+      }
+      if (best == null || fr.compareTo(best) < 0) {
+        best = fr;
+      }
+    }
+    return best;
+  }
+
+  /*
+   * Take the region off the regions being flushed and wake up whoever waits
+   * on a flush.
+   */
+  void doneFlushing(final HRegion r) {
+    synchronized (this.regionsInQueue) {
+      this.regionsFlushing.remove(r);
+      this.regionsInQueue.notifyAll();
+    }
+    synchronized (this.blockSignal) {
+      this.blockSignal.notifyAll();
+    }
+  }
+
+  /*
+   * Put a request back, to look at again later.  Merges it with any request
+   * for the region that came in meanwhile.
+   */
+  private void requeue(final FlushRequest fr) {
+    synchronized (this.regionsInQueue) {
+      FlushRequest other = this.regionsInQueue.put(fr.region, fr);
+      if (other != null) {
+        fr.compactOnly &= other.compactOnly;
+        fr.forLogs |= other.forLogs;
+        fr.forMemory |= other.forMemory;
       }
     }
   }
@@ -179,81 +345,61 @@ class MemStoreFlusher extends Thread implements FlushRequester {
     } finally {
       lock.unlock();
     }
+    for (FlushHandler handler: this.handlers) {
+      handler.interruptIfNecessary();
+    }
   }
 
   /*
    * Flush a region.
    *
-   * @param region the region to be flushed
-   * @param removeFromQueue True if the region needs to be removed from the
-   * flush queue. False if called from the main flusher run loop and true if
-   * called from flushSomeRegions to relieve memory pressure from the region
-   * server.  If <code>true</code>, we are in a state of emergency; we are not
-   * taking on updates regionserver-wide, not until memory is flushed.  In this
-   * case, do not let a compaction run inline with blocked updates. Compactions
-   * can take a long time. Stopping compactions, there is a danger that number
-   * of flushes will overwhelm compaction on a busy server; we'll have to see.
-   * That compactions do not run when called out of flushSomeRegions means that
-   * compactions can be reported by the historian without danger of deadlock
-   * (HBASE-670).
-   *
-   * <p>In the main run loop, regions have already been removed from the flush
-   * queue, and if this method is called for the relief of memory pressure,
-   * this may not be necessarily true. We want to avoid trying to remove
-   * region from the queue because if it has already been removed, it requires a
-   * sequential scan of the queue to determine that it is not in the queue.
+   * A region with too many store files is put back in the queue for a while,
+   * after a compaction is requested, so the flush does not add one more file.
+   * It is flushed anyway once it has waited for
+   * <code>hbase.hstore.blockingWaitTime</code>.  Catalog regions are never
+   * held up.
    *
-   * <p>If called from flushSomeRegions, the region may be in the queue but
-   * it may have been determined that the region had a significant amount of
-   * memory in use and needed to be flushed to relieve memory pressure. In this
-   * case, its flush may preempt the pending request in the queue, and if so,
-   * it needs to be removed from the queue to avoid flushing the region
-   * multiple times.
-   *
-   * @return true if the region was successfully flushed, false otherwise. If
-   * false, there will be accompanying log messages explaining why the log was
-   * not flushed.
+   * @param fr the flush request of the region to be flushed
+   * @param handlerLock Lock of the handler; held while flushing
+   * @return false if the server should stop.  There will be accompanying log
+   * messages explaining why.
    */
-  private boolean flushRegion(HRegion region, boolean removeFromQueue) {
-    // if removeFromQueue, then we come from flushSomeRegions and we need
-    // to block if there's too many store files. Else, we don't want to hang
-    // the main flushing thread so we'll just the region at the end of the
-    // queue if there's too many files.
-    if (removeFromQueue) {
-      checkStoreFileCount(region);
-    } else if ((!region.getRegionInfo().isMetaRegion()) &&
-               isTooManyStoreFiles(region)) {
-      // Note: We don't impose blockingStoreFiles constraint on meta regions
-
-      LOG.warn("Region " + region.getRegionNameAsString() + " has too many " +
-          "store files, putting it back at the end of the flush queue.");
-      server.compactSplitThread.compactionRequested(region, getName());
-      // If there's only this item in the queue or they are all in this
-      // situation, we will loop at lot. Sleep a bit.
+  private boolean flushRegion(final FlushRequest fr,
+      final ReentrantLock handlerLock) {
+    HRegion region = fr.region;
+    if (fr.compactOnly) {
+      handlerLock.lock();
       try {
-        Thread.sleep(1000);
-      } catch (InterruptedException e) { } // just continue
-      flushQueue.add(region);
-      // Tell a lie, it's not flushed but it's ok
+        region.compactMemStores();
+      } finally {
+        handlerLock.unlock();
+      }
       return true;
     }
-    synchronized (regionsInQueue) {
-      // See comment above for removeFromQueue on why we do not
-      // take the region out of the set. If removeFromQueue is true, remove it
-      // from the queue too if it is there. This didn't used to be a
-      // constraint, but now that HBASE-512 is in play, we need to try and
-      // limit double-flushing of regions.
-      if (regionsInQueue.remove(region) && removeFromQueue) {
-        flushQueue.remove(region);
+    long now = System.currentTimeMillis();
+    if (!region.getRegionInfo().isMetaRegion() &&
+        now - fr.createTime < this.blockingWaitTime &&
+        isTooManyStoreFiles(region)) {
+      if (!fr.compactionRequested) {
+        LOG.warn("Region " + region.getRegionNameAsString() + " has too " +
+          "many store files, putting off its flush for up to " +
+          this.blockingWaitTime + "ms");
+        server.compactSplitThread.compactionRequested(region,
+          Thread.currentThread().getName());
+        fr.compactionRequested = true;
       }
-      lock.lock();
+      fr.delayUntil = now + TOO_MANY_FILES_DELAY;
+      requeue(fr);
+      return true;
     }
+    handlerLock.lock();
     try {
-      // See comment above for removeFromQueue on why we do not
-      // compact if removeFromQueue is true. Note that region.flushCache()
-      // only returns true if a flush is done and if a compaction is needed.
-      if (region.flushcache() && !removeFromQueue) {
-        server.compactSplitThread.compactionRequested(region, getName());
+      // Flushes to let go of old logs or of memory flush all stores.  Note
+      // that region.flushcache() only returns true if a flush is done and if
+      // a compaction is needed.
+      if (region.flushcache(fr.forLogs || fr.forMemory)) {
+        server.compactSplitThread.compactionRequested(region,
+          Thread.currentThread().getName());
       }
     } catch (DroppedSnapshotException ex) {
       // Cache flush can fail in a few places. If it fails in a critical
@@ -272,58 +418,12 @@ class MemStoreFlusher extends Thread implements FlushRequester {
         return false;
       }
     } finally {
-      lock.unlock();
+      handlerLock.unlock();
     }
 
     return true;
   }
 
-  /*
-   * If too many store files already, schedule a compaction and pause a while
-   * before going on with compaction.
-   * @param region Region to check.
-   */
-  private void checkStoreFileCount(final HRegion region) {
-    // If catalog region, do not ever hold up writes (isMetaRegion returns
-    // true if ROOT or META region).
-    if (region.getRegionInfo().isMetaRegion()) return;
-
-    int count = 0;
-    boolean triggered = false;
-    boolean finished = false;
-    while (count++ < (blockingWaitTime / 500)) {
-      finished = true;
-      for (Store hstore: region.stores.values()) {
-        if (hstore.getStorefilesCount() > this.blockingStoreFilesNumber) {
-          // only log once
-          if (!triggered) {
-            LOG.info("Too many store files for region " + region + ": " +
-              hstore.getStorefilesCount() + ", requesting compaction and " +
-              "waiting");
-            this.server.compactSplitThread.compactionRequested(region, getName());
-            triggered = true;
-          }
-          // pending compaction, not finished
-          finished = false;
-          try {
-            Thread.sleep(500);
-          } catch (InterruptedException e) {
-            // ignore
-          }
-        }
-      }
-      if (triggered && finished) {
-        LOG.info("Compaction has completed, we waited " + (count * 500) + "ms, "
-            + "finishing flush of region " + region);
-        break;
-      }
-    }
-    if (triggered && !finished) {
-      LOG.warn("Tried to hold up flushing for compactions of region " + region +
-          " but have waited longer than " + blockingWaitTime + "ms, continuing");
-    }
-  }
-
   private boolean isTooManyStoreFiles(HRegion region) {
     for (Store hstore: region.stores.values()) {
       if (hstore.getStorefilesCount() > this.blockingStoreFilesNumber) {
@@ -335,51 +435,184 @@ class MemStoreFlusher extends Thread implements FlushRequester {
 
   /**
    * Check if the regionserver's memstore memory usage is greater than the
-   * limit. If so, flush regions with the biggest memstores until we're down
-   * to the lower limit. This method blocks callers until we're down to a safe
-   * amount of memstore consumption.
+   * limit. If so, queue flushes of the regions with the biggest memstores,
+   * enough to get down to the lower limit, and block callers until the
+   * handlers have flushed the usage back under the limit.
    */
-  public synchronized void reclaimMemStoreMemory() {
-    if (server.getGlobalMemStoreSize() >= globalMemStoreLimit) {
-      flushSomeRegions();
+  public void reclaimMemStoreMemory() {
+    if (getGlobalMemStoreSize() < globalMemStoreLimit) {
+      return;
+    }
+    boolean blocked = false;
+    synchronized (this.blockSignal) {
+      long globalMemStoreSize;
+      while (!isStopRequested() && !this.failed &&
+          (globalMemStoreSize = getGlobalMemStoreSize()) >=
+            this.globalMemStoreLimit) {
+        if (!blocked) {
+          LOG.info("Blocking updates for '" +
+            Thread.currentThread().getName() + "': global memstore size " +
+            StringUtils.humanReadableInt(globalMemStoreSize) + " is >= " +
+            StringUtils.humanReadableInt(this.globalMemStoreLimit));
+          blocked = true;
+        }
+        flushSomeRegions(globalMemStoreSize);
+        try {
+          this.blockSignal.wait(this.threadWakeFrequency);
+        } catch (InterruptedException e) {
+          // continue
+        }
+      }
+    }
+    if (blocked) {
+      LOG.info("Unblocking updates for '" +
+        Thread.currentThread().getName() + "'");
     }
   }
 
   /*
-   * Emergency!  Need to flush memory.
+   * Emergency!  Need to flush memory.  Queue flushes of the regions with the
+   * biggest memstores until enough is queued to get to the low water mark.
+   * Regions already queued or being flushed count towards it but are not
+   * queued again; a region being flushed still counts the snapshot it is
+   * writing, and flushing it again once done would write a tiny file.
    */
-  private synchronized void flushSomeRegions() {
-    // keep flushing until we hit the low water mark
-    long globalMemStoreSize = -1;
-    ArrayList<HRegion> regionsToCompact = new ArrayList<HRegion>();
-    for (SortedMap<Long, HRegion> m =
-        this.server.getCopyOfOnlineRegionsSortedBySize();
-      (globalMemStoreSize = server.getGlobalMemStoreSize()) >=
-        this.globalMemStoreLimitLowMark;) {
-      // flush the region with the biggest memstore
-      if (m.size() <= 0) {
-        LOG.info("No online regions to flush though we've been asked flush " +
-          "some; globalMemStoreSize=" +
+  void flushSomeRegions(final long globalMemStoreSize) {
+    long toFree = globalMemStoreSize - this.globalMemStoreLimitLowMark;
+    SortedMap<Long, HRegion> m = getRegionsBySize();
+    if (m.size() <= 0) {
+      LOG.info("No online regions to flush though we've been asked flush " +
+        "some; globalMemStoreSize=" +
+        StringUtils.humanReadableInt(globalMemStoreSize) +
+        ", globalMemStoreLimitLowMark=" +
+        StringUtils.humanReadableInt(this.globalMemStoreLimitLowMark));
+      return;
+    }
+    for (Map.Entry<Long, HRegion> e: m.entrySet()) {
+      if (toFree <= 0 || e.getKey().longValue() <= 0) {
+        break;
+      }
+      toFree -= e.getKey().longValue();
+      if (isQueuedOrFlushing(e.getValue())) {
+        continue;
+      }
+      if (queue(e.getValue(), false, true)) {
+        LOG.info("Forced flushing of " + e.getValue().toString() +
+          " because global memstore limit of " +
+          StringUtils.humanReadableInt(this.globalMemStoreLimit) +
+          " exceeded; currently " +
           StringUtils.humanReadableInt(globalMemStoreSize) +
-          ", globalMemStoreLimitLowMark=" +
+          " and flushing till " +
           StringUtils.humanReadableInt(this.globalMemStoreLimitLowMark));
-        break;
       }
-      HRegion biggestMemStoreRegion = m.remove(m.firstKey());
-      LOG.info("Forced flushing of " +  biggestMemStoreRegion.toString() +
-        " because global memstore limit of " +
-        StringUtils.humanReadableInt(this.globalMemStoreLimit) +
-        " exceeded; currently " +
-        StringUtils.humanReadableInt(globalMemStoreSize) + " and flushing till " +
-        StringUtils.humanReadableInt(this.globalMemStoreLimitLowMark));
-      if (!flushRegion(biggestMemStoreRegion, true)) {
-        LOG.warn("Flush failed");
-        break;
+    }
+  }
+
+  /*
+   * @return True if a flush of the region is queued or under way
+   */
+  boolean isQueuedOrFlushing(final HRegion r) {
+    synchronized (this.regionsInQueue) {
+      return this.regionsInQueue.containsKey(r) ||
+        this.regionsFlushing.contains(r);
+    }
+  }
+
+  /*
+   * @return True if the server is stopping
+   */
+  boolean isStopRequested() {
+    return this.server.isStopRequested();
+  }
+
+  /*
+   * @return Memstore size of all regions of the server
+   */
+  long getGlobalMemStoreSize() {
+    return this.server.getGlobalMemStoreSize();
+  }
+
+  /*
+   * @return Online regions by memstore size, biggest first
+   */
+  SortedMap<Long, HRegion> getRegionsBySize() {
+    return this.server.getCopyOfOnlineRegionsSortedBySize();
+  }
+
+  /*
+   * A region waiting for a flush.  Ordered most urgent first.
+   */
+  static class FlushRequest implements Comparable<FlushRequest> {
+    final HRegion region;
+    final long createTime;
+    // Flush to let go of old logs.
+    boolean forLogs = false;
+    // Flush to relieve global memstore pressure.
+    boolean forMemory = false;
+    // Not to be picked before this time.
+    long delayUntil = 0;
+    // Only compact the memstores in memory, do not flush.
+    boolean compactOnly = false;
+    boolean compactionRequested = false;
+
+    FlushRequest(final HRegion region) {
+      this.region = region;
+      this.createTime = System.currentTimeMillis();
+    }
+
+    /*
+     * @return 0 if the region blocks updates, 1 if it is to be flushed to let
+     * go of old logs or of memory, 2 if flushed otherwise, 3 if only its
+     * memstores are to be compacted
+     */
+    private int getRank() {
+      if (this.compactOnly) {
+        return 3;
+      }
+      if (this.region.isUpdatesBlocked()) {
+        return 0;
+      }
+      return this.forLogs || this.forMemory? 1: 2;
+    }
+
+    public int compareTo(final FlushRequest other) {
+      int diff = getRank() - other.getRank();
+      if (diff != 0) {
+        return diff;
+      }
+      // Biggest memstore first.
+      long size = this.region.memstoreSize.get();
+      long otherSize = other.region.memstoreSize.get();
+      if (size != otherSize) {
+        return size > otherSize? -1: 1;
       }
-      regionsToCompact.add(biggestMemStoreRegion);
+      return this.createTime < other.createTime? -1:
+        this.createTime == other.createTime? 0: 1;
     }
-    for (HRegion region : regionsToCompact) {
-      server.compactSplitThread.compactionRequested(region, getName());
+  }
+
+  /*
+   * More flush threads, past this one.
+   */
+  private class FlushHandler extends Thread {
+    private final ReentrantLock handlerLock = new ReentrantLock();
+
+    @Override
+    public void run() {
+      flushLoop(this.handlerLock);
+      LOG.info(getName() + " exiting");
+    }
+
+    /*
+     * Only interrupt once it's done with a flush.
+     */
+    void interruptIfNecessary() {
+      this.handlerLock.lock();
+      try {
+        interrupt();
+      } finally {
+        this.handlerLock.unlock();
+      }
     }
   }
 }
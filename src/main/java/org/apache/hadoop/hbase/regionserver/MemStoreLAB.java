@@ -0,0 +1,165 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.KeyValue;
+
+/**
+ * MemStore-local allocation buffer.
+ * <p>
+ * A MemStore copies the KeyValues it takes in into large chunks of one size
+ * allocated here, instead of keeping the arrays they came in, which are
+ * often slices of much larger RPC buffers that then can not be collected.
+ * A chunk holds KeyValues written at about the same time, so they get to
+ * the old generation together, and once the MemStore is flushed the chunks
+ * are let go as a whole.  The old generation is so left with holes the
+ * size of a chunk instead of holes of all sizes, and does not fragment.
+ * <p>
+ * KeyValues larger than <code>hbase.hregion.memstore.mslab.max.allocation</code>
+ * are kept as they are.  Thread safe.
+ */
+public class MemStoreLAB {
+  static final String CHUNK_SIZE_KEY = "hbase.hregion.memstore.mslab.chunksize";
+  static final int CHUNK_SIZE_DEFAULT = 2048 * 1024;
+  static final String MAX_ALLOC_KEY =
+    "hbase.hregion.memstore.mslab.max.allocation";
+  static final int MAX_ALLOC_DEFAULT = 256 * 1024;
+
+  // Chunks held by, and bytes left unused at the end of the full chunks of,
+  // all allocators not closed yet
+  private static final AtomicLong chunkCount = new AtomicLong(0);
+  private static final AtomicLong wastedBytes = new AtomicLong(0);
+
+  private final int chunkSize;
+  private final int maxAlloc;
+
+  // Chunk being filled, and offset of its free space
+  private byte [] chunk = null;
+  private int chunkOffset = 0;
+  private int chunks = 0;
+  private long wasted = 0;
+  private boolean closed = false;
+
+  /**
+   * @param conf Configuration, for the chunk and maximum copy sizes
+   */
+  public MemStoreLAB(final Configuration conf) {
+    this(conf.getInt(CHUNK_SIZE_KEY, CHUNK_SIZE_DEFAULT),
+      conf.getInt(MAX_ALLOC_KEY, MAX_ALLOC_DEFAULT));
+  }
+
+  /**
+   * @param chunkSize Size of the chunks
+   * @param maxAlloc KeyValues larger than this are not copied
+   */
+  MemStoreLAB(final int chunkSize, final int maxAlloc) {
+    if (maxAlloc > chunkSize) {
+      throw new IllegalArgumentException(MAX_ALLOC_KEY + " " + maxAlloc +
+        " is larger than " + CHUNK_SIZE_KEY + " " + chunkSize);
+    }
+    this.chunkSize = chunkSize;
+    this.maxAlloc = maxAlloc;
+  }
+
+  /**
+   * @param kv KeyValue to copy
+   * @return A copy of <code>kv</code> in a chunk of this allocator, or
+   * <code>kv</code> itself if it is too large to be copied.
+   */
+  public KeyValue copy(final KeyValue kv) {
+    int length = kv.getLength();
+    if (length > this.maxAlloc) {
+      return kv;
+    }
+    byte [] data;
+    int offset;
+    synchronized (this) {
+      if (this.closed) {
+        return kv;
+      }
+      if (this.chunk == null || this.chunk.length - this.chunkOffset < length) {
+        if (this.chunk != null) {
+          long waste = this.chunk.length - this.chunkOffset;
+          this.wasted += waste;
+          wastedBytes.addAndGet(waste);
+        }
+        this.chunk = new byte[this.chunkSize];
+        this.chunkOffset = 0;
+        this.chunks++;
+        chunkCount.incrementAndGet();
+      }
+      data = this.chunk;
+      offset = this.chunkOffset;
+      this.chunkOffset += length;
+    }
+    // Copy outside of the lock; the space is reserved.
+    System.arraycopy(kv.getBuffer(), kv.getOffset(), data, offset, length);
+    KeyValue copy = new KeyValue(data, offset, length);
+    copy.setMemstoreTS(kv.getMemstoreTS());
+    return copy;
+  }
+
+  /**
+   * Lets go of the chunks.  KeyValues copied stay valid; the chunks are
+   * collected once they are not referred to anymore.  KeyValues given to
+   * {@link #copy(KeyValue)} afterwards are not copied.
+   */
+  public synchronized void close() {
+    if (this.closed) {
+      return;
+    }
+    this.closed = true;
+    chunkCount.addAndGet(-this.chunks);
+    wastedBytes.addAndGet(-this.wasted);
+    this.chunk = null;
+  }
+
+  /**
+   * @return Chunks allocated by this allocator
+   */
+  public synchronized int getChunks() {
+    return this.chunks;
+  }
+
+  /**
+   * @return Bytes left unused at the end of the full chunks of this allocator
+   */
+  public synchronized long getWastedBytes() {
+    return this.wasted;
+  }
+
+  /**
+   * @return Chunks held by all the allocators not closed yet
+   */
+  public static long getChunkCount() {
+    return chunkCount.get();
+  }
+
+  /**
+   * @return Bytes left unused at the end of the full chunks of all the
+   * allocators not closed yet
+   */
+  public static long getTotalWastedBytes() {
+    return wastedBytes.get();
+  }
+}
@@ -73,6 +73,18 @@ public class MinorCompactingStoreScanner implements KeyValueScanner, InternalSca
     throw new UnsupportedOperationException("Can't seek a MinorCompactingStoreScanner");
   }
 
+  public boolean requestSeek(KeyValue key) {
+    return seek(key);
+  }
+
+  public boolean isRealSeekDone() {
+    return true;
+  }
+
+  public void enforceSeek() {
+    // Never put off.
+  }
+
   /**
    * High performance merge scan.
    * @param writer
@@ -0,0 +1,274 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
+
+/**
+ * Manages the row locks of a single {@link HRegion}.
+ * <p>
+ * Locked rows are kept in a {@link ConcurrentHashMap} keyed by the hash of
+ * the row, so taking the lock on an uncontended row is a single
+ * <code>putIfAbsent</code> and never touches a region-wide monitor.  Each held
+ * lock carries its own latch; a thread that finds its row already locked
+ * waits on that latch only, so releasing a lock wakes up the threads waiting
+ * on that one row rather than every waiter in the region.  Waits are bounded
+ * by <code>hbase.rowlock.wait.duration</code>.
+ * <p>
+ * Lock wait time and contention are accumulated in static counters that are
+ * drained by {@link org.apache.hadoop.hbase.regionserver.metrics.RegionServerMetrics}.
+ */
+class RowLockManager {
+  static final Log LOG = LogFactory.getLog(RowLockManager.class);
+
+  /** Default time to wait on a row lock before giving up, in ms */
+  static final long DEFAULT_ROWLOCK_WAIT_DURATION = 30000;
+
+  public static final long FIXED_OVERHEAD = ClassSize.align(
+      ClassSize.OBJECT + (3 * ClassSize.REFERENCE) + Bytes.SIZEOF_LONG);
+
+  public static final long DEEP_OVERHEAD = ClassSize.align(FIXED_OVERHEAD +
+      (2 * ClassSize.CONCURRENT_HASHMAP) + ClassSize.ATOMIC_INTEGER);
+
+  // Rows currently locked, keyed by row.
+  private final ConcurrentHashMap<HashedRow, RowLock> lockedRows =
+    new ConcurrentHashMap<HashedRow, RowLock>();
+  // Locks currently held, keyed by lock id.
+  private final ConcurrentHashMap<Integer, RowLock> lockIds =
+    new ConcurrentHashMap<Integer, RowLock>();
+  private final AtomicInteger lockIdGenerator = new AtomicInteger(1);
+  private final long waitDuration;
+
+  // Metrics, drained by RegionServerMetrics.
+  private static final AtomicLong lockOps = new AtomicLong();
+  private static final AtomicLong contendedLockOps = new AtomicLong();
+  private static final AtomicLong lockWaitTime = new AtomicLong();
+
+  /**
+   * @param waitDuration Maximum time, in ms, to wait on a contended row lock
+   */
+  RowLockManager(final long waitDuration) {
+    this.waitDuration = waitDuration;
+  }
+
+  /**
+   * Obtain a lock on the given row.  Blocks until the lock is available or
+   * the configured wait duration has elapsed.
+   * @param row Name of row to lock.
+   * @return The id of the held lock.
+   * @throws IOException if the lock could not be obtained in time
+   */
+  Integer lockRow(final byte [] row) throws IOException {
+    return lockRow(row, true);
+  }
+
+  /**
+   * Obtain a lock on the given row.
+   * @param row Name of row to lock.
+   * @param waitForLock if false, return null rather than wait when the row
+   * is already locked
+   * @return The id of the held lock, or null if <code>waitForLock</code> is
+   * false and the row is locked by someone else.
+   * @throws IOException if the lock could not be obtained in time
+   */
+  Integer lockRow(final byte [] row, final boolean waitForLock)
+  throws IOException {
+    HashedRow key = new HashedRow(row);
+    RowLock lock = new RowLock(row, key);
+    long start = 0;
+    RowLock existing;
+    while ((existing = this.lockedRows.putIfAbsent(key, lock)) != null) {
+      if (!waitForLock) {
+        return null;
+      }
+      long now = System.currentTimeMillis();
+      if (start == 0) {
+        start = now;
+      }
+      long remaining = this.waitDuration - (now - start);
+      if (remaining <= 0) {
+        lockWaitTime.addAndGet(now - start);
+        contendedLockOps.incrementAndGet();
+        throw new IOException("Timed out waiting " + this.waitDuration +
+          "ms for lock on row " + Bytes.toStringBinary(row));
+      }
+      try {
+        existing.latch.await(remaining, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ie) {
+        // Empty; loop and let the deadline decide.
+      }
+    }
+    if (start != 0) {
+      lockWaitTime.addAndGet(System.currentTimeMillis() - start);
+      contendedLockOps.incrementAndGet();
+    }
+    lockOps.incrementAndGet();
+
+    // Generate a new lockid.  Collisions are only possible after the
+    // generator wraps, in which case we just move on to the next id.
+    Integer lockId;
+    do {
+      lockId = Integer.valueOf(this.lockIdGenerator.getAndIncrement());
+    } while (this.lockIds.putIfAbsent(lockId, lock) != null);
+    return lockId;
+  }
+
+  /**
+   * Release the lock with the given id and wake up the threads waiting on
+   * its row.
+   * @param lockId The lock ID to release.
+   */
+  void unlockRow(final Integer lockId) {
+    if (lockId == null) {
+      return;
+    }
+    RowLock lock = this.lockIds.remove(lockId);
+    if (lock == null) {
+      LOG.warn("Release of unknown row lock " + lockId);
+      return;
+    }
+    this.lockedRows.remove(lock.key, lock);
+    lock.latch.countDown();
+  }
+
+  /**
+   * @param lockId
+   * @return Row that goes with <code>lockId</code> or null if not held
+   */
+  byte [] getRow(final Integer lockId) {
+    RowLock lock = this.lockIds.get(lockId);
+    return lock == null? null: lock.row;
+  }
+
+  /**
+   * @param lockId
+   * @return True if <code>lockId</code> is currently held
+   */
+  boolean isLocked(final Integer lockId) {
+    return lockId != null && this.lockIds.containsKey(lockId);
+  }
+
+  /**
+   * @return Count of rows currently locked
+   */
+  int size() {
+    return this.lockedRows.size();
+  }
+
+  /**
+   * Block until every row lock currently held has been released.
+   */
+  void waitOnRowLocks() {
+    while (!this.lockedRows.isEmpty()) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Waiting on " + this.lockedRows.size() + " row locks");
+      }
+      Iterator<RowLock> i = this.lockedRows.values().iterator();
+      if (!i.hasNext()) {
+        continue;
+      }
+      try {
+        i.next().latch.await();
+      } catch (InterruptedException e) {
+        // Catch. Let while test determine loop-end.
+      }
+    }
+  }
+
+  /**
+   * @return Count of row locks obtained since last call; resets the count.
+   */
+  public static long getLockOps() {
+    return lockOps.getAndSet(0);
+  }
+
+  /**
+   * @return Count of row lock acquisitions that had to wait since last call;
+   * resets the count.
+   */
+  public static long getContendedLockOps() {
+    return contendedLockOps.getAndSet(0);
+  }
+
+  /**
+   * @return Total ms spent waiting on contended row locks since last call;
+   * resets the time.
+   */
+  public static long getLockWaitTime() {
+    return lockWaitTime.getAndSet(0);
+  }
+
+  /*
+   * Row key wrapper with a precomputed hash so map lookups do not rehash the
+   * row bytes.
+   */
+  static class HashedRow {
+    private final byte [] row;
+    private final int hash;
+
+    HashedRow(final byte [] row) {
+      this.row = row;
+      this.hash = Bytes.hashCode(row);
+    }
+
+    @Override
+    public int hashCode() {
+      return this.hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof HashedRow)) {
+        return false;
+      }
+      HashedRow other = (HashedRow)obj;
+      return this.hash == other.hash && Bytes.equals(this.row, other.row);
+    }
+  }
+
+  /*
+   * A held row lock.  Waiters block on the latch which is released once, when
+   * the lock is.
+   */
+  static class RowLock {
+    final byte [] row;
+    final HashedRow key;
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    RowLock(final byte [] row, final HashedRow key) {
+      this.row = row;
+      this.key = key;
+    }
+  }
+}
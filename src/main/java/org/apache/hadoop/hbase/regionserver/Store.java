@@ -58,6 +58,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
@@ -68,6 +69,7 @@ import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -119,6 +121,7 @@ public class Store implements HConstants, HeapSize {
   final byte [] storeName;
   private final String storeNameStr;
   private final boolean inMemory;
+  private final boolean inMemoryCompaction;
 
   /*
    * List of store files inside this store. This is an immutable list that
@@ -141,6 +144,12 @@ public class Store implements HConstants, HeapSize {
 
   private final Path regionCompactionDir;
   private final Object compactLock = new Object();
+
+  // Bloom filter checks made by gets, files they ruled out and files that
+  // passed but had nothing for the row; reset when read.
+  private final AtomicLong bloomChecks = new AtomicLong(0);
+  private final AtomicLong bloomFilesSkipped = new AtomicLong(0);
+  private final AtomicLong bloomFalsePositives = new AtomicLong(0);
   private final int compactionThreshold;
   private final int blocksize;
   private final boolean blockcache;
@@ -193,7 +202,7 @@ public class Store implements HConstants, HeapSize {
       // second -> ms adjust for user data
       this.ttl *= 1000;
     }
-    this.memstore = new MemStore(this.comparator);
+    this.memstore = new MemStore(conf, this.comparator);
     this.regionCompactionDir = new Path(HRegion.getCompactionDir(basedir),
                                         info.getEncodedName());
     this.storeName = this.family.getName();
@@ -207,6 +216,8 @@ public class Store implements HConstants, HeapSize {
     // Check if this is in-memory store
     this.inMemory = family.isInMemory();
 
+    this.inMemoryCompaction = family.isInMemoryCompaction();
+
     // By default we split region if a file > DEFAULT_MAX_FILE_SIZE.
     long maxFileSize = info.getTableDesc().getMaxFileSize();
     if (maxFileSize == HConstants.DEFAULT_MAX_FILE_SIZE) {
@@ -241,6 +252,14 @@ public class Store implements HConstants, HeapSize {
     return this.family;
   }
 
+  /**
+   * @return Heap size of the KeyValues in the memstore, not counting the
+   * snapshot.
+   */
+  long getMemStoreSize() {
+    return this.memstore.keySize();
+  }
+
   long getMaxSequenceId() {
     return this.maxSeqId;
   }
@@ -445,12 +464,14 @@ public class Store implements HConstants, HeapSize {
    * @return memstore size delta
    */
   protected long add(final KeyValue kv) {
+    long size;
     lock.readLock().lock();
     try {
-      return this.memstore.add(kv);
+      size = this.memstore.add(kv);
     } finally {
       lock.readLock().unlock();
     }
+    return size;
   }
 
   /**
@@ -460,12 +481,43 @@ public class Store implements HConstants, HeapSize {
    * @return memstore size delta
    */
   protected long delete(final KeyValue kv) {
+    long size;
     lock.readLock().lock();
     try {
-      return this.memstore.delete(kv);
+      size = this.memstore.delete(kv);
     } finally {
       lock.readLock().unlock();
     }
+    return size;
+  }
+
+  /**
+   * @return True if the family asks for its memstore to be compacted in
+   * memory and the memstore has grown enough since it was last compacted
+   */
+  boolean needsMemStoreCompaction() {
+    return this.inMemoryCompaction && this.memstore.needsCompaction();
+  }
+
+  /**
+   * Compacts the memstore in memory if it needs it, see
+   * {@link #needsMemStoreCompaction()}.  Copies the memstore, so it is run
+   * by a flush handler rather than by the writer that grew it.
+   * @return Heap size freed
+   */
+  long compactMemStore() {
+    if (!needsMemStoreCompaction()) {
+      return 0;
+    }
+    long readPoint = this.region == null? Long.MAX_VALUE:
+      this.region.getRWCC().memstoreReadPoint();
+    long freed = this.memstore.compact(this.family.getMaxVersions(),
+      readPoint);
+    if (LOG.isDebugEnabled() && freed > 0) {
+      LOG.debug("Compacted memstore of " + this.storeNameStr + ", freed " +
+        StringUtils.humanReadableInt(freed));
+    }
+    return freed;
   }
 
   /**
@@ -651,9 +703,11 @@ public class Store implements HConstants, HeapSize {
    */
   private StoreFile.Writer createWriter(final Path basedir, int maxKeyCount)
   throws IOException {
-    return StoreFile.createWriter(this.fs, basedir, this.blocksize,
-        this.compression, this.comparator, this.conf,
+    StoreFile.Writer w = StoreFile.createWriter(this.fs, basedir,
+        this.blocksize, this.compression, this.comparator, this.conf,
         this.family.getBloomFilterType(), maxKeyCount);
+    w.setDataBlockEncoding(this.family.getDataBlockEncoding());
+    return w;
   }
 
   /*
@@ -790,23 +844,9 @@ public class Store implements HConstants, HeapSize {
       }
 
       if (!majorcompaction && !references) {
-        // Here we select files for incremental compaction.
-        // The rule is: if the largest(oldest) one is more than twice the
-        // size of the second, skip the largest, and continue to next...,
-        // until we meet the compactionThreshold limit.
-
-        // A problem with the above heuristic is that we could go through all of
-        // filesToCompact and the above condition could hold for all files and
-        // we'd end up with nothing to compact.  To protect against this, we'll
-        // compact the tail -- up to the last 4 files -- of filesToCompact
-        // regardless.
-        int tail = Math.min(countOfFiles, 4);
-        for (point = 0; point < (countOfFiles - tail); point++) {
-          if (((fileSizes[point] < fileSizes[point + 1] * 2) &&
-               (countOfFiles - point) <= maxFilesToCompact)) {
-            break;
-          }
-          skipped += fileSizes[point];
+        point = selectMinorCompactionStart(fileSizes);
+        for (int i = 0; i < point; i++) {
+          skipped += fileSizes[i];
         }
         filesToCompact = new ArrayList<StoreFile>(filesToCompact.subList(point,
           countOfFiles));
@@ -843,6 +883,77 @@ public class Store implements HConstants, HeapSize {
     return checkSplit(forceSplit);
   }
 
+  /*
+   * Here we select files for incremental compaction.
+   * The rule is: if the largest(oldest) one is more than twice the
+   * size of the second, skip the largest, and continue to next...,
+   * until we meet the compactionThreshold limit.
+   *
+   * A problem with the above heuristic is that we could go through all of
+   * the files and the above condition could hold for all files and
+   * we'd end up with nothing to compact.  To protect against this, we'll
+   * compact the tail -- up to the last 4 files -- regardless.
+   *
+   * @param fileSizes Sizes of the store files, oldest first
+   * @return Index of the first file to compact; older files are skipped
+   */
+  private int selectMinorCompactionStart(final long [] fileSizes) {
+    int countOfFiles = fileSizes.length;
+    int tail = Math.min(countOfFiles, 4);
+    int point;
+    for (point = 0; point < (countOfFiles - tail); point++) {
+      if (((fileSizes[point] < fileSizes[point + 1] * 2) &&
+           (countOfFiles - point) <= maxFilesToCompact)) {
+        break;
+      }
+    }
+    return point;
+  }
+
+  /**
+   * Estimate of the bytes a compaction run now would read, using the same
+   * file selection as {@link #compact(boolean)}.  Used to hand the compaction
+   * to a thread for small or large compactions.
+   * @param mc True to force a major compaction
+   * @return Size of the store files that would be compacted, zero if
+   * {@link #compact(boolean)} would only check for a split
+   * @throws IOException
+   */
+  long getCompactionSize(final boolean mc) throws IOException {
+    List<StoreFile> files = this.storefiles;
+    if (files.isEmpty()) {
+      return 0;
+    }
+    boolean majorcompaction = mc || isMajorCompaction(files);
+    boolean references = hasReferences(files);
+    if (!majorcompaction && !references &&
+        (this.region.isSplitRequested() ||
+          files.size() < compactionThreshold)) {
+      return 0;
+    }
+    long [] fileSizes = new long[files.size()];
+    for (int i = 0; i < fileSizes.length; i++) {
+      StoreFile file = files.get(i);
+      Reader r = file.getReader();
+      if (file.getPath() == null || r == null) {
+        return 0;
+      }
+      fileSizes[i] = r.length();
+    }
+    int point = 0;
+    if (!majorcompaction && !references) {
+      point = selectMinorCompactionStart(fileSizes);
+      if (fileSizes.length - point <= 1) {
+        return 0;
+      }
+    }
+    long size = 0;
+    for (int i = point; i < fileSizes.length; i++) {
+      size += fileSizes[i];
+    }
+    return size;
+  }
+
   /*
    * @param files
    * @return True if any of the files in <code>files</code> are References.
@@ -951,7 +1062,7 @@ public class Store implements HConstants, HeapSize {
 
     // For each file, obtain a scanner:
     List<StoreFileScanner> scanners = StoreFileScanner
-      .getScannersForStoreFiles(filesToCompact, false, false);
+      .getScannersForStoreFiles(filesToCompact, false, false, true);
 
     // Make the instantiation lazy in case compaction produces no product; i.e.
     // where all source cells are expired or deleted.
@@ -1422,6 +1533,50 @@ public class Store implements HConstants, HeapSize {
     return size;
   }
 
+  /*
+   * Count a bloom filter check made to decide whether a get reads a store
+   * file.
+   * @param skipped True if the check ruled the file out
+   */
+  void countBloomCheck(final boolean skipped) {
+    this.bloomChecks.incrementAndGet();
+    if (skipped) {
+      this.bloomFilesSkipped.incrementAndGet();
+    }
+  }
+
+  /*
+   * Count a store file read by a get after passing its bloom filter check
+   * but not holding the row.
+   */
+  void countBloomFalsePositive() {
+    this.bloomFalsePositives.incrementAndGet();
+  }
+
+  /**
+   * @return Count of store file bloom filters checked by gets since the
+   * last call
+   */
+  long getBloomChecks() {
+    return this.bloomChecks.getAndSet(0);
+  }
+
+  /**
+   * @return Count of store files skipped by gets on a bloom filter check
+   * since the last call
+   */
+  long getBloomFilesSkipped() {
+    return this.bloomFilesSkipped.getAndSet(0);
+  }
+
+  /**
+   * @return Count of store files read by gets after a bloom filter check
+   * that had nothing for the row, since the last call
+   */
+  long getBloomFalsePositives() {
+    return this.bloomFalsePositives.getAndSet(0);
+  }
+
   /**
    * Datastructure that holds size and row to split a file around.
    * TODO: Take a KeyValue rather than row.
@@ -1509,23 +1664,44 @@ public class Store implements HConstants, HeapSize {
         return;
       }
 
-      // Get storefiles for this store
+      // Get storefiles for this store, leaving out those the bloom filter
+      // says do not have the row before reading any of their blocks
       List<HFileScanner> storefileScanners = new ArrayList<HFileScanner>();
+      Set<HFileScanner> bloomPassed = null;
       for (StoreFile sf : Iterables.reverse(this.storefiles)) {
-        HFile.Reader r = sf.getReader();
+        StoreFile.Reader r = sf.getReader();
         if (r == null) {
           LOG.warn("StoreFile " + sf + " has a null Reader");
           continue;
         }
+        boolean bloomChecked = r.isBloomApplicable(columns);
+        if (bloomChecked) {
+          boolean passed = r.passesBloomFilter(get.getRow(), columns);
+          countBloomCheck(!passed);
+          if (!passed) {
+            continue;
+          }
+        }
         // Get a scanner that caches the block and uses pread
-        storefileScanners.add(r.getScanner(true, true));
+        HFileScanner s = r.getScanner(true, true);
+        storefileScanners.add(s);
+        if (bloomChecked) {
+          if (bloomPassed == null) {
+            bloomPassed = new HashSet<HFileScanner>();
+          }
+          bloomPassed.add(s);
+        }
       }
 
       // StoreFileGetScan will handle reading this store's storefiles
-      StoreFileGetScan scanner = new StoreFileGetScan(storefileScanners, matcher);
+      StoreFileGetScan scanner =
+        new StoreFileGetScan(storefileScanners, matcher, bloomPassed);
 
       // Run a GET scan and put results into the specified list
       scanner.get(result);
+      if (scanner.getBloomFalsePositives() > 0) {
+        this.bloomFalsePositives.addAndGet(scanner.getBloomFalsePositives());
+      }
     } finally {
       this.lock.readLock().unlock();
     }
@@ -1602,7 +1778,7 @@ public class Store implements HConstants, HeapSize {
   private class StoreFlusherImpl implements StoreFlusher {
 
     private long cacheFlushId;
-    private SortedSet<KeyValue> snapshot;
+    private NavigableSet<KeyValue> snapshot;
     private StoreFile storeFile;
 
     private StoreFlusherImpl(long cacheFlushId) {
@@ -1617,6 +1793,8 @@ public class Store implements HConstants, HeapSize {
 
     @Override
     public void flushCache() throws IOException {
+      // Updates go on again by now; flattening copies the whole snapshot.
+      snapshot = memstore.flattenSnapshot(snapshot);
       storeFile = Store.this.flushCache(cacheFlushId, snapshot);
     }
 
@@ -1641,14 +1819,15 @@ public class Store implements HConstants, HeapSize {
   }
 
   public static final long FIXED_OVERHEAD = ClassSize.align(
-      ClassSize.OBJECT + (16 * ClassSize.REFERENCE) +
-      (6 * Bytes.SIZEOF_LONG) + (3 * Bytes.SIZEOF_INT) + Bytes.SIZEOF_BOOLEAN +
+      ClassSize.OBJECT + (19 * ClassSize.REFERENCE) +
+      (6 * Bytes.SIZEOF_LONG) + (3 * Bytes.SIZEOF_INT) + (2 * Bytes.SIZEOF_BOOLEAN) +
       ClassSize.align(ClassSize.ARRAY));
 
   public static final long DEEP_OVERHEAD = ClassSize.align(FIXED_OVERHEAD +
       ClassSize.OBJECT + ClassSize.REENTRANT_LOCK +
       ClassSize.CONCURRENT_SKIPLISTMAP +
-      ClassSize.CONCURRENT_SKIPLISTMAP_ENTRY + ClassSize.OBJECT);
+      ClassSize.CONCURRENT_SKIPLISTMAP_ENTRY + ClassSize.OBJECT +
+      (3 * ClassSize.ATOMIC_LONG));
 
   @Override
   public long heapSize() {
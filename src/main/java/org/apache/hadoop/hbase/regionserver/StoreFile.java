@@ -28,16 +28,23 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.KeyValue.KVComparator;
+import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.io.HalfStoreFileReader;
 import org.apache.hadoop.hbase.io.Reference;
+import org.apache.hadoop.hbase.io.hfile.BlockBufferPool;
 import org.apache.hadoop.hbase.io.hfile.BlockCache;
+import org.apache.hadoop.hbase.io.hfile.BlockPrefetcher;
 import org.apache.hadoop.hbase.io.hfile.Compression;
+import org.apache.hadoop.hbase.io.hfile.DataBlockEncoding;
 import org.apache.hadoop.hbase.io.hfile.HFile;
 import org.apache.hadoop.hbase.io.hfile.HFileScanner;
 import org.apache.hadoop.hbase.io.hfile.LruBlockCache;
+import org.apache.hadoop.hbase.io.hfile.OffHeapBlockCache;
 import org.apache.hadoop.hbase.util.BloomFilter;
+import org.apache.hadoop.hbase.util.BloomFilterBase;
 import org.apache.hadoop.hbase.util.ByteBloomFilter;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.CompoundBloomFilter;
 import org.apache.hadoop.hbase.util.Hash;
 import org.apache.hadoop.util.StringUtils;
 
@@ -59,6 +66,7 @@ import java.util.Map;
 import java.util.SortedSet;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -76,8 +84,35 @@ public class StoreFile implements HConstants {
   static final Log LOG = LogFactory.getLog(StoreFile.class.getName());
 
   private static final String HFILE_CACHE_SIZE_KEY = "hfile.block.cache.size";
+  private static final String HFILE_CACHE_CLOCK_EVICTION_KEY =
+    "hfile.block.cache.clock.eviction";
+  private static final String HFILE_COMPRESSED_CACHE_SIZE_KEY =
+    "hfile.block.compressed.cache.size";
+  private static final String OFFHEAP_CACHE_SIZE_KEY = "hbase.offheapcache.size";
+  private static final String OFFHEAP_CACHE_SLOT_SIZE_KEY =
+    "hbase.offheapcache.slotsize";
+
+  private static final String BLOOM_CACHE_SIZE_KEY = "io.hfile.bloom.cache.size";
+
+  private static final String BLOCK_BUFFER_POOL_SIZE_KEY =
+    "hfile.block.buffer.pool.size";
+
+  private static final String READ_AHEAD_THREADS_KEY =
+    "hfile.block.readahead.threads";
+  private static final String READ_AHEAD_BLOCKS_KEY =
+    "hfile.block.readahead.blocks";
+  private static final String READ_AHEAD_SIZE_KEY =
+    "hfile.block.readahead.size";
 
   private static BlockCache hfileBlockCache = null;
+  private static BlockCache compressedBlockCache = null;
+  private static BlockBufferPool blockBufferPool = null;
+  private static BlockPrefetcher blockPrefetcher = null;
+
+  // Heap allowed for bloom filter bit arrays pinned by open readers, and
+  // how much of it is in use.
+  private static long bloomCacheMaxSize = -1;
+  private static final AtomicLong bloomCacheSize = new AtomicLong(0);
 
   // Make default block size for StoreFiles 8k while testing.  TODO: FIX!
   // Need to make it 8k for testing.
@@ -109,6 +144,13 @@ public class StoreFile implements HConstants {
   // whenever you get a Reader.
   private AtomicBoolean majorCompaction = null;
 
+  /** Constant for the meta holding the minimum and maximum timestamps */
+  public static final byte [] TIMERANGE_KEY = Bytes.toBytes("TIMERANGE");
+
+  /** Constant for the meta holding the count of delete family markers */
+  public static final byte [] DELETE_FAMILY_COUNT_KEY =
+    Bytes.toBytes("DELETE_FAMILY_COUNT");
+
   /** Meta key set when store file is a result of a bulk load */
   public static final byte[] BULKLOAD_TASK_KEY =
     Bytes.toBytes("BULKLOAD_SOURCE_TASK");
@@ -118,6 +160,7 @@ public class StoreFile implements HConstants {
   
   static final String BLOOM_FILTER_META_KEY = "BLOOM_FILTER_META";
   static final String BLOOM_FILTER_DATA_KEY = "BLOOM_FILTER_DATA";
+  static final String BLOOM_FILTER_CHUNK_KEY_PREFIX = "BLOOM_FILTER_CHUNK_";
   static final byte[] BLOOM_FILTER_TYPE_KEY = 
     Bytes.toBytes("BLOOM_FILTER_TYPE");
 
@@ -319,10 +362,150 @@ public class StoreFile implements HConstants {
     long cacheSize = (long)(mu.getMax() * cachePercentage);
     LOG.info("Allocating LruBlockCache with maximum size " +
       StringUtils.humanReadableInt(cacheSize));
-    hfileBlockCache = new LruBlockCache(cacheSize, DEFAULT_BLOCKSIZE_SMALL);
+    LruBlockCache lru = new LruBlockCache(cacheSize, DEFAULT_BLOCKSIZE_SMALL,
+      true, conf.getBoolean(HFILE_CACHE_CLOCK_EVICTION_KEY, false));
+    long offHeapSize = conf.getLong(OFFHEAP_CACHE_SIZE_KEY, 0);
+    if (offHeapSize > 0) {
+      int slotSize = conf.getInt(OFFHEAP_CACHE_SLOT_SIZE_KEY,
+        OffHeapBlockCache.DEFAULT_SLOT_SIZE);
+      LOG.info("Allocating OffHeapBlockCache victim cache with maximum size " +
+        StringUtils.humanReadableInt(offHeapSize));
+      lru.setVictimCache(new OffHeapBlockCache(offHeapSize, slotSize));
+    }
+    hfileBlockCache = lru;
     return hfileBlockCache;
   }
 
+  /**
+   * Returns the cache of compressed blocks as stored, or <code>null</code> in
+   * case none should be used.
+   *
+   * @param conf  The current configuration.
+   * @return The compressed block cache or <code>null</code>.
+   */
+  public static synchronized BlockCache getCompressedBlockCache(
+      Configuration conf) {
+    if (compressedBlockCache != null) return compressedBlockCache;
+
+    float cachePercentage = conf.getFloat(HFILE_COMPRESSED_CACHE_SIZE_KEY,
+      0.0f);
+    if (cachePercentage == 0L) return null;
+    if (cachePercentage > 1.0) {
+      throw new IllegalArgumentException(HFILE_COMPRESSED_CACHE_SIZE_KEY +
+        " must be between 0.0 and 1.0, not > 1.0");
+    }
+    MemoryUsage mu = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    long cacheSize = (long)(mu.getMax() * cachePercentage);
+    LOG.info("Allocating compressed LruBlockCache with maximum size " +
+      StringUtils.humanReadableInt(cacheSize));
+    compressedBlockCache = new LruBlockCache(cacheSize,
+      DEFAULT_BLOCKSIZE_SMALL, true,
+      conf.getBoolean(HFILE_CACHE_CLOCK_EVICTION_KEY, false));
+    // Blocks go in compressed once evicted from the block cache.  Remember
+    // about as many evicted blocks as fit here.
+    LruBlockCache lru = (LruBlockCache)getBlockCache(conf);
+    if (lru != null) {
+      lru.setEvictedKeysKept((int)(cacheSize / DEFAULT_BLOCKSIZE_SMALL));
+    }
+    return compressedBlockCache;
+  }
+
+  /**
+   * Returns the pool of arrays readers read blocks into, or <code>null</code>
+   * in case none should be used.
+   *
+   * @param conf  The current configuration.
+   * @return The block buffer pool or <code>null</code>.
+   */
+  public static synchronized BlockBufferPool getBlockBufferPool(
+      Configuration conf) {
+    if (blockBufferPool != null) return blockBufferPool;
+    long poolSize = conf.getLong(BLOCK_BUFFER_POOL_SIZE_KEY, 16 * 1024 * 1024);
+    if (poolSize <= 0) return null;
+    blockBufferPool = new BlockBufferPool(poolSize);
+    return blockBufferPool;
+  }
+
+  /**
+   * Returns the threads that read blocks ahead of scanners, or
+   * <code>null</code> in case blocks should not be read ahead.
+   *
+   * @param conf  The current configuration.
+   * @return The block prefetcher or <code>null</code>.
+   */
+  public static synchronized BlockPrefetcher getBlockPrefetcher(
+      Configuration conf) {
+    if (blockPrefetcher != null) return blockPrefetcher;
+    int threads = conf.getInt(READ_AHEAD_THREADS_KEY, 4);
+    int blocks = conf.getInt(READ_AHEAD_BLOCKS_KEY, 4);
+    long size = conf.getLong(READ_AHEAD_SIZE_KEY, 32 * 1024 * 1024);
+    if (threads <= 0 || blocks <= 0 || size <= 0) return null;
+    LOG.info("Reading up to " + blocks + " blocks ahead of scanners with " +
+      threads + " threads, " + StringUtils.humanReadableInt(size) +
+      " at a time");
+    blockPrefetcher = new BlockPrefetcher(threads, blocks, size);
+    return blockPrefetcher;
+  }
+
+  /*
+   * @return Name of the meta block holding the given chunk of a chunked
+   * bloom filter.  Zero padded so chunk blocks sort in chunk order.
+   */
+  static String getBloomChunkName(final int chunk) {
+    return BLOOM_FILTER_CHUNK_KEY_PREFIX + String.format("%08d", chunk);
+  }
+
+  /**
+   * Returns the heap allowed for bloom filter bit arrays kept in memory by
+   * open readers.  This is apart from the block cache, so blooms are not
+   * evicted by data blocks.
+   *
+   * @param conf  The current configuration.
+   * @return The bloom cache size in bytes.
+   */
+  static synchronized long getBloomCacheMaxSize(Configuration conf) {
+    if (bloomCacheMaxSize >= 0) return bloomCacheMaxSize;
+
+    float cachePercentage = conf.getFloat(BLOOM_CACHE_SIZE_KEY, 0.05f);
+    if (cachePercentage < 0.0 || cachePercentage > 1.0) {
+      throw new IllegalArgumentException(BLOOM_CACHE_SIZE_KEY +
+        " must be between 0.0 and 1.0");
+    }
+    MemoryUsage mu = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    bloomCacheMaxSize = (long)(mu.getMax() * cachePercentage);
+    LOG.info("Allowing " + StringUtils.humanReadableInt(bloomCacheMaxSize) +
+      " for in-memory bloom filters");
+    return bloomCacheMaxSize;
+  }
+
+  /**
+   * @return Heap currently held by in-memory bloom filter bit arrays.
+   */
+  public static long getBloomCacheSize() {
+    return bloomCacheSize.get();
+  }
+
+  /*
+   * @return True if <code>bytes</code> were reserved in the bloom cache.
+   */
+  static boolean reserveBloomCache(final Configuration conf,
+      final long bytes) {
+    long max = getBloomCacheMaxSize(conf);
+    while (true) {
+      long current = bloomCacheSize.get();
+      if (current + bytes > max) {
+        return false;
+      }
+      if (bloomCacheSize.compareAndSet(current, current + bytes)) {
+        return true;
+      }
+    }
+  }
+
+  static void releaseBloomCache(final long bytes) {
+    bloomCacheSize.addAndGet(-bytes);
+  }
+
   /**
    * @return the blockcache
    */
@@ -330,6 +513,13 @@ public class StoreFile implements HConstants {
     return blockcache ? getBlockCache(conf) : null;
   }
 
+  /**
+   * @return the compressed blockcache
+   */
+  public BlockCache getCompressedBlockCache() {
+    return blockcache ? getCompressedBlockCache(conf) : null;
+  }
+
   /**
    * Opens reader on this store file.  Called by Constructor.
    * @return Reader for the store file.
@@ -348,6 +538,9 @@ public class StoreFile implements HConstants {
       this.reader = new StoreFile.Reader(this.fs, this.path, getBlockCache(),
           this.inMemory);
     }
+    this.reader.setBlockBufferPool(getBlockBufferPool(this.conf));
+    this.reader.setCompressedBlockCache(getCompressedBlockCache());
+    this.reader.setBlockPrefetcher(getBlockPrefetcher(this.conf));
     // Load up indices and fileinfo.
     metadataMap = Collections.unmodifiableMap(this.reader.loadFileInfo());
     // Read in our metadata.
@@ -378,6 +571,7 @@ public class StoreFile implements HConstants {
     
     if (this.bloomType != BloomType.NONE) {
       this.reader.loadBloomfilter();
+      this.reader.pinBloom(this.conf);
     }
 
     return this.reader;
@@ -610,9 +804,17 @@ public class StoreFile implements HConstants {
    */
   public static class Reader extends HFile.Reader {
     /** Bloom Filter class.  Caches only meta, pass in data */
-    protected BloomFilter bloomFilter = null;
+    protected BloomFilterBase bloomFilter = null;
     /** Type of bloom filter (e.g. ROW vs ROWCOL) */
     protected BloomType bloomFilterType;
+    /** Bloom filter data kept out of the block cache, if there was room */
+    private ByteBuffer bloomData = null;
+    private long bloomDataSize = 0;
+    /** Timestamps of the key/values of the file, if it has them in meta */
+    private long minTimestamp = Long.MIN_VALUE;
+    private long maxTimestamp = Long.MAX_VALUE;
+    /** Delete family markers in the file, or -1 if not known */
+    private long deleteFamilyCount = -1;
 
     public Reader(FileSystem fs, Path path, BlockCache cache, 
         boolean inMemory)
@@ -635,7 +837,17 @@ public class StoreFile implements HConstants {
       if (b != null) {
         bloomFilterType = BloomType.valueOf(Bytes.toString(b));
       }
-      
+
+      b = fi.get(TIMERANGE_KEY);
+      if (b != null && b.length == 2 * Bytes.SIZEOF_LONG) {
+        this.minTimestamp = Bytes.toLong(b, 0);
+        this.maxTimestamp = Bytes.toLong(b, Bytes.SIZEOF_LONG);
+        b = fi.get(DELETE_FAMILY_COUNT_KEY);
+        if (b != null) {
+          this.deleteFamilyCount = Bytes.toLong(b);
+        }
+      }
+
       return fi;
     }
     
@@ -655,7 +867,11 @@ public class StoreFile implements HConstants {
           if (bloomFilterType == BloomType.NONE) {
             throw new IOException("valid bloom filter type not found in FileInfo");
           }
-          this.bloomFilter = new ByteBloomFilter(b);
+          if (CompoundBloomFilter.isCompound(b)) {
+            this.bloomFilter = new CompoundBloomFilter(b);
+          } else {
+            this.bloomFilter = new ByteBloomFilter(b);
+          }
           LOG.info("Loaded " + (bloomFilterType==BloomType.ROW? "row":"col") 
                  + " bloom filter metadata for " + name);
         }
@@ -668,9 +884,162 @@ public class StoreFile implements HConstants {
       }
     }
     
-    BloomFilter getBloomFilter() {
+    /**
+     * Keep the bloom filter data of this file in memory, if the bloom cache
+     * has room for it, so checking it never costs a block cache lookup or a
+     * read.  Otherwise the data is read through the block cache as needed.
+     * Released on {@link #close()}.  Chunked bloom filters are not kept; their
+     * chunks go through the block cache like data blocks.
+     * @param conf HBase system configuration, for the bloom cache size
+     */
+    synchronized void pinBloom(final Configuration conf) {
+      if (this.bloomFilter == null || this.bloomData != null ||
+          this.bloomFilter instanceof CompoundBloomFilter) {
+        return;
+      }
+      long size = this.bloomFilter.getByteSize();
+      if (!reserveBloomCache(conf, size)) {
+        LOG.debug("Bloom cache full; not keeping bloom filter of " + name +
+          " in memory");
+        return;
+      }
+      try {
+        this.bloomData = getMetaBlock(BLOOM_FILTER_DATA_KEY, false);
+      } catch (IOException e) {
+        LOG.warn("Error reading bloom filter data of " + name, e);
+      }
+      if (this.bloomData == null) {
+        releaseBloomCache(size);
+      } else {
+        this.bloomDataSize = size;
+      }
+    }
+
+    BloomFilterBase getBloomFilter() {
       return this.bloomFilter;
     }
+
+    /**
+     * @param columns columns asked for
+     * @return True if the bloom filter of this file can tell whether a row
+     * is in it when asking for these columns
+     */
+    public boolean isBloomApplicable(final SortedSet<byte[]> columns) {
+      if (this.bloomFilter == null) {
+        return false;
+      }
+      switch(bloomFilterType) {
+        case ROW:
+          return true;
+        case ROWCOL:
+          return columns != null && !columns.isEmpty();
+        default:
+          return false;
+      }
+    }
+
+    /**
+     * Checks the bloom filter of this file, if it has one that applies.
+     * @param row row asked for
+     * @param columns columns asked for
+     * @return False if this file has nothing for the row and columns; true
+     * if it may have, or if that can not be told.
+     */
+    public boolean passesBloomFilter(final byte [] row,
+        final SortedSet<byte[]> columns) {
+      if (!isBloomApplicable(columns)) {
+        return true;
+      }
+
+      try {
+        BloomFilter filter;
+        ByteBuffer bloom;
+        if (this.bloomFilter instanceof CompoundBloomFilter) {
+          CompoundBloomFilter compound = (CompoundBloomFilter)this.bloomFilter;
+          int chunk = compound.chunkFor(row, 0, row.length);
+          if (chunk < 0) {
+            return false; // sorts before all rows of this file
+          }
+          bloom = getMetaBlock(getBloomChunkName(chunk), true);
+          filter = compound.getChunk(chunk);
+        } else {
+          filter = (BloomFilter)this.bloomFilter;
+          bloom = this.bloomData;
+          if (bloom == null) {
+            bloom = getMetaBlock(BLOOM_FILTER_DATA_KEY, true);
+          }
+        }
+        if (bloom != null) {
+          if (bloomFilterType == BloomType.ROW) {
+            return filter.contains(row, bloom);
+          }
+          // Row and column: the file is of use if any column may be in it
+          for (byte [] column : columns) {
+            if (filter.contains(Bytes.add(row, column), bloom)) {
+              return true;
+            }
+          }
+          return false;
+        }
+      } catch (IOException e) {
+        LOG.error("Error reading bloom filter data -- proceeding without",
+            e);
+        bloomFilter = null;
+      } catch (IllegalArgumentException e) {
+        LOG.error("Bad bloom filter data -- proceeding without", e);
+        bloomFilter = null;
+      }
+
+      return true;
+    }
+
+    /**
+     * @return Smallest timestamp in the file, or Long.MIN_VALUE if not known
+     */
+    public long getMinTimestamp() {
+      return this.minTimestamp;
+    }
+
+    /**
+     * @return Largest timestamp in the file, or Long.MAX_VALUE if not known
+     */
+    public long getMaxTimestamp() {
+      return this.maxTimestamp;
+    }
+
+    /**
+     * @return True if the file is known to hold no delete family markers
+     */
+    public boolean hasNoDeleteFamily() {
+      return this.deleteFamilyCount == 0;
+    }
+
+    /**
+     * Checks the timestamps of this file against those a scan can use.
+     * Delete markers newer than the time range of a scan still mask the
+     * versions in it, so only files entirely older than the range are left
+     * out.
+     * @param scan scan asked for
+     * @param oldestUnexpiredTS timestamps before this one are past the TTL
+     * @return False if nothing in this file can be returned by the scan
+     */
+    public boolean passesTimerangeFilter(final Scan scan,
+        final long oldestUnexpiredTS) {
+      return this.maxTimestamp >= scan.getTimeRange().getMin() &&
+        this.maxTimestamp >= oldestUnexpiredTS;
+    }
+
+    @Override
+    public void close() throws IOException {
+      synchronized (this) {
+        if (this.bloomData != null) {
+          releaseBloomCache(this.bloomDataSize);
+          this.bloomData = null;
+          this.bloomDataSize = 0;
+        }
+      }
+      super.close();
+    }
     
     /**
      * @return bloom type information associated with this store file
@@ -686,67 +1055,57 @@ public class StoreFile implements HConstants {
     }
 
     @Override
-    public HFileScanner getScanner(boolean cacheBlocks, final boolean pread) {
-      return new Scanner(this, cacheBlocks, pread);
+    public HFileScanner getScanner(boolean cacheBlocks, final boolean pread,
+        final boolean readAhead) {
+      if (getDataBlockEncoding() != DataBlockEncoding.NONE) {
+        return new EncodedScanner(this, cacheBlocks, pread, readAhead);
+      }
+      return new Scanner(this, cacheBlocks, pread, readAhead);
     }
 
     protected class Scanner extends HFile.Reader.Scanner {
-      public Scanner(Reader r, boolean cacheBlocks, final boolean pread) {
-        super(r, cacheBlocks, pread);
+      public Scanner(Reader r, boolean cacheBlocks, final boolean pread,
+          final boolean readAhead) {
+        super(r, cacheBlocks, pread, readAhead);
       }
 
       @Override
-      public boolean shouldSeek(final byte[] row, 
+      public boolean shouldSeek(final byte[] row,
           final SortedSet<byte[]> columns) {
-        if (bloomFilter == null) {
-          return true;
-        }
-        
-        byte[] key;
-        switch(bloomFilterType) {
-          case ROW:
-            key = row;
-            break;
-          case ROWCOL:
-            if (columns.size() == 1) {
-              byte[] col = columns.first();
-              key = Bytes.add(row, col);
-              break;
-            }
-            //$FALL-THROUGH$
-          default:
-            return true;
-        }
-        
-        try {
-          ByteBuffer bloom = getMetaBlock(BLOOM_FILTER_DATA_KEY, true);
-          if (bloom != null) {
-            return bloomFilter.contains(key, bloom);
-          }
-        } catch (IOException e) {
-          LOG.error("Error reading bloom filter data -- proceeding without", 
-              e);
-          bloomFilter = null;
-        } catch (IllegalArgumentException e) {
-          LOG.error("Bad bloom filter data -- proceeding without", e);
-          bloomFilter = null;
-        }
-          
-        return true;
+        return passesBloomFilter(row, columns);
       }
       
     }
+
+    protected class EncodedScanner extends HFile.Reader.EncodedScanner {
+      public EncodedScanner(Reader r, boolean cacheBlocks,
+          final boolean pread, final boolean readAhead) {
+        super(r, cacheBlocks, pread, readAhead);
+      }
+
+      @Override
+      public boolean shouldSeek(final byte[] row,
+          final SortedSet<byte[]> columns) {
+        return passesBloomFilter(row, columns);
+      }
+    }
   }
   
   /**
    *
    */
   public static class Writer extends HFile.Writer {
-    private final BloomFilter bloomFilter;
+    private final BloomFilterBase bloomFilter;
     private final BloomType bloomType;
     private KVComparator kvComparator;
     private KeyValue lastKv = null;
     private byte[] lastByteArray = null;
+    // Timestamps of the key/values appended, and whether they are known:
+    // keys appended as byte arrays are not looked into.
+    private long minTimestamp = Long.MAX_VALUE;
+    private long maxTimestamp = Long.MIN_VALUE;
+    private boolean timeRangeKnown = true;
+    private long deleteFamilyCount = 0;
 
     /**
      * Creates an HFile.Writer that also write helpful meta data.
@@ -767,13 +1126,25 @@ public class StoreFile implements HConstants {
       super(fs, path, blocksize, compress, comparator.getRawComparator());
 
       this.kvComparator = comparator;
+      if (conf != null) {
+        setIndexLeafEntries(conf.getInt("hfile.index.leaf.entries", 128));
+        setChecksums(conf.getBoolean("hfile.block.checksum", true));
+      }
 
       if (bloomType != BloomType.NONE && conf != null) {
         float err = conf.getFloat("io.hfile.bloom.error.rate", (float)0.01);      
         int maxFold = conf.getInt("io.hfile.bloom.max.fold", 7);
-        
-        this.bloomFilter = new ByteBloomFilter(maxKeys, err, 
-            Hash.getHashType(conf), maxFold);
+        int chunkKeys = conf.getInt("io.hfile.bloom.chunk.keys", 128 * 1024);
+
+        // Files expected to hold more keys than fit a chunk get a chunked
+        // bloom, so readers never load one bit array for the whole file.
+        if (chunkKeys > 0 && maxKeys > chunkKeys) {
+          this.bloomFilter = new CompoundBloomFilter(chunkKeys, err,
+              Hash.getHashType(conf), maxFold);
+        } else {
+          this.bloomFilter = new ByteBloomFilter(maxKeys, err,
+              Hash.getHashType(conf), maxFold);
+        }
         this.bloomFilter.allocBloom();
         this.bloomType = bloomType;
       } else {
@@ -815,6 +1186,11 @@ public class StoreFile implements HConstants {
           }
         }
         if (newKey) {
+          if (this.bloomFilter instanceof CompoundBloomFilter &&
+              (this.lastKv == null || !kvComparator.matchingRows(kv, lastKv))) {
+            ((CompoundBloomFilter)this.bloomFilter).newRow(kv.getBuffer(),
+                kv.getRowOffset(), kv.getRowLength());
+          }
           /*
            * http://2.bp.blogspot.com/_Cib_A77V54U/StZMrzaKufI/AAAAAAAAADo/ZhK7bGoJdMQ/s400/KeyValue.png
            * Key = RowLen + Row + FamilyLen + Column [Family + Qualifier] + TimeStamp
@@ -845,6 +1221,16 @@ public class StoreFile implements HConstants {
           this.lastKv = kv;
         }
       }
+      long ts = kv.getTimestamp();
+      if (ts < this.minTimestamp) {
+        this.minTimestamp = ts;
+      }
+      if (ts > this.maxTimestamp) {
+        this.maxTimestamp = ts;
+      }
+      if (kv.isDeleteFamily()) {
+        this.deleteFamilyCount++;
+      }
       super.append(kv);
     }
 
@@ -854,10 +1240,14 @@ public class StoreFile implements HConstants {
       if (this.bloomFilter != null) {
         // only add to the bloom filter on a new row
         if(this.lastByteArray == null || !Arrays.equals(key, lastByteArray)) {
+          if (this.bloomFilter instanceof CompoundBloomFilter) {
+            ((CompoundBloomFilter)this.bloomFilter).newRow(key, 0, key.length);
+          }
           this.bloomFilter.add(key);
           this.lastByteArray = key;
         }
       }
+      this.timeRangeKnown = false;
       super.append(key, value);
     }
     
@@ -866,7 +1256,7 @@ public class StoreFile implements HConstants {
     throws IOException {
       // make sure we wrote something to the bloom before adding it
       if (this.bloomFilter != null && this.bloomFilter.getKeyCount() > 0) {
-        bloomFilter.finalize();
+        bloomFilter.compactBloom();
         if (this.bloomFilter.getMaxKeys() > 0) {
           int b = this.bloomFilter.getByteSize();
           int k = this.bloomFilter.getKeyCount();
@@ -876,9 +1266,24 @@ public class StoreFile implements HConstants {
                 ((double)k) / ((double)m)) + ")");
         }
         appendMetaBlock(BLOOM_FILTER_META_KEY, bloomFilter.getMetaWriter());
-        appendMetaBlock(BLOOM_FILTER_DATA_KEY, bloomFilter.getDataWriter());
+        if (this.bloomFilter instanceof CompoundBloomFilter) {
+          CompoundBloomFilter compound = (CompoundBloomFilter)this.bloomFilter;
+          for (int i = 0; i < compound.getChunkCount(); i++) {
+            appendMetaBlock(getBloomChunkName(i),
+                compound.getChunkDataWriter(i));
+          }
+        } else {
+          appendMetaBlock(BLOOM_FILTER_DATA_KEY,
+              ((BloomFilter)bloomFilter).getDataWriter());
+        }
         appendFileInfo(BLOOM_FILTER_TYPE_KEY, Bytes.toBytes(bloomType.toString()));
       }
+      if (this.timeRangeKnown && this.minTimestamp <= this.maxTimestamp) {
+        appendFileInfo(TIMERANGE_KEY, Bytes.add(
+          Bytes.toBytes(this.minTimestamp), Bytes.toBytes(this.maxTimestamp)));
+        appendFileInfo(DELETE_FAMILY_COUNT_KEY,
+          Bytes.toBytes(this.deleteFamilyCount));
+      }
       super.close();
     }
     
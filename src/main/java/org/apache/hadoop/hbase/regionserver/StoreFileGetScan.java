@@ -25,6 +25,7 @@ import org.apache.hadoop.hbase.util.Bytes;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Use to execute a get by scanning all the store files in order.
@@ -36,15 +37,42 @@ public class StoreFileGetScan {
 
   private KeyValue startKey;
 
+  // Scanners of files whose bloom filter said the row may be there
+  private Set<HFileScanner> bloomPassed;
+  // Set if the last file read had a key in the row asked for
+  private boolean rowFound;
+  private int bloomFalsePositives = 0;
+
   /**
    * Constructor
    * @param scanners
    * @param matcher
    */
   public StoreFileGetScan(List<HFileScanner> scanners, QueryMatcher matcher) {
+    this(scanners, matcher, null);
+  }
+
+  /**
+   * Constructor
+   * @param scanners
+   * @param matcher
+   * @param bloomPassed scanners of files that passed a bloom filter check,
+   * to count the false positives among them; may be null
+   */
+  public StoreFileGetScan(List<HFileScanner> scanners, QueryMatcher matcher,
+      Set<HFileScanner> bloomPassed) {
     this.scanners = scanners;
     this.matcher = matcher;
     this.startKey = matcher.getStartKey();
+    this.bloomPassed = bloomPassed;
+  }
+
+  /**
+   * @return Count of files read that passed the bloom filter check but had
+   * nothing in the row asked for
+   */
+  public int getBloomFalsePositives() {
+    return this.bloomFalsePositives;
   }
 
   /**
@@ -62,7 +90,12 @@ public class StoreFileGetScan {
   public void get(List<KeyValue> result) throws IOException {
     for(HFileScanner scanner : this.scanners) {
       this.matcher.update();
-      if (getStoreFile(scanner, result) || matcher.isDone()) {
+      boolean done = getStoreFile(scanner, result);
+      if (!this.rowFound && this.bloomPassed != null &&
+          this.bloomPassed.contains(scanner)) {
+        this.bloomFalsePositives++;
+      }
+      if (done || matcher.isDone()) {
         return;
       }
     }
@@ -77,6 +110,7 @@ public class StoreFileGetScan {
    */
   public boolean getStoreFile(HFileScanner scanner, List<KeyValue> result)
   throws IOException {
+    this.rowFound = false;
     if (scanner.seekTo(startKey.getBuffer(), startKey.getKeyOffset(),
         startKey.getKeyLength()) == -1) {
       // No keys in StoreFile at or after specified startKey
@@ -94,6 +128,11 @@ public class StoreFileGetScan {
     }
     do {
       KeyValue kv = scanner.getKeyValue();
+      if (!this.rowFound) {
+        this.rowFound = this.matcher.rowComparator.compareRows(kv.getBuffer(),
+          kv.getRowOffset(), kv.getRowLength(), startKey.getBuffer(),
+          startKey.getRowOffset(), startKey.getRowLength()) == 0;
+      }
       switch(matcher.match(kv)) {
         case INCLUDE:
           result.add(kv);
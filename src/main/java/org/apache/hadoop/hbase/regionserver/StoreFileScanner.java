@@ -24,7 +24,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.io.hfile.HFileScanner;
-import org.apache.hadoop.hbase.io.hfile.HFile.Reader;
+import org.apache.hadoop.hbase.util.Bytes;
 
 
 import java.io.IOException;
@@ -38,14 +38,22 @@ import java.util.List;
 class StoreFileScanner implements KeyValueScanner {
   static final Log LOG = LogFactory.getLog(Store.class);
 
+  private final StoreFile.Reader reader;
   private HFileScanner hfs;
   private KeyValue cur = null;
+  // Key to seek to once the scanner is used, if the seek was put off.
+  private KeyValue pendingSeekKey = null;
+  // Set by the first seek made in the file; whether it found the row sought.
+  private boolean fileSeeked = false;
+  private boolean seekFoundRow = false;
 
   /**
    * Implements a {@link KeyValueScanner} on top of the specified {@link HFileScanner}
+   * @param reader Reader of the store file
    * @param hfs HFile scanner
    */
-  private StoreFileScanner(HFileScanner hfs) {
+  private StoreFileScanner(StoreFile.Reader reader, HFileScanner hfs) {
+    this.reader = reader;
     this.hfs = hfs;
   }
 
@@ -57,11 +65,27 @@ class StoreFileScanner implements KeyValueScanner {
       Collection<StoreFile> filesToCompact,
       boolean cacheBlocks,
       boolean usePread) throws IOException {
+    return getScannersForStoreFiles(filesToCompact, cacheBlocks, usePread,
+      false);
+  }
+
+  /**
+   * Return an array of scanners corresponding to the given
+   * set of store files.
+   * @param readAhead Read blocks ahead of the scanners, for scans that go
+   * through many blocks.
+   */
+  public static List<StoreFileScanner> getScannersForStoreFiles(
+      Collection<StoreFile> filesToCompact,
+      boolean cacheBlocks,
+      boolean usePread,
+      boolean readAhead) throws IOException {
     List<StoreFileScanner> scanners =
       new ArrayList<StoreFileScanner>(filesToCompact.size());
     for (StoreFile file : filesToCompact) {
-      Reader r = file.createReader();
-      scanners.add(new StoreFileScanner(r.getScanner(cacheBlocks, usePread)));
+      StoreFile.Reader r = file.createReader();
+      scanners.add(new StoreFileScanner(r,
+        r.getScanner(cacheBlocks, usePread, readAhead)));
     }
     return scanners;
   }
@@ -69,6 +93,10 @@ class StoreFileScanner implements KeyValueScanner {
   public HFileScanner getHFileScanner() {
     return this.hfs;
   }
+
+  StoreFile.Reader getReader() {
+    return this.reader;
+  }
   
   public String toString() {
     return "StoreFileScanner[" + hfs.toString() + ", cur=" + cur + "]";
@@ -79,6 +107,7 @@ class StoreFileScanner implements KeyValueScanner {
   }
 
   public KeyValue next() throws IOException {
+    enforceSeek();
     KeyValue retKey = cur;
     cur = hfs.getKeyValue();
     try {
@@ -92,12 +121,20 @@ class StoreFileScanner implements KeyValueScanner {
   }
 
   public boolean seek(KeyValue key) throws IOException {
+    this.pendingSeekKey = null;
+    boolean first = !this.fileSeeked;
+    this.fileSeeked = true;
     try {
       if(!seekAtOrAfter(hfs, key)) {
         close();
         return false;
       }
       cur = hfs.getKeyValue();
+      if (first) {
+        this.seekFoundRow = Bytes.compareTo(cur.getBuffer(),
+          cur.getRowOffset(), cur.getRowLength(), key.getBuffer(),
+          key.getRowOffset(), key.getRowLength()) == 0;
+      }
       hfs.next();
       return true;
     } catch(IOException ioe) {
@@ -105,9 +142,54 @@ class StoreFileScanner implements KeyValueScanner {
     }
   }
 
+  /**
+   * Seeks lazily: the seek is put off until {@link #enforceSeek()}, which a
+   * {@link KeyValueHeap} calls once this scanner reaches its top.  The fake
+   * key is the row and column of <code>key</code> with the largest timestamp
+   * in the file.  A file holding only versions older than those other
+   * scanners return for the column so may never be read.
+   */
+  public boolean requestSeek(KeyValue key) throws IOException {
+    if (this.pendingSeekKey != null &&
+        this.reader.getComparator().compare(key.getBuffer(),
+          key.getKeyOffset(), key.getKeyLength(),
+          this.pendingSeekKey.getBuffer(), this.pendingSeekKey.getKeyOffset(),
+          this.pendingSeekKey.getKeyLength()) < 0) {
+      // The seek put off already goes further.
+      key = this.pendingSeekKey;
+    }
+    long maxTimestamp = this.reader.getMaxTimestamp();
+    if (key.getTimestamp() <= maxTimestamp) {
+      // The fake key would be the key itself; nothing to gain.
+      return seek(key);
+    }
+    this.cur = KeyValue.createFirstOnRowColTS(key, maxTimestamp);
+    this.pendingSeekKey = key;
+    return true;
+  }
+
+  public boolean isRealSeekDone() {
+    return this.pendingSeekKey == null;
+  }
+
+  /**
+   * @return True if the first seek made in the file, if any, found nothing
+   * on the row it was after; the file was read for nothing
+   */
+  boolean isRowMissed() {
+    return this.fileSeeked && !this.seekFoundRow;
+  }
+
+  public void enforceSeek() throws IOException {
+    if (this.pendingSeekKey != null) {
+      seek(this.pendingSeekKey);
+    }
+  }
+
   public void close() {
     // Nothing to close on HFileScanner?
     cur = null;
+    pendingSeekKey = null;
   }
 
   /**
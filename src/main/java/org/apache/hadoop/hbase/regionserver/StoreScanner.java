@@ -40,10 +40,22 @@ class StoreScanner implements KeyValueScanner, InternalScanner, ChangedReadersOb
   private ScanQueryMatcher matcher;
   private KeyValueHeap heap;
   private boolean cacheBlocks;
+  // Read blocks ahead of the store file scanners.
+  private boolean readAhead = false;
+
+  /**
+   * Configuration key: scans fetching at least this many rows at a time
+   * read store file blocks ahead, as do scans that skip the block cache.
+   */
+  static final String READ_AHEAD_CACHING_KEY =
+    "hbase.regionserver.readahead.caching";
+  static final int DEFAULT_READ_AHEAD_CACHING = 100;
 
   // Used to indicate that the scanner has closed (see HBASE-1107)
   private boolean closing = false;
   private final boolean isGet;
+  // Store file scanners of a get that passed a bloom filter check
+  private List<StoreFileScanner> bloomPassed = null;
 
   /**
    * Opens a scanner across memstore, snapshot, and all StoreFiles.
@@ -61,12 +73,36 @@ class StoreScanner implements KeyValueScanner, InternalScanner, ChangedReadersOb
         store.versionsToReturn(scan.getMaxVersions()));
 
     this.isGet = scan.isGetScan();
+    // Scans that skip the block cache or fetch many rows at a time are
+    // taken to go through many blocks.
+    this.readAhead = !this.isGet && (!this.cacheBlocks ||
+      scan.getCaching() >= store.conf.getInt(READ_AHEAD_CACHING_KEY,
+        DEFAULT_READ_AHEAD_CACHING));
     // pass columns = try to filter out unnecessary ScanFiles
-    List<KeyValueScanner> scanners = getScanners(scan, columns);
-
-    // Seek all scanners to the initial key
-    for(KeyValueScanner scanner : scanners) {
-      scanner.seek(matcher.getStartKey());
+    List<StoreFileScanner> sfScanners = getStoreFileScanners(scan, columns);
+
+    // Seek all scanners to the initial key.  Store file scanners put their
+    // seek off until they reach the top of the heap.  On a Get of explicit
+    // columns, files without delete family markers are only of use from the
+    // first column asked for, which lets their fake keys sort after newer
+    // versions of the column found elsewhere.
+    KeyValue columnStartKey = null;
+    if (this.isGet && columns != null && !columns.isEmpty()) {
+      columnStartKey = KeyValue.createFirstOnRow(scan.getStartRow(),
+        store.getFamily().getName(), columns.first());
+    }
+    List<KeyValueScanner> scanners =
+      new ArrayList<KeyValueScanner>(sfScanners.size()+1);
+    for(StoreFileScanner sfs : sfScanners) {
+      sfs.requestSeek(columnStartKey != null &&
+        sfs.getReader().hasNoDeleteFamily()?
+          columnStartKey: matcher.getStartKey());
+      scanners.add(sfs);
+    }
+    // Then the memstore scanners
+    for(KeyValueScanner scanner : this.store.memstore.getScanners()) {
+      scanner.requestSeek(matcher.getStartKey());
+      scanners.add(scanner);
     }
 
     // Combine all seeked scanners with a heap
@@ -108,7 +144,7 @@ class StoreScanner implements KeyValueScanner, InternalScanner, ChangedReadersOb
       final List<KeyValueScanner> scanners)
         throws IOException {
     this.store = null;
-    this.isGet = false;
+    this.isGet = scan.isGetScan();
     this.cacheBlocks = scan.getCacheBlocks();
     this.matcher = new ScanQueryMatcher(scan, colFamily, columns, ttl,
         comparator.getRawComparator(), scan.getMaxVersions());
@@ -130,7 +166,8 @@ class StoreScanner implements KeyValueScanner, InternalScanner, ChangedReadersOb
     // but now we get them in ascending order, which I think is
     // actually more correct, since memstore get put at the end.
     List<StoreFileScanner> sfScanners = StoreFileScanner
-      .getScannersForStoreFiles(store.getStorefiles(), cacheBlocks, isGet);
+      .getScannersForStoreFiles(store.getStorefiles(), cacheBlocks, isGet,
+        readAhead);
     List<KeyValueScanner> scanners =
       new ArrayList<KeyValueScanner>(sfScanners.size()+1);
     scanners.addAll(sfScanners);
@@ -140,27 +177,46 @@ class StoreScanner implements KeyValueScanner, InternalScanner, ChangedReadersOb
   }
 
   /*
-   * @return List of scanners to seek, possibly filtered by StoreFile.
+   * @return List of store file scanners to seek, possibly filtered by
+   * StoreFile.
    */
-  private List<KeyValueScanner> getScanners(Scan scan, 
+  private List<StoreFileScanner> getStoreFileScanners(Scan scan,
       final NavigableSet<byte[]> columns) throws IOException {
-    // First the store file scanners
     List<StoreFileScanner> sfScanners = StoreFileScanner
-      .getScannersForStoreFiles(store.getStorefiles(), cacheBlocks, isGet);
-    List<KeyValueScanner> scanners =
-      new ArrayList<KeyValueScanner>(sfScanners.size()+1);
+      .getScannersForStoreFiles(store.getStorefiles(), cacheBlocks, isGet,
+        readAhead);
+    List<StoreFileScanner> scanners =
+      new ArrayList<StoreFileScanner>(sfScanners.size());
+
+    // Files entirely older than the time range asked for, or than the TTL,
+    // have nothing to return.
+    long oldestUnexpiredTS = store.ttl == Long.MAX_VALUE? Long.MIN_VALUE:
+      System.currentTimeMillis() - store.ttl;
 
     // exclude scan files that have failed file filters
     for(StoreFileScanner sfs : sfScanners) {
-      if (isGet && 
-          !sfs.getHFileScanner().shouldSeek(scan.getStartRow(), columns)) {
-        continue; // exclude this hfs
+      if (isGet) {
+        boolean bloomChecked = sfs.getReader().isBloomApplicable(columns);
+        boolean seek =
+          sfs.getHFileScanner().shouldSeek(scan.getStartRow(), columns);
+        if (bloomChecked) {
+          this.store.countBloomCheck(!seek);
+        }
+        if (!seek) {
+          continue; // exclude this hfs
+        }
+        if (bloomChecked) {
+          if (this.bloomPassed == null) {
+            this.bloomPassed = new ArrayList<StoreFileScanner>();
+          }
+          this.bloomPassed.add(sfs);
+        }
+      }
+      if (!sfs.getReader().passesTimerangeFilter(scan, oldestUnexpiredTS)) {
+        continue;
       }
       scanners.add(sfs);
     }
-
-    // Then the memstore scanners
-    scanners.addAll(this.store.memstore.getScanners());
     return scanners;
   }
 
@@ -179,6 +235,16 @@ class StoreScanner implements KeyValueScanner, InternalScanner, ChangedReadersOb
     // under test, we dont have a this.store
     if (this.store != null)
       this.store.deleteChangedReaderObserver(this);
+    // Files read for the get after passing their bloom filter check but
+    // without the row were bloom filter false positives.
+    if (this.bloomPassed != null) {
+      for (StoreFileScanner sfs: this.bloomPassed) {
+        if (sfs.isRowMissed()) {
+          this.store.countBloomFalsePositive();
+        }
+      }
+      this.bloomPassed = null;
+    }
     this.heap.close();
   }
 
@@ -186,6 +252,18 @@ class StoreScanner implements KeyValueScanner, InternalScanner, ChangedReadersOb
     return this.heap.seek(key);
   }
 
+  public synchronized boolean requestSeek(KeyValue key) throws IOException {
+    return seek(key);
+  }
+
+  public synchronized boolean isRealSeekDone() {
+    return true;
+  }
+
+  public synchronized void enforceSeek() throws IOException {
+    // Never put off.
+  }
+
   /**
    * Get the next row of values from this Store.
    * @param outResult
@@ -207,6 +285,14 @@ class StoreScanner implements KeyValueScanner, InternalScanner, ChangedReadersOb
       //DebugPrint.println("SS peek kv = " + kv + " with qcode = " + qcode);
       switch(qcode) {
         case INCLUDE:
+          if (this.isGet && matcher.isDone()) {
+            // All versions asked for are found.  Scanners of older files
+            // still waiting to seek are left behind unread.
+            results.add(kv);
+            close();
+            outResult.addAll(results);
+            return false;
+          }
           KeyValue next = this.heap.next();
           results.add(next);
           if (limit > 0 && (results.size() == limit)) {
@@ -228,6 +314,13 @@ class StoreScanner implements KeyValueScanner, InternalScanner, ChangedReadersOb
           return false;
 
         case SEEK_NEXT_ROW:
+          if (this.isGet) {
+            // Nothing more of the one row asked for is wanted; leave the
+            // scanners behind unread.
+            close();
+            outResult.addAll(results);
+            return false;
+          }
           heap.next();
           break;
 
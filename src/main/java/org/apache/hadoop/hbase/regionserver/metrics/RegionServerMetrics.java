@@ -23,6 +23,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hbase.io.hfile.HFile;
 import org.apache.hadoop.hbase.metrics.MetricsRate;
+import org.apache.hadoop.hbase.regionserver.HRegion;
 import org.apache.hadoop.hbase.regionserver.wal.HLog;
 import org.apache.hadoop.hbase.util.Strings;
 import org.apache.hadoop.metrics.MetricsContext;
@@ -33,10 +34,13 @@ import org.apache.hadoop.metrics.jvm.JvmMetrics;
 import org.apache.hadoop.metrics.util.MetricsIntValue;
 import org.apache.hadoop.metrics.util.MetricsLongValue;
 import org.apache.hadoop.metrics.util.MetricsRegistry;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingLong;
 import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryUsage;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * This class is for maintaining the various regionserver statistics
@@ -83,6 +87,95 @@ public class RegionServerMetrics implements Updater {
    */
   public final MetricsIntValue blockCacheHitRatio = new MetricsIntValue("blockCacheHitRatio", registry);
 
+  /**
+   * Off-heap block cache size.
+   */
+  public final MetricsLongValue offHeapCacheSize = new MetricsLongValue("offHeapCacheSize", registry);
+
+  /**
+   * Off-heap block cache free size.
+   */
+  public final MetricsLongValue offHeapCacheFree = new MetricsLongValue("offHeapCacheFree", registry);
+
+  /**
+   * Off-heap block cache item count.
+   */
+  public final MetricsLongValue offHeapCacheCount = new MetricsLongValue("offHeapCacheCount", registry);
+
+  /**
+   * Off-heap block cache hit ratio, of the lookups that missed the on-heap
+   * cache.
+   */
+  public final MetricsIntValue offHeapCacheHitRatio = new MetricsIntValue("offHeapCacheHitRatio", registry);
+
+  /**
+   * Off-heap block cache lookups.
+   */
+  public final MetricsLongValue offHeapCacheAccessCount = new MetricsLongValue("offHeapCacheAccessCount", registry);
+
+  /**
+   * Blocks evicted from the off-heap block cache.
+   */
+  public final MetricsLongValue offHeapCacheEvictedCount = new MetricsLongValue("offHeapCacheEvictedCount", registry);
+
+  /**
+   * Compressed block cache size.
+   */
+  public final MetricsLongValue compressedCacheSize = new MetricsLongValue("compressedCacheSize", registry);
+
+  /**
+   * Compressed block cache item count.
+   */
+  public final MetricsLongValue compressedCacheCount = new MetricsLongValue("compressedCacheCount", registry);
+
+  /**
+   * Compressed block cache hit ratio, of the lookups that missed the block
+   * cache.
+   */
+  public final MetricsIntValue compressedCacheHitRatio = new MetricsIntValue("compressedCacheHitRatio", registry);
+
+  /**
+   * Heap held by in-memory bloom filters, apart from the block cache.
+   */
+  public final MetricsLongValue bloomCacheSize = new MetricsLongValue("bloomCacheSize", registry);
+
+  /**
+   * Chunks held by MemStore-local allocation buffers.
+   */
+  public final MetricsLongValue memstoreChunks = new MetricsLongValue("memstoreChunks", registry);
+
+  /**
+   * Bytes left unused at the end of full MemStore-local allocation buffer
+   * chunks.
+   */
+  public final MetricsLongValue memstoreWastedBytes = new MetricsLongValue("memstoreWastedBytes", registry);
+
+  /**
+   * Store file bloom filters checked by gets.
+   */
+  public final MetricsTimeVaryingLong bloomChecks =
+    new MetricsTimeVaryingLong("bloomChecks", registry);
+
+  /**
+   * Store files that gets did not read because of a bloom filter check.
+   */
+  public final MetricsTimeVaryingLong bloomFilesSkipped =
+    new MetricsTimeVaryingLong("bloomFilesSkipped", registry);
+
+  /**
+   * Store files read by gets after a bloom filter check that had nothing
+   * for the row.
+   */
+  public final MetricsTimeVaryingLong bloomFalsePositives =
+    new MetricsTimeVaryingLong("bloomFalsePositives", registry);
+
+  /*
+   * The bloom filter counters above, per column family; made as families
+   * show up.
+   */
+  private final Map<String, MetricsTimeVaryingLong []> familyBloomMetrics =
+    new TreeMap<String, MetricsTimeVaryingLong []>();
+
   /*
    * Count of requests to the regionservers since last call to metrics update
    */
@@ -116,6 +209,18 @@ public class RegionServerMetrics implements Updater {
   public final MetricsIntValue compactionQueueSize =
     new MetricsIntValue("compactionQueueSize", registry);
 
+  /**
+   * Count of stores waiting for a large compaction.
+   */
+  public final MetricsIntValue largeCompactionQueueSize =
+    new MetricsIntValue("largeCompactionQueueSize", registry);
+
+  /**
+   * Count of stores waiting for a small compaction.
+   */
+  public final MetricsIntValue smallCompactionQueueSize =
+    new MetricsIntValue("smallCompactionQueueSize", registry);
+
   /**
    * filesystem read latency
    */
@@ -128,12 +233,61 @@ public class RegionServerMetrics implements Updater {
   public final MetricsTimeVaryingRate fsWriteLatency =
     new MetricsTimeVaryingRate("fsWriteLatency", registry);
 
+  /**
+   * Store file blocks that did not match their checksum.
+   */
+  public final MetricsTimeVaryingLong checksumFailures =
+    new MetricsTimeVaryingLong("checksumFailures", registry);
+
+  /**
+   * Arrays allocated to read HFile blocks into
+   */
+  public final MetricsTimeVaryingLong blockBufferAllocations =
+    new MetricsTimeVaryingLong("blockBufferAllocations", registry);
+
+  /**
+   * Arrays to read HFile blocks into taken from the block buffer pool
+   */
+  public final MetricsTimeVaryingLong blockBufferPoolHits =
+    new MetricsTimeVaryingLong("blockBufferPoolHits", registry);
+
+  /**
+   * HFile blocks read from memory mapped local files
+   */
+  public final MetricsTimeVaryingLong mappedBlockReads =
+    new MetricsTimeVaryingLong("mappedBlockReads", registry);
+
+  /**
+   * HFile blocks scanners found read ahead
+   */
+  public final MetricsTimeVaryingLong readAheadBlocks =
+    new MetricsTimeVaryingLong("readAheadBlocks", registry);
+
   /**
    * filesystem sync latency
    */
   public final MetricsTimeVaryingRate fsSyncLatency =
     new MetricsTimeVaryingRate("fsSyncLatency", registry);
 
+  /**
+   * Time from a WAL append until the edit is durable
+   */
+  public final MetricsTimeVaryingRate walAppendToDurableLatency =
+    new MetricsTimeVaryingRate("walAppendToDurableLatency", registry);
+
+  /**
+   * Time spent waiting on contended row locks
+   */
+  public final MetricsTimeVaryingRate rowLockWaitTime =
+    new MetricsTimeVaryingRate("rowLockWaitTime", registry);
+
+  /**
+   * Percentage of row lock acquisitions that had to wait, over the last
+   * metrics interval.
+   */
+  public final MetricsIntValue rowLockContention =
+    new MetricsIntValue("rowLockContention", registry);
+
   public RegionServerMetrics() {
     MetricsContext context = MetricsUtil.getContext("hbase");
     metricsRecord = MetricsUtil.createRecord(context, "regionserver");
@@ -168,10 +322,32 @@ public class RegionServerMetrics implements Updater {
       this.regions.pushMetric(this.metricsRecord);
       this.requests.pushMetric(this.metricsRecord);
       this.compactionQueueSize.pushMetric(this.metricsRecord);
+      this.largeCompactionQueueSize.pushMetric(this.metricsRecord);
+      this.smallCompactionQueueSize.pushMetric(this.metricsRecord);
       this.blockCacheSize.pushMetric(this.metricsRecord);
       this.blockCacheFree.pushMetric(this.metricsRecord);
       this.blockCacheCount.pushMetric(this.metricsRecord);
       this.blockCacheHitRatio.pushMetric(this.metricsRecord);
+      this.offHeapCacheSize.pushMetric(this.metricsRecord);
+      this.offHeapCacheFree.pushMetric(this.metricsRecord);
+      this.offHeapCacheCount.pushMetric(this.metricsRecord);
+      this.offHeapCacheHitRatio.pushMetric(this.metricsRecord);
+      this.offHeapCacheAccessCount.pushMetric(this.metricsRecord);
+      this.offHeapCacheEvictedCount.pushMetric(this.metricsRecord);
+      this.compressedCacheSize.pushMetric(this.metricsRecord);
+      this.compressedCacheCount.pushMetric(this.metricsRecord);
+      this.compressedCacheHitRatio.pushMetric(this.metricsRecord);
+      this.bloomCacheSize.pushMetric(this.metricsRecord);
+      this.memstoreChunks.pushMetric(this.metricsRecord);
+      this.memstoreWastedBytes.pushMetric(this.metricsRecord);
+      this.bloomChecks.pushMetric(this.metricsRecord);
+      this.bloomFilesSkipped.pushMetric(this.metricsRecord);
+      this.bloomFalsePositives.pushMetric(this.metricsRecord);
+      for (MetricsTimeVaryingLong [] family: this.familyBloomMetrics.values()) {
+        for (MetricsTimeVaryingLong m: family) {
+          m.pushMetric(this.metricsRecord);
+        }
+      }
 
       // Mix in HFile and HLog metrics
       // Be careful. Here is code for MTVR from up in hadoop:
@@ -186,16 +362,41 @@ public class RegionServerMetrics implements Updater {
       if (ops != 0) this.fsReadLatency.inc(ops, HFile.getReadTime());
       ops = (int)HFile.getWriteOps();
       if (ops != 0) this.fsWriteLatency.inc(ops, HFile.getWriteTime());
+      this.checksumFailures.inc(HFile.getChecksumFailures());
+      this.blockBufferAllocations.inc(HFile.getBlockBufferAllocations());
+      this.blockBufferPoolHits.inc(HFile.getBlockBufferPoolHits());
+      this.mappedBlockReads.inc(HFile.getMappedReads());
+      this.readAheadBlocks.inc(HFile.getReadAheadBlocks());
       // mix in HLog metrics
       ops = (int)HLog.getWriteOps();
       if (ops != 0) this.fsWriteLatency.inc(ops, HLog.getWriteTime());
       ops = (int)HLog.getSyncOps();
       if (ops != 0) this.fsSyncLatency.inc(ops, HLog.getSyncTime());
+      ops = (int)HLog.getAppendToDurableOps();
+      if (ops != 0) {
+        this.walAppendToDurableLatency.inc(ops, HLog.getAppendToDurableTime());
+      }
+
+      // mix in row lock metrics
+      long lockOps = HRegion.getRowLockOps();
+      long contendedOps = HRegion.getContendedRowLockOps();
+      long lockWait = HRegion.getRowLockWaitTime();
+      if (contendedOps != 0) this.rowLockWaitTime.inc((int)contendedOps, lockWait);
+      this.rowLockContention.set(lockOps == 0? 0:
+        (int)Math.min(100, (contendedOps * 100) / lockOps));
 
       // push the result
       this.fsReadLatency.pushMetric(this.metricsRecord);
       this.fsWriteLatency.pushMetric(this.metricsRecord);
       this.fsSyncLatency.pushMetric(this.metricsRecord);
+      this.checksumFailures.pushMetric(this.metricsRecord);
+      this.blockBufferAllocations.pushMetric(this.metricsRecord);
+      this.blockBufferPoolHits.pushMetric(this.metricsRecord);
+      this.mappedBlockReads.pushMetric(this.metricsRecord);
+      this.readAheadBlocks.pushMetric(this.metricsRecord);
+      this.walAppendToDurableLatency.pushMetric(this.metricsRecord);
+      this.rowLockWaitTime.pushMetric(this.metricsRecord);
+      this.rowLockContention.pushMetric(this.metricsRecord);
     }
     this.metricsRecord.update();
     this.lastUpdate = System.currentTimeMillis();
@@ -205,6 +406,34 @@ public class RegionServerMetrics implements Updater {
     this.atomicIncrementTime.resetMinMax();
     this.fsReadLatency.resetMinMax();
     this.fsWriteLatency.resetMinMax();
+    this.walAppendToDurableLatency.resetMinMax();
+    this.rowLockWaitTime.resetMinMax();
+  }
+
+  /**
+   * Add to the bloom filter counters of a column family, and to the totals.
+   * @param family column family name
+   * @param checks bloom filters checked
+   * @param skipped store files skipped
+   * @param falsePositives store files read that had nothing for the row
+   */
+  public synchronized void incrementBloomMetrics(final String family,
+      final long checks, final long skipped, final long falsePositives) {
+    MetricsTimeVaryingLong [] m = this.familyBloomMetrics.get(family);
+    if (m == null) {
+      m = new MetricsTimeVaryingLong [] {
+        new MetricsTimeVaryingLong(family + ".bloomChecks", registry),
+        new MetricsTimeVaryingLong(family + ".bloomFilesSkipped", registry),
+        new MetricsTimeVaryingLong(family + ".bloomFalsePositives", registry)
+      };
+      this.familyBloomMetrics.put(family, m);
+    }
+    m[0].inc(checks);
+    m[1].inc(skipped);
+    m[2].inc(falsePositives);
+    this.bloomChecks.inc(checks);
+    this.bloomFilesSkipped.inc(skipped);
+    this.bloomFalsePositives.inc(falsePositives);
   }
 
   /**
@@ -242,6 +471,10 @@ public class RegionServerMetrics implements Updater {
       Integer.valueOf(this.memstoreSizeMB.get()));
     sb = Strings.appendKeyValue(sb, "compactionQueueSize",
       Integer.valueOf(this.compactionQueueSize.get()));
+    sb = Strings.appendKeyValue(sb, "largeCompactionQueueSize",
+      Integer.valueOf(this.largeCompactionQueueSize.get()));
+    sb = Strings.appendKeyValue(sb, "smallCompactionQueueSize",
+      Integer.valueOf(this.smallCompactionQueueSize.get()));
     // Duplicate from jvmmetrics because metrics are private there so
     // inaccessible.
     MemoryUsage memory =
@@ -258,6 +491,24 @@ public class RegionServerMetrics implements Updater {
         Long.valueOf(this.blockCacheCount.get()));
     sb = Strings.appendKeyValue(sb, this.blockCacheHitRatio.getName(),
         Long.valueOf(this.blockCacheHitRatio.get()));
+    sb = Strings.appendKeyValue(sb, this.offHeapCacheSize.getName(),
+        Long.valueOf(this.offHeapCacheSize.get()));
+    sb = Strings.appendKeyValue(sb, this.offHeapCacheCount.getName(),
+        Long.valueOf(this.offHeapCacheCount.get()));
+    sb = Strings.appendKeyValue(sb, this.offHeapCacheHitRatio.getName(),
+        Long.valueOf(this.offHeapCacheHitRatio.get()));
+    sb = Strings.appendKeyValue(sb, this.compressedCacheSize.getName(),
+        Long.valueOf(this.compressedCacheSize.get()));
+    sb = Strings.appendKeyValue(sb, this.compressedCacheCount.getName(),
+        Long.valueOf(this.compressedCacheCount.get()));
+    sb = Strings.appendKeyValue(sb, this.compressedCacheHitRatio.getName(),
+        Long.valueOf(this.compressedCacheHitRatio.get()));
+    sb = Strings.appendKeyValue(sb, this.bloomCacheSize.getName(),
+        Long.valueOf(this.bloomCacheSize.get()));
+    sb = Strings.appendKeyValue(sb, this.memstoreChunks.getName(),
+        Long.valueOf(this.memstoreChunks.get()));
+    sb = Strings.appendKeyValue(sb, this.memstoreWastedBytes.getName(),
+        Long.valueOf(this.memstoreWastedBytes.get()));
     return sb.toString();
   }
 }
@@ -19,11 +19,8 @@
  */
 package org.apache.hadoop.hbase.regionserver.wal;
 
-import static org.apache.hadoop.hbase.util.FSUtils.recoverFileLease;
-
 import java.io.DataInput;
 import java.io.DataOutput;
-import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -32,7 +29,6 @@ import java.lang.reflect.Method;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
@@ -40,16 +36,9 @@ import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
@@ -65,17 +54,14 @@ import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.HRegionInfo;
 import org.apache.hadoop.hbase.HServerInfo;
-import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.RemoteExceptionHandler;
-import org.apache.hadoop.hbase.regionserver.HRegion;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.util.ClassSize;
 import org.apache.hadoop.hbase.util.FSUtils;
 import org.apache.hadoop.hbase.util.Threads;
 import org.apache.hadoop.io.Writable;
 
-import com.google.common.util.concurrent.NamingThreadFactory;
 
 /**
  * HLog stores all the edits to the HStore.  Its the hbase write-ahead-log
@@ -128,7 +114,6 @@ public class HLog implements HConstants, Syncable {
   private final long blocksize;
   private final int flushlogentries;
   private final String prefix;
-  private final AtomicInteger unflushedEntries = new AtomicInteger(0);
   private final Path oldLogDir;
   private final List<LogActionsListener> actionListeners =
       Collections.synchronizedList(new ArrayList<LogActionsListener>());
@@ -142,9 +127,6 @@ public class HLog implements HConstants, Syncable {
   private Method getNumCurrentReplicas; // refers to DFSOutputStream.getNumCurrentReplicas
   final static Object [] NO_ARGS = new Object []{};
 
-  // used to indirectly tell syncFs to force the sync
-  private boolean forceSync = false;
-
   public interface Reader {
     void init(FileSystem fs, Path path, Configuration c) throws IOException;
     void close() throws IOException;
@@ -201,6 +183,26 @@ public class HLog implements HConstants, Syncable {
   // during an update
   private final Object updateLock = new Object();
 
+  /*
+   * Appends do not write to the writer themselves.  They queue their entry in
+   * pendingWrites and are handed a transaction id (txid); whoever next syncs
+   * writes out everything pending, in order, and then syncs the writer
+   * outside of updateLock, so appends and other syncs can proceed while an
+   * hflush is out on the HDFS pipeline.  A caller waiting on its sync is done
+   * once syncedTillHere has caught up with its txid.
+   *
+   * Lock ordering is updateLock, then flushLock, then pendingWritesLock.
+   */
+  private final Object pendingWritesLock = new Object();
+  // Guarded by pendingWritesLock.
+  private List<Entry> pendingWrites = new LinkedList<Entry>();
+  // Txid of the last entry queued.  Guarded by pendingWritesLock.
+  private long lastAppendTxid = 0;
+  // Serializes handing pending entries to the writer, and changing the writer.
+  private final Object flushLock = new Object();
+  // Highest txid known to be durable.
+  private final AtomicLong syncedTillHere = new AtomicLong(0);
+
   private final boolean enabled;
 
   /*
@@ -220,6 +222,9 @@ public class HLog implements HConstants, Syncable {
    */
   private static final Pattern pattern = Pattern.compile(".*\\.\\d*");
 
+  /** Prefix of the per-HLog subdirectories of a region server's log dir */
+  static final String HLOG_SUBDIR_PREFIX = "wal.";
+
   static byte [] COMPLETE_CACHE_FLUSH;
   static {
     try {
@@ -235,6 +240,9 @@ public class HLog implements HConstants, Syncable {
   // For measuring latency of syncs
   private static volatile long syncOps;
   private static volatile long syncTime;
+  // For measuring time from append until the edit is durable
+  private static volatile long appendToDurableOps;
+  private static volatile long appendToDurableTime;
 
   public static long getWriteOps() {
     long ret = writeOps;
@@ -260,6 +268,18 @@ public class HLog implements HConstants, Syncable {
     return ret;
   }
 
+  public static long getAppendToDurableOps() {
+    long ret = appendToDurableOps;
+    appendToDurableOps = 0;
+    return ret;
+  }
+
+  public static long getAppendToDurableTime() {
+    long ret = appendToDurableTime;
+    appendToDurableTime = 0;
+    return ret;
+  }
+
   /**
    * HLog creating with a null actions listener.
    *
@@ -428,11 +448,16 @@ public class HLog implements HConstants, Syncable {
         return regionsToFlush;
       }
       synchronized (updateLock) {
-        // Clean up current writer.
-        Path oldFile = cleanupCurrentWriter(this.filenum);
-        this.filenum = System.currentTimeMillis();
-        Path newPath = computeFilename();
-        this.writer = createWriter(fs, newPath, HBaseConfiguration.create(conf));
+        Path oldFile;
+        Path newPath;
+        synchronized (this.flushLock) {
+          // Clean up current writer.
+          oldFile = cleanupCurrentWriter(this.filenum);
+          this.filenum = System.currentTimeMillis();
+          newPath = computeFilename();
+          this.writer =
+            createWriter(fs, newPath, HBaseConfiguration.create(conf));
+        }
         this.initialReplication = fs.getFileStatus(newPath).getReplication();
 
         // Can we get at the dfsclient outputstream?  If an instance of
@@ -621,8 +646,10 @@ public class HLog implements HConstants, Syncable {
   }
 
   /*
-   * Cleans up current writer closing and adding to outputfiles.
-   * Presumes we're operating inside an updateLock scope.
+   * Cleans up current writer closing and adding to outputfiles.  Entries still
+   * pending are written out first; everything appended so far is durable once
+   * the writer is closed.
+   * Presumes we're operating inside an updateLock and flushLock scope.
    * @return Path to current writer or null if none.
    * @throws IOException
    */
@@ -632,7 +659,9 @@ public class HLog implements HConstants, Syncable {
     if (this.writer != null) {
       // Close the current writer, get a new one.
       try {
+        long txid = writePendingEntries(this.writer);
         this.writer.close();
+        markSynced(txid);
       } catch (IOException e) {
         // Failed close of log file.  Means we're losing edits.  For now,
         // shut ourselves down to minimize loss.  Alternative is to try and
@@ -713,7 +742,11 @@ public class HLog implements HConstants, Syncable {
         if (LOG.isDebugEnabled()) {
           LOG.debug("closing hlog writer in " + this.dir.toString());
         }
-        this.writer.close();
+        synchronized (this.flushLock) {
+          long txid = writePendingEntries(this.writer);
+          this.writer.close();
+          markSynced(txid);
+        }
       }
     } finally {
       cacheFlushLock.unlock();
@@ -761,6 +794,8 @@ public class HLog implements HConstants, Syncable {
       throw new IOException("Cannot append; log is closed");
     }
     byte [] regionName = regionInfo.getRegionName();
+    long start = System.currentTimeMillis();
+    long txid;
     synchronized (updateLock) {
       long seqNum = obtainSeqNum();
       logKey.setLogSeqNum(seqNum);
@@ -770,13 +805,12 @@ public class HLog implements HConstants, Syncable {
       // region being flushed is removed if the sequence number of the flush
       // is greater than or equal to the value in lastSeqWritten.
       this.lastSeqWritten.putIfAbsent(regionName, Long.valueOf(seqNum));
-      doWrite(regionInfo, logKey, logEdit);
-      this.unflushedEntries.incrementAndGet();
+      txid = doWrite(regionInfo, logKey, logEdit);
       this.numEntries.incrementAndGet();
     }
 
     // sync txn to file system
-    this.sync(regionInfo.isMetaRegion());
+    this.sync(txid, regionInfo.isMetaRegion(), start);
   }
 
   /**
@@ -809,6 +843,8 @@ public class HLog implements HConstants, Syncable {
     if (this.closed) {
       throw new IOException("Cannot append; log is closed");
     }
+    long start = System.currentTimeMillis();
+    long txid;
     synchronized (this.updateLock) {
       long seqNum = obtainSeqNum();
       // The 'lastSeqWritten' map holds the sequence number of the oldest
@@ -818,35 +854,23 @@ public class HLog implements HConstants, Syncable {
       // is greater than or equal to the value in lastSeqWritten.
       this.lastSeqWritten.putIfAbsent(regionName, seqNum);
       HLogKey logKey = makeKey(regionName, tableName, seqNum, now);
-      doWrite(info, logKey, edits);
+      txid = doWrite(info, logKey, edits);
       this.numEntries.incrementAndGet();
-
-      // Only count 1 row as an unflushed entry.
-      this.unflushedEntries.incrementAndGet();
     }
     // sync txn to file system
-    this.sync(info.isMetaRegion());
+    this.sync(txid, info.isMetaRegion(), start);
   }
 
   /**
-   * This thread is responsible to call syncFs and buffer up the writers while
-   * it happens.
+   * This thread syncs edits that were appended without being synced, either
+   * because hbase.regionserver.flushlogentries is greater than one or because
+   * their writer did not ask for a sync, at least every
+   * hbase.regionserver.optionallogflushinterval.
    */
    class LogSyncer extends Thread {
 
-    // Using fairness to make sure locks are given in order
-    private final ReentrantLock lock = new ReentrantLock(true);
-
-    // Condition used to wait until we have something to sync
-    private final Condition queueEmpty = lock.newCondition();
-
-    // Condition used to signal that the sync is done
-    private final Condition syncDone = lock.newCondition();
-
     private final long optionalFlushInterval;
 
-    private boolean syncerShuttingDown = false;
-
     LogSyncer(long optionalFlushInterval) {
       this.optionalFlushInterval = optionalFlushInterval;
     }
@@ -854,131 +878,187 @@ public class HLog implements HConstants, Syncable {
     @Override
     public void run() {
       try {
-        lock.lock();
-        // awaiting with a timeout doesn't always
-        // throw exceptions on interrupt
         while(!this.isInterrupted()) {
-
-          // Wait until something has to be hflushed or do it if we waited
-          // enough time (useful if something appends but does not hflush).
-          // 0 or less means that it timed out and maybe waited a bit more.
-          if (!(queueEmpty.awaitNanos(
-              this.optionalFlushInterval*1000000) <= 0)) {
-            forceSync = true;
-          }
-
-          // We got the signal, let's hflush. We currently own the lock so new
-          // writes are waiting to acquire it in addToSyncQueue while the ones
-          // we hflush are waiting on await()
-          hflush();
-
-          // Release all the clients waiting on the hflush. Notice that we still
-          // own the lock until we get back to await at which point all the
-          // other threads waiting will first acquire and release locks
-          syncDone.signalAll();
+          Thread.sleep(this.optionalFlushInterval);
+          syncer(getLastAppendTxid());
         }
       } catch (IOException e) {
         LOG.error("Error while syncing, requesting close of hlog ", e);
         requestLogRoll();
       } catch (InterruptedException e) {
-        LOG.debug(getName() + "interrupted while waiting for sync requests");
+        LOG.debug(getName() + " interrupted while waiting for sync requests");
       } finally {
-        syncerShuttingDown = true;
-        syncDone.signalAll();
-        lock.unlock();
         LOG.info(getName() + " exiting");
       }
     }
-
-    /**
-     * This method first signals the thread that there's a sync needed
-     * and then waits for it to happen before returning.
-     */
-    public void addToSyncQueue(boolean force) {
-
-      // Don't bother if somehow our append was already hflushed
-      if (unflushedEntries.get() == 0) {
-        return;
-      }
-      lock.lock();
-      try {
-        if (syncerShuttingDown) {
-          LOG.warn(getName() + " was shut down while waiting for sync");
-          return;
-        }
-        if(force) {
-          forceSync = true;
-        }
-        // Wake the thread
-        queueEmpty.signal();
-
-        // Wait for it to hflush
-        syncDone.await();
-      } catch (InterruptedException e) {
-        LOG.debug(getName() + " was interrupted while waiting for sync", e);
-      }
-      finally {
-        lock.unlock();
-      }
-    }
   }
 
-  public void sync(){
-    sync(false);
+  /**
+   * Sync all edits appended so far.  Errors are logged and a log roll
+   * requested; use {@link #hflush()} to have them thrown.
+   */
+  public void sync() {
+    try {
+      hflush();
+    } catch (IOException e) {
+      LOG.error("Error while syncing", e);
+    }
   }
 
-  /**
-   * This method calls the LogSyncer in order to group commit the sync
-   * with other threads.
+  /*
+   * Sync the append with the passed <code>txid</code> if it is forced or
+   * enough edits have accumulated since the last sync; otherwise leave it to
+   * the LogSyncer.
+   * @param txid Transaction id of the append
    * @param force For catalog regions, force the sync to happen
+   * @param start When the append started, for append-to-durable metrics
    */
-  public void sync(boolean force) {
-    logSyncerThread.addToSyncQueue(force);
+  private void sync(final long txid, final boolean force, final long start)
+  throws IOException {
+    if (!force && txid - this.syncedTillHere.get() < this.flushlogentries) {
+      return;
+    }
+    syncer(txid);
+    appendToDurableTime += System.currentTimeMillis() - start;
+    appendToDurableOps++;
   }
 
   public void hflush() throws IOException {
-    synchronized (this.updateLock) {
-      if (this.closed) {
+    syncer(getLastAppendTxid());
+  }
+
+  /*
+   * Make all appends up to and including <code>txid</code> durable.  Any
+   * entries still pending are written to the writer under flushLock; the
+   * sync itself is done holding no lock so that several syncs can be in
+   * flight at once.
+   * @param txid
+   * @throws IOException
+   */
+  private void syncer(final long txid) throws IOException {
+    if (txid <= this.syncedTillHere.get()) {
+      return;
+    }
+    Writer w;
+    long doneUpto;
+    synchronized (this.flushLock) {
+      if (this.closed || txid <= this.syncedTillHere.get()) {
         return;
       }
-      boolean logRollRequested = false;
-      if (this.forceSync ||
-          this.unflushedEntries.get() >= this.flushlogentries) {
-        try {
-          long now = System.currentTimeMillis();
-          this.writer.sync();
-          syncTime += System.currentTimeMillis() - now;
-          syncOps++;
-          this.forceSync = false;
-          this.unflushedEntries.set(0);
-
-          // if the number of replicas in HDFS has fallen below the initial
-          // value, then roll logs.
-          try {
-            int numCurrentReplicas = getLogReplication();
-            if (numCurrentReplicas != 0 &&
-                numCurrentReplicas < this.initialReplication) {
-              LOG.warn("HDFS pipeline error detected. " +
-                  "Found " + numCurrentReplicas + " replicas but expecting " +
-                  this.initialReplication + " replicas. " +
-                  " Requesting close of hlog.");
-              requestLogRoll();
-              logRollRequested = true;
-            }
-          } catch (Exception e) {
-              LOG.warn("Unable to invoke DFSOutputStream.getNumCurrentReplicas" + e +
-                       " still proceeding ahead...");
-          }
-        } catch (IOException e) {
-          LOG.fatal("Could not append. Requesting close of hlog", e);
+      w = this.writer;
+      try {
+        doneUpto = writePendingEntries(w);
+      } catch (IOException e) {
+        LOG.fatal("Could not append. Requesting close of hlog", e);
+        requestLogRoll();
+        throw e;
+      }
+    }
+    // Another thread may have synced past us while we wrote.
+    if (txid <= this.syncedTillHere.get()) {
+      return;
+    }
+    try {
+      long now = System.currentTimeMillis();
+      w.sync();
+      syncTime += System.currentTimeMillis() - now;
+      syncOps++;
+    } catch (IOException e) {
+      synchronized (this.updateLock) {
+        // If the writer was rolled or closed while we were syncing, closing
+        // it made our edits durable.
+        if (this.writer == w && !this.closed) {
+          LOG.fatal("Could not sync. Requesting close of hlog", e);
           requestLogRoll();
           throw e;
         }
       }
+    }
+    markSynced(doneUpto);
 
-      if (!logRollRequested && (this.writer.getLength() > this.logrollsize)) {
+    // if the number of replicas in HDFS has fallen below the initial
+    // value, then roll logs.
+    boolean logRollRequested = false;
+    try {
+      int numCurrentReplicas = getLogReplication();
+      if (numCurrentReplicas != 0 &&
+          numCurrentReplicas < this.initialReplication) {
+        LOG.warn("HDFS pipeline error detected. " +
+            "Found " + numCurrentReplicas + " replicas but expecting " +
+            this.initialReplication + " replicas. " +
+            " Requesting close of hlog.");
         requestLogRoll();
+        logRollRequested = true;
       }
+    } catch (Exception e) {
+        LOG.warn("Unable to invoke DFSOutputStream.getNumCurrentReplicas" + e +
+                 " still proceeding ahead...");
+    }
+    try {
+      if (!logRollRequested && (w.getLength() > this.logrollsize)) {
+        requestLogRoll();
+      }
+    } catch (IOException e) {
+      // Writer was rolled under us; nothing to check.
+    }
+  }
+
+  /*
+   * Write all pending entries, in order, to the passed writer.
+   * Presumes we're operating inside a flushLock scope.
+   * @return Txid of the last entry written
+   */
+  private long writePendingEntries(final Writer w) throws IOException {
+    List<Entry> pending;
+    long txid;
+    synchronized (this.pendingWritesLock) {
+      pending = this.pendingWrites;
+      this.pendingWrites = new LinkedList<Entry>();
+      txid = this.lastAppendTxid;
+    }
+    if (pending.isEmpty()) {
+      return txid;
+    }
+    long now = System.currentTimeMillis();
+    for (Entry e : pending) {
+      w.append(e);
+    }
+    long took = System.currentTimeMillis() - now;
+    writeTime += took;
+    writeOps += pending.size();
+    if (took > 1000) {
+      LOG.warn(Thread.currentThread().getName() + " took " + took +
+        "ms appending " + pending.size() + " edits to hlog; editcount=" +
+        this.numEntries.get());
+    }
+    return txid;
+  }
+
+  /*
+   * Queue an entry for writing.
+   * @return The txid of the entry
+   */
+  private long appendPending(final Entry entry) {
+    synchronized (this.pendingWritesLock) {
+      this.pendingWrites.add(entry);
+      return ++this.lastAppendTxid;
+    }
+  }
+
+  private long getLastAppendTxid() {
+    synchronized (this.pendingWritesLock) {
+      return this.lastAppendTxid;
+    }
+  }
+
+  /*
+   * Move syncedTillHere forward to <code>txid</code>, never backward.
+   */
+  private void markSynced(final long txid) {
+    for (long synced = this.syncedTillHere.get(); synced < txid &&
+        !this.syncedTillHere.compareAndSet(synced, txid);
+        synced = this.syncedTillHere.get()) {
+      // Spin; another syncer moved it.
     }
   }
 
@@ -1016,26 +1096,17 @@ public class HLog implements HConstants, Syncable {
     }
   }
 
-  protected void doWrite(HRegionInfo info, HLogKey logKey, WALEdit logEdit)
+  /**
+   * Queue an edit for writing to the log.  It reaches the writer on the next
+   * sync.
+   * @return Transaction id to wait on for the edit to be durable
+   */
+  protected long doWrite(HRegionInfo info, HLogKey logKey, WALEdit logEdit)
   throws IOException {
     if (!this.enabled) {
-      return;
-    }
-    try {
-      long now = System.currentTimeMillis();
-      this.writer.append(new HLog.Entry(logKey, logEdit));
-      long took = System.currentTimeMillis() - now;
-      writeTime += took;
-      writeOps++;
-      if (took > 1000) {
-        LOG.warn(Thread.currentThread().getName() + " took " + took +
-          "ms appending an edit to hlog; editcount=" + this.numEntries.get());
-      }
-    } catch (IOException e) {
-      LOG.fatal("Could not append. Requesting close of hlog", e);
-      requestLogRoll();
-      throw e;
+      return getLastAppendTxid();
     }
+    return appendPending(new HLog.Entry(logKey, logEdit));
   }
 
   /** @return How many items have been added to the log */
@@ -1091,14 +1162,13 @@ public class HLog implements HConstants, Syncable {
       if (this.closed) {
         return;
       }
+      long now = System.currentTimeMillis();
+      long txid;
       synchronized (updateLock) {
-        long now = System.currentTimeMillis();
         WALEdit edit = completeCacheFlushLogEdit();
         HLogKey key = makeKey(regionName, tableName, logSeqId,
             System.currentTimeMillis());
-        this.writer.append(new Entry(key, edit));
-        writeTime += System.currentTimeMillis() - now;
-        writeOps++;
+        txid = appendPending(new Entry(key, edit));
         this.numEntries.incrementAndGet();
         Long seq = this.lastSeqWritten.get(regionName);
         if (seq != null && logSeqId >= seq.longValue()) {
@@ -1106,13 +1176,26 @@ public class HLog implements HConstants, Syncable {
         }
       }
       // sync txn to file system
-      this.sync(isMetaRegion);
+      this.sync(txid, isMetaRegion, now);
 
     } finally {
       this.cacheFlushLock.unlock();
     }
   }
 
+  /**
+   * Complete a cache flush of some of the stores of a region.  The region
+   * keeps its oldest outstanding sequence id, since the edits of the stores
+   * not flushed are only in the logs, so no log is let go because of it.
+   *
+   * Protected by cacheFlushLock
+   *
+   * @see #startCacheFlush()
+   */
+  public void completePartialCacheFlush() {
+    this.cacheFlushLock.unlock();
+  }
+
   private WALEdit completeCacheFlushLogEdit() {
     KeyValue kv = new KeyValue(METAROW, METAFAMILY, null,
       System.currentTimeMillis(), COMPLETE_CACHE_FLUSH);
@@ -1163,9 +1246,10 @@ public class HLog implements HConstants, Syncable {
       // Nothing to do
       return splits;
     }
-    FileStatus [] logfiles = fs.listStatus(srcDir);
+    FileStatus [] logfiles = listLogFiles(srcDir, fs);
     if (logfiles == null || logfiles.length == 0) {
       // Nothing to do
+      deleteLogDirs(srcDir, fs);
       return splits;
     }
     LOG.info("Splitting " + logfiles.length + " hlog(s) in " +
@@ -1173,7 +1257,7 @@ public class HLog implements HConstants, Syncable {
     splits = splitLog(rootDir, srcDir, oldLogDir, logfiles, fs, conf);
     try {
       LOG.info("Spliting is done. Removing old log dir "+srcDir);
-      fs.delete(srcDir, false);
+      deleteLogDirs(srcDir, fs);
     } catch (IOException e) {
       e = RemoteExceptionHandler.checkIOException(e);
       IOException io = new IOException("Cannot delete: " + srcDir);
@@ -1186,16 +1270,6 @@ public class HLog implements HConstants, Syncable {
     return splits;
   }
 
-  // Private immutable datastructure to hold Writer and its Path.
-  private final static class WriterAndPath {
-    final Path p;
-    final Writer w;
-    WriterAndPath(final Path p, final Writer w) {
-      this.p = p;
-      this.w = w;
-    }
-  }
-
   @SuppressWarnings("unchecked")
   public static Class<? extends HLogKey> getKeyClass(Configuration conf) {
      return (Class<? extends HLogKey>)
@@ -1213,97 +1287,15 @@ public class HLog implements HConstants, Syncable {
     }
   }
 
-  /**
-   * Sorts the HLog edits in the given list of logfiles (that are a mix of edits on multiple regions)
-   * by region and then splits them per region directories, in batches of (hbase.hlog.split.batch.size)
-   *
-   * A batch consists of a set of log files that will be sorted in a single map of edits indexed by region
-   * the resulting map will be concurrently written by multiple threads to their corresponding regions
-   *
-   * Each batch consists of more more log files that are
-   *  - recovered (files is opened for append then closed to ensure no process is writing into it)
-   *  - parsed (each edit in the log is appended to a list of edits indexed by region
-   *    see {@link #parseHLog} for more details)
-   *  - marked as either processed or corrupt depending on parsing outcome
-   *  - the resulting edits indexed by region are concurrently written to their corresponding region
-   *    region directories
-   *  - original files are then archived to a different directory
-   *
-   *
-   *
-   * @param rootDir  hbase directory
-   * @param srcDir   logs directory
-   * @param oldLogDir directory where processed logs are archived to
-   * @param logfiles the list of log files to split
-   * @param fs
-   * @param conf
-   * @return
-   * @throws IOException
+  /*
+   * Split the given hlogs; see {@link HLogSplitter}.
    */
   private static List<Path> splitLog(final Path rootDir, final Path srcDir,
     Path oldLogDir, final FileStatus[] logfiles, final FileSystem fs,
     final Configuration conf)
   throws IOException {
-    List<Path> processedLogs = new ArrayList<Path>();
-    List<Path> corruptedLogs = new ArrayList<Path>();
-    final Map<byte [], WriterAndPath> logWriters =
-      Collections.synchronizedMap(
-        new TreeMap<byte [], WriterAndPath>(Bytes.BYTES_COMPARATOR));
-    List<Path> splits = null;
-
-    // Number of logs in a read batch
-    // More means faster but bigger mem consumption
-    //TODO make a note on the conf rename and update hbase-site.xml if needed
-    int logFilesPerStep =
-      conf.getInt("hbase.hlog.split.batch.size", 3);
-     boolean skipErrors = conf.getBoolean("hbase.hlog.split.skip.errors", false);
-
-
-    try {
-      int i = -1;
-      while (i < logfiles.length) {
-        final Map<byte[], LinkedList<Entry>> editsByRegion =
-          new TreeMap<byte[], LinkedList<Entry>>(Bytes.BYTES_COMPARATOR);
-        for (int j = 0; j < logFilesPerStep; j++) {
-          i++;
-          if (i == logfiles.length) {
-            break;
-          }
-          FileStatus log = logfiles[i];
-          Path logPath = log.getPath();
-          long logLength = log.getLen();
-          LOG.debug("Splitting hlog " + (i + 1) + " of " + logfiles.length +
-            ": " + logPath + ", length=" + logLength );
-          try {
-            recoverFileLease(fs, logPath, conf);
-            parseHLog(log, editsByRegion, fs, conf);
-            processedLogs.add(logPath);
-           } catch (IOException e) {
-             if (skipErrors) {
-               LOG.warn("Got while parsing hlog " + logPath +
-                 ". Marking as corrupted", e);
-               corruptedLogs.add(logPath);
-             } else {
-               throw e;
-             }
-          }
-        }
-        writeEditsBatchToRegions(editsByRegion, logWriters, rootDir, fs, conf);
-      }
-      if (fs.listStatus(srcDir).length > processedLogs.size() + corruptedLogs.size()) {
-        throw new IOException("Discovered orphan hlog after split. Maybe " +
-          "HRegionServer was not dead when we started");
-      }
-      archiveLogs(corruptedLogs, processedLogs, oldLogDir, fs, conf);
-    } finally {
-      splits = new ArrayList<Path>(logWriters.size());
-      for (WriterAndPath wap : logWriters.values()) {
-        wap.w.close();
-        splits.add(wap.p);
-        LOG.debug("Closed " + wap.p);
-      }
-    }
-    return splits;
+    return new HLogSplitter(rootDir, logfiles, fs, conf).splitLog(srcDir,
+      oldLogDir);
   }
 
 
@@ -1402,237 +1394,74 @@ public class HLog implements HConstants, Syncable {
     return dirName.toString();
   }
 
-  public static boolean validateHLogFilename(String filename) {
-    return pattern.matcher(filename).matches();
-  }
-
-  private static Path getHLogArchivePath(Path oldLogDir, Path p) {
-    return new Path(oldLogDir, p.getName());
+  /**
+   * A region server that runs more than one HLog keeps each in its own
+   * subdirectory of the server's HLog directory.
+   * @param serverLogDir the server's HLog directory
+   * @param index index of the HLog on the server
+   * @return the directory of the HLog at <code>index</code>
+   */
+  public static Path getHLogSubdirectory(final Path serverLogDir,
+      final int index) {
+    return new Path(serverLogDir, HLOG_SUBDIR_PREFIX + index);
   }
 
-  /**
-   * Takes splitLogsMap and concurrently writes them to region directories using a thread pool
-   *
-   * @param splitLogsMap map that contains the log splitting result indexed by region
-   * @param logWriters map that contains a writer per region
-   * @param rootDir hbase root dir
-   * @param fs
-   * @param conf
-   * @throws IOException
+  /*
+   * @return The hlog files in <code>srcDir</code> and in its per-HLog
+   * subdirectories, if any.
    */
-  private static void writeEditsBatchToRegions(
-    final Map<byte[], LinkedList<Entry>> splitLogsMap,
-    final Map<byte[], WriterAndPath> logWriters,
-    final Path rootDir, final FileSystem fs, final Configuration conf)
+  static FileStatus [] listLogFiles(final Path srcDir,
+      final FileSystem fs)
   throws IOException {
-    // Number of threads to use when log splitting to rewrite the logs.
-    // More means faster but bigger mem consumption.
-    int logWriterThreads =
-      conf.getInt("hbase.regionserver.hlog.splitlog.writer.threads", 3);
-    boolean skipErrors = conf.getBoolean("hbase.skip.errors", false);
-    HashMap<byte[], Future> writeFutureResult = new HashMap<byte[], Future>();
-    NamingThreadFactory f  = new NamingThreadFactory(
-            "SplitWriter-%1$d", Executors.defaultThreadFactory());
-    ThreadPoolExecutor threadPool = (ThreadPoolExecutor)Executors.newFixedThreadPool(logWriterThreads, f);
-    for (final byte[] region : splitLogsMap.keySet()) {
-      Callable splitter = createNewSplitter(rootDir, logWriters, splitLogsMap, region, fs, conf);
-      writeFutureResult.put(region, threadPool.submit(splitter));
-    }
-
-    threadPool.shutdown();
-    // Wait for all threads to terminate
-    try {
-      for (int j = 0; !threadPool.awaitTermination(5, TimeUnit.SECONDS); j++) {
-        String message = "Waiting for hlog writers to terminate, elapsed " + j * 5 + " seconds";
-        if (j < 30) {
-          LOG.debug(message);
-        } else {
-          LOG.info(message);
-        }
-
+    FileStatus [] entries = fs.listStatus(srcDir);
+    if (entries == null) {
+      return null;
+    }
+    List<FileStatus> files = new ArrayList<FileStatus>(entries.length);
+    for (FileStatus entry : entries) {
+      if (!entry.isDir()) {
+        files.add(entry);
+        continue;
       }
-    } catch(InterruptedException ex) {
-      LOG.warn("Hlog writers were interrupted, possible data loss!");
-      if (!skipErrors) {
-        throw new IOException("Could not finish writing log entries",  ex);
-        //TODO  maybe we should fail here regardless if skipErrors is active or not
+      FileStatus [] subfiles = fs.listStatus(entry.getPath());
+      if (subfiles == null) {
+        continue;
       }
-    }
-
-    for (Map.Entry<byte[], Future> entry : writeFutureResult.entrySet()) {
-      try {
-        entry.getValue().get();
-      } catch (ExecutionException e) {
-        throw (new IOException(e.getCause()));
-      } catch (InterruptedException e1) {
-        LOG.warn("Writer for region " +  Bytes.toString(entry.getKey()) +
-                " was interrupted, however the write process should have " +
-                "finished. Throwing up ", e1);
-        throw (new IOException(e1.getCause()));
+      for (FileStatus subfile : subfiles) {
+        if (!subfile.isDir()) {
+          files.add(subfile);
+        }
       }
     }
+    return files.toArray(new FileStatus[files.size()]);
   }
 
   /*
-   * Parse a single hlog and put the edits in @splitLogsMap
-   *
-   * @param logfile to split
-   * @param splitLogsMap output parameter: a map with region names as keys and a
-   * list of edits as values
-   * @param fs the filesystem
-   * @param conf the configuration
-   * @throws IOException if hlog is corrupted, or can't be open
+   * Delete the per-HLog subdirectories of <code>srcDir</code>, then
+   * <code>srcDir</code> itself.  Deletes are not recursive so we fail rather
+   * than lose an hlog that showed up after we listed.
    */
-  private static void parseHLog(final FileStatus logfile,
-    final Map<byte[], LinkedList<Entry>> splitLogsMap, final FileSystem fs,
-    final Configuration conf)
+  private static void deleteLogDirs(final Path srcDir, final FileSystem fs)
   throws IOException {
-    // Check for possibly empty file. With appends, currently Hadoop reports a
-    // zero length even if the file has been sync'd. Revisit if HDFS-376 or
-    // HDFS-878 is committed.
-    long length = logfile.getLen();
-    if (length <= 0) {
-      LOG.warn("File " + logfile.getPath() + " might be still open, length is 0");
-    }
-    Path path = logfile.getPath();
-    Reader in;
-    int editsCount = 0;
-    try {
-      in = HLog.getReader(fs, path, conf);
-    } catch (EOFException e) {
-      if (length <= 0) {
-        //TODO should we ignore an empty, not-last log file if skip.errors is false?
-        //Either way, the caller should decide what to do. E.g. ignore if this is the last
-        //log in sequence.
-        //TODO is this scenario still possible if the log has been recovered (i.e. closed)
-        LOG.warn("Could not open " + path + " for reading. File is empty" + e);
-        return;
-      } else {
-        throw e;
-      }
-    }
-    try {
-      Entry entry;
-      while ((entry = in.next()) != null) {
-        byte[] region = entry.getKey().getRegionName();
-        LinkedList<Entry> queue = splitLogsMap.get(region);
-        if (queue == null) {
-          queue = new LinkedList<Entry>();
-          splitLogsMap.put(region, queue);
+    FileStatus [] entries = fs.listStatus(srcDir);
+    if (entries != null) {
+      for (FileStatus entry : entries) {
+        if (entry.isDir()) {
+          fs.delete(entry.getPath(), false);
         }
-        queue.addLast(entry);
-        editsCount++;
-      }
-      LOG.debug("Pushed=" + editsCount + " entries from " + path);
-    } finally {
-      try {
-        if (in != null) {
-          in.close();
-        }
-      } catch (IOException e) {
-        LOG.warn("Close log reader in finally threw exception -- continuing", e);
       }
     }
+    fs.delete(srcDir, false);
   }
 
-  private static Callable<Void> createNewSplitter(final Path rootDir,
-    final Map<byte[], WriterAndPath> logWriters,
-    final Map<byte[], LinkedList<Entry>> logEntries,
-    final byte[] region, final FileSystem fs, final Configuration conf) {
-    return new Callable<Void>() {
-      public String getName() {
-        return "Split writer thread for region " + Bytes.toStringBinary(region);
-      }
-
-      @Override
-      public Void call() throws IOException {
-        LinkedList<Entry> entries = logEntries.get(region);
-        LOG.debug(this.getName()+" got " + entries.size() + " to process");
-        long threadTime = System.currentTimeMillis();
-        try {
-          int editsCount = 0;
-          WriterAndPath wap = logWriters.get(region);
-          for (Entry logEntry: entries) {
-            if (wap == null) {
-              Path logFile = getRegionLogPath(logEntry, rootDir);
-              if (fs.exists(logFile)) {
-                LOG.warn("Found existing old hlog file. It could be the result of a previous" +
-                        "failed split attempt. Deleting " + logFile +
-                        ", length=" + fs.getFileStatus(logFile).getLen());
-                fs.delete(logFile, false);
-              }
-              Writer w = createWriter(fs, logFile, conf);
-              wap = new WriterAndPath(logFile, w);
-              logWriters.put(region, wap);
-              LOG.debug("Creating writer path=" + logFile +
-                " region=" + Bytes.toStringBinary(region));
-            }
-            wap.w.append(logEntry);
-            editsCount++;
-          }
-          LOG.debug(this.getName() + " Applied " + editsCount +
-            " total edits to " + Bytes.toStringBinary(region) +
-            " in " + (System.currentTimeMillis() - threadTime) + "ms");
-        } catch (IOException e) {
-          e = RemoteExceptionHandler.checkIOException(e);
-          LOG.fatal(this.getName() + " Got while writing log entry to log", e);
-          throw e;
-        }
-        return null;
-      }
-    };
+  public static boolean validateHLogFilename(String filename) {
+    return pattern.matcher(filename).matches();
   }
 
-  /**
-   * Moves processed logs to a oldLogDir after successful processing
-   * Moves corrupted logs (any log that couldn't be successfully parsed
-   * to corruptDir (.corrupt) for later investigation
-   *
-   * @param corruptedLogs
-   * @param processedLogs
-   * @param oldLogDir
-   * @param fs
-   * @param conf
-   * @throws IOException
-   */
-  private static void archiveLogs(final List<Path> corruptedLogs,
-    final List<Path> processedLogs, final Path oldLogDir,
-    final FileSystem fs, final Configuration conf)
-  throws IOException{
-    final Path corruptDir = new Path(conf.get(HBASE_DIR),
-      conf.get("hbase.regionserver.hlog.splitlog.corrupt.dir", ".corrupt"));
-
-    fs.mkdirs(corruptDir);
-    fs.mkdirs(oldLogDir);
-
-    for (Path corrupted: corruptedLogs) {
-      Path p = new Path(corruptDir, corrupted.getName());
-      LOG.info("Moving corrupted log " + corrupted + " to " + p);
-      fs.rename(corrupted, p);
-    }
-
-    for (Path p: processedLogs) {
-      Path newPath = getHLogArchivePath(oldLogDir, p);
-      fs.rename(p, newPath);
-      LOG.info("Archived processed log " + p + " to " + newPath);
-    }
+  static Path getHLogArchivePath(Path oldLogDir, Path p) {
+    return new Path(oldLogDir, p.getName());
   }
 
-  private static Path getRegionLogPath(Entry logEntry, Path rootDir) {
-    Path tableDir =
-      HTableDescriptor.getTableDir(rootDir, logEntry.getKey().getTablename());
-    Path regionDir =
-            HRegion.getRegionDir(tableDir, HRegionInfo.encodeRegionName(logEntry.getKey().getRegionName()));
-    return new Path(regionDir, HREGION_OLDLOGFILE_NAME);
-   }
-
-
-
-
-
-
-
-
   public void addLogActionsListerner(LogActionsListener list) {
     LOG.info("Adding a listener");
     this.actionListeners.add(list);
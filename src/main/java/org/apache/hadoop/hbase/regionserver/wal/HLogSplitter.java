@@ -0,0 +1,677 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver.wal;
+
+import static org.apache.hadoop.hbase.util.FSUtils.recoverFileLease;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.RemoteExceptionHandler;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.wal.HLog.Entry;
+import org.apache.hadoop.hbase.regionserver.wal.HLog.Reader;
+import org.apache.hadoop.hbase.regionserver.wal.HLog.Writer;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
+
+/**
+ * Splits the hlogs of a dead region server into per region edit logs.
+ * <p>
+ * Edits are streamed rather than read whole into memory.  A pool of reader
+ * threads each take the next unread hlog, recover its lease and read it,
+ * handing its edits, grouped by region, to a shared set of per region
+ * buffers.  A pool of writer threads drains the buffers, each holding the
+ * output file of every region it has written to open until the split is
+ * done.  The buffers are bounded by
+ * <code>hbase.regionserver.hlog.splitlog.buffersize</code>; readers block
+ * when it is exceeded until the writers catch up.
+ * <p>
+ * Replay expects a region's edits in the order they were written, so edits
+ * read out of an hlog are only handed to a writer once all earlier hlogs have
+ * been read; the reader of the earliest unfinished hlog is let past the
+ * buffer bound when nothing else can be drained, so the split always makes
+ * progress.
+ * <p>
+ * Bytes split and time taken are accumulated in static counters drained by
+ * {@link org.apache.hadoop.hbase.master.metrics.MasterMetrics}.
+ */
+public class HLogSplitter implements HConstants {
+  static final Log LOG = LogFactory.getLog(HLogSplitter.class);
+
+  // Rough heap cost of an Entry beyond its KeyValues: the Entry, its HLogKey
+  // and its WALEdit with backing list.
+  private static final long ENTRY_OVERHEAD = ClassSize.align(
+    (3 * ClassSize.OBJECT) + (6 * ClassSize.REFERENCE) + ClassSize.ARRAYLIST +
+    (3 * Bytes.SIZEOF_LONG));
+
+  // Largest batch of edits a reader accumulates before handing it over.
+  private static final long MAX_CHUNK_SIZE = 1024 * 1024;
+
+  // Metrics, drained by MasterMetrics.
+  private static final AtomicLong splitOps = new AtomicLong();
+  private static final AtomicLong splitTime = new AtomicLong();
+  private static final AtomicLong splitBytes = new AtomicLong();
+
+  private final Path rootDir;
+  private final FileStatus [] logfiles;
+  private final FileSystem fs;
+  private final Configuration conf;
+  private final boolean skipErrors;
+  private final long maxBufferedHeap;
+  private final long chunkSize;
+  private final int readerThreads;
+  private final int writerThreads;
+
+  private final List<Path> processedLogs =
+    Collections.synchronizedList(new ArrayList<Path>());
+  private final List<Path> corruptedLogs =
+    Collections.synchronizedList(new ArrayList<Path>());
+  // Output of each region; a region is only ever written by one writer at a
+  // time, the map is synchronized for the final close.
+  private final Map<byte [], WriterAndPath> logWriters =
+    Collections.synchronizedMap(
+      new TreeMap<byte [], WriterAndPath>(Bytes.BYTES_COMPARATOR));
+
+  // Everything below is guarded by the monitor of this splitter.
+  private final Map<byte [], RegionEntries> buffers =
+    new TreeMap<byte [], RegionEntries>(Bytes.BYTES_COMPARATOR);
+  // Heap held by buffered edits, in total and by the hlog they came from.
+  // Edits stay accounted until written.
+  private long bufferedHeap = 0;
+  private final long [] bufferedHeapByLog;
+  private final boolean [] logRead;
+  // All hlogs before this one have been read.
+  private int firstUnreadLog = 0;
+  // Next hlog to hand out to a reader.
+  private int nextLog = 0;
+  private int readersRunning = 0;
+  private IOException error = null;
+
+  /**
+   * @param rootDir hbase directory
+   * @param logfiles the hlogs to split, oldest first
+   * @param fs
+   * @param conf
+   */
+  HLogSplitter(final Path rootDir, final FileStatus [] logfiles,
+      final FileSystem fs, final Configuration conf) {
+    this.rootDir = rootDir;
+    this.logfiles = logfiles;
+    this.fs = fs;
+    this.conf = conf;
+    this.skipErrors = conf.getBoolean("hbase.hlog.split.skip.errors", false);
+    this.maxBufferedHeap = conf.getLong(
+      "hbase.regionserver.hlog.splitlog.buffersize", 128 * 1024 * 1024);
+    this.readerThreads = Math.max(1,
+      conf.getInt("hbase.regionserver.hlog.splitlog.reader.threads", 3));
+    this.writerThreads = Math.max(1,
+      conf.getInt("hbase.regionserver.hlog.splitlog.writer.threads", 3));
+    this.chunkSize = Math.max(1, Math.min(MAX_CHUNK_SIZE,
+      this.maxBufferedHeap / (4 * this.readerThreads)));
+    this.bufferedHeapByLog = new long[logfiles.length];
+    this.logRead = new boolean[logfiles.length];
+  }
+
+  /**
+   * Split the hlogs, then archive them to <code>oldLogDir</code>, or to the
+   * corrupt dir if they could not be read and we are skipping errors.  The
+   * hlogs are left untouched if the split fails.
+   * @param srcDir directory the hlogs are in
+   * @param oldLogDir directory where processed logs are archived to
+   * @return the per region edit logs written
+   * @throws IOException
+   */
+  List<Path> splitLog(final Path srcDir, final Path oldLogDir)
+  throws IOException {
+    long start = System.currentTimeMillis();
+    List<Path> splits = null;
+    try {
+      List<Thread> threads = new ArrayList<Thread>();
+      synchronized (this) {
+        this.readersRunning = this.readerThreads;
+      }
+      for (int i = 0; i < this.readerThreads; i++) {
+        threads.add(new LogReaderThread("SplitReader-" + i));
+      }
+      for (int i = 0; i < this.writerThreads; i++) {
+        threads.add(new RegionWriterThread("SplitWriter-" + i));
+      }
+      for (Thread t : threads) {
+        t.setDaemon(true);
+        t.start();
+      }
+      joinAll(threads);
+      if (this.error != null) {
+        throw this.error;
+      }
+      if (HLog.listLogFiles(srcDir, fs).length >
+          processedLogs.size() + corruptedLogs.size()) {
+        throw new IOException("Discovered orphan hlog after split. Maybe " +
+          "HRegionServer was not dead when we started");
+      }
+      archiveLogs(oldLogDir);
+    } finally {
+      splits = new ArrayList<Path>(logWriters.size());
+      for (WriterAndPath wap : logWriters.values()) {
+        wap.w.close();
+        splits.add(wap.p);
+        LOG.debug("Closed " + wap.p);
+      }
+    }
+    long bytes = 0;
+    for (FileStatus log : this.logfiles) {
+      bytes += log.getLen();
+    }
+    splitOps.incrementAndGet();
+    splitTime.addAndGet(System.currentTimeMillis() - start);
+    splitBytes.addAndGet(bytes);
+    return splits;
+  }
+
+  /*
+   * Wait on all split threads.  If interrupted, fail the split and keep
+   * waiting so no thread is left behind writing region output.
+   */
+  private void joinAll(final List<Thread> threads) {
+    for (Thread t : threads) {
+      while (t.isAlive()) {
+        try {
+          t.join();
+        } catch (InterruptedException e) {
+          abort(new IOException("Interrupted waiting on " + t.getName()));
+        }
+      }
+    }
+  }
+
+  /**
+   * @return Count of splits completed since last call; resets the count.
+   */
+  public static long getSplitOps() {
+    return splitOps.getAndSet(0);
+  }
+
+  /**
+   * @return Total ms spent splitting since last call; resets the time.
+   */
+  public static long getSplitTime() {
+    return splitTime.getAndSet(0);
+  }
+
+  /**
+   * @return Total hlog bytes split since last call; resets the count.
+   */
+  public static long getSplitBytes() {
+    return splitBytes.getAndSet(0);
+  }
+
+  /*
+   * Fail the split.  The first error wins; everyone waiting is woken so they
+   * can notice and quit.
+   */
+  private synchronized void abort(final IOException e) {
+    if (this.error == null) {
+      this.error = e;
+    }
+    notifyAll();
+  }
+
+  /*
+   * @return index of the next hlog to read, or -1 if there are none left or
+   * the split failed.
+   */
+  private synchronized int nextLogToRead() {
+    if (this.error != null || this.nextLog >= this.logfiles.length) {
+      return -1;
+    }
+    return this.nextLog++;
+  }
+
+  /*
+   * Called once the hlog at <code>index</code> has been read, successfully
+   * or not.  Its buffered edits, and those of any later hlogs read already,
+   * may now be handed to writers.
+   */
+  private synchronized void logRead(final int index) {
+    this.logRead[index] = true;
+    while (this.firstUnreadLog < this.logfiles.length &&
+        this.logRead[this.firstUnreadLog]) {
+      this.firstUnreadLog++;
+    }
+    notifyAll();
+  }
+
+  private synchronized void readerDone() {
+    this.readersRunning--;
+    notifyAll();
+  }
+
+  /*
+   * Hand edits read from an hlog over to the writers, blocking while the
+   * buffers are full.
+   * @return false if the split failed meantime and the edits were dropped
+   */
+  private synchronized boolean bufferEdits(final int index,
+      final Map<byte [], Chunk> chunks, final long heap) {
+    while (this.error == null && this.bufferedHeap > this.maxBufferedHeap &&
+        !mayOverrun(index)) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        // Loop; only the writers or an abort can let us go.
+      }
+    }
+    if (this.error != null) {
+      return false;
+    }
+    for (Map.Entry<byte [], Chunk> e : chunks.entrySet()) {
+      RegionEntries re = this.buffers.get(e.getKey());
+      if (re == null) {
+        re = new RegionEntries(e.getKey());
+        this.buffers.put(e.getKey(), re);
+      }
+      re.add(e.getValue());
+    }
+    this.bufferedHeap += heap;
+    this.bufferedHeapByLog[index] += heap;
+    notifyAll();
+    return true;
+  }
+
+  /*
+   * The reader of the earliest unread hlog may go over the bound when all
+   * that is buffered is waiting on that very hlog; otherwise nothing could
+   * ever be drained.
+   */
+  private boolean mayOverrun(final int index) {
+    if (index != this.firstUnreadLog) {
+      return false;
+    }
+    for (int i = 0; i <= index; i++) {
+      if (this.bufferedHeapByLog[i] > 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /*
+   * Take the edits of a region nobody else is writing to that may be
+   * written now, waiting for some if need be.
+   * @return the region's buffer with the chunks taken, or null when there is
+   * nothing left to write or the split failed.
+   */
+  private synchronized RegionEntries takeEdits(final List<Chunk> taken) {
+    while (true) {
+      if (this.error != null) {
+        return null;
+      }
+      boolean pending = false;
+      for (RegionEntries re : this.buffers.values()) {
+        if (re.chunks.isEmpty()) {
+          continue;
+        }
+        pending = true;
+        if (!re.writing && re.takeDrainable(this.firstUnreadLog, taken)) {
+          re.writing = true;
+          return re;
+        }
+      }
+      if (!pending && this.readersRunning == 0) {
+        return null;
+      }
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        // Loop; readers or an abort will wake us.
+      }
+    }
+  }
+
+  /*
+   * Return the region to the pool of writable regions and free the heap of
+   * the edits written.
+   */
+  private synchronized void editsWritten(final RegionEntries re,
+      final List<Chunk> written) {
+    re.writing = false;
+    for (Chunk c : written) {
+      this.bufferedHeap -= c.heap;
+      this.bufferedHeapByLog[c.logIndex] -= c.heap;
+    }
+    notifyAll();
+  }
+
+  /*
+   * Read one hlog, handing its edits over in chunks.  Whatever was read
+   * before a failure is handed over too, as replaying the readable part of
+   * a corrupt hlog is better than losing it.
+   */
+  private void readLog(final int index) throws IOException {
+    FileStatus logfile = this.logfiles[index];
+    // Check for possibly empty file. With appends, currently Hadoop reports a
+    // zero length even if the file has been sync'd. Revisit if HDFS-376 or
+    // HDFS-878 is committed.
+    long length = logfile.getLen();
+    if (length <= 0) {
+      LOG.warn("File " + logfile.getPath() + " might be still open, length is 0");
+    }
+    Path path = logfile.getPath();
+    Reader in;
+    int editsCount = 0;
+    try {
+      in = HLog.getReader(fs, path, conf);
+    } catch (EOFException e) {
+      if (length <= 0) {
+        //TODO should we ignore an empty, not-last log file if skip.errors is false?
+        //Either way, the caller should decide what to do. E.g. ignore if this is the last
+        //log in sequence.
+        //TODO is this scenario still possible if the log has been recovered (i.e. closed)
+        LOG.warn("Could not open " + path + " for reading. File is empty" + e);
+        return;
+      } else {
+        throw e;
+      }
+    }
+    Map<byte [], Chunk> chunks =
+      new TreeMap<byte [], Chunk>(Bytes.BYTES_COMPARATOR);
+    long heap = 0;
+    try {
+      Entry entry;
+      while ((entry = in.next()) != null) {
+        byte [] region = entry.getKey().getRegionName();
+        Chunk chunk = chunks.get(region);
+        if (chunk == null) {
+          chunk = new Chunk(index);
+          chunks.put(region, chunk);
+        }
+        long size = heapSize(entry);
+        chunk.add(entry, size);
+        heap += size;
+        editsCount++;
+        if (heap >= this.chunkSize) {
+          if (!bufferEdits(index, chunks, heap)) {
+            return;
+          }
+          chunks = new TreeMap<byte [], Chunk>(Bytes.BYTES_COMPARATOR);
+          heap = 0;
+        }
+      }
+      LOG.debug("Pushed=" + editsCount + " entries from " + path);
+    } finally {
+      if (!chunks.isEmpty()) {
+        bufferEdits(index, chunks, heap);
+      }
+      try {
+        if (in != null) {
+          in.close();
+        }
+      } catch (IOException e) {
+        LOG.warn("Close log reader in finally threw exception -- continuing", e);
+      }
+    }
+  }
+
+  /*
+   * Append edits to a region's output, creating it on first use.
+   */
+  private void writeEdits(final byte [] region, final List<Chunk> chunks)
+  throws IOException {
+    WriterAndPath wap = logWriters.get(region);
+    int editsCount = 0;
+    for (Chunk chunk : chunks) {
+      for (Entry logEntry : chunk.entries) {
+        if (wap == null) {
+          Path logFile = getRegionLogPath(logEntry, rootDir);
+          if (fs.exists(logFile)) {
+            LOG.warn("Found existing old hlog file. It could be the result of a previous" +
+                    "failed split attempt. Deleting " + logFile +
+                    ", length=" + fs.getFileStatus(logFile).getLen());
+            fs.delete(logFile, false);
+          }
+          Writer w = HLog.createWriter(fs, logFile, conf);
+          wap = new WriterAndPath(logFile, w);
+          logWriters.put(region, wap);
+          LOG.debug("Creating writer path=" + logFile +
+            " region=" + Bytes.toStringBinary(region));
+        }
+        wap.w.append(logEntry);
+        editsCount++;
+      }
+    }
+    if (LOG.isTraceEnabled()) {
+      LOG.trace("Applied " + editsCount + " edits to " +
+        Bytes.toStringBinary(region));
+    }
+  }
+
+  /**
+   * Moves processed logs to a oldLogDir after successful processing
+   * Moves corrupted logs (any log that couldn't be successfully parsed
+   * to corruptDir (.corrupt) for later investigation
+   *
+   * @param oldLogDir
+   * @throws IOException
+   */
+  private void archiveLogs(final Path oldLogDir) throws IOException {
+    final Path corruptDir = new Path(conf.get(HBASE_DIR),
+      conf.get("hbase.regionserver.hlog.splitlog.corrupt.dir", ".corrupt"));
+
+    fs.mkdirs(corruptDir);
+    fs.mkdirs(oldLogDir);
+
+    for (Path corrupted: corruptedLogs) {
+      Path p = new Path(corruptDir, corrupted.getName());
+      LOG.info("Moving corrupted log " + corrupted + " to " + p);
+      fs.rename(corrupted, p);
+    }
+
+    for (Path p: processedLogs) {
+      Path newPath = HLog.getHLogArchivePath(oldLogDir, p);
+      fs.rename(p, newPath);
+      LOG.info("Archived processed log " + p + " to " + newPath);
+    }
+  }
+
+  private static Path getRegionLogPath(Entry logEntry, Path rootDir) {
+    Path tableDir =
+      HTableDescriptor.getTableDir(rootDir, logEntry.getKey().getTablename());
+    Path regionDir =
+            HRegion.getRegionDir(tableDir, HRegionInfo.encodeRegionName(logEntry.getKey().getRegionName()));
+    return new Path(regionDir, HREGION_OLDLOGFILE_NAME);
+  }
+
+  /*
+   * @return Estimate of the heap held by <code>entry</code>
+   */
+  private static long heapSize(final Entry entry) {
+    long size = ENTRY_OVERHEAD;
+    HLogKey key = entry.getKey();
+    size += ClassSize.align(ClassSize.ARRAY + key.getRegionName().length);
+    size += ClassSize.align(ClassSize.ARRAY + key.getTablename().length);
+    for (KeyValue kv : entry.getEdit().getKeyValues()) {
+      size += ClassSize.REFERENCE + kv.heapSize();
+    }
+    return size;
+  }
+
+  /*
+   * Reads hlogs, one at a time, until there are none left.
+   */
+  private class LogReaderThread extends Thread {
+    LogReaderThread(final String name) {
+      super(name);
+    }
+
+    @Override
+    public void run() {
+      try {
+        int index;
+        while ((index = nextLogToRead()) >= 0) {
+          FileStatus log = logfiles[index];
+          Path logPath = log.getPath();
+          LOG.debug("Splitting hlog " + (index + 1) + " of " +
+            logfiles.length + ": " + logPath + ", length=" + log.getLen());
+          try {
+            recoverFileLease(fs, logPath, conf);
+            readLog(index);
+            processedLogs.add(logPath);
+          } catch (IOException e) {
+            if (skipErrors) {
+              LOG.warn("Got while parsing hlog " + logPath +
+                ". Marking as corrupted", e);
+              corruptedLogs.add(logPath);
+            } else {
+              abort(e);
+            }
+          } finally {
+            logRead(index);
+          }
+        }
+      } catch (RuntimeException e) {
+        abort(new IOException("Reader " + getName() + " failed", e));
+      } finally {
+        readerDone();
+      }
+    }
+  }
+
+  /*
+   * Drains region buffers into the regions' output until everything is
+   * written.
+   */
+  private class RegionWriterThread extends Thread {
+    RegionWriterThread(final String name) {
+      super(name);
+    }
+
+    @Override
+    public void run() {
+      List<Chunk> chunks = new ArrayList<Chunk>();
+      RegionEntries re;
+      while ((re = takeEdits(chunks)) != null) {
+        try {
+          writeEdits(re.region, chunks);
+        } catch (IOException e) {
+          e = RemoteExceptionHandler.checkIOException(e);
+          LOG.fatal(getName() + " Got while writing log entry to log", e);
+          // Wrapped, as the cause is what tells a writer failure from a
+          // reader one.
+          abort(new IOException(e));
+        } catch (RuntimeException e) {
+          abort(new IOException("Writer " + getName() + " failed", e));
+        } finally {
+          editsWritten(re, chunks);
+          chunks.clear();
+        }
+      }
+    }
+  }
+
+  /*
+   * Edits of one region read out of one hlog.
+   */
+  private static class Chunk {
+    final int logIndex;
+    final List<Entry> entries = new ArrayList<Entry>();
+    long heap = 0;
+
+    Chunk(final int logIndex) {
+      this.logIndex = logIndex;
+    }
+
+    void add(final Entry entry, final long size) {
+      this.entries.add(entry);
+      this.heap += size;
+    }
+  }
+
+  /*
+   * The buffered edits of a region, in hlog order.  Guarded by the monitor of
+   * the splitter.
+   */
+  private static class RegionEntries {
+    final byte [] region;
+    final LinkedList<Chunk> chunks = new LinkedList<Chunk>();
+    // True while a writer is appending this region's edits.
+    boolean writing = false;
+
+    RegionEntries(final byte [] region) {
+      this.region = region;
+    }
+
+    /*
+     * Hlogs are read concurrently, so chunks do not necessarily arrive in
+     * hlog order; insert in place.
+     */
+    void add(final Chunk chunk) {
+      ListIterator<Chunk> i = this.chunks.listIterator(this.chunks.size());
+      while (i.hasPrevious()) {
+        if (i.previous().logIndex <= chunk.logIndex) {
+          i.next();
+          break;
+        }
+      }
+      i.add(chunk);
+    }
+
+    /*
+     * Move the chunks that come from hlogs up to and including
+     * <code>firstUnreadLog</code> to <code>taken</code>.
+     * @return true if any were taken
+     */
+    boolean takeDrainable(final int firstUnreadLog, final List<Chunk> taken) {
+      while (!this.chunks.isEmpty() &&
+          this.chunks.getFirst().logIndex <= firstUnreadLog) {
+        taken.add(this.chunks.removeFirst());
+      }
+      return !taken.isEmpty();
+    }
+  }
+
+  // Private immutable datastructure to hold Writer and its Path.
+  private final static class WriterAndPath {
+    final Path p;
+    final Writer w;
+    WriterAndPath(final Path p, final Writer w) {
+      this.p = p;
+      this.w = w;
+    }
+  }
+}
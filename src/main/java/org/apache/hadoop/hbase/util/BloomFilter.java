@@ -19,7 +19,6 @@
  */
 package org.apache.hadoop.hbase.util;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
 
 import org.apache.hadoop.io.Writable;
@@ -43,30 +42,7 @@ import org.apache.hadoop.io.Writable;
  * <p>
  * It must be extended in order to define the real behavior.
  */
-public interface BloomFilter {
-  /** 
-   * Allocate memory for the bloom filter data.  Note that bloom data isn't 
-   * allocated by default because it can grow large & reads would be better 
-   * managed by the LRU cache.
-   */
-  void allocBloom();
-  
-  /**
-   * Add the specified binary to the bloom filter.
-   *
-   * @param buf data to be added to the bloom
-   */
-  void add(byte []buf);
-
-  /**
-   * Add the specified binary to the bloom filter.
-   *
-   * @param buf data to be added to the bloom
-   * @param offset offset into the data to be added
-   * @param len length of the data to be added
-   */
-  void add(byte []buf, int offset, int len);
-
+public interface BloomFilter extends BloomFilterBase {
   /**
    * Check if the specified key is contained in the bloom filter.
    *
@@ -87,33 +63,6 @@ public interface BloomFilter {
    */
   boolean contains(byte [] buf, int offset, int length, ByteBuffer bloom);
   
-  /**
-   * @return The number of keys added to the bloom
-   */
-  int getKeyCount();
-
-  /**
-   * @return The max number of keys that can be inserted
-   *         to maintain the desired error rate
-   */
-  public int getMaxKeys();
-  
-  /**
-   * Size of the bloom, in bytes
-   */
-  public int getByteSize();
-  
-  /**
-   * Finalize the bloom before writing metadata & data to disk
-   */
-  void finalize();
-
-  /**
-   * Get a writable interface into bloom filter meta data.
-   * @return writable class
-   */
-  Writable getMetaWriter();
-
   /**
    * Get a writable interface into bloom filter data (actual bloom).
    * @return writable class
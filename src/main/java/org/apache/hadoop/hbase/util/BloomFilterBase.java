@@ -0,0 +1,80 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.util;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * The part of a bloom filter used to build it and write out its meta data.
+ * A {@link BloomFilter} is checked against one bit array; a
+ * {@link CompoundBloomFilter} is made of many, each checked on its own.
+ */
+public interface BloomFilterBase {
+  /** 
+   * Allocate memory for the bloom filter data.  Note that bloom data isn't 
+   * allocated by default because it can grow large & reads would be better 
+   * managed by the LRU cache.
+   */
+  void allocBloom();
+  
+  /**
+   * Add the specified binary to the bloom filter.
+   *
+   * @param buf data to be added to the bloom
+   */
+  void add(byte []buf);
+
+  /**
+   * Add the specified binary to the bloom filter.
+   *
+   * @param buf data to be added to the bloom
+   * @param offset offset into the data to be added
+   * @param len length of the data to be added
+   */
+  void add(byte []buf, int offset, int len);
+
+  /**
+   * @return The number of keys added to the bloom
+   */
+  int getKeyCount();
+
+  /**
+   * @return The max number of keys that can be inserted
+   *         to maintain the desired error rate
+   */
+  public int getMaxKeys();
+  
+  /**
+   * Size of the bloom, in bytes
+   */
+  public int getByteSize();
+  
+  /**
+   * Compact the bloom before writing metadata & data to disk.  Not named
+   * finalize(), which the garbage collector would call on every filter.
+   */
+  void compactBloom();
+
+  /**
+   * Get a writable interface into bloom filter meta data.
+   * @return writable class
+   */
+  Writable getMetaWriter();
+}
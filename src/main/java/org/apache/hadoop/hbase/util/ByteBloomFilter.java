@@ -329,7 +329,7 @@ public class ByteBloomFilter implements BloomFilter {
   }
 
   @Override
-  public void finalize() {
+  public void compactBloom() {
     // see if the actual size is exponentially smaller than expected.
     if (this.keyCount > 0 && this.bloom.hasArray()) {
       int pieces = 1;
@@ -80,6 +80,12 @@ public class ClassSize {
   /** Overhead for ConcurrentSkipListMap Entry */
   public static int CONCURRENT_SKIPLISTMAP_ENTRY = 0;
 
+  /** Overhead for ConcurrentLinkedQueue */
+  public static int CONCURRENT_LINKED_QUEUE = 0;
+
+  /** Overhead for ConcurrentLinkedQueue.Node */
+  public static int CONCURRENT_LINKED_QUEUE_NODE = 0;
+
   /** Overhead for ReentrantReadWriteLock */
   public static int REENTRANT_LOCK = 0;
 
@@ -150,6 +156,10 @@ public class ClassSize {
         align(OBJECT + (3 * REFERENCE)) + /* one node per entry */
         align((OBJECT + (3 * REFERENCE))/2)); /* one index per two entries */
 
+    CONCURRENT_LINKED_QUEUE = align(OBJECT + (2 * REFERENCE));
+
+    CONCURRENT_LINKED_QUEUE_NODE = align(OBJECT + (2 * REFERENCE));
+
     REENTRANT_LOCK = align(OBJECT + (3 * REFERENCE));
 
     ATOMIC_LONG = align(OBJECT + Bytes.SIZEOF_LONG);
@@ -0,0 +1,266 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * A bloom filter made of a run of {@link ByteBloomFilter} chunks, each
+ * holding the keys of a range of rows.
+ * <p>
+ * A chunk is started every <code>chunkKeys</code> keys, on a row boundary,
+ * so all keys of a row are in the same chunk.  The meta data holds the first
+ * row and the meta data of every chunk; the bit array of each chunk is
+ * stored on its own.  A reader keeps only the meta data in memory and loads
+ * the single chunk a row falls in, which can be cached like any other block,
+ * instead of one bit array sized for the whole file.
+ * <p>
+ * Not a {@link BloomFilter}: a key is checked against the chunk of its row,
+ * see {@link #chunkFor(byte[], int, int)} and {@link #getChunk(int)}, and
+ * the bit array of each chunk is written out with
+ * {@link #getChunkDataWriter(int)}.
+ */
+public class CompoundBloomFilter implements BloomFilterBase {
+  /**
+   * Meta data format version.  Follows that of {@link ByteBloomFilter} so the
+   * two can be told apart by the first int of their meta data.
+   */
+  public static final int VERSION = 2;
+
+  // Writing only
+  private final int chunkKeys;
+  private final float errorRate;
+  private final int hashType;
+  private final int foldFactor;
+  private ByteBloomFilter current = null;
+
+  private final List<ByteBloomFilter> chunks = new ArrayList<ByteBloomFilter>();
+  private final List<byte []> firstRows = new ArrayList<byte []>();
+
+  /**
+   * Creates a compound bloom filter for writing.
+   * @param chunkKeys Keys per chunk
+   * @param errorRate Desired false positive error rate
+   * @param hashType Type of hash function to use
+   * @param foldFactor Fold factor of each chunk, see {@link ByteBloomFilter}
+   */
+  public CompoundBloomFilter(int chunkKeys, float errorRate, int hashType,
+      int foldFactor) {
+    if (chunkKeys <= 0) {
+      throw new IllegalArgumentException("chunkKeys must be > 0");
+    }
+    this.chunkKeys = chunkKeys;
+    this.errorRate = errorRate;
+    this.hashType = hashType;
+    this.foldFactor = foldFactor;
+  }
+
+  /**
+   * Loads compound bloom filter meta data from file input.
+   * @param meta stored bloom meta data
+   * @throws IllegalArgumentException meta data is invalid
+   */
+  public CompoundBloomFilter(ByteBuffer meta)
+  throws IllegalArgumentException {
+    int version = meta.getInt();
+    if (version != VERSION) throw new IllegalArgumentException("Bad version");
+    this.chunkKeys = 0;
+    this.errorRate = 0;
+    this.foldFactor = 0;
+    this.hashType = meta.getInt();
+    int count = meta.getInt();
+    if (count <= 0) {
+      throw new IllegalArgumentException("Bad chunk count " + count);
+    }
+    for (int i = 0; i < count; i++) {
+      byte [] row = new byte[meta.getInt()];
+      meta.get(row);
+      this.firstRows.add(row);
+      this.chunks.add(new ByteBloomFilter(meta));
+    }
+  }
+
+  /**
+   * @param meta stored bloom meta data; its position is not changed
+   * @return True if the meta data is that of a compound bloom filter
+   */
+  public static boolean isCompound(ByteBuffer meta) {
+    return meta.remaining() >= Bytes.SIZEOF_INT &&
+      meta.getInt(meta.position()) == VERSION;
+  }
+
+  /**
+   * Called on every new row, before its keys are added.  Starts a new chunk
+   * if the current one is full.
+   * @param row buffer holding the row
+   * @param offset offset of the row
+   * @param length length of the row
+   */
+  public void newRow(byte [] row, int offset, int length) {
+    if (this.current != null && this.current.getKeyCount() < this.chunkKeys) {
+      return;
+    }
+    finishChunk();
+    this.current = new ByteBloomFilter(this.chunkKeys, this.errorRate,
+      this.hashType, this.foldFactor);
+    this.current.allocBloom();
+    byte [] firstRow = new byte[length];
+    System.arraycopy(row, offset, firstRow, 0, length);
+    this.firstRows.add(firstRow);
+    this.chunks.add(this.current);
+  }
+
+  private void finishChunk() {
+    if (this.current != null) {
+      this.current.compactBloom();
+      this.current = null;
+    }
+  }
+
+  /**
+   * @param row buffer holding the row
+   * @param offset offset of the row
+   * @param length length of the row
+   * @return Index of the chunk holding the keys of the row, or -1 if the
+   * row sorts before all rows of the filter
+   */
+  public int chunkFor(byte [] row, int offset, int length) {
+    int low = 0;
+    int high = this.firstRows.size() - 1;
+    int found = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      byte [] first = this.firstRows.get(mid);
+      if (Bytes.compareTo(first, 0, first.length, row, offset, length) <= 0) {
+        found = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * @return Number of chunks
+   */
+  public int getChunkCount() {
+    return this.chunks.size();
+  }
+
+  /**
+   * @param chunk chunk index
+   * @return The bloom filter of the chunk, to check its data with
+   */
+  public ByteBloomFilter getChunk(int chunk) {
+    return this.chunks.get(chunk);
+  }
+
+  /**
+   * @param chunk chunk index
+   * @return Writable for the bit array of the chunk
+   */
+  public Writable getChunkDataWriter(int chunk) {
+    return this.chunks.get(chunk).getDataWriter();
+  }
+
+  @Override
+  public void allocBloom() {
+    // Chunks are allocated as rows come in.
+  }
+
+  @Override
+  public void add(byte [] buf) {
+    add(buf, 0, buf.length);
+  }
+
+  @Override
+  public void add(byte [] buf, int offset, int len) {
+    if (this.current == null) {
+      throw new IllegalStateException("newRow must be called before add");
+    }
+    this.current.add(buf, offset, len);
+  }
+
+  @Override
+  public int getKeyCount() {
+    int count = 0;
+    for (ByteBloomFilter chunk : this.chunks) {
+      count += chunk.getKeyCount();
+    }
+    return count;
+  }
+
+  @Override
+  public int getMaxKeys() {
+    int count = 0;
+    for (ByteBloomFilter chunk : this.chunks) {
+      count += chunk.getMaxKeys();
+    }
+    return count;
+  }
+
+  @Override
+  public int getByteSize() {
+    int size = 0;
+    for (ByteBloomFilter chunk : this.chunks) {
+      size += chunk.getByteSize();
+    }
+    return size;
+  }
+
+  @Override
+  public void compactBloom() {
+    finishChunk();
+  }
+
+  @Override
+  public Writable getMetaWriter() {
+    return new MetaWriter();
+  }
+
+  private class MetaWriter implements Writable {
+    protected MetaWriter() {}
+    @Override
+    public void readFields(DataInput arg0) throws IOException {
+      throw new IOException("Cant read with this class.");
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      out.writeInt(VERSION);
+      out.writeInt(hashType);
+      out.writeInt(chunks.size());
+      for (int i = 0; i < chunks.size(); i++) {
+        byte [] row = firstRows.get(i);
+        out.writeInt(row.length);
+        out.write(row);
+        chunks.get(i).getMetaWriter().write(out);
+      }
+    }
+  }
+}
@@ -34,7 +34,7 @@ public class CompressionTest {
   protected static Path path = new Path(".hfile-comp-test");
 
   public static void usage() {
-    System.err.println("Usage: CompressionTest HDFS_PATH none|gz|lzo");
+    System.err.println("Usage: CompressionTest HDFS_PATH none|gz|lzo|lz4");
     System.exit(1);
   }
 
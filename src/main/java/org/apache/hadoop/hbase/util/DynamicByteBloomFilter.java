@@ -258,7 +258,7 @@ public class DynamicByteBloomFilter implements BloomFilter {
   }
 
   @Override
-  public void finalize() {
+  public void compactBloom() {
   }
 
   /**
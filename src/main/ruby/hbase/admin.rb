@@ -23,6 +23,7 @@ include Java
 java_import org.apache.hadoop.hbase.client.HBaseAdmin
 java_import org.apache.zookeeper.ZooKeeperMain
 java_import org.apache.hadoop.hbase.HColumnDescriptor
+java_import org.apache.hadoop.hbase.io.hfile.DataBlockEncoding
 java_import org.apache.hadoop.hbase.HTableDescriptor
 java_import org.apache.hadoop.hbase.HRegionInfo
 java_import org.apache.zookeeper.ZooKeeper
@@ -326,7 +327,7 @@ module Hbase
       raise(ArgumentError, "Column family #{arg} must have a name") unless name = arg[NAME]
 
       # TODO: What encoding are Strings in jruby?
-      return HColumnDescriptor.new(name.to_java_bytes,
+      family = HColumnDescriptor.new(name.to_java_bytes,
         # JRuby uses longs for ints. Need to convert.  Also constants are String
         arg.include?(VERSIONS)? JInteger.new(arg[VERSIONS]): HColumnDescriptor::DEFAULT_VERSIONS,
         arg.include?(HColumnDescriptor::COMPRESSION)? arg[HColumnDescriptor::COMPRESSION]: HColumnDescriptor::DEFAULT_COMPRESSION,
@@ -336,6 +337,9 @@ module Hbase
         arg.include?(HColumnDescriptor::TTL)? JInteger.new(arg[HColumnDescriptor::TTL]): HColumnDescriptor::DEFAULT_TTL,
         arg.include?(HColumnDescriptor::BLOOMFILTER)? JBoolean.valueOf(arg[HColumnDescriptor::BLOOMFILTER]): HColumnDescriptor::DEFAULT_BLOOMFILTER,
         arg.include?(HColumnDescriptor::REPLICATION_SCOPE)? JInteger.new(arg[REPLICATION_SCOPE]): HColumnDescriptor::DEFAULT_REPLICATION_SCOPE)
+      family.setDataBlockEncoding(DataBlockEncoding.valueOf(arg[HColumnDescriptor::DATA_BLOCK_ENCODING].upcase)) if arg.include?(HColumnDescriptor::DATA_BLOCK_ENCODING)
+      family.setInMemoryCompaction(JBoolean.valueOf(arg[HColumnDescriptor::IN_MEMORY_COMPACTION])) if arg.include?(HColumnDescriptor::IN_MEMORY_COMPACTION)
+      return family
     end
 
     #----------------------------------------------------------------------------------------------
@@ -27,6 +27,8 @@ import java.util.List;
 
 import org.apache.hadoop.hbase.HBaseClusterTestCase;
 import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.io.hfile.Compression;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -148,4 +150,20 @@ public class TestAvroServer {
     impl.createTable(tableA);    
     assertEquals(impl.describeTable(tableAname).families.size(), 1);
   }
+
+  /**
+   * Tests that the compression of a family survives a round trip through
+   * its Avro descriptor.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testFamilyCompression() throws Exception {
+    for (Compression.Algorithm algorithm: Compression.Algorithm.values()) {
+      HColumnDescriptor hcd = new HColumnDescriptor(Bytes.toBytes("FamilyA"));
+      hcd.setCompressionType(algorithm);
+      AFamilyDescriptor afd = AvroUtil.hcdToAFD(hcd);
+      assertEquals(algorithm, AvroUtil.afdToHCD(afd).getCompressionType());
+    }
+  }
 }
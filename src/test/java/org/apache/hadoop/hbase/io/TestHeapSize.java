@@ -25,6 +25,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
@@ -39,6 +40,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.io.hfile.BlockCacheKey;
 import org.apache.hadoop.hbase.io.hfile.CachedBlock;
 import org.apache.hadoop.hbase.io.hfile.LruBlockCache;
 import org.apache.hadoop.hbase.regionserver.HRegion;
@@ -148,6 +150,15 @@ public class TestHeapSize extends TestCase {
       assertEquals(expected, actual);
     }
 
+    // ConcurrentLinkedQueue
+    cl = ConcurrentLinkedQueue.class;
+    expected = ClassSize.estimateBase(cl, false);
+    actual = ClassSize.CONCURRENT_LINKED_QUEUE;
+    if(expected != actual) {
+      ClassSize.estimateBase(cl, true);
+      assertEquals(expected, actual);
+    }
+
     // ReentrantReadWriteLock
     cl = ReentrantReadWriteLock.class;
     expected = ClassSize.estimateBase(cl, false);
@@ -210,9 +221,10 @@ public class TestHeapSize extends TestCase {
    * Some are not tested here for example BlockIndex which is tested in
    * TestHFile since it is a non public class
    * @throws IOException
+   * @throws ClassNotFoundException
    */
   @SuppressWarnings("unchecked")
-  public void testSizes() throws IOException {
+  public void testSizes() throws IOException, ClassNotFoundException {
     Class cl = null;
     long expected = 0L;
     long actual = 0L;
@@ -248,17 +260,36 @@ public class TestHeapSize extends TestCase {
       assertEquals(expected, actual);
     }
 
+    // LruBlockCache CLOCK rings, each with its queue, head node and
+    // counters.  The ring classes are private.
+    cl = Class.forName(LruBlockCache.class.getName() + "$ClockRings");
+    Class ringClass = Class.forName(LruBlockCache.class.getName() + "$Ring");
+    Class nodeClass =
+      Class.forName(ConcurrentLinkedQueue.class.getName() + "$Node");
+    actual = LruBlockCache.CLOCK_FIXED_OVERHEAD;
+    expected = ClassSize.estimateBase(cl, false);
+    expected += 3 * (ClassSize.estimateBase(ringClass, false) +
+      ClassSize.estimateBase(ConcurrentLinkedQueue.class, false) +
+      ClassSize.estimateBase(nodeClass, false) +
+      2 * ClassSize.estimateBase(AtomicLong.class, false));
+    if(expected != actual) {
+      ClassSize.estimateBase(cl, true);
+      ClassSize.estimateBase(ringClass, true);
+      ClassSize.estimateBase(nodeClass, true);
+      assertEquals(expected, actual);
+    }
+
     // CachedBlock Fixed Overhead
     // We really need "deep" sizing but ClassSize does not do this.
     // Perhaps we should do all these more in this style....
     cl = CachedBlock.class;
     actual = CachedBlock.PER_BLOCK_OVERHEAD;
     expected = ClassSize.estimateBase(cl, false);
-    expected += ClassSize.estimateBase(String.class, false);
+    expected += ClassSize.estimateBase(BlockCacheKey.class, false);
     expected += ClassSize.estimateBase(ByteBuffer.class, false);
     if(expected != actual) {
       ClassSize.estimateBase(cl, true);
-      ClassSize.estimateBase(String.class, true);
+      ClassSize.estimateBase(BlockCacheKey.class, true);
       ClassSize.estimateBase(ByteBuffer.class, true);
       assertEquals(expected, actual);
     }
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.KeyValue.KeyComparator;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Compares the compression algorithms on real HFiles.  Reads the key/values
+ * of each file given into memory, then for each algorithm writes them out to
+ * a new HFile and scans it back, reporting the compression ratio and the
+ * write and read throughput of the key/value bytes.
+ * <p>
+ * Usage: <code>HFileCompressionBenchmark [-a none,gz,lz4] [-b blocksize]
+ * [-r reads] HFILE...</code>.  Algorithms that fail, such as lzo without its
+ * native libraries, are reported and skipped.
+ */
+public class HFileCompressionBenchmark {
+  private final Configuration conf;
+  private final FileSystem fs;
+  private final int blocksize;
+  private final int reads;
+
+  public HFileCompressionBenchmark(final Configuration conf,
+      final int blocksize, final int reads)
+  throws IOException {
+    this.conf = conf;
+    this.fs = FileSystem.get(conf);
+    this.blocksize = blocksize;
+    this.reads = reads;
+  }
+
+  /**
+   * Key/values of a file, held in memory.
+   */
+  private static class Sample {
+    final List<byte []> keys = new ArrayList<byte []>();
+    final List<byte []> values = new ArrayList<byte []>();
+    KeyComparator comparator = null;
+    DataBlockEncoding encoding = DataBlockEncoding.NONE;
+    // Bytes of key/values as HFile lays them out, lengths included.
+    long rawBytes = 0;
+  }
+
+  private Sample read(final Path path) throws IOException {
+    Sample sample = new Sample();
+    HFile.Reader reader = new HFile.Reader(this.fs, path, null, false);
+    try {
+      reader.loadFileInfo();
+      if (reader.comparator instanceof KeyComparator) {
+        sample.comparator = (KeyComparator)reader.comparator;
+      }
+      sample.encoding = reader.getDataBlockEncoding();
+      HFileScanner scanner = reader.getScanner(false, false);
+      if (!scanner.seekTo()) {
+        return sample;
+      }
+      do {
+        byte [] key = Bytes.toBytes(scanner.getKey());
+        byte [] value = Bytes.toBytes(scanner.getValue());
+        sample.keys.add(key);
+        sample.values.add(value);
+        sample.rawBytes += 2 * Bytes.SIZEOF_INT + key.length + value.length;
+      } while (scanner.next());
+    } finally {
+      reader.close();
+    }
+    return sample;
+  }
+
+  /*
+   * @return Megabytes per second.
+   */
+  private static double rate(final long bytes, final long nanos) {
+    return (bytes / (1024.0 * 1024.0)) / (Math.max(nanos, 1) / 1e9);
+  }
+
+  private void run(final Sample sample, final Compression.Algorithm algo,
+      final Path out)
+  throws IOException {
+    long start = System.nanoTime();
+    HFile.Writer writer = new HFile.Writer(this.fs, out, this.blocksize,
+      algo, sample.comparator);
+    writer.setDataBlockEncoding(sample.encoding);
+    for (int i = 0; i < sample.keys.size(); i++) {
+      writer.append(sample.keys.get(i), sample.values.get(i));
+    }
+    writer.close();
+    long writeNanos = System.nanoTime() - start;
+    long fileSize = this.fs.getFileStatus(out).getLen();
+
+    long bestReadNanos = Long.MAX_VALUE;
+    for (int i = 0; i < this.reads; i++) {
+      start = System.nanoTime();
+      HFile.Reader reader = new HFile.Reader(this.fs, out, null, false);
+      reader.loadFileInfo();
+      HFileScanner scanner = reader.getScanner(false, false);
+      long count = 0;
+      if (scanner.seekTo()) {
+        do {
+          ByteBuffer value = scanner.getValue();
+          count += value.remaining();
+        } while (scanner.next());
+      }
+      reader.close();
+      bestReadNanos = Math.min(bestReadNanos, System.nanoTime() - start);
+      if (count < 0) {
+        throw new IllegalStateException();
+      }
+    }
+    System.out.println(String.format(
+      "%-6s size=%d ratio=%.2f write=%.1fMB/s read=%.1fMB/s",
+      algo.getName(), fileSize, sample.rawBytes / (double)fileSize,
+      rate(sample.rawBytes, writeNanos), rate(sample.rawBytes, bestReadNanos)));
+  }
+
+  /**
+   * Run the algorithms over the key/values of a file.
+   * @param path An HFile.
+   * @param algos Algorithms to compare.
+   * @throws IOException
+   */
+  public void benchmark(final Path path, final List<Compression.Algorithm> algos)
+  throws IOException {
+    Sample sample = read(path);
+    System.out.println(path + ": " + sample.keys.size() + " key/values, " +
+      sample.rawBytes + " bytes, encoding " + sample.encoding);
+    Path out = new Path(this.conf.get("hadoop.tmp.dir", "/tmp"),
+      "HFileCompressionBenchmark." + System.currentTimeMillis());
+    try {
+      for (Compression.Algorithm algo: algos) {
+        try {
+          run(sample, algo, out);
+        } catch (Exception e) {
+          System.out.println(algo.getName() + " skipped: " + e);
+        }
+      }
+    } finally {
+      this.fs.delete(out, false);
+    }
+  }
+
+  private static void usage() {
+    System.err.println("Usage: HFileCompressionBenchmark [-a none,gz,lz4] " +
+      "[-b blocksize] [-r reads] HFILE...");
+    System.exit(1);
+  }
+
+  public static void main(String [] args) throws IOException {
+    List<Compression.Algorithm> algos = new ArrayList<Compression.Algorithm>();
+    int blocksize = HFile.DEFAULT_BLOCKSIZE;
+    int reads = 3;
+    List<Path> paths = new ArrayList<Path>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-a") && i + 1 < args.length) {
+        for (String name: args[++i].split(",")) {
+          algos.add(Compression.getCompressionAlgorithmByName(name));
+        }
+      } else if (args[i].equals("-b") && i + 1 < args.length) {
+        blocksize = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-r") && i + 1 < args.length) {
+        reads = Integer.parseInt(args[++i]);
+      } else if (args[i].startsWith("-")) {
+        usage();
+      } else {
+        paths.add(new Path(args[i]));
+      }
+    }
+    if (paths.isEmpty()) {
+      usage();
+    }
+    if (algos.isEmpty()) {
+      for (String name: HFile.getSupportedCompressionAlgorithms()) {
+        algos.add(Compression.getCompressionAlgorithmByName(name));
+      }
+    }
+    HFileCompressionBenchmark benchmark =
+      new HFileCompressionBenchmark(HBaseConfiguration.create(), blocksize,
+        reads);
+    for (Path path: paths) {
+      benchmark.benchmark(path, algos);
+    }
+  }
+}
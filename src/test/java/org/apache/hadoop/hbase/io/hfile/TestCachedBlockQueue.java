@@ -58,14 +58,14 @@ public class TestCachedBlockQueue extends TestCase {
     assertEquals(queue.heapSize(), expectedSize);
 
     org.apache.hadoop.hbase.io.hfile.CachedBlock [] blocks = queue.get();
-    assertEquals(blocks[0].getName(), "cb1");
-    assertEquals(blocks[1].getName(), "cb2");
-    assertEquals(blocks[2].getName(), "cb3");
-    assertEquals(blocks[3].getName(), "cb4");
-    assertEquals(blocks[4].getName(), "cb5");
-    assertEquals(blocks[5].getName(), "cb6");
-    assertEquals(blocks[6].getName(), "cb7");
-    assertEquals(blocks[7].getName(), "cb8");
+    assertEquals(blocks[0].getName().getHfileName(), "cb1");
+    assertEquals(blocks[1].getName().getHfileName(), "cb2");
+    assertEquals(blocks[2].getName().getHfileName(), "cb3");
+    assertEquals(blocks[3].getName().getHfileName(), "cb4");
+    assertEquals(blocks[4].getName().getHfileName(), "cb5");
+    assertEquals(blocks[5].getName().getHfileName(), "cb6");
+    assertEquals(blocks[6].getName().getHfileName(), "cb7");
+    assertEquals(blocks[7].getName().getHfileName(), "cb8");
 
   }
 
@@ -110,22 +110,22 @@ public class TestCachedBlockQueue extends TestCase {
     assertEquals(queue.heapSize(), expectedSize);
 
     org.apache.hadoop.hbase.io.hfile.CachedBlock [] blocks = queue.get();
-    assertEquals(blocks[0].getName(), "cb0");
-    assertEquals(blocks[1].getName(), "cb1");
-    assertEquals(blocks[2].getName(), "cb2");
-    assertEquals(blocks[3].getName(), "cb3");
-    assertEquals(blocks[4].getName(), "cb4");
-    assertEquals(blocks[5].getName(), "cb5");
-    assertEquals(blocks[6].getName(), "cb6");
-    assertEquals(blocks[7].getName(), "cb7");
-    assertEquals(blocks[8].getName(), "cb8");
+    assertEquals(blocks[0].getName().getHfileName(), "cb0");
+    assertEquals(blocks[1].getName().getHfileName(), "cb1");
+    assertEquals(blocks[2].getName().getHfileName(), "cb2");
+    assertEquals(blocks[3].getName().getHfileName(), "cb3");
+    assertEquals(blocks[4].getName().getHfileName(), "cb4");
+    assertEquals(blocks[5].getName().getHfileName(), "cb5");
+    assertEquals(blocks[6].getName().getHfileName(), "cb6");
+    assertEquals(blocks[7].getName().getHfileName(), "cb7");
+    assertEquals(blocks[8].getName().getHfileName(), "cb8");
 
   }
 
   private static class CachedBlock extends org.apache.hadoop.hbase.io.hfile.CachedBlock
   {
     public CachedBlock(long heapSize, String name, long accessTime) {
-      super(name,
+      super(new BlockCacheKey(name, 0),
           ByteBuffer.allocate((int)(heapSize - CachedBlock.PER_BLOCK_OVERHEAD)),
           accessTime,false);
     }
@@ -22,16 +22,23 @@ package org.apache.hadoop.hbase.io.hfile;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HBaseTestCase;
 import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.KeyValue.KeyComparator;
 import org.apache.hadoop.hbase.io.hfile.HFile.BlockIndex;
 import org.apache.hadoop.hbase.io.hfile.HFile.Reader;
@@ -170,6 +177,7 @@ public class TestHFile extends HBaseTestCase {
   public void testTFileFeatures() throws IOException {
     basicWithSomeCodec("none");
     basicWithSomeCodec("gz");
+    basicWithSomeCodec("lz4");
   }
 
   private void writeNumMetablocks(Writer writer, int n) {
@@ -230,6 +238,7 @@ public class TestHFile extends HBaseTestCase {
   public void testMetaBlocks() throws Exception {
     metablocks("none");
     metablocks("gz");
+    metablocks("lz4");
   }
 
   public void testNullMetaBlocks() throws Exception {
@@ -277,6 +286,474 @@ public class TestHFile extends HBaseTestCase {
     writer.close();
   }
 
+  /**
+   * Test a file with a two level block index: scanning, seeking and reading
+   * its leaf index blocks through the block cache.
+   * @throws IOException
+   */
+  public void testMultiLevelIndex() throws IOException {
+    Path mFile = new Path(ROOT_DIR, "multilevel.hfile");
+    FSDataOutputStream fout = createFSOutput(mFile);
+    Writer writer = new Writer(fout, minBlockSize,
+      Compression.Algorithm.NONE, null);
+    writer.setIndexLeafEntries(4);
+    writeSomeRecords(writer, 0, 1000);
+    writer.close();
+    fout.close();
+    Reader reader = new Reader(fs, mFile, new SimpleBlockCache(), false);
+    reader.loadFileInfo();
+    assertTrue(reader.getTrailerInfo(),
+      reader.getTrailerInfo().endsWith("version=2"));
+    assertTrue(reader.blockIndex.count > 4 * 4);
+    assertTrue(Arrays.equals(getSomeKey(0), reader.getFirstKey()));
+    assertNotNull(reader.midkey());
+    HFileScanner scanner = reader.getScanner(true, false);
+    assertTrue(scanner.seekTo());
+    readAndCheckbytes(scanner, 0, 1000);
+    for (int i = 0; i < 1000; i += 37) {
+      assertEquals(0, scanner.seekTo(getSomeKey(i)));
+      assertTrue(Arrays.equals(getSomeKey(i),
+        Bytes.toBytes(scanner.getKey())));
+    }
+    assertTrue(scanner.seekBefore(getSomeKey(500)));
+    assertTrue(Arrays.equals(getSomeKey(499),
+      Bytes.toBytes(scanner.getKey())));
+    assertFalse(scanner.seekBefore(getSomeKey(0)));
+    assertEquals(-1, scanner.seekTo(new byte[0]));
+    reader.close();
+    fs.delete(mFile, true);
+  }
+
+  /**
+   * Test files with encoded data blocks read as those without, seeking
+   * within blocks and through the block cache.
+   * @throws IOException
+   */
+  public void testDataBlockEncoding() throws IOException {
+    for (DataBlockEncoding encoding: DataBlockEncoding.values()) {
+      Path mFile = new Path(ROOT_DIR, "encoded.hfile");
+      FSDataOutputStream fout = createFSOutput(mFile);
+      Writer writer = new Writer(fout, minBlockSize,
+        Compression.Algorithm.NONE, null);
+      writer.setDataBlockEncoding(encoding);
+      writeSomeRecords(writer, 0, 1000);
+      writer.close();
+      fout.close();
+      Reader reader = new Reader(fs, mFile, new SimpleBlockCache(), false);
+      reader.loadFileInfo();
+      assertEquals(encoding, reader.getDataBlockEncoding());
+      HFileScanner scanner = reader.getScanner(true, false);
+      assertTrue(scanner.seekTo());
+      readAndCheckbytes(scanner, 0, 1000);
+      for (int i = 999; i >= 0; i -= 37) {
+        assertEquals(0, scanner.seekTo(getSomeKey(i)));
+        assertTrue(Arrays.equals(getSomeKey(i),
+          Bytes.toBytes(scanner.getKey())));
+        assertEquals("value" + Bytes.toString(getSomeKey(i)),
+          Bytes.toString(Bytes.toBytes(scanner.getValue())));
+      }
+      // Between two keys, lands on the first.
+      byte [] between = Bytes.add(getSomeKey(500), new byte [] {0});
+      assertEquals(1, scanner.seekTo(between));
+      assertTrue(Arrays.equals(getSomeKey(500),
+        Bytes.toBytes(scanner.getKey())));
+      assertTrue(scanner.next());
+      assertTrue(Arrays.equals(getSomeKey(501),
+        Bytes.toBytes(scanner.getKey())));
+      assertTrue(scanner.seekBefore(getSomeKey(500)));
+      assertTrue(Arrays.equals(getSomeKey(499),
+        Bytes.toBytes(scanner.getKey())));
+      assertFalse(scanner.seekBefore(getSomeKey(0)));
+      reader.close();
+      fs.delete(mFile, true);
+    }
+  }
+
+  /**
+   * Test files with block checksums read back, a block that only reads
+   * corrupt without HDFS checksums is read again with them, and a corrupt
+   * block is caught.
+   * @throws IOException
+   */
+  public void testBlockChecksums() throws IOException {
+    for (String compress: new String [] {"none", "gz", "lz4"}) {
+      Path mFile = new Path(ROOT_DIR, "checksums.hfile");
+      FSDataOutputStream fout = createFSOutput(mFile);
+      Writer writer = new Writer(fout, minBlockSize,
+        Compression.getCompressionAlgorithmByName(compress), null);
+      writer.setChecksums(true);
+      writer.setIndexLeafEntries(4);
+      writeSomeRecords(writer, 0, 1000);
+      someTestingWithMetaBlock(writer);
+      writer.close();
+      fout.close();
+      Reader reader = new Reader(fs, mFile, null, false);
+      reader.loadFileInfo();
+      HFileScanner scanner = reader.getScanner(false, false);
+      assertTrue(scanner.seekTo());
+      readAndCheckbytes(scanner, 0, 1000);
+      someReadingWithMetaBlock(reader);
+      reader.close();
+
+      // Flip a byte of the first data block.
+      int length = (int)fs.getFileStatus(mFile).getLen();
+      byte [] b = new byte[length];
+      FSDataInputStream fin = fs.open(mFile);
+      fin.readFully(0, b);
+      fin.close();
+      b[HFile.DATABLOCKMAGIC.length + 2] ^= 0xFF;
+
+      // Read without HDFS checksums, the block is corrupt; read with them,
+      // it is not.
+      HFile.setNoChecksumFileSystem(fs, new CorruptReadsFileSystem(fs, b));
+      HFile.getChecksumFailures();
+      try {
+        reader = new Reader(fs, mFile, null, false);
+        reader.loadFileInfo();
+        scanner = reader.getScanner(false, true);
+        assertTrue(scanner.seekTo());
+        readAndCheckbytes(scanner, 0, 1000);
+        assertTrue(HFile.getChecksumFailures() > 0);
+        reader.close();
+      } finally {
+        HFile.closeNoChecksumFileSystem(fs);
+      }
+
+      Path corrupt = new Path(ROOT_DIR, "corrupt.hfile");
+      fout = createFSOutput(corrupt);
+      fout.write(b);
+      fout.close();
+      HFile.getChecksumFailures();
+      reader = new Reader(fs, corrupt, null, false);
+      reader.loadFileInfo();
+      try {
+        reader.getScanner(false, true).seekTo();
+        fail("Read a corrupt block");
+      } catch (IOException e) {
+        // Expected.
+      }
+      assertTrue(HFile.getChecksumFailures() > 0);
+      reader.close();
+      fs.delete(mFile, true);
+      fs.delete(corrupt, true);
+    }
+  }
+
+  /**
+   * Read files through scanners that do not cache blocks, so decompress into
+   * pooled arrays.  Key/values handed out must outlive the blocks they were
+   * read from.
+   */
+  public void testBlockBufferPool() throws IOException {
+    for (String compress: new String [] {"none", "gz", "lz4"}) {
+      for (boolean checksums: new boolean [] {false, true}) {
+        Path mFile = new Path(ROOT_DIR, "pooled.hfile");
+        FSDataOutputStream fout = createFSOutput(mFile);
+        Writer writer = new Writer(fout, minBlockSize,
+          Compression.getCompressionAlgorithmByName(compress), null);
+        writer.setChecksums(checksums);
+        writeSomeRecords(writer, 0, 1000);
+        someTestingWithMetaBlock(writer);
+        writer.close();
+        fout.close();
+        BlockBufferPool pool = new BlockBufferPool(1024 * 1024);
+        Reader reader = new Reader(fs, mFile, null, false);
+        reader.setBlockBufferPool(pool);
+        reader.loadFileInfo();
+        HFileScanner scanner = reader.getScanner(false, false);
+        assertTrue(scanner.seekTo());
+        readAndCheckbytes(scanner, 0, 1000);
+        assertTrue(pool.getSize() > 0);
+
+        HFile.getBlockBufferPoolHits();
+        List<KeyValue> kvs = new ArrayList<KeyValue>();
+        scanner = reader.getScanner(false, true);
+        assertTrue(scanner.seekTo());
+        do {
+          kvs.add(scanner.getKeyValue());
+        } while (scanner.next());
+        assertTrue(HFile.getBlockBufferPoolHits() > 0);
+        assertEquals(1000, kvs.size());
+        for (int i = 0; i < kvs.size(); i++) {
+          KeyValue kv = kvs.get(i);
+          assertEquals(String.format(localFormatter, Integer.valueOf(i)),
+            Bytes.toString(kv.getBuffer(), kv.getKeyOffset(),
+              kv.getKeyLength()));
+        }
+        someReadingWithMetaBlock(reader);
+        reader.close();
+        fs.delete(mFile, true);
+      }
+    }
+  }
+
+  /**
+   * Scan files reading blocks ahead, with and without a block cache, and
+   * seek back and forth so blocks read ahead are dropped.
+   */
+  public void testReadAhead() throws IOException {
+    BlockPrefetcher prefetcher = new BlockPrefetcher(2, 4, 64 * 1024);
+    try {
+      for (String compress: new String [] {"none", "gz"}) {
+        for (DataBlockEncoding encoding: new DataBlockEncoding [] {
+            DataBlockEncoding.NONE, DataBlockEncoding.PREFIX}) {
+          Path mFile = new Path(ROOT_DIR, "readahead.hfile");
+          FSDataOutputStream fout = createFSOutput(mFile);
+          Writer writer = new Writer(fout, minBlockSize,
+            Compression.getCompressionAlgorithmByName(compress), null);
+          writer.setDataBlockEncoding(encoding);
+          writeSomeRecords(writer, 0, 1000);
+          writer.close();
+          fout.close();
+          for (boolean cacheBlocks: new boolean [] {false, true}) {
+            Reader reader = new Reader(fs, mFile, cacheBlocks?
+              new LruBlockCache(1024 * 1024, 1024, false): null, false);
+            reader.setBlockBufferPool(new BlockBufferPool(1024 * 1024));
+            reader.setBlockPrefetcher(prefetcher);
+            reader.loadFileInfo();
+            HFile.getReadAheadBlocks();
+            HFileScanner scanner = reader.getScanner(cacheBlocks, false, true);
+            assertTrue(scanner.seekTo());
+            readAndCheckbytes(scanner, 0, 1000);
+            assertTrue(HFile.getReadAheadBlocks() > 0);
+            for (int row: new int [] {500, 10, 900, 20}) {
+              assertEquals(0, scanner.seekTo(
+                Bytes.toBytes(String.format(localFormatter, row))));
+              readAndCheckbytes(scanner, row, 100);
+            }
+            // Positional reads are for random reads; none are read ahead.
+            scanner = reader.getScanner(cacheBlocks, true, true);
+            assertTrue(scanner.seekTo());
+            readAndCheckbytes(scanner, 0, 1000);
+            assertEquals(0, HFile.getReadAheadBlocks());
+            reader.close();
+          }
+          fs.delete(mFile, true);
+        }
+      }
+    } finally {
+      prefetcher.shutdown();
+    }
+  }
+
+  /**
+   * Read files on local disk with local reads on.  Only files with block
+   * checksums are mapped.
+   */
+  public void testLocalRead() throws IOException {
+    fs.getConf().setBoolean(HFile.LOCAL_READ_KEY, true);
+    try {
+      for (String compress: new String [] {"none", "gz"}) {
+        for (boolean checksums: new boolean [] {false, true}) {
+          Path mFile = new Path(ROOT_DIR, "local.hfile");
+          FSDataOutputStream fout = createFSOutput(mFile);
+          Writer writer = new Writer(fout, minBlockSize,
+            Compression.getCompressionAlgorithmByName(compress), null);
+          writer.setChecksums(checksums);
+          writeSomeRecords(writer, 0, 1000);
+          someTestingWithMetaBlock(writer);
+          writer.close();
+          fout.close();
+          Reader reader = new Reader(fs, mFile, null, false);
+          reader.loadFileInfo();
+          assertEquals(checksums, reader.isMapped());
+          HFile.getMappedReads();
+          HFileScanner scanner = reader.getScanner(false, true);
+          assertTrue(scanner.seekTo());
+          readAndCheckbytes(scanner, 0, 1000);
+          someReadingWithMetaBlock(reader);
+          assertEquals(checksums, HFile.getMappedReads() > 0);
+          reader.close();
+          fs.delete(mFile, true);
+        }
+      }
+    } finally {
+      fs.getConf().setBoolean(HFile.LOCAL_READ_KEY, false);
+    }
+  }
+
+  /**
+   * A file truncated under its mapping is read through the file system, and
+   * the read fails with an IOException rather than an InternalError.
+   */
+  public void testLocalReadOfTruncatedFile() throws IOException {
+    fs.getConf().setBoolean(HFile.LOCAL_READ_KEY, true);
+    try {
+      Path mFile = new Path(ROOT_DIR, "truncated.hfile");
+      FSDataOutputStream fout = createFSOutput(mFile);
+      Writer writer = new Writer(fout, minBlockSize,
+        Compression.Algorithm.NONE, null);
+      writer.setChecksums(true);
+      writeSomeRecords(writer, 0, 1000);
+      writer.close();
+      fout.close();
+      Reader reader = new Reader(fs, mFile, null, false);
+      reader.loadFileInfo();
+      assertTrue(reader.isMapped());
+      RandomAccessFile raf =
+        new RandomAccessFile(MappedFile.getLocalFile(fs, mFile), "rw");
+      try {
+        raf.setLength(0);
+      } finally {
+        raf.close();
+      }
+      HFileScanner scanner = reader.getScanner(false, true);
+      try {
+        scanner.seekTo();
+        fail("Read a block of a truncated file");
+      } catch (IOException e) {
+        // Expected
+      }
+      assertFalse(reader.isMapped());
+      reader.close();
+      fs.delete(mFile, true);
+    } finally {
+      fs.getConf().setBoolean(HFile.LOCAL_READ_KEY, false);
+    }
+  }
+
+  public void testCompressedBlockCache() throws IOException {
+    for (String compress: new String [] {"none", "gz", "lz4"}) {
+      Path mFile = new Path(ROOT_DIR, "compressedcache.hfile");
+      FSDataOutputStream fout = createFSOutput(mFile);
+      Writer writer = new Writer(fout, minBlockSize,
+        Compression.getCompressionAlgorithmByName(compress), null);
+      writer.setChecksums(true);
+      writeSomeRecords(writer, 0, 1000);
+      someTestingWithMetaBlock(writer);
+      writer.close();
+      fout.close();
+      LruBlockCache compressedCache =
+        new LruBlockCache(1024 * 1024, 1024, false);
+      Reader reader = new Reader(fs, mFile, null, false);
+      reader.setCompressedBlockCache(compressedCache);
+      reader.loadFileInfo();
+      // Scanners that do not cache blocks do not fill the cache.
+      HFileScanner scanner = reader.getScanner(false, false);
+      assertTrue(scanner.seekTo());
+      readAndCheckbytes(scanner, 0, 1000);
+      assertEquals(0, compressedCache.size());
+      for (int i = 0; i < 2; i++) {
+        scanner = reader.getScanner(true, false);
+        assertTrue(scanner.seekTo());
+        readAndCheckbytes(scanner, 0, 1000);
+      }
+      if (compress.equals("none")) {
+        assertEquals(0, compressedCache.size());
+        assertEquals(0, reader.compressedCacheHits);
+      } else {
+        // Without a block cache, the second pass is all served by the
+        // compressed cache.
+        assertEquals(reader.blockIndex.count, compressedCache.size());
+        assertEquals(reader.blockIndex.count, reader.compressedCacheHits);
+      }
+      reader.close();
+      fs.delete(mFile, true);
+    }
+  }
+
+  /**
+   * With a block cache, only blocks the block cache evicted go in the
+   * compressed cache, when they are read again.
+   */
+  public void testCompressedBlockCacheTakesEvictedBlocks() throws IOException {
+    Path mFile = new Path(ROOT_DIR, "compressedevicted.hfile");
+    FSDataOutputStream fout = createFSOutput(mFile);
+    Writer writer = new Writer(fout, minBlockSize,
+      Compression.Algorithm.GZ, null);
+    writeSomeRecords(writer, 0, 1000);
+    writer.close();
+    fout.close();
+    for (long cacheSize: new long [] {1024 * 1024, 16 * 1024}) {
+      LruBlockCache cache = new LruBlockCache(cacheSize, 1024, false);
+      cache.setEvictedKeysKept(1000);
+      LruBlockCache compressedCache =
+        new LruBlockCache(1024 * 1024, 1024, false);
+      Reader reader = new Reader(fs, mFile, cache, false);
+      reader.setCompressedBlockCache(compressedCache);
+      reader.loadFileInfo();
+      HFileScanner scanner = reader.getScanner(true, false);
+      assertTrue(scanner.seekTo());
+      readAndCheckbytes(scanner, 0, 1000);
+      // Nothing is read twice yet.
+      assertEquals(0, compressedCache.size());
+      long evicted = cache.getEvictedCount();
+      scanner = reader.getScanner(true, false);
+      assertTrue(scanner.seekTo());
+      readAndCheckbytes(scanner, 0, 1000);
+      if (evicted == 0) {
+        // All served by the block cache, nothing held twice.
+        assertEquals(0, compressedCache.size());
+        assertTrue(cacheSize > 16 * 1024);
+      } else {
+        assertTrue(compressedCache.size() > 0);
+        assertTrue(compressedCache.size() <= evicted);
+      }
+      reader.close();
+    }
+    fs.delete(mFile, true);
+  }
+
+  /*
+   * File system that reads the given bytes from whatever file is opened.
+   */
+  private static class CorruptReadsFileSystem extends FilterFileSystem {
+    private final byte [] data;
+
+    CorruptReadsFileSystem(final FileSystem fs, final byte [] data) {
+      super(fs);
+      this.data = data;
+    }
+
+    @Override
+    public FSDataInputStream open(final Path f, final int bufferSize) {
+      return new FSDataInputStream(new ByteArrayFSInputStream(this.data));
+    }
+  }
+
+  private static class ByteArrayFSInputStream extends FSInputStream {
+    private final byte [] data;
+    private int pos = 0;
+
+    ByteArrayFSInputStream(final byte [] data) {
+      this.data = data;
+    }
+
+    @Override
+    public void seek(final long p) throws IOException {
+      if (p < 0 || p > this.data.length) {
+        throw new IOException("Seek to " + p + " of " + this.data.length);
+      }
+      this.pos = (int)p;
+    }
+
+    @Override
+    public long getPos() {
+      return this.pos;
+    }
+
+    @Override
+    public boolean seekToNewSource(final long targetPos) {
+      return false;
+    }
+
+    @Override
+    public int read() {
+      return this.pos < this.data.length? this.data[this.pos++] & 0xFF: -1;
+    }
+
+    @Override
+    public int read(final byte [] b, final int off, final int len) {
+      if (this.pos >= this.data.length) {
+        return -1;
+      }
+      int n = Math.min(len, this.data.length - this.pos);
+      System.arraycopy(this.data, this.pos, b, off, n);
+      this.pos += n;
+      return n;
+    }
+  }
+
   /**
    * Checks if the HeapSize calculator is within reason
    */
@@ -47,7 +47,7 @@ public class TestLruBlockCache extends TestCase {
 
     // Add all the blocks
     for(Block block : blocks) {
-      cache.cacheBlock(block.blockName, block.buf);
+      cache.cacheBlock(block.cacheKey, block.buf);
     }
 
     // Let the eviction run
@@ -76,12 +76,12 @@ public class TestLruBlockCache extends TestCase {
 
     // Confirm empty
     for(Block block : blocks) {
-      assertTrue(cache.getBlock(block.blockName) == null);
+      assertTrue(cache.getBlock(block.cacheKey) == null);
     }
 
     // Add blocks
     for(Block block : blocks) {
-      cache.cacheBlock(block.blockName, block.buf);
+      cache.cacheBlock(block.cacheKey, block.buf);
       expectedCacheSize += block.heapSize();
     }
 
@@ -90,7 +90,7 @@ public class TestLruBlockCache extends TestCase {
 
     // Check if all blocks are properly cached and retrieved
     for(Block block : blocks) {
-      ByteBuffer buf = cache.getBlock(block.blockName);
+      ByteBuffer buf = cache.getBlock(block.cacheKey);
       assertTrue(buf != null);
       assertEquals(buf.capacity(), block.buf.capacity());
     }
@@ -98,7 +98,7 @@ public class TestLruBlockCache extends TestCase {
     // Re-add same blocks and ensure nothing has changed
     for(Block block : blocks) {
       try {
-        cache.cacheBlock(block.blockName, block.buf);
+        cache.cacheBlock(block.cacheKey, block.buf);
         assertTrue("Cache should not allow re-caching a block", false);
       } catch(RuntimeException re) {
         // expected
@@ -110,7 +110,7 @@ public class TestLruBlockCache extends TestCase {
 
     // Check if all blocks are properly cached and retrieved
     for(Block block : blocks) {
-      ByteBuffer buf = cache.getBlock(block.blockName);
+      ByteBuffer buf = cache.getBlock(block.cacheKey);
       assertTrue(buf != null);
       assertEquals(buf.capacity(), block.buf.capacity());
     }
@@ -132,7 +132,7 @@ public class TestLruBlockCache extends TestCase {
 
     // Add all the blocks
     for(Block block : blocks) {
-      cache.cacheBlock(block.blockName, block.buf);
+      cache.cacheBlock(block.cacheKey, block.buf);
       expectedCacheSize += block.heapSize();
     }
 
@@ -151,10 +151,10 @@ public class TestLruBlockCache extends TestCase {
         (maxSize * LruBlockCache.DEFAULT_ACCEPTABLE_FACTOR));
 
     // All blocks except block 0 and 1 should be in the cache
-    assertTrue(cache.getBlock(blocks[0].blockName) == null);
-    assertTrue(cache.getBlock(blocks[1].blockName) == null);
+    assertTrue(cache.getBlock(blocks[0].cacheKey) == null);
+    assertTrue(cache.getBlock(blocks[1].cacheKey) == null);
     for(int i=2;i<blocks.length;i++) {
-      assertEquals(cache.getBlock(blocks[i].blockName),
+      assertEquals(cache.getBlock(blocks[i].cacheKey),
           blocks[i].buf);
     }
   }
@@ -173,14 +173,14 @@ public class TestLruBlockCache extends TestCase {
 
     // Add and get the multi blocks
     for(Block block : multiBlocks) {
-      cache.cacheBlock(block.blockName, block.buf);
+      cache.cacheBlock(block.cacheKey, block.buf);
       expectedCacheSize += block.heapSize();
-      assertEquals(cache.getBlock(block.blockName), block.buf);
+      assertEquals(cache.getBlock(block.cacheKey), block.buf);
     }
 
     // Add the single blocks (no get)
     for(Block block : singleBlocks) {
-      cache.cacheBlock(block.blockName, block.buf);
+      cache.cacheBlock(block.cacheKey, block.buf);
       expectedCacheSize += block.heapSize();
     }
 
@@ -205,18 +205,163 @@ public class TestLruBlockCache extends TestCase {
     // This test makes multi go barely over its limit, in-memory
     // empty, and the rest in single.  Two single evictions and
     // one multi eviction expected.
-    assertTrue(cache.getBlock(singleBlocks[0].blockName) == null);
-    assertTrue(cache.getBlock(multiBlocks[0].blockName) == null);
+    assertTrue(cache.getBlock(singleBlocks[0].cacheKey) == null);
+    assertTrue(cache.getBlock(multiBlocks[0].cacheKey) == null);
 
     // And all others to be cached
     for(int i=1;i<4;i++) {
-      assertEquals(cache.getBlock(singleBlocks[i].blockName),
+      assertEquals(cache.getBlock(singleBlocks[i].cacheKey),
           singleBlocks[i].buf);
-      assertEquals(cache.getBlock(multiBlocks[i].blockName),
+      assertEquals(cache.getBlock(multiBlocks[i].cacheKey),
           multiBlocks[i].buf);
     }
   }
 
+  public void testClockEvictionSimple() throws Exception {
+
+    long maxSize = 100000;
+    long blockSize = calculateBlockSizeDefault(maxSize, 10);
+
+    LruBlockCache cache = new LruBlockCache(maxSize, blockSize, false, true);
+
+    Block [] blocks = generateFixedBlocks(10, blockSize, "block");
+
+    // Add all the blocks
+    for(Block block : blocks) {
+      cache.cacheBlock(block.cacheKey, block.buf);
+    }
+
+    // A single eviction run should have occurred
+    assertEquals(1, cache.getEvictionCount());
+
+    // The cache is back below the acceptable limit
+    assertTrue(cache.heapSize() <
+        (maxSize * LruBlockCache.DEFAULT_ACCEPTABLE_FACTOR));
+
+    // The oldest blocks went first
+    assertTrue(cache.getBlock(blocks[0].cacheKey) == null);
+    assertTrue(cache.getBlock(blocks[1].cacheKey) == null);
+    for(int i=2;i<blocks.length;i++) {
+      assertEquals(cache.getBlock(blocks[i].cacheKey),
+          blocks[i].buf);
+    }
+  }
+
+  public void testClockEvictionTwoPriorities() throws Exception {
+
+    long maxSize = 100000;
+    long blockSize = calculateBlockSizeDefault(maxSize, 10);
+
+    LruBlockCache cache = new LruBlockCache(maxSize, blockSize, false, true);
+
+    Block [] singleBlocks = generateFixedBlocks(5, 10000, "single");
+    Block [] multiBlocks = generateFixedBlocks(5, 10000, "multi");
+
+    // Add and get the multi blocks
+    for(Block block : multiBlocks) {
+      cache.cacheBlock(block.cacheKey, block.buf);
+      assertEquals(cache.getBlock(block.cacheKey), block.buf);
+    }
+
+    // Add the single blocks (no get)
+    for(Block block : singleBlocks) {
+      cache.cacheBlock(block.cacheKey, block.buf);
+    }
+
+    // Same fairness as the scanning eviction: one of each priority goes
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(2, cache.getEvictedCount());
+    assertTrue(cache.heapSize() <=
+        (maxSize * LruBlockCache.DEFAULT_ACCEPTABLE_FACTOR));
+    assertTrue(cache.getBlock(singleBlocks[0].cacheKey) == null);
+    assertTrue(cache.getBlock(multiBlocks[0].cacheKey) == null);
+    for(int i=1;i<4;i++) {
+      assertEquals(cache.getBlock(singleBlocks[i].cacheKey),
+          singleBlocks[i].buf);
+      assertEquals(cache.getBlock(multiBlocks[i].cacheKey),
+          multiBlocks[i].buf);
+    }
+  }
+
+  public void testClockEvictionScanResistance() throws Exception {
+
+    long maxSize = 100000;
+    long blockSize = calculateBlockSize(maxSize, 10);
+
+    LruBlockCache cache = new LruBlockCache(maxSize, blockSize, false,
+        (int)Math.ceil(1.2*maxSize/blockSize),
+        LruBlockCache.DEFAULT_LOAD_FACTOR,
+        LruBlockCache.DEFAULT_CONCURRENCY_LEVEL,
+        0.66f, // min
+        0.99f, // acceptable
+        0.33f, // single
+        0.33f, // multi
+        0.34f, // memory
+        true);
+
+    Block [] singleBlocks = generateFixedBlocks(20, blockSize, "single");
+    Block [] multiBlocks = generateFixedBlocks(5, blockSize, "multi");
+
+    // Add 5 multi blocks
+    for (Block block : multiBlocks) {
+      cache.cacheBlock(block.cacheKey, block.buf);
+      cache.getBlock(block.cacheKey);
+    }
+
+    // Add 5 single blocks
+    for(int i=0;i<5;i++) {
+      cache.cacheBlock(singleBlocks[i].cacheKey, singleBlocks[i].buf);
+    }
+
+    // Same first eviction as the scanning implementation
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(4, cache.getEvictedCount());
+    assertEquals(null, cache.getBlock(multiBlocks[0].cacheKey));
+    assertEquals(null, cache.getBlock(multiBlocks[1].cacheKey));
+
+    // Keep "scanning" by adding single blocks
+    for(int i=5;i<18;i++) {
+      cache.cacheBlock(singleBlocks[i].cacheKey, singleBlocks[i].buf);
+    }
+    assertEquals(4, cache.getEvictionCount());
+    assertEquals(16, cache.getEvictedCount());
+    assertEquals(7, cache.size());
+
+    // The scan did not push out the most recent multi blocks
+    assertEquals(multiBlocks[3].buf, cache.getBlock(multiBlocks[3].cacheKey));
+    assertEquals(multiBlocks[4].buf, cache.getBlock(multiBlocks[4].cacheKey));
+  }
+
+  public void testClockHeapSize() throws Exception {
+
+    long maxSize = 100000;
+    long blockSize = calculateBlockSizeDefault(maxSize, 10);
+
+    LruBlockCache cache = new LruBlockCache(maxSize, blockSize, false, true);
+
+    // The empty rings count from the start
+    long expectedCacheSize = LruBlockCache.calculateOverhead(maxSize,
+        blockSize, LruBlockCache.DEFAULT_CONCURRENCY_LEVEL) +
+        LruBlockCache.CLOCK_FIXED_OVERHEAD;
+    assertEquals(expectedCacheSize, cache.heapSize());
+
+    // Then one ring entry per block
+    Block [] blocks = generateFixedBlocks(5, blockSize, "block");
+    for(Block block : blocks) {
+      cache.cacheBlock(block.cacheKey, block.buf);
+      expectedCacheSize += block.heapSize() +
+          LruBlockCache.CLOCK_NODE_OVERHEAD;
+    }
+    assertEquals(0, cache.getEvictionCount());
+    assertEquals(expectedCacheSize, cache.heapSize());
+
+    // A promoted block is also in the multi ring until a sweep drops its
+    // entry in the single ring
+    cache.getBlock(blocks[0].cacheKey);
+    expectedCacheSize += LruBlockCache.CLOCK_NODE_OVERHEAD;
+    assertEquals(expectedCacheSize, cache.heapSize());
+  }
+
   public void testCacheEvictionThreePriorities() throws Exception {
 
     long maxSize = 100000;
@@ -243,16 +388,16 @@ public class TestLruBlockCache extends TestCase {
     for(int i=0;i<3;i++) {
 
       // Just add single blocks
-      cache.cacheBlock(singleBlocks[i].blockName, singleBlocks[i].buf);
+      cache.cacheBlock(singleBlocks[i].cacheKey, singleBlocks[i].buf);
       expectedCacheSize += singleBlocks[i].heapSize();
 
       // Add and get multi blocks
-      cache.cacheBlock(multiBlocks[i].blockName, multiBlocks[i].buf);
+      cache.cacheBlock(multiBlocks[i].cacheKey, multiBlocks[i].buf);
       expectedCacheSize += multiBlocks[i].heapSize();
-      cache.getBlock(multiBlocks[i].blockName);
+      cache.getBlock(multiBlocks[i].cacheKey);
 
       // Add memory blocks as such
-      cache.cacheBlock(memoryBlocks[i].blockName, memoryBlocks[i].buf, true);
+      cache.cacheBlock(memoryBlocks[i].cacheKey, memoryBlocks[i].buf, true);
       expectedCacheSize += memoryBlocks[i].heapSize();
 
     }
@@ -264,77 +409,77 @@ public class TestLruBlockCache extends TestCase {
     assertEquals(expectedCacheSize, cache.heapSize());
 
     // Insert a single block, oldest single should be evicted
-    cache.cacheBlock(singleBlocks[3].blockName, singleBlocks[3].buf);
+    cache.cacheBlock(singleBlocks[3].cacheKey, singleBlocks[3].buf);
 
     // Single eviction, one thing evicted
     assertEquals(1, cache.getEvictionCount());
     assertEquals(1, cache.getEvictedCount());
 
     // Verify oldest single block is the one evicted
-    assertEquals(null, cache.getBlock(singleBlocks[0].blockName));
+    assertEquals(null, cache.getBlock(singleBlocks[0].cacheKey));
 
     // Change the oldest remaining single block to a multi
-    cache.getBlock(singleBlocks[1].blockName);
+    cache.getBlock(singleBlocks[1].cacheKey);
 
     // Insert another single block
-    cache.cacheBlock(singleBlocks[4].blockName, singleBlocks[4].buf);
+    cache.cacheBlock(singleBlocks[4].cacheKey, singleBlocks[4].buf);
 
     // Two evictions, two evicted.
     assertEquals(2, cache.getEvictionCount());
     assertEquals(2, cache.getEvictedCount());
 
     // Oldest multi block should be evicted now
-    assertEquals(null, cache.getBlock(multiBlocks[0].blockName));
+    assertEquals(null, cache.getBlock(multiBlocks[0].cacheKey));
 
     // Insert another memory block
-    cache.cacheBlock(memoryBlocks[3].blockName, memoryBlocks[3].buf, true);
+    cache.cacheBlock(memoryBlocks[3].cacheKey, memoryBlocks[3].buf, true);
 
     // Three evictions, three evicted.
     assertEquals(3, cache.getEvictionCount());
     assertEquals(3, cache.getEvictedCount());
 
     // Oldest memory block should be evicted now
-    assertEquals(null, cache.getBlock(memoryBlocks[0].blockName));
+    assertEquals(null, cache.getBlock(memoryBlocks[0].cacheKey));
 
     // Add a block that is twice as big (should force two evictions)
     Block [] bigBlocks = generateFixedBlocks(3, blockSize*3, "big");
-    cache.cacheBlock(bigBlocks[0].blockName, bigBlocks[0].buf);
+    cache.cacheBlock(bigBlocks[0].cacheKey, bigBlocks[0].buf);
 
     // Four evictions, six evicted (inserted block 3X size, expect +3 evicted)
     assertEquals(4, cache.getEvictionCount());
     assertEquals(6, cache.getEvictedCount());
 
     // Expect three remaining singles to be evicted
-    assertEquals(null, cache.getBlock(singleBlocks[2].blockName));
-    assertEquals(null, cache.getBlock(singleBlocks[3].blockName));
-    assertEquals(null, cache.getBlock(singleBlocks[4].blockName));
+    assertEquals(null, cache.getBlock(singleBlocks[2].cacheKey));
+    assertEquals(null, cache.getBlock(singleBlocks[3].cacheKey));
+    assertEquals(null, cache.getBlock(singleBlocks[4].cacheKey));
 
     // Make the big block a multi block
-    cache.getBlock(bigBlocks[0].blockName);
+    cache.getBlock(bigBlocks[0].cacheKey);
 
     // Cache another single big block
-    cache.cacheBlock(bigBlocks[1].blockName, bigBlocks[1].buf);
+    cache.cacheBlock(bigBlocks[1].cacheKey, bigBlocks[1].buf);
 
     // Five evictions, nine evicted (3 new)
     assertEquals(5, cache.getEvictionCount());
     assertEquals(9, cache.getEvictedCount());
 
     // Expect three remaining multis to be evicted
-    assertEquals(null, cache.getBlock(singleBlocks[1].blockName));
-    assertEquals(null, cache.getBlock(multiBlocks[1].blockName));
-    assertEquals(null, cache.getBlock(multiBlocks[2].blockName));
+    assertEquals(null, cache.getBlock(singleBlocks[1].cacheKey));
+    assertEquals(null, cache.getBlock(multiBlocks[1].cacheKey));
+    assertEquals(null, cache.getBlock(multiBlocks[2].cacheKey));
 
     // Cache a big memory block
-    cache.cacheBlock(bigBlocks[2].blockName, bigBlocks[2].buf, true);
+    cache.cacheBlock(bigBlocks[2].cacheKey, bigBlocks[2].buf, true);
 
     // Six evictions, twelve evicted (3 new)
     assertEquals(6, cache.getEvictionCount());
     assertEquals(12, cache.getEvictedCount());
 
     // Expect three remaining in-memory to be evicted
-    assertEquals(null, cache.getBlock(memoryBlocks[1].blockName));
-    assertEquals(null, cache.getBlock(memoryBlocks[2].blockName));
-    assertEquals(null, cache.getBlock(memoryBlocks[3].blockName));
+    assertEquals(null, cache.getBlock(memoryBlocks[1].cacheKey));
+    assertEquals(null, cache.getBlock(memoryBlocks[2].cacheKey));
+    assertEquals(null, cache.getBlock(memoryBlocks[3].cacheKey));
 
 
   }
@@ -360,13 +505,13 @@ public class TestLruBlockCache extends TestCase {
 
     // Add 5 multi blocks
     for(Block block : multiBlocks) {
-      cache.cacheBlock(block.blockName, block.buf);
-      cache.getBlock(block.blockName);
+      cache.cacheBlock(block.cacheKey, block.buf);
+      cache.getBlock(block.cacheKey);
     }
 
     // Add 5 single blocks
     for(int i=0;i<5;i++) {
-      cache.cacheBlock(singleBlocks[i].blockName, singleBlocks[i].buf);
+      cache.cacheBlock(singleBlocks[i].cacheKey, singleBlocks[i].buf);
     }
 
     // An eviction ran
@@ -376,10 +521,10 @@ public class TestLruBlockCache extends TestCase {
     assertEquals(4, cache.getEvictedCount());
 
     // Should have been taken off equally from single and multi
-    assertEquals(null, cache.getBlock(singleBlocks[0].blockName));
-    assertEquals(null, cache.getBlock(singleBlocks[1].blockName));
-    assertEquals(null, cache.getBlock(multiBlocks[0].blockName));
-    assertEquals(null, cache.getBlock(multiBlocks[1].blockName));
+    assertEquals(null, cache.getBlock(singleBlocks[0].cacheKey));
+    assertEquals(null, cache.getBlock(singleBlocks[1].cacheKey));
+    assertEquals(null, cache.getBlock(multiBlocks[0].cacheKey));
+    assertEquals(null, cache.getBlock(multiBlocks[1].cacheKey));
 
     // Let's keep "scanning" by adding single blocks.  From here on we only
     // expect evictions from the single bucket.
@@ -389,7 +534,7 @@ public class TestLruBlockCache extends TestCase {
     // 12 more evicted.
 
     for(int i=5;i<18;i++) {
-      cache.cacheBlock(singleBlocks[i].blockName, singleBlocks[i].buf);
+      cache.cacheBlock(singleBlocks[i].cacheKey, singleBlocks[i].buf);
     }
 
     // 4 total evictions, 16 total evicted
@@ -425,14 +570,14 @@ public class TestLruBlockCache extends TestCase {
     for(int i=0;i<10;i++) {
 
       // Just add single blocks
-      cache.cacheBlock(singleBlocks[i].blockName, singleBlocks[i].buf);
+      cache.cacheBlock(singleBlocks[i].cacheKey, singleBlocks[i].buf);
 
       // Add and get multi blocks
-      cache.cacheBlock(multiBlocks[i].blockName, multiBlocks[i].buf);
-      cache.getBlock(multiBlocks[i].blockName);
+      cache.cacheBlock(multiBlocks[i].cacheKey, multiBlocks[i].buf);
+      cache.getBlock(multiBlocks[i].cacheKey);
 
       // Add memory blocks as such
-      cache.cacheBlock(memoryBlocks[i].blockName, memoryBlocks[i].buf, true);
+      cache.cacheBlock(memoryBlocks[i].cacheKey, memoryBlocks[i].buf, true);
     }
 
     // Do not expect any evictions yet
@@ -449,16 +594,16 @@ public class TestLruBlockCache extends TestCase {
 
     // And the oldest 5 blocks from each category should be gone
     for(int i=0;i<5;i++) {
-      assertEquals(null, cache.getBlock(singleBlocks[i].blockName));
-      assertEquals(null, cache.getBlock(multiBlocks[i].blockName));
-      assertEquals(null, cache.getBlock(memoryBlocks[i].blockName));
+      assertEquals(null, cache.getBlock(singleBlocks[i].cacheKey));
+      assertEquals(null, cache.getBlock(multiBlocks[i].cacheKey));
+      assertEquals(null, cache.getBlock(memoryBlocks[i].cacheKey));
     }
 
     // And the newest 5 blocks should still be accessible
     for(int i=5;i<10;i++) {
-      assertEquals(singleBlocks[i].buf, cache.getBlock(singleBlocks[i].blockName));
-      assertEquals(multiBlocks[i].buf, cache.getBlock(multiBlocks[i].blockName));
-      assertEquals(memoryBlocks[i].buf, cache.getBlock(memoryBlocks[i].blockName));
+      assertEquals(singleBlocks[i].buf, cache.getBlock(singleBlocks[i].cacheKey));
+      assertEquals(multiBlocks[i].buf, cache.getBlock(multiBlocks[i].cacheKey));
+      assertEquals(memoryBlocks[i].buf, cache.getBlock(memoryBlocks[i].cacheKey));
     }
   }
 
@@ -509,17 +654,16 @@ public class TestLruBlockCache extends TestCase {
   }
 
   private static class Block implements HeapSize {
-    String blockName;
+    BlockCacheKey cacheKey;
     ByteBuffer buf;
 
     Block(String blockName, int size) {
-      this.blockName = blockName;
+      this.cacheKey = new BlockCacheKey(blockName, 0);
       this.buf = ByteBuffer.allocate(size);
     }
 
     public long heapSize() {
       return CachedBlock.PER_BLOCK_OVERHEAD +
-      ClassSize.align(blockName.length()) +
       ClassSize.align(buf.capacity());
     }
   }
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+public class TestLz4BlockCodec extends TestCase {
+  private final Random rand = new Random(0);
+
+  /*
+   * Write the data through a BlockOutputStream, flushing a third of the way
+   * in, then read it back both through a BlockInputStream and straight out
+   * of the array.
+   */
+  private byte [] roundTrip(final byte [] data) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    Lz4BlockCodec.BlockOutputStream out =
+      new Lz4BlockCodec.BlockOutputStream(baos);
+    int third = data.length / 3;
+    out.write(data, 0, third);
+    out.flush();
+    for (int i = third; i < data.length / 2; i++) {
+      out.write(data[i]);
+    }
+    out.write(data, data.length / 2, data.length - data.length / 2);
+    out.flush();
+    byte [] compressed = baos.toByteArray();
+
+    byte [] decompressed = new byte[data.length];
+    Lz4BlockCodec.decompressChunks(compressed, 0, compressed.length,
+      decompressed, 0, data.length);
+    assertTrue(Arrays.equals(data, decompressed));
+
+    InputStream in = new Lz4BlockCodec.BlockInputStream(
+      new ByteArrayInputStream(compressed));
+    decompressed = new byte[data.length];
+    int n = 0;
+    while (n < data.length) {
+      int r = in.read(decompressed, n,
+        Math.min(data.length - n, 1 + this.rand.nextInt(100000)));
+      assertTrue(r > 0);
+      n += r;
+    }
+    assertEquals(-1, in.read());
+    assertTrue(Arrays.equals(data, decompressed));
+    return compressed;
+  }
+
+  public void testRoundTrip() throws IOException {
+    int [] lengths = {0, 1, 5, 12, 13, 100, 65535, 65536, 65537, 300000};
+    for (int length: lengths) {
+      byte [] random = new byte[length];
+      this.rand.nextBytes(random);
+      roundTrip(random);
+      roundTrip(new byte[length]);
+      byte [] pattern = new byte[length];
+      for (int i = 0; i < length; i++) {
+        pattern[i] = (byte)(i % 7);
+      }
+      roundTrip(pattern);
+    }
+    for (int i = 0; i < 100; i++) {
+      byte [] data = new byte[this.rand.nextInt(200000)];
+      int alphabet = 1 + this.rand.nextInt(20);
+      for (int j = 0; j < data.length; j++) {
+        data[j] = (byte)this.rand.nextInt(alphabet);
+      }
+      roundTrip(data);
+    }
+  }
+
+  /**
+   * A stream reset onto another stream writes the same as a new one.
+   */
+  public void testReset() throws IOException {
+    byte [] data = new byte[100000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte)(i % 11);
+    }
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    Lz4BlockCodec.BlockOutputStream out =
+      new Lz4BlockCodec.BlockOutputStream(first);
+    out.write(data, 0, data.length);
+    out.flush();
+    out.write(data, 0, 10);
+    // Not flushed; dropped.
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    out.reset(second);
+    out.write(data, 0, data.length);
+    out.flush();
+    assertTrue(Arrays.equals(first.toByteArray(), second.toByteArray()));
+    byte [] decompressed = new byte[data.length];
+    Lz4BlockCodec.decompressChunks(second.toByteArray(), 0, second.size(),
+      decompressed, 0, data.length);
+    assertTrue(Arrays.equals(data, decompressed));
+  }
+
+  public void testCompresses() throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    for (int i = 0; baos.size() < 1024 * 1024; i++) {
+      baos.write(Bytes.toBytes(String.format("row%010d", i / 10)));
+      baos.write(Bytes.toBytes("family:qualifier" + (i % 10)));
+      baos.write(Bytes.toBytes(1280000000000L + i));
+    }
+    byte [] data = baos.toByteArray();
+    assertTrue(roundTrip(data).length < data.length / 2);
+  }
+
+  public void testCorrupt() throws IOException {
+    byte [] data = new byte[10000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte)(i % 13);
+    }
+    byte [] compressed = roundTrip(data);
+    for (int i = 8; i < compressed.length; i++) {
+      byte [] corrupt = compressed.clone();
+      corrupt[i] ^= 0x5A;
+      try {
+        Lz4BlockCodec.decompressChunks(corrupt, 0, corrupt.length,
+          new byte[data.length], 0, data.length);
+      } catch (IOException e) {
+        // Expected, mostly; a flipped literal decompresses fine.
+      }
+    }
+    try {
+      Lz4BlockCodec.decompressChunks(compressed, 0, compressed.length - 1,
+        new byte[data.length], 0, data.length);
+      fail("Decompressed a truncated chunk");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+public class TestMappedFile extends TestCase {
+  private File file;
+  private byte [] data;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    this.data = new byte[10000];
+    new Random(0).nextBytes(this.data);
+    this.file = File.createTempFile("TestMappedFile", null);
+    FileOutputStream out = new FileOutputStream(this.file);
+    out.write(this.data);
+    out.close();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    this.file.delete();
+    super.tearDown();
+  }
+
+  /**
+   * Reads within and across segments match the file.
+   */
+  public void testRead() throws IOException {
+    MappedFile mapped = new MappedFile(this.file, 1024);
+    assertEquals(this.data.length, mapped.getLength());
+    int [][] ranges = {{0, 10}, {1000, 24}, {1000, 100}, {500, 3000},
+      {0, this.data.length}, {this.data.length - 1, 1}};
+    for (int [] range: ranges) {
+      byte [] b = new byte[range[1] + 2];
+      mapped.read(range[0], b, 1, range[1]);
+      assertTrue(Arrays.equals(
+        Arrays.copyOfRange(this.data, range[0], range[0] + range[1]),
+        Arrays.copyOfRange(b, 1, range[1] + 1)));
+    }
+  }
+
+  /**
+   * Only files of the local file system can be mapped.
+   */
+  public void testGetLocalFile() throws IOException {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    assertTrue(MappedFile.isLocal(fs));
+    assertEquals(this.file.getAbsoluteFile(), MappedFile.getLocalFile(fs,
+      new Path(this.file.getAbsolutePath())).getAbsoluteFile());
+  }
+
+  public void testReadPastEnd() throws IOException {
+    MappedFile mapped = new MappedFile(this.file);
+    try {
+      mapped.read(this.data.length - 10, new byte[11], 0, 11);
+      fail("Read past the end of the file");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.io.hfile;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the OffHeapBlockCache, alone and as victim cache of an
+ * LruBlockCache.
+ */
+public class TestOffHeapBlockCache extends TestCase {
+  private static final int SLOT_SIZE = 1024;
+
+  public void testCacheSimple() throws Exception {
+    OffHeapBlockCache cache = new OffHeapBlockCache(10 * SLOT_SIZE, SLOT_SIZE);
+    ByteBuffer [] blocks = generateBlocks(10, SLOT_SIZE);
+
+    for (int i = 0; i < blocks.length; i++) {
+      assertNull(cache.getBlock(new BlockCacheKey("block", i)));
+    }
+    for (int i = 0; i < blocks.length; i++) {
+      cache.cacheBlock(new BlockCacheKey("block", i), blocks[i]);
+    }
+    assertEquals(10, cache.size());
+    for (int i = 0; i < blocks.length; i++) {
+      ByteBuffer buf = cache.getBlock(new BlockCacheKey("block", i));
+      assertNotNull(buf);
+      assertTrue(buf.hasArray());
+      assertEquals(blocks[i], buf);
+    }
+    assertEquals(10, cache.getStats().getHitCount());
+    assertEquals(10, cache.getStats().getMissCount());
+    assertEquals(0, cache.getEvictedCount());
+  }
+
+  public void testBlockTooLargeForSlot() throws Exception {
+    OffHeapBlockCache cache = new OffHeapBlockCache(10 * SLOT_SIZE, SLOT_SIZE);
+    ByteBuffer [] blocks = generateBlocks(1, SLOT_SIZE + 1);
+    cache.cacheBlock(new BlockCacheKey("big", 0), blocks[0]);
+    assertNull(cache.getBlock(new BlockCacheKey("big", 0)));
+    assertEquals(0, cache.size());
+    assertEquals(1, cache.getRejectedCount());
+  }
+
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    OffHeapBlockCache cache = new OffHeapBlockCache(10 * SLOT_SIZE, SLOT_SIZE);
+    ByteBuffer [] blocks = generateBlocks(11, SLOT_SIZE / 2);
+    for (int i = 0; i < 10; i++) {
+      cache.cacheBlock(new BlockCacheKey("block", i), blocks[i]);
+    }
+    // Touch the first block so the second is the oldest.
+    assertNotNull(cache.getBlock(new BlockCacheKey("block", 0)));
+    cache.cacheBlock(new BlockCacheKey("block", 10), blocks[10]);
+
+    assertEquals(1, cache.getEvictedCount());
+    assertEquals(10, cache.size());
+    assertNull(cache.getBlock(new BlockCacheKey("block", 1)));
+    assertEquals(blocks[0], cache.getBlock(new BlockCacheKey("block", 0)));
+    assertEquals(blocks[10], cache.getBlock(new BlockCacheKey("block", 10)));
+  }
+
+  public void testVictimOfLruBlockCache() throws Exception {
+    long maxSize = 100000;
+    int blockSize = 1000;
+    LruBlockCache lru = new LruBlockCache(maxSize, blockSize, false);
+    OffHeapBlockCache offHeap = new OffHeapBlockCache(200 * 2 * blockSize,
+      2 * blockSize);
+    lru.setVictimCache(offHeap);
+
+    ByteBuffer [] blocks = generateBlocks(200, blockSize);
+    for (int i = 0; i < blocks.length; i++) {
+      lru.cacheBlock(new BlockCacheKey("block", i), blocks[i]);
+    }
+    assertTrue(lru.getEvictedCount() > 0);
+    assertEquals(lru.getEvictedCount(), offHeap.size());
+
+    // Every block is still served, from one level or the other.
+    for (int i = 0; i < blocks.length; i++) {
+      ByteBuffer buf = lru.getBlock(new BlockCacheKey("block", i));
+      assertNotNull("block" + i, buf);
+      assertEquals(blocks[i], buf);
+    }
+    assertEquals(lru.getEvictedCount(), offHeap.getStats().getHitCount());
+    lru.shutdown();
+    assertEquals(0, offHeap.size());
+  }
+
+  /**
+   * Reads racing eviction and the reuse of slots must never return the bytes
+   * of another block.
+   */
+  public void testReadsRacingEviction() throws Exception {
+    final OffHeapBlockCache cache =
+      new OffHeapBlockCache(8 * SLOT_SIZE, SLOT_SIZE);
+    final int blockCount = 64;
+    final AtomicReference<String> error = new AtomicReference<String>();
+    final AtomicBoolean stop = new AtomicBoolean(false);
+    Thread [] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      final boolean writer = t % 2 == 0;
+      final Random rand = new Random(t);
+      threads[t] = new Thread() {
+        public void run() {
+          while (!stop.get() && error.get() == null) {
+            int i = rand.nextInt(blockCount);
+            BlockCacheKey key = new BlockCacheKey("block", i);
+            if (writer) {
+              // Every byte of a block is its number.
+              byte [] b = new byte[SLOT_SIZE / 2 + i];
+              Arrays.fill(b, (byte)i);
+              cache.cacheBlock(key, ByteBuffer.wrap(b));
+              continue;
+            }
+            ByteBuffer buf = cache.getBlock(key);
+            if (buf == null) {
+              continue;
+            }
+            if (buf.remaining() != SLOT_SIZE / 2 + i) {
+              error.set("block" + i + " has length " + buf.remaining());
+            }
+            while (buf.hasRemaining()) {
+              byte v = buf.get();
+              if (v != (byte)i) {
+                error.set("block" + i + " holds a byte of block" + v);
+                break;
+              }
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    Thread.sleep(3000);
+    stop.set(true);
+    for (Thread t: threads) {
+      t.join();
+    }
+    assertNull(error.get(), error.get());
+    assertTrue(cache.getEvictedCount() > 0);
+    assertTrue(cache.getStats().getHitCount() > 0);
+    // All slots are back once the cache is emptied.
+    cache.shutdown();
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getCurrentSize());
+    for (int i = 0; i < 8; i++) {
+      cache.cacheBlock(new BlockCacheKey("again", i), ByteBuffer.allocate(1));
+    }
+    assertEquals(8, cache.size());
+  }
+
+  private static ByteBuffer [] generateBlocks(int count, int size) {
+    Random rand = new Random();
+    ByteBuffer [] blocks = new ByteBuffer[count];
+    for (int i = 0; i < count; i++) {
+      byte [] b = new byte[size];
+      rand.nextBytes(b);
+      blocks[i] = ByteBuffer.wrap(b);
+    }
+    return blocks;
+  }
+}
@@ -94,6 +94,18 @@ public class KeyValueScanFixture implements KeyValueScanner {
     return true;
   }
 
+  public boolean requestSeek(KeyValue key) {
+    return seek(key);
+  }
+
+  public boolean isRealSeekDone() {
+    return true;
+  }
+
+  public void enforceSeek() {
+    // noop.
+  }
+
   @Override
   public void close() {
     // noop.
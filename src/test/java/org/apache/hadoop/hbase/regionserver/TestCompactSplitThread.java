@@ -0,0 +1,154 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.HBaseTestCase;
+import org.apache.hadoop.hbase.regionserver.wal.HLog;
+
+/**
+ * Tests how {@link CompactSplitThread} queues compaction requests and hands
+ * them to the threads for large and small compactions.  Requests are taken
+ * off the queue without running the threads.
+ */
+public class TestCompactSplitThread extends HBaseTestCase {
+  private HRegion r = null;
+  private Store many;
+  private Store few;
+  private Store none;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    this.conf.setInt("hbase.hstore.compactionThreshold", 3);
+    this.conf.setLong("hbase.regionserver.thread.splitcompactcheckfrequency",
+      100);
+    this.r = createNewHRegion(createTableDescriptor(getName()), null, null);
+    // Four files, three files and no files.
+    for (int i = 0; i < 4; i++) {
+      addContent(this.r, fam1);
+      if (i < 3) {
+        addContent(this.r, fam2);
+      }
+      this.r.flushcache();
+    }
+    this.many = this.r.stores.get(fam1);
+    this.few = this.r.stores.get(fam2);
+    this.none = this.r.stores.get(fam3);
+    assertEquals(4, this.many.getStorefilesCount());
+    assertEquals(3, this.few.getStorefilesCount());
+    assertEquals(0, this.none.getStorefilesCount());
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    HLog hlog = this.r.getLog();
+    this.r.close();
+    hlog.closeAndDelete();
+    super.tearDown();
+  }
+
+  public void testRequestsQueuedOncePerStore() throws Exception {
+    CompactSplitThread compactor = createCompactor();
+    compactor.compactionRequested(this.r, "first");
+    compactor.compactionRequested(this.r, "second");
+    assertEquals(3, compactor.getCompactionQueueSize());
+    // Only the store with the most to compact is over the throttle.
+    assertEquals(1, compactor.getLargeCompactionQueueSize());
+    assertEquals(2, compactor.getSmallCompactionQueueSize());
+
+    // Forcing a major compaction updates the queued request.
+    compactor.compactionRequested(this.r, true, "major");
+    assertEquals(3, compactor.getCompactionQueueSize());
+    CompactSplitThread.CompactionRequest cr = compactor.takeRequest(true);
+    assertTrue(this.many == cr.store);
+    assertTrue(cr.force);
+  }
+
+  public void testSmallThreadsTakeMostFilesFirst() throws Exception {
+    CompactSplitThread compactor = createCompactor();
+    compactor.compactionRequested(this.r, "test");
+    assertTrue(this.few == compactor.takeRequest(false).store);
+    assertTrue(this.none == compactor.takeRequest(false).store);
+    // The large compaction is left to the large compaction threads.
+    assertNull(compactor.takeRequest(false));
+    assertTrue(this.many == compactor.takeRequest(true).store);
+    assertEquals(0, compactor.getCompactionQueueSize());
+  }
+
+  public void testLargeThreadsTakeSmallCompactions() throws Exception {
+    CompactSplitThread compactor = createCompactor();
+    compactor.compactionRequested(this.r, "test");
+    // Large first, then the small ones in priority order.
+    assertTrue(this.many == compactor.takeRequest(true).store);
+    assertTrue(this.few == compactor.takeRequest(true).store);
+    assertTrue(this.none == compactor.takeRequest(true).store);
+    assertNull(compactor.takeRequest(true));
+  }
+
+  public void testStoreCompactingIsNotTaken() throws Exception {
+    CompactSplitThread compactor = createCompactor();
+    compactor.compactionRequested(this.r, "test");
+    assertTrue(this.many == compactor.takeRequest(true).store);
+    // Asked again while compacting; waits until the compaction is done.
+    compactor.compactionRequested(this.r, "again");
+    assertEquals(3, compactor.getCompactionQueueSize());
+    assertTrue(this.few == compactor.takeRequest(true).store);
+    assertTrue(this.none == compactor.takeRequest(true).store);
+    assertNull(compactor.takeRequest(true));
+    compactor.doneCompacting(this.many);
+    assertTrue(this.many == compactor.takeRequest(true).store);
+  }
+
+  public void testNoCompactionIsSmall() throws Exception {
+    // Everything compacted is large, but a store compact() would skip is not.
+    this.conf.setLong(CompactSplitThread.THROTTLE_KEY, 0);
+    addContent(this.r, fam3);
+    this.r.flushcache();
+    assertEquals(1, this.none.getStorefilesCount());
+    assertEquals(0, this.none.getCompactionSize(false));
+    assertTrue(this.none.getCompactionSize(true) > 0);
+    CompactSplitThread compactor = createCompactor();
+    compactor.compactionRequested(this.r, "test");
+    assertEquals(2, compactor.getLargeCompactionQueueSize());
+    assertEquals(1, compactor.getSmallCompactionQueueSize());
+    assertTrue(this.none == compactor.takeRequest(false).store);
+  }
+
+  /*
+   * @return Compactor whose throttle, unless set already, is the compaction
+   * size of the store with three files, so only the one with four is large
+   */
+  private CompactSplitThread createCompactor() throws IOException {
+    if (this.conf.get(CompactSplitThread.THROTTLE_KEY) == null) {
+      this.conf.setLong(CompactSplitThread.THROTTLE_KEY,
+        this.few.getCompactionSize(false));
+    }
+    CompactSplitThread compactor = new CompactSplitThread(this.conf, null) {
+      @Override
+      boolean isStopRequested() {
+        return false;
+      }
+    };
+    compactor.setName(getName());
+    return compactor;
+  }
+}
@@ -250,6 +250,28 @@ public class TestCompaction extends HBaseTestCase {
     return count;
   }
 
+  /**
+   * Compact one store on its own, as the compaction threads do, and check
+   * the compaction size estimate against what is compacted.
+   * @throws Exception
+   */
+  public void testCompactStore() throws Exception {
+    for (int i = 0; i < COMPACTION_THRESHOLD; i++) {
+      createStoreFile(r);
+    }
+    Store store = this.r.stores.get(COLUMN_FAMILY);
+    assertEquals(COMPACTION_THRESHOLD, store.getStorefilesCount());
+    long size = store.getSize();
+    assertEquals(size, store.getCompactionSize(true));
+    assertTrue(store.getCompactionSize(false) <= size);
+    r.compactStore(store, true);
+    assertEquals(1, store.getStorefilesCount());
+    // A minor compaction of one file would be skipped.
+    assertEquals(0, store.getCompactionSize(false));
+    // check Compaction Dir for this Regions is cleaned up
+    assertTrue(!this.cluster.getFileSystem().exists(this.regionCompactionDir));
+  }
+
   private void createStoreFile(final HRegion region) throws IOException {
     HRegionIncommon loader = new HRegionIncommon(region);
     addContent(loader, Bytes.toString(COLUMN_FAMILY));
@@ -45,6 +45,7 @@ import org.apache.hadoop.hbase.filter.PrefixFilter;
 import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
 import org.apache.hadoop.hbase.regionserver.HRegion.RegionScanner;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
 import org.apache.hadoop.hbase.util.Threads;
 
 import java.io.IOException;
@@ -320,6 +321,56 @@ public class TestHRegion extends HBaseTestCase {
     assertTrue(exception);
   }
 
+  public void testBatchPut() throws IOException {
+    byte [] b = Bytes.toBytes(getName());
+    byte [] cf = Bytes.toBytes("cf");
+    byte [] qual = Bytes.toBytes("qual");
+    byte [] val = Bytes.toBytes("val");
+    initHRegion(b, getName(), cf);
+
+    // One of the rows is already locked by the caller.
+    Integer lockedRow = region.obtainRowLock(Bytes.toBytes("row_3"));
+    @SuppressWarnings("unchecked")
+    Pair<Put, Integer> [] puts = new Pair[10];
+    for (int i = 0; i < puts.length; i++) {
+      Put put = new Put(Bytes.toBytes("row_" + i));
+      put.add(cf, qual, val);
+      puts[i] = new Pair<Put, Integer>(put, i == 3? lockedRow: null);
+    }
+    assertEquals(puts.length, region.put(puts));
+    for (int i = 0; i < puts.length; i++) {
+      Get get = new Get(Bytes.toBytes("row_" + i));
+      get.addColumn(cf, qual);
+      Result r = region.get(get, null);
+      assertTrue(Bytes.equals(val, r.getValue(cf, qual)));
+    }
+    // The caller's lock is left held; the locks the batch took are not.
+    assertTrue(region.getRowFromLock(lockedRow) != null);
+    region.releaseRowLock(lockedRow);
+
+    // A put to a bad family fails the batch at that put; the ones before it
+    // are applied.
+    Put bad = new Put(Bytes.toBytes("row_bad"));
+    bad.add(Bytes.toBytes("nonexistent"), qual, val);
+    Put after = new Put(Bytes.toBytes("row_after"));
+    after.add(cf, qual, val);
+    Put before = new Put(Bytes.toBytes("row_before"));
+    before.add(cf, qual, val);
+    @SuppressWarnings("unchecked")
+    Pair<Put, Integer> [] withBad = new Pair[] {
+      new Pair<Put, Integer>(before, null),
+      new Pair<Put, Integer>(bad, null),
+      new Pair<Put, Integer>(after, null)};
+    try {
+      region.put(withBad);
+      fail("Expected NoSuchColumnFamilyException");
+    } catch (NoSuchColumnFamilyException e) {
+      // Expected
+    }
+    assertFalse(region.get(new Get(Bytes.toBytes("row_before")), null).isEmpty());
+    assertTrue(region.get(new Get(Bytes.toBytes("row_after")), null).isEmpty());
+  }
+
   //////////////////////////////////////////////////////////////////////////////
   // checkAndMutate tests
   //////////////////////////////////////////////////////////////////////////////
@@ -765,6 +816,127 @@ public class TestHRegion extends HBaseTestCase {
 
   }
 
+  /**
+   * Gets from clients go through a StoreScanner rather than Store.get; check
+   * they count their bloom filter checks too.
+   * @throws IOException
+   */
+  public void testBloomMetricsOnGet() throws IOException {
+    byte [] tableName = Bytes.toBytes("testBloomMetricsOnGet");
+    byte [] family = Bytes.toBytes("family");
+    byte [] row1 = Bytes.toBytes("row1");
+    byte [] row2 = Bytes.toBytes("row2");
+    HBaseConfiguration conf = new HBaseConfiguration();
+    conf.setBoolean("io.hfile.bloom.enabled", true);
+    HTableDescriptor htd = new HTableDescriptor(tableName);
+    HColumnDescriptor hcd = new HColumnDescriptor(family);
+    hcd.setBloomFilterType(StoreFile.BloomType.ROW);
+    htd.addFamily(hcd);
+    HRegionInfo info = new HRegionInfo(htd, null, null, false);
+    region = HRegion.createHRegion(info, new Path(DIR + getName()), conf);
+
+    Put put = new Put(row1);
+    put.add(family, qual1, value1);
+    region.put(put);
+    region.flushcache();
+    Store store = region.getStore(family);
+    // Start the counts from zero
+    store.getBloomChecks();
+    store.getBloomFilesSkipped();
+
+    Result res = region.get(new Get(row2), null);
+    assertTrue(res.isEmpty());
+    assertEquals(1, store.getBloomChecks());
+    assertEquals(1, store.getBloomFilesSkipped());
+
+    res = region.get(new Get(row1), null);
+    assertEquals(1, res.size());
+    assertEquals(1, store.getBloomChecks());
+    assertEquals(0, store.getBloomFilesSkipped());
+  }
+
+  /**
+   * A store file that passes the bloom filter check of a client get but has
+   * nothing for the row counts as a false positive.
+   * @throws IOException
+   */
+  public void testBloomFalsePositivesOnGet() throws IOException {
+    byte [] tableName = Bytes.toBytes("testBloomFalsePositivesOnGet");
+    byte [] family = Bytes.toBytes("family");
+    HBaseConfiguration conf = new HBaseConfiguration();
+    conf.setBoolean("io.hfile.bloom.enabled", true);
+    // A bloom filter wrong half of the time.
+    conf.setFloat("io.hfile.bloom.error.rate", 0.5f);
+    HTableDescriptor htd = new HTableDescriptor(tableName);
+    HColumnDescriptor hcd = new HColumnDescriptor(family);
+    hcd.setBloomFilterType(StoreFile.BloomType.ROW);
+    htd.addFamily(hcd);
+    HRegionInfo info = new HRegionInfo(htd, null, null, false);
+    region = HRegion.createHRegion(info, new Path(DIR + getName()), conf);
+
+    for (int i = 0; i < 100; i += 2) {
+      Put put = new Put(Bytes.toBytes("row" + i));
+      put.add(family, qual1, value1);
+      region.put(put);
+    }
+    region.flushcache();
+    Store store = region.getStore(family);
+    store.getBloomChecks();
+    store.getBloomFilesSkipped();
+    store.getBloomFalsePositives();
+
+    // Rows present are no false positives.
+    for (int i = 0; i < 100; i += 2) {
+      assertEquals(1, region.get(new Get(Bytes.toBytes("row" + i)), null).size());
+    }
+    assertEquals(50, store.getBloomChecks());
+    assertEquals(0, store.getBloomFilesSkipped());
+    assertEquals(0, store.getBloomFalsePositives());
+
+    // Every absent row not skipped on the bloom filter is a false positive.
+    for (int i = 1; i < 100; i += 2) {
+      assertTrue(region.get(new Get(Bytes.toBytes("row" + i)), null).isEmpty());
+    }
+    assertEquals(50, store.getBloomChecks());
+    long falsePositives = store.getBloomFalsePositives();
+    assertEquals(50 - store.getBloomFilesSkipped(), falsePositives);
+    assertTrue(falsePositives > 0);
+  }
+
+  public void testFlushcacheOfBigStores() throws IOException {
+    HBaseConfiguration conf = new HBaseConfiguration();
+    conf.setBoolean(HRegion.PER_FAMILY_FLUSH_KEY, true);
+    conf.setLong(HRegion.FAMILY_FLUSH_LOWER_BOUND_KEY, 10 * 1024);
+    initHRegion(tableName, getName(), conf, fam1, fam2);
+
+    byte [] value = new byte[1024];
+    for (int i = 0; i < 20; i++) {
+      Put put = new Put(Bytes.toBytes("row" + i));
+      put.add(fam1, qual1, value);
+      region.put(put);
+    }
+    Put put = new Put(row);
+    put.add(fam2, qual1, value);
+    region.put(put);
+    Store store1 = region.getStore(fam1);
+    Store store2 = region.getStore(fam2);
+    long size2 = store2.getMemStoreSize();
+
+    // Only the big store is flushed.
+    region.flushcache(false);
+    assertEquals(1, store1.getStorefilesCount());
+    assertEquals(0, store1.getMemStoreSize());
+    assertEquals(0, store2.getStorefilesCount());
+    assertEquals(size2, store2.getMemStoreSize());
+    assertEquals(size2, region.memstoreSize.get());
+
+    // No store is big, all are flushed.
+    region.flushcache(false);
+    assertEquals(1, store1.getStorefilesCount());
+    assertEquals(1, store2.getStorefilesCount());
+    assertEquals(0, region.memstoreSize.get());
+  }
+
   public void testDeleteColumns_PostInsert() throws IOException,
       InterruptedException {
     Delete delete = new Delete(row);
@@ -2456,6 +2628,39 @@ public class TestHRegion extends HBaseTestCase {
   }
 
 
+  /**
+   * Writers only flag that the memstore wants compacting; the compaction is
+   * left to the flusher.
+   * @throws IOException
+   */
+  public void testMemStoreCompactedOffWritePath() throws IOException {
+    byte [] tableName = Bytes.toBytes("testMemStoreCompactedOffWritePath");
+    HBaseConfiguration conf = new HBaseConfiguration();
+    conf.setLong(MemStore.COMPACTION_SIZE_KEY, 1);
+    HTableDescriptor htd = new HTableDescriptor(tableName);
+    HColumnDescriptor hcd = new HColumnDescriptor(fam1);
+    hcd.setInMemoryCompaction(true);
+    htd.addFamily(hcd);
+    HRegionInfo info = new HRegionInfo(htd, null, null, false);
+    Path path = new Path(DIR + "testMemStoreCompactedOffWritePath");
+    region = HRegion.createHRegion(info, path, conf);
+
+    for (long ts = 1; ts <= 10; ts++) {
+      Put put = new Put(row);
+      put.add(fam1, qual1, ts, value1);
+      region.put(put);
+    }
+    Store store = region.getStore(fam1);
+    assertEquals(10, store.memstore.kvset.size());
+    assertTrue(store.needsMemStoreCompaction());
+    long size = region.memstoreSize.get();
+
+    region.compactMemStores();
+    assertEquals(hcd.getMaxVersions(), store.memstore.kvset.size());
+    assertTrue(region.memstoreSize.get() < size);
+    assertEquals(store.getMemStoreSize(), region.memstoreSize.get());
+  }
+
   public void testIndexesScanWithOneDeletedRow() throws IOException {
     byte[] tableName = Bytes.toBytes("testIndexesScanWithOneDeletedRow");
     byte[] family = Bytes.toBytes("family");
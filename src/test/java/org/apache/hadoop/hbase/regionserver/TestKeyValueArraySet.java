@@ -0,0 +1,123 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import junit.framework.TestCase;
+
+public class TestKeyValueArraySet extends TestCase {
+  private List<KeyValue> kvs;
+  private KeyValueArraySet set;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    this.kvs = new ArrayList<KeyValue>();
+    KeyValueSkipListSet sorted = new KeyValueSkipListSet(KeyValue.COMPARATOR);
+    byte [] f = Bytes.toBytes("f");
+    for (int i = 9; i >= 0; i--) {
+      byte [] row = Bytes.toBytes("row" + (i * 2));
+      sorted.add(new KeyValue(row, f, f, row));
+    }
+    this.kvs.addAll(sorted);
+    this.set = new KeyValueArraySet(KeyValue.COMPARATOR, sorted);
+  }
+
+  private KeyValue onRow(final int i) {
+    return KeyValue.createFirstOnRow(Bytes.toBytes("row" + i));
+  }
+
+  public void testIterator() throws Exception {
+    assertEquals(this.kvs.size(), this.set.size());
+    Iterator<KeyValue> i = this.set.iterator();
+    for (KeyValue kv: this.kvs) {
+      assertTrue(i.hasNext());
+      assertTrue(kv == i.next());
+    }
+    assertFalse(i.hasNext());
+    assertTrue(this.kvs.get(0) == this.set.first());
+    assertTrue(this.kvs.get(this.kvs.size() - 1) == this.set.last());
+    try {
+      this.set.iterator().remove();
+      fail("Snapshot must be immutable");
+    } catch (UnsupportedOperationException e) {
+      // Expected
+    }
+  }
+
+  public void testNavigation() throws Exception {
+    // row0, row10, row12 ... row18, row2, row4 ... row8 in byte order.
+    KeyValue row2 = this.kvs.get(6);
+    assertTrue(row2 == this.set.ceiling(onRow(2)));
+    assertTrue(row2 == this.set.higher(onRow(18)));
+    assertTrue(this.kvs.get(5) == this.set.lower(onRow(2)));
+    assertTrue(this.kvs.get(5) == this.set.floor(onRow(3)));
+    assertNull(this.set.higher(this.set.last()));
+    assertNull(this.set.lower(this.set.first()));
+    assertTrue(this.set.contains(row2));
+    assertFalse(this.set.contains(onRow(2)));
+  }
+
+  public void testViews() throws Exception {
+    NavigableSet<KeyValue> tail = this.set.tailSet(onRow(2), true);
+    assertEquals(4, tail.size());
+    assertTrue(this.kvs.get(6) == tail.first());
+    NavigableSet<KeyValue> head = this.set.headSet(onRow(2), false);
+    assertEquals(6, head.size());
+    assertTrue(this.kvs.get(5) == head.last());
+    NavigableSet<KeyValue> sub = tail.headSet(onRow(6), false);
+    assertEquals(2, sub.size());
+    assertTrue(this.kvs.get(7) == sub.last());
+    assertEquals(2, sub.tailSet(onRow(0), true).size());
+    assertTrue(head.tailSet(onRow(2), true).isEmpty());
+  }
+
+  public void testToArray() throws Exception {
+    assertTrue(Arrays.equals(this.kvs.toArray(), this.set.toArray()));
+    NavigableSet<KeyValue> tail = this.set.tailSet(onRow(2), true);
+    KeyValue [] a = tail.toArray(new KeyValue[0]);
+    assertEquals(4, a.length);
+    assertTrue(this.kvs.get(6) == a[0]);
+    // Big enough arrays are filled in, and null terminated
+    KeyValue [] big = new KeyValue[6];
+    Arrays.fill(big, this.kvs.get(0));
+    assertTrue(big == tail.toArray(big));
+    assertTrue(this.kvs.get(9) == big[3]);
+    assertNull(big[4]);
+  }
+
+  public void testDescendingSet() throws Exception {
+    NavigableSet<KeyValue> desc = this.set.descendingSet();
+    assertEquals(this.kvs.size(), desc.size());
+    Iterator<KeyValue> i = this.set.descendingIterator();
+    for (KeyValue kv: desc) {
+      assertTrue(kv == i.next());
+    }
+    assertTrue(this.set.last() == desc.first());
+    assertTrue(this.kvs.get(5) == desc.higher(this.kvs.get(6)));
+  }
+}
@@ -256,6 +256,17 @@ implements HConstants {
       }
       return false;
     }
+
+    public boolean requestSeek(KeyValue seekKv) {
+      return seek(seekKv);
+    }
+
+    public boolean isRealSeekDone() {
+      return true;
+    }
+
+    public void enforceSeek() {
+    }
   }
 
 }
@@ -22,15 +22,19 @@ package org.apache.hadoop.hbase.regionserver;
 import java.io.IOException;
 import java.rmi.UnexpectedException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.NavigableSet;
 import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicReference;
 
 import junit.framework.TestCase;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.KeyValueTestUtil;
@@ -343,11 +347,34 @@ public class TestMemStore extends TestCase {
     for (int i = 0; i < snapshotCount; i++) {
       addRows(this.memstore);
       runSnapshot(this.memstore);
-      KeyValueSkipListSet ss = this.memstore.getSnapshot();
+      NavigableSet<KeyValue> ss = this.memstore.getSnapshot();
       assertEquals("History not being cleared", 0, ss.size());
     }
   }
 
+  /**
+   * The snapshot stays a skip list until the flusher flattens it.
+   * @throws IOException
+   */
+  public void testFlattenSnapshot() throws IOException {
+    addRows(this.memstore);
+    this.memstore.snapshot();
+    NavigableSet<KeyValue> ss = this.memstore.getSnapshot();
+    assertFalse(ss instanceof KeyValueArraySet);
+    NavigableSet<KeyValue> flat = this.memstore.flattenSnapshot(ss);
+    assertTrue(flat instanceof KeyValueArraySet);
+    assertTrue(flat == this.memstore.getSnapshot());
+    assertEquals(ss.size(), flat.size());
+    Iterator<KeyValue> it = ss.iterator();
+    for (KeyValue kv: flat) {
+      assertTrue(kv == it.next());
+    }
+    // A snapshot that is not current anymore is left as is
+    this.memstore.clearSnapshot(flat);
+    assertTrue(ss == this.memstore.flattenSnapshot(ss));
+    assertTrue(this.memstore.getSnapshot().isEmpty());
+  }
+
   public void testMultipleVersionsSimple() throws Exception {
     MemStore m = new MemStore(KeyValue.COMPARATOR);
     byte [] row = Bytes.toBytes("testRow");
@@ -762,6 +789,137 @@ public class TestMemStore extends TestCase {
     assertEquals(delete, memstore.kvset.first());
   }
 
+  public void testCompact() throws IOException {
+    // Five versions of a, versions 100 to 102 of b deleted.
+    for (int ts = 100; ts < 105; ts++) {
+      memstore.add(KeyValueTestUtil.create("row1", "fam", "a", ts, "v"));
+      memstore.add(KeyValueTestUtil.create("row1", "fam", "b", ts, "v"));
+    }
+    KeyValue delete = KeyValueTestUtil.create("row1", "fam", "b", 102,
+        KeyValue.Type.DeleteColumn, "dont-care");
+    memstore.delete(delete);
+    // A version of c not visible yet does not mask the older one.
+    KeyValue c1 = KeyValueTestUtil.create("row2", "fam", "c", 100, "v");
+    KeyValue c2 = KeyValueTestUtil.create("row2", "fam", "c", 101, "v");
+    c2.setMemstoreTS(2);
+    memstore.add(c1);
+    memstore.add(c2);
+    long size = memstore.heapSize();
+
+    long freed = memstore.compact(1, 1);
+    assertTrue(freed > 0);
+    assertEquals(size - freed, memstore.heapSize());
+    List<KeyValue> expected = new ArrayList<KeyValue>();
+    expected.add(KeyValueTestUtil.create("row1", "fam", "a", 104, "v"));
+    expected.add(KeyValueTestUtil.create("row1", "fam", "b", 104, "v"));
+    expected.add(delete);
+    expected.add(c2);
+    expected.add(c1);
+    assertEquals(expected.size(), memstore.kvset.size());
+    int i = 0;
+    for (KeyValue kv: memstore.kvset) {
+      assertEquals(expected.get(i++), kv);
+    }
+    assertFalse(memstore.needsCompaction());
+  }
+
+  /**
+   * With MSLAB on, the cells kept move to the chunks of a new allocator so
+   * the chunks of the cells dropped are let go.
+   * @throws IOException
+   */
+  public void testCompactWithMSLAB() throws IOException {
+    Configuration conf = HBaseConfiguration.create();
+    conf.setBoolean(MemStore.USEMSLAB_KEY, true);
+    MemStore ms = new MemStore(conf, KeyValue.COMPARATOR);
+    for (int ts = 100; ts < 110; ts++) {
+      ms.add(KeyValueTestUtil.create("row1", "fam", "a", ts, "v"));
+    }
+    MemStoreLAB old = ms.allocator;
+    KeyValue newest = ms.kvset.first();
+    long chunkCount = MemStoreLAB.getChunkCount();
+    long size = ms.heapSize();
+
+    long freed = ms.compact(1, Long.MAX_VALUE);
+    assertTrue(freed > 0);
+    assertEquals(size - freed, ms.heapSize());
+    assertEquals(1, ms.kvset.size());
+    assertEquals(newest, ms.kvset.first());
+    assertNotSame(old, ms.allocator);
+    assertNotSame(newest.getBuffer(), ms.kvset.first().getBuffer());
+    // The old chunk is let go, the new allocator holds one.
+    assertEquals(chunkCount, MemStoreLAB.getChunkCount());
+    assertEquals(1, ms.allocator.getChunks());
+
+    // Updates go to the new chunks.
+    ms.add(KeyValueTestUtil.create("row2", "fam", "a", 100, "v"));
+    assertTrue(ms.kvset.last().getBuffer() == ms.kvset.first().getBuffer());
+  }
+
+  /**
+   * A compaction dropped by a snapshot must not take the updates of one
+   * started on the new memstore after the snapshot.
+   * @throws Exception
+   */
+  public void testSnapshotDuringCompact() throws Exception {
+    final CountDownLatch secondStarted = new CountDownLatch(1);
+    final CountDownLatch secondGoOn = new CountDownLatch(1);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    final AtomicReference<Thread> second = new AtomicReference<Thread>();
+    final KeyValue during =
+      KeyValueTestUtil.create("row2", "fam", "a", 100, "v");
+    final MemStore ms = new MemStore() {
+      private int compactions = 0;
+
+      @Override
+      long copyCompacted(NavigableSet<KeyValue> from, KeyValueSkipListSet to,
+          MemStoreLAB a, int maxVersions, long readPoint) {
+        if (++compactions == 1) {
+          // Snapshot, then start another compaction on the new memstore.
+          snapshot();
+          add(during);
+          final MemStore self = this;
+          second.set(new Thread() {
+            public void run() {
+              try {
+                self.compact(1, 1);
+              } catch (Throwable t) {
+                error.set(t);
+              }
+            }
+          });
+          second.get().start();
+          try {
+            secondStarted.await();
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        } else {
+          secondStarted.countDown();
+          try {
+            secondGoOn.await();
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        return super.copyCompacted(from, to, a, maxVersions, readPoint);
+      }
+    };
+    ms.add(KeyValueTestUtil.create("row1", "fam", "a", 100, "v"));
+    assertEquals(0, ms.compact(1, 1));
+    // Taken in while the second compaction runs.
+    KeyValue after = KeyValueTestUtil.create("row3", "fam", "a", 100, "v");
+    ms.add(after);
+    secondGoOn.countDown();
+    second.get().join();
+    assertNull(error.get());
+    assertEquals(1, ms.getSnapshot().size());
+    assertEquals(2, ms.kvset.size());
+    assertTrue(ms.kvset.contains(during));
+    assertTrue(ms.kvset.contains(after));
+    assertNull(ms.compactionUpdates);
+  }
+
 
   //////////////////////////////////////////////////////////////////////////////
   // Helpers
@@ -804,7 +962,7 @@ public class TestMemStore extends TestCase {
     // Save off old state.
     int oldHistorySize = hmc.getSnapshot().size();
     hmc.snapshot();
-    KeyValueSkipListSet ss = hmc.getSnapshot();
+    NavigableSet<KeyValue> ss = hmc.getSnapshot();
     // Make some assertions about what just happened.
     assertTrue("History size has not increased", oldHistorySize < ss.size());
     hmc.clearSnapshot(ss);
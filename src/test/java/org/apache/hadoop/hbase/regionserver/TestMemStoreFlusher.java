@@ -0,0 +1,267 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HTableDescriptor;
+
+/**
+ * Tests the scheduling of flushes by {@link MemStoreFlusher}, with regions
+ * that only pretend to flush.
+ */
+public class TestMemStoreFlusher extends TestCase {
+  private Configuration conf;
+  private final List<HRegion> regions = new ArrayList<HRegion>();
+  private Flusher flusher;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    this.conf = HBaseConfiguration.create();
+    this.conf.setInt(HConstants.THREAD_WAKE_FREQUENCY, 100);
+    this.flusher = new Flusher(this.conf);
+  }
+
+  public void testRankOrder() throws Exception {
+    FakeRegion small = addRegion("small", 10);
+    FakeRegion big = addRegion("big", 100);
+    FakeRegion forLogs = addRegion("forLogs", 1);
+    FakeRegion blocked = addRegion("blocked", 1);
+    blocked.blocked = true;
+    FakeRegion compactOnly = addRegion("compactOnly", 1000);
+    this.flusher.requestMemStoreCompaction(compactOnly);
+    this.flusher.request(small);
+    this.flusher.request(big);
+    this.flusher.requestLogFlush(forLogs);
+    this.flusher.request(blocked);
+    // Blocking updates, then for logs, then biggest first, compactions last.
+    assertTrue(blocked == this.flusher.takeRequest().region);
+    assertTrue(forLogs == this.flusher.takeRequest().region);
+    assertTrue(big == this.flusher.takeRequest().region);
+    assertTrue(small == this.flusher.takeRequest().region);
+    MemStoreFlusher.FlushRequest fr = this.flusher.takeRequest();
+    assertTrue(compactOnly == fr.region);
+    assertTrue(fr.compactOnly);
+    assertNull(this.flusher.takeRequest());
+  }
+
+  public void testPickSkipsRegionFlushing() throws Exception {
+    FakeRegion r = addRegion("r", 10);
+    this.flusher.request(r);
+    assertTrue(r == this.flusher.takeRequest().region);
+    // Asked again while flushing; waits until the flush is done.
+    this.flusher.request(r);
+    assertTrue(this.flusher.isQueuedOrFlushing(r));
+    assertNull(this.flusher.takeRequest());
+    this.flusher.doneFlushing(r);
+    assertTrue(r == this.flusher.takeRequest().region);
+  }
+
+  public void testFlushSomeRegionsSkipsQueuedAndFlushing() throws Exception {
+    FakeRegion flushing = addRegion("flushing", 4000);
+    FakeRegion queued = addRegion("queued", 3000);
+    FakeRegion next = addRegion("next", 2000);
+    FakeRegion last = addRegion("last", 1000);
+    this.flusher.request(flushing);
+    assertTrue(flushing == this.flusher.takeRequest().region);
+    this.flusher.request(queued);
+
+    // The regions flushing and queued count, so only one more is needed.
+    this.flusher.flushSomeRegions(
+      this.flusher.globalMemStoreLimitLowMark + 8000);
+    assertTrue(this.flusher.isQueuedOrFlushing(next));
+    assertFalse(this.flusher.isQueuedOrFlushing(last));
+    this.flusher.doneFlushing(flushing);
+    assertFalse(this.flusher.isQueuedOrFlushing(flushing));
+    MemStoreFlusher.FlushRequest fr = this.flusher.takeRequest();
+    assertTrue(next == fr.region);
+    assertTrue(fr.forMemory);
+    assertTrue(queued == this.flusher.takeRequest().region);
+    assertNull(this.flusher.takeRequest());
+  }
+
+  public void testReclaimMemStoreMemoryUnblocks() throws Exception {
+    final FakeRegion r = addRegion("r", this.flusher.globalMemStoreLimit + 1);
+    Thread writer = new Thread() {
+      public void run() {
+        flusher.reclaimMemStoreMemory();
+      }
+    };
+    writer.start();
+    // The blocked writer queues the region.
+    MemStoreFlusher.FlushRequest fr = null;
+    for (int i = 0; i < 50 && fr == null; i++) {
+      fr = this.flusher.takeRequest();
+    }
+    assertTrue(r == fr.region);
+    assertTrue(fr.forMemory);
+    assertTrue(writer.isAlive());
+    r.memstoreSize.set(0);
+    this.flusher.doneFlushing(r);
+    writer.join(10000);
+    assertFalse(writer.isAlive());
+  }
+
+  public void testHandlersFlushAtOnce() throws Exception {
+    this.conf.setInt(MemStoreFlusher.HANDLER_COUNT_KEY, 2);
+    this.flusher = new Flusher(this.conf);
+    // Each flush waits for the other one, so two threads must run them.
+    CyclicBarrier barrier = new CyclicBarrier(2);
+    FakeRegion a = addRegion("a", 10);
+    FakeRegion b = addRegion("b", 20);
+    a.barrier = barrier;
+    b.barrier = barrier;
+    this.flusher.setName("testHandlersFlushAtOnce");
+    this.flusher.start();
+    try {
+      this.flusher.request(a);
+      this.flusher.request(b);
+      for (int i = 0; i < 100 && (a.flushes.get() == 0 ||
+          b.flushes.get() == 0); i++) {
+        Thread.sleep(100);
+      }
+    } finally {
+      this.flusher.stop = true;
+      this.flusher.interruptIfNecessary();
+      this.flusher.join(10000);
+    }
+    assertEquals(1, a.flushes.get());
+    assertEquals(1, b.flushes.get());
+    assertTrue(a.concurrent);
+    assertTrue(b.concurrent);
+    assertEquals(0, a.memstoreSize.get());
+  }
+
+  private FakeRegion addRegion(final String name, final long size) {
+    FakeRegion r = new FakeRegion(name, size);
+    this.regions.add(r);
+    return r;
+  }
+
+  /*
+   * Flusher with the test's regions standing in for those of a server.
+   */
+  private class Flusher extends MemStoreFlusher {
+    volatile boolean stop = false;
+
+    Flusher(final Configuration c) {
+      super(c, null);
+    }
+
+    @Override
+    boolean isStopRequested() {
+      return this.stop;
+    }
+
+    @Override
+    long getGlobalMemStoreSize() {
+      long total = 0;
+      for (HRegion r: regions) {
+        total += r.memstoreSize.get();
+      }
+      return total;
+    }
+
+    @Override
+    SortedMap<Long, HRegion> getRegionsBySize() {
+      SortedMap<Long, HRegion> m = new TreeMap<Long, HRegion>(
+        new Comparator<Long>() {
+          public int compare(Long a, Long b) {
+            return b.compareTo(a);
+          }
+        });
+      for (HRegion r: regions) {
+        m.put(Long.valueOf(r.memstoreSize.get()), r);
+      }
+      return m;
+    }
+  }
+
+  /*
+   * Region whose flush only empties its memstore size.
+   */
+  private static class FakeRegion extends HRegion {
+    private final HRegionInfo info;
+    final AtomicInteger flushes = new AtomicInteger(0);
+    volatile boolean blocked = false;
+    volatile CyclicBarrier barrier = null;
+    volatile boolean concurrent = false;
+
+    FakeRegion(final String name, final long size) {
+      this.info = new HRegionInfo(new HTableDescriptor(name),
+        HConstants.EMPTY_START_ROW, HConstants.EMPTY_END_ROW);
+      this.memstoreSize.set(size);
+    }
+
+    @Override
+    public HRegionInfo getRegionInfo() {
+      return this.info;
+    }
+
+    @Override
+    boolean isUpdatesBlocked() {
+      return this.blocked;
+    }
+
+    @Override
+    public boolean flushcache(final boolean allStores) {
+      if (this.barrier != null) {
+        try {
+          this.barrier.await(5, TimeUnit.SECONDS);
+          this.concurrent = true;
+        } catch (Exception e) {
+          // Not flushed alongside the other region
+        }
+      }
+      this.memstoreSize.set(0);
+      this.flushes.incrementAndGet();
+      return false;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return this == o;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(this);
+    }
+
+    @Override
+    public String toString() {
+      return this.info.getRegionNameAsString();
+    }
+  }
+}
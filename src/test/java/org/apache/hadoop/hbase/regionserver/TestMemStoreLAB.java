@@ -0,0 +1,101 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import junit.framework.TestCase;
+
+public class TestMemStoreLAB extends TestCase {
+  private static final byte [] FAMILY = Bytes.toBytes("f");
+  private static final byte [] QUALIFIER = Bytes.toBytes("q");
+
+  private KeyValue makeKeyValue(final int row, final int valueLength) {
+    return new KeyValue(Bytes.toBytes(row), FAMILY, QUALIFIER,
+      new byte[valueLength]);
+  }
+
+  public void testCopy() throws Exception {
+    MemStoreLAB lab = new MemStoreLAB(1024, 256);
+    KeyValue kv1 = makeKeyValue(1, 10);
+    kv1.setMemstoreTS(5);
+    KeyValue kv2 = makeKeyValue(2, 10);
+    KeyValue copy1 = lab.copy(kv1);
+    KeyValue copy2 = lab.copy(kv2);
+    assertNotSame(kv1.getBuffer(), copy1.getBuffer());
+    assertEquals(kv1, copy1);
+    assertEquals(5, copy1.getMemstoreTS());
+    assertEquals(kv2, copy2);
+    // both copies are in the same chunk, one after the other
+    assertSame(copy1.getBuffer(), copy2.getBuffer());
+    assertEquals(copy1.getOffset() + copy1.getLength(), copy2.getOffset());
+    assertEquals(1, lab.getChunks());
+
+    // too large to be copied
+    KeyValue large = makeKeyValue(3, 300);
+    assertSame(large, lab.copy(large));
+    lab.close();
+  }
+
+  public void testChunks() throws Exception {
+    long chunkCount = MemStoreLAB.getChunkCount();
+    long wastedBytes = MemStoreLAB.getTotalWastedBytes();
+    MemStoreLAB lab = new MemStoreLAB(1024, 256);
+    KeyValue kv = makeKeyValue(1, 200);
+    int perChunk = 1024 / kv.getLength();
+    for (int i = 0; i <= perChunk; i++) {
+      lab.copy(kv);
+    }
+    assertEquals(2, lab.getChunks());
+    assertEquals(1024 - perChunk * kv.getLength(), lab.getWastedBytes());
+    assertEquals(chunkCount + 2, MemStoreLAB.getChunkCount());
+    assertEquals(wastedBytes + lab.getWastedBytes(),
+      MemStoreLAB.getTotalWastedBytes());
+
+    // closing lets go of the chunks; later copies are not pooled
+    lab.close();
+    assertEquals(chunkCount, MemStoreLAB.getChunkCount());
+    assertEquals(wastedBytes, MemStoreLAB.getTotalWastedBytes());
+    assertSame(kv, lab.copy(kv));
+  }
+
+  public void testMemStoreChunksGoWithSnapshot() throws Exception {
+    Configuration conf = HBaseConfiguration.create();
+    conf.setBoolean(MemStore.USEMSLAB_KEY, true);
+    MemStore memstore = new MemStore(conf, KeyValue.COMPARATOR);
+    long chunkCount = MemStoreLAB.getChunkCount();
+    KeyValue kv = makeKeyValue(1, 10);
+    memstore.add(kv);
+    KeyValue kept = memstore.kvset.first();
+    assertEquals(kv, kept);
+    assertNotSame(kv.getBuffer(), kept.getBuffer());
+    assertEquals(chunkCount + 1, MemStoreLAB.getChunkCount());
+
+    memstore.snapshot();
+    assertNotNull(memstore.snapshotAllocator);
+    assertNotSame(memstore.allocator, memstore.snapshotAllocator);
+    memstore.clearSnapshot(memstore.getSnapshot());
+    assertNull(memstore.snapshotAllocator);
+    assertEquals(chunkCount, MemStoreLAB.getChunkCount());
+  }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2010 The Apache Software Foundation
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hbase.regionserver;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+public class TestRowLockManager extends TestCase {
+  private static final byte [] ROW = Bytes.toBytes("row");
+  private static final byte [] OTHER_ROW = Bytes.toBytes("other");
+
+  public void testLockAndRelease() throws IOException {
+    RowLockManager locks = new RowLockManager(1000);
+    Integer lid = locks.lockRow(ROW);
+    assertTrue(locks.isLocked(lid));
+    assertTrue(ROW == locks.getRow(lid));
+    // A different row is not blocked by the held lock.
+    Integer other = locks.lockRow(OTHER_ROW);
+    assertFalse(lid.equals(other));
+    assertEquals(2, locks.size());
+    locks.unlockRow(lid);
+    locks.unlockRow(other);
+    assertFalse(locks.isLocked(lid));
+    assertNull(locks.getRow(lid));
+    assertEquals(0, locks.size());
+    // Releasing an unknown or null lock is harmless.
+    locks.unlockRow(lid);
+    locks.unlockRow(null);
+  }
+
+  public void testTimedOut() throws IOException {
+    RowLockManager locks = new RowLockManager(100);
+    Integer lid = locks.lockRow(ROW);
+    try {
+      locks.lockRow(Bytes.toBytes("row"));
+      fail("Expected lock wait to time out");
+    } catch (IOException e) {
+      // Expected
+    }
+    locks.unlockRow(lid);
+    locks.unlockRow(locks.lockRow(ROW));
+  }
+
+  public void testWaiterWokenOnRelease() throws Exception {
+    final RowLockManager locks = new RowLockManager(10000);
+    Integer lid = locks.lockRow(ROW);
+    final AtomicBoolean acquired = new AtomicBoolean(false);
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Integer waiter = locks.lockRow(ROW);
+          acquired.set(true);
+          locks.unlockRow(waiter);
+        } catch (IOException e) {
+          // acquired stays false
+        }
+      }
+    };
+    t.start();
+    Thread.sleep(100);
+    assertFalse(acquired.get());
+    locks.unlockRow(lid);
+    t.join(5000);
+    assertTrue(acquired.get());
+    locks.waitOnRowLocks();
+    assertEquals(0, locks.size());
+  }
+}
@@ -31,6 +31,8 @@ import org.apache.hadoop.hbase.HBaseTestingUtility;
 import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.io.hfile.DataBlockEncoding;
+import org.apache.hadoop.hbase.io.hfile.HFileScanner;
 import org.apache.hadoop.hbase.io.hfile.HFile.Writer;
 import org.apache.hadoop.hbase.regionserver.wal.HLog;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -91,11 +93,15 @@ public class TestStore extends TestCase {
   }
 
   private void init(String methodName) throws IOException {
+    init(methodName, new HColumnDescriptor(family));
+  }
+
+  private void init(String methodName, HColumnDescriptor hcd)
+  throws IOException {
     //Setting up a Store
     Path basedir = new Path(DIR+methodName);
     Path logdir = new Path(DIR+methodName+"/logs");
     Path oldLogDir = new Path(basedir, HConstants.HREGION_OLDLOGDIR_NAME);
-    HColumnDescriptor hcd = new HColumnDescriptor(family);
     HBaseConfiguration conf = new HBaseConfiguration();
     FileSystem fs = FileSystem.get(conf);
     Path reconstructionLog = null;
@@ -240,6 +246,67 @@ public class TestStore extends TestCase {
     assertCheck();
   }
 
+  /**
+   * Flush families with encoded data blocks and read them back through the
+   * store file reader.
+   * @throws IOException
+   */
+  public void testDataBlockEncoding() throws IOException {
+    DataBlockEncoding [] encodings =
+      {DataBlockEncoding.PREFIX, DataBlockEncoding.DIFF};
+    for (DataBlockEncoding encoding: encodings) {
+      HColumnDescriptor hcd = new HColumnDescriptor(family);
+      hcd.setDataBlockEncoding(encoding);
+      hcd.setBloomFilterType(StoreFile.BloomType.ROW);
+      init(this.getName() + encoding, hcd);
+      List<KeyValue> kvs = new ArrayList<KeyValue>();
+      for (int i = 0; i < 1000; i++) {
+        byte [] r = Bytes.toBytes(String.format("row%05d", i));
+        for (byte [] qf: new byte [][] {qf1, qf2, qf3}) {
+          KeyValue kv = new KeyValue(r, family, qf, i,
+            Bytes.toBytes("value" + i));
+          kvs.add(kv);
+          this.store.add(kv);
+        }
+      }
+      flush(1);
+
+      StoreFile.Reader reader = this.store.getStorefiles().get(0).getReader();
+      assertEquals(encoding, reader.getDataBlockEncoding());
+      HFileScanner scanner = reader.getScanner(false, false);
+      assertTrue(scanner.seekTo());
+      int count = 0;
+      do {
+        KeyValue kv = scanner.getKeyValue();
+        assertTrue(Bytes.equals(kvs.get(count).getKey(), kv.getKey()));
+        assertTrue(Bytes.equals(kvs.get(count).getValue(), kv.getValue()));
+        count++;
+      } while (scanner.next());
+      assertEquals(kvs.size(), count);
+
+      // Seek into the middle of the file
+      KeyValue middle = kvs.get(kvs.size() / 2);
+      assertEquals(0, scanner.seekTo(middle.getKey()));
+      assertTrue(Bytes.equals(middle.getValue(),
+        scanner.getKeyValue().getValue()));
+
+      // The encoded scanner checks the bloom filter
+      assertTrue(scanner.shouldSeek(middle.getRow(), null));
+      assertFalse(scanner.shouldSeek(Bytes.toBytes("nosuchrow"), null));
+
+      // And a get through the store
+      NavigableSet<byte[]> columns =
+        new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+      columns.add(qf2);
+      List<KeyValue> results = new ArrayList<KeyValue>();
+      this.store.get(new Get(middle.getRow()).addColumn(family, qf2),
+        columns, results);
+      assertEquals(1, results.size());
+      assertTrue(Bytes.equals(qf2, results.get(0).getQualifier()));
+      assertTrue(Bytes.equals(middle.getValue(), results.get(0).getValue()));
+    }
+  }
+
   private void flush(int storeFilessize) throws IOException{
     this.store.snapshot();
     flushStore(store, id++);
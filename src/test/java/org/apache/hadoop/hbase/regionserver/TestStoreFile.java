@@ -35,10 +35,12 @@ import org.apache.hadoop.hbase.HBaseTestCase;
 import org.apache.hadoop.hbase.HBaseTestingUtility;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.io.Reference.Range;
 import org.apache.hadoop.hbase.io.hfile.HFile;
 import org.apache.hadoop.hbase.io.hfile.HFileScanner;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.CompoundBloomFilter;
 import org.apache.hadoop.hdfs.MiniDFSCluster;
 import org.mockito.Mockito;
 
@@ -370,6 +372,176 @@ public class TestStoreFile extends HBaseTestCase {
     assertTrue(falsePos < 2);
   }
   
+  public void testPinnedBloomFilter() throws Exception {
+    FileSystem fs = FileSystem.getLocal(conf);
+    conf.setFloat("io.hfile.bloom.error.rate", (float)0.01);
+    conf.setBoolean("io.hfile.bloom.enabled", true);
+
+    // write the file
+    Path f = new Path(ROOT_DIR, getName());
+    StoreFile.Writer writer = new StoreFile.Writer(fs, f,
+        StoreFile.DEFAULT_BLOCKSIZE_SMALL, HFile.DEFAULT_COMPRESSION_ALGORITHM,
+        conf, KeyValue.COMPARATOR, StoreFile.BloomType.ROW, 2000);
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 2000; i += 2) {
+      String row = String.format(localFormatter, Integer.valueOf(i));
+      KeyValue kv = new KeyValue(row.getBytes(), "family".getBytes(),
+        "col".getBytes(), now, "value".getBytes());
+      writer.append(kv);
+    }
+    writer.close();
+
+    long pinned = StoreFile.getBloomCacheSize();
+    StoreFile.Reader reader = new StoreFile.Reader(fs, f, null, false);
+    reader.loadFileInfo();
+    reader.loadBloomfilter();
+    reader.pinBloom(conf);
+    assertEquals(pinned + reader.getBloomFilter().getByteSize(),
+      StoreFile.getBloomCacheSize());
+
+    TreeSet<byte[]> columns = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+    columns.add("col".getBytes());
+    assertTrue(reader.isBloomApplicable(columns));
+    int falsePos = 0;
+    for (int i = 0; i < 2000; i++) {
+      String row = String.format(localFormatter, Integer.valueOf(i));
+      boolean exists = reader.passesBloomFilter(row.getBytes(), columns);
+      if (i % 2 == 0) {
+        assertTrue(row, exists);
+      } else if (exists) {
+        falsePos++;
+      }
+    }
+    assertTrue(falsePos < 2);
+
+    // Closing the reader gives the memory back
+    reader.close();
+    assertEquals(pinned, StoreFile.getBloomCacheSize());
+    fs.delete(f, true);
+  }
+
+  public void testCompoundBloomFilter() throws Exception {
+    FileSystem fs = FileSystem.getLocal(conf);
+    conf.setFloat("io.hfile.bloom.error.rate", (float)0.01);
+    conf.setBoolean("io.hfile.bloom.enabled", true);
+    conf.setInt("io.hfile.bloom.chunk.keys", 100);
+
+    // write the file, two columns a row so chunks must break on rows
+    Path f = new Path(ROOT_DIR, getName());
+    StoreFile.Writer writer = new StoreFile.Writer(fs, f,
+        StoreFile.DEFAULT_BLOCKSIZE_SMALL, HFile.DEFAULT_COMPRESSION_ALGORITHM,
+        conf, KeyValue.COMPARATOR, StoreFile.BloomType.ROWCOL, 2000);
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 2000; i += 2) {
+      String row = String.format(localFormatter, Integer.valueOf(i));
+      for (String col : new String [] {"col1", "col2"}) {
+        KeyValue kv = new KeyValue(row.getBytes(), "family".getBytes(),
+          col.getBytes(), now, "value".getBytes());
+        writer.append(kv);
+      }
+    }
+    writer.close();
+
+    StoreFile.Reader reader = new StoreFile.Reader(fs, f, null, false);
+    reader.loadFileInfo();
+    reader.loadBloomfilter();
+    assertTrue(reader.getBloomFilter() instanceof CompoundBloomFilter);
+    CompoundBloomFilter bloom = (CompoundBloomFilter)reader.getBloomFilter();
+    assertEquals(2000, bloom.getKeyCount());
+    assertEquals(20, bloom.getChunkCount());
+    // chunks are cached as blocks, so nothing is pinned
+    long pinned = StoreFile.getBloomCacheSize();
+    reader.pinBloom(conf);
+    assertEquals(pinned, StoreFile.getBloomCacheSize());
+
+    // check false positives rate, and that rows did not straddle chunks
+    int falsePos = 0;
+    int falseNeg = 0;
+    for (int i = 0; i < 2000; i++) {
+      String row = String.format(localFormatter, Integer.valueOf(i));
+      for (String col : new String [] {"col1", "col2", "col3"}) {
+        TreeSet<byte[]> columns = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+        columns.add(col.getBytes());
+        boolean exists = reader.passesBloomFilter(row.getBytes(), columns);
+        if (i % 2 == 0 && !col.equals("col3")) {
+          if (!exists) falseNeg++;
+        } else {
+          if (exists) falsePos++;
+        }
+      }
+    }
+    // a row before the first of the file is in no chunk
+    TreeSet<byte[]> columns = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+    columns.add("col1".getBytes());
+    assertFalse(reader.passesBloomFilter("0".getBytes(), columns));
+    // a Get of several columns reads the file if any of them may be in it
+    columns.add("col3".getBytes());
+    assertTrue(reader.isBloomApplicable(columns));
+    assertTrue(reader.passesBloomFilter(
+      String.format(localFormatter, Integer.valueOf(0)).getBytes(), columns));
+    reader.close();
+    assertEquals(pinned, StoreFile.getBloomCacheSize());
+    fs.delete(f, true);
+    System.out.println("False negatives: " + falseNeg);
+    assertEquals(0, falseNeg);
+    System.out.println("False positives: " + falsePos);
+    assertTrue(falsePos < 4000 * 0.01 * 2);
+  }
+
+  public void testLazySeek() throws Exception {
+    FileSystem fs = FileSystem.getLocal(conf);
+    byte [] row = Bytes.toBytes("row");
+    byte [] family = Bytes.toBytes("family");
+    byte [] col = Bytes.toBytes("col");
+
+    // write a file holding two versions of a column
+    Path f = new Path(ROOT_DIR, getName());
+    StoreFile.Writer writer = new StoreFile.Writer(fs, f,
+        StoreFile.DEFAULT_BLOCKSIZE_SMALL, HFile.DEFAULT_COMPRESSION_ALGORITHM,
+        conf, KeyValue.COMPARATOR, StoreFile.BloomType.NONE, 2000);
+    writer.append(new KeyValue(row, family, col, 20, Bytes.toBytes("v20")));
+    writer.append(new KeyValue(row, family, col, 10, Bytes.toBytes("v10")));
+    writer.appendMetadata(1, false);
+    writer.close();
+
+    StoreFile hsf = new StoreFile(fs, f, true, conf,
+        StoreFile.BloomType.NONE, false);
+    StoreFile.Reader reader = hsf.createReader();
+    assertEquals(10, reader.getMinTimestamp());
+    assertEquals(20, reader.getMaxTimestamp());
+    assertTrue(reader.hasNoDeleteFamily());
+    Scan scan = new Scan();
+    scan.setTimeRange(15, 100);
+    assertTrue(reader.passesTimerangeFilter(scan, Long.MIN_VALUE));
+    assertFalse(reader.passesTimerangeFilter(scan, 21));
+    scan.setTimeRange(21, 100);
+    assertFalse(reader.passesTimerangeFilter(scan, Long.MIN_VALUE));
+
+    // the seek waits on a fake key until the scanner reaches the top
+    StoreFileScanner sfs = StoreFileScanner.getScannersForStoreFiles(
+      Lists.newArrayList(hsf), false, false).get(0);
+    assertTrue(sfs.requestSeek(KeyValue.createFirstOnRow(row, family, col)));
+    assertFalse(sfs.isRealSeekDone());
+    assertEquals(20, sfs.peek().getTimestamp());
+    assertEquals(KeyValue.Type.Maximum.getCode(), sfs.peek().getType());
+
+    KeyValue newer = new KeyValue(row, family, col, 30, Bytes.toBytes("v30"));
+    KeyValueScanner memstore =
+      new KeyValueScanFixture(KeyValue.COMPARATOR, newer);
+    memstore.seek(KeyValue.createFirstOnRow(row));
+    KeyValueHeap heap = new KeyValueHeap(
+      Lists.<KeyValueScanner>newArrayList(memstore, sfs), KeyValue.COMPARATOR);
+    assertEquals(newer, heap.next());
+    assertFalse(sfs.isRealSeekDone());
+    assertEquals(20, heap.next().getTimestamp());
+    assertTrue(sfs.isRealSeekDone());
+    assertEquals(10, heap.next().getTimestamp());
+    assertNull(heap.next());
+    heap.close();
+    hsf.closeReader();
+    fs.delete(f, true);
+  }
+
   public void testBloomTypes() throws Exception {
     float err = (float) 0.01;
     FileSystem fs = FileSystem.getLocal(conf);
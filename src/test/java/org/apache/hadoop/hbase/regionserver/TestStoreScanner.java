@@ -23,6 +23,7 @@ package org.apache.hadoop.hbase.regionserver;
 import junit.framework.TestCase;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.KeyValueTestUtil;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.util.Bytes;
 
@@ -172,6 +173,40 @@ public class TestStoreScanner extends TestCase {
   }
 
 
+  public void testGetStopsOnceVersionsFound() throws IOException {
+    KeyValue [] newer = new KeyValue[] {
+        KeyValueTestUtil.create("R1", "cf", "a", 5, KeyValue.Type.Put, "newer"),
+    };
+    KeyValue [] older = new KeyValue[] {
+        KeyValueTestUtil.create("R1", "cf", "a", 1, KeyValue.Type.Put, "older"),
+        KeyValueTestUtil.create("R1", "cf", "b", 1, KeyValue.Type.Put, "older"),
+    };
+    final List<KeyValue> olderRead = new ArrayList<KeyValue>();
+    KeyValueScanner olderScanner =
+      new KeyValueScanFixture(KeyValue.COMPARATOR, older) {
+        @Override
+        public KeyValue next() {
+          KeyValue kv = super.next();
+          olderRead.add(kv);
+          return kv;
+        }
+      };
+    List<KeyValueScanner> scanners = Arrays.<KeyValueScanner>asList(
+        new KeyValueScanFixture(KeyValue.COMPARATOR, newer), olderScanner);
+
+    Scan scanSpec = new Scan(new Get(Bytes.toBytes("R1")));
+    StoreScanner scan =
+      new StoreScanner(scanSpec, CF, Long.MAX_VALUE,
+          KeyValue.COMPARATOR, getCols("a"), scanners);
+
+    // the one version asked for is the newest; older ones are never read
+    List<KeyValue> results = new ArrayList<KeyValue>();
+    assertEquals(false, scan.next(results));
+    assertEquals(1, results.size());
+    assertEquals(newer[0], results.get(0));
+    assertTrue(olderRead.isEmpty());
+  }
+
   public void testDeleteVersionSameTimestamp() throws IOException {
     KeyValue [] kvs = new KeyValue [] {
         KeyValueTestUtil.create("R1", "cf", "a", 1, KeyValue.Type.Put, "dont-care"),
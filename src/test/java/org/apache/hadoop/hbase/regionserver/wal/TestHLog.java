@@ -20,6 +20,7 @@
 package org.apache.hadoop.hbase.regionserver.wal;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -395,4 +396,60 @@ public class TestHLog extends HBaseTestCase implements HConstants {
       }
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * Appends from many threads, each syncing, must all land in the log in
+   * sequence id order.
+   * @throws Exception
+   */
+  public void testConcurrentAppendAndSync() throws Exception {
+    final byte [] tableName = Bytes.toBytes(getName());
+    final HLog log = new HLog(this.fs, dir, this.oldLogDir, this.conf, null);
+    final HRegionInfo hri = new HRegionInfo(new HTableDescriptor(tableName),
+        HConstants.EMPTY_START_ROW, HConstants.EMPTY_END_ROW);
+    final int threadCount = 10;
+    final int editsPerThread = 50;
+    final List<IOException> failures = new ArrayList<IOException>();
+    Thread [] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      threads[i] = new Thread("appender-" + i) {
+        @Override
+        public void run() {
+          for (int j = 0; j < editsPerThread; j++) {
+            WALEdit edit = new WALEdit();
+            edit.add(new KeyValue(Bytes.toBytes(getName() + "-" + j),
+              tableName, tableName));
+            try {
+              log.append(hri, tableName, edit, System.currentTimeMillis());
+            } catch (IOException e) {
+              synchronized (failures) {
+                failures.add(e);
+              }
+            }
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertTrue(failures.isEmpty());
+    Path filename = log.computeFilename();
+    log.close();
+    Reader reader = HLog.getReader(fs, filename, conf);
+    try {
+      int count = 0;
+      long lastSeqNum = -1;
+      HLog.Entry entry;
+      while ((entry = reader.next()) != null) {
+        assertTrue(entry.getKey().getLogSeqNum() > lastSeqNum);
+        lastSeqNum = entry.getKey().getLogSeqNum();
+        count++;
+      }
+      assertEquals(threadCount * editsPerThread, count);
+    } finally {
+      reader.close();
+    }
+  }
+}
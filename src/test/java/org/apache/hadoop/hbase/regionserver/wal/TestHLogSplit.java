@@ -20,6 +20,7 @@
 package org.apache.hadoop.hbase.regionserver.wal;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
@@ -370,6 +371,60 @@ public class TestHLogSplit {
     }
   }
 
+  @Test
+  public void testSplitPicksUpLogsInPerHLogSubdirectories() throws IOException {
+    generateHLogs(-1);
+    // Spread the hlogs as a region server running two HLogs would.
+    for (int i = 0; i < NUM_WRITERS; i++) {
+      Path subdir = HLog.getHLogSubdirectory(hlogDir, i % 2);
+      fs.mkdirs(subdir);
+      fs.rename(new Path(hlogDir, HLOG_FILE_PREFIX + i),
+        new Path(subdir, HLOG_FILE_PREFIX + i));
+    }
+    fs.initialize(fs.getUri(), conf);
+    HLog.splitLog(hbaseDir, hlogDir, oldLogDir, fs, conf);
+
+    for (String region : regions) {
+      Path logfile = getLogForRegion(hbaseDir, TABLE_NAME, region);
+      assertEquals(NUM_WRITERS * ENTRIES, countHLog(logfile, fs, conf));
+    }
+    assertEquals(NUM_WRITERS, fs.listStatus(oldLogDir).length);
+    assertFalse(fs.exists(hlogDir));
+  }
+
+  @Test
+  public void testSplitKeepsEditOrderUnderBackPressure() throws IOException {
+    generateHLogs(-1);
+    fs.initialize(fs.getUri(), conf);
+    // A buffer this small makes readers wait on the writers for every chunk
+    // while several hlogs are read at once.
+    conf.setLong("hbase.regionserver.hlog.splitlog.buffersize", 1);
+    conf.setInt("hbase.regionserver.hlog.splitlog.reader.threads", 4);
+    try {
+      HLog.splitLog(hbaseDir, hlogDir, oldLogDir, fs, conf);
+    } finally {
+      conf.setLong("hbase.regionserver.hlog.splitlog.buffersize",
+        128 * 1024 * 1024);
+      conf.setInt("hbase.regionserver.hlog.splitlog.reader.threads", 3);
+    }
+
+    for (String region : regions) {
+      Path logfile = getLogForRegion(hbaseDir, TABLE_NAME, region);
+      HLog.Reader in = HLog.getReader(fs, logfile, conf);
+      int count = 0;
+      long lastTs = -1;
+      HLog.Entry entry;
+      while ((entry = in.next()) != null) {
+        long ts = entry.getEdit().getKeyValues().get(0).getTimestamp();
+        assertTrue("edits out of order", ts > lastTs);
+        lastTs = ts;
+        count++;
+      }
+      in.close();
+      assertEquals(NUM_WRITERS * ENTRIES, count);
+    }
+  }
+
   @Test
   public void testLogDirectoryShouldBeDeletedAfterSuccessfulSplit()
   throws IOException {